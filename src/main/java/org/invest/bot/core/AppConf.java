@@ -1,6 +1,7 @@
 package org.invest.bot.core;
 
 import org.invest.bot.invest.api.InvestApiCore;
+import org.invest.bot.invest.core.modules.warmstart.WarmStartService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -13,8 +14,9 @@ public class AppConf {
     private String tinkoffToken;
     private static final Logger log = LoggerFactory.getLogger(AppConf.class);
     @Bean
-    public InvestApiCore investApiCore(){
+    public InvestApiCore investApiCore(WarmStartService warmStartService){
         InvestApiCore apiCoreInstance = new InvestApiCore(tinkoffToken);
+        warmStartService.register(apiCoreInstance);
         return apiCoreInstance;
     }
 }
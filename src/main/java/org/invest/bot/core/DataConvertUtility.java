@@ -37,6 +37,23 @@ public final class DataConvertUtility {
                 .add(BigDecimal.valueOf(quotation.getNano(), 9));
     }
 
+    public static Quotation bigDecimalToQuotation(BigDecimal value) {
+        BigDecimal units = value.setScale(0, RoundingMode.DOWN);
+        return Quotation.newBuilder()
+                .setUnits(units.longValue())
+                .setNano(value.subtract(units).movePointRight(9).intValue())
+                .build();
+    }
+
+    public static MoneyValue bigDecimalToMoneyValue(BigDecimal value, String currency) {
+        Quotation quotation = bigDecimalToQuotation(value);
+        return MoneyValue.newBuilder()
+                .setCurrency(currency)
+                .setUnits(quotation.getUnits())
+                .setNano(quotation.getNano())
+                .build();
+    }
+
     public static String convertTimeStampToStringWithoutYearSymbol(Timestamp dateTime) {
         Instant instant = Instant.ofEpochSecond(dateTime.getSeconds(), dateTime.getNanos());
         SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd");
@@ -1,16 +1,49 @@
 package org.invest.bot.core;
 
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.invest.bot.core.local.RuLocal;
 import org.invest.bot.core.messages.KeyboardFactory;
 import org.invest.bot.core.messages.MessageFormatter;
 import org.invest.bot.core.messages.PrepareMessage;
 import org.invest.bot.core.messages.enums.Commands;
-import org.invest.bot.invest.api.InvestApiCore;
+import org.invest.bot.core.outbound.OutboundSendQueue;
+import org.invest.bot.core.outbound.SendPriority;
+import org.invest.bot.core.sessions.ChatSession;
+import org.invest.bot.core.sessions.SessionBatchRunner;
+import org.invest.bot.core.sessions.SessionRegistry;
+import org.invest.bot.core.updates.OrderedUpdateDispatcher;
+import org.invest.bot.invest.api.BrokerClients;
+import org.invest.bot.invest.core.modules.accounts.ConsolidatedBook;
+import org.invest.bot.invest.core.modules.accounts.ConsolidatedPortfolioService;
+import org.invest.bot.invest.core.modules.accounts.PortfolioBook;
 import org.invest.bot.invest.core.modules.ai.AiReportService;
+import org.invest.bot.invest.core.modules.alerts.AlertDeduplicationService;
+import org.invest.bot.invest.core.modules.attribution.AttributionService;
+import org.invest.bot.invest.core.modules.attribution.DailyAttribution;
+import org.invest.bot.invest.core.modules.backtest.BacktestReport;
+import org.invest.bot.invest.core.modules.backtest.BacktestService;
 import org.invest.bot.invest.core.modules.balanse.BalanceService;
 import org.invest.bot.invest.core.modules.balanse.ConcentrationProblem;
+import org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure;
+import org.invest.bot.invest.core.modules.brokerreport.BrokerReportService;
+import org.invest.bot.invest.core.modules.changes.PositionChange;
+import org.invest.bot.invest.core.modules.changes.PositionChangeService;
+import org.invest.bot.invest.core.modules.drift.DriftAlert;
+import org.invest.bot.invest.core.modules.drift.DriftMonitor;
+import org.invest.bot.invest.core.modules.exposure.ExposureCube;
+import org.invest.bot.invest.core.modules.exposure.ExposureService;
+import org.invest.bot.invest.core.modules.fees.FeeService;
 import org.invest.bot.invest.core.modules.instruments.InstrumentAnalysisService;
+import org.invest.bot.invest.core.modules.journal.JournalEntry;
+import org.invest.bot.invest.core.modules.optimizer.OptimizationResult;
+import org.invest.bot.invest.core.modules.optimizer.OptimizerService;
+import org.invest.bot.invest.core.modules.performance.PerformanceService;
+import org.invest.bot.invest.core.modules.risk.RiskService;
+import org.invest.bot.invest.core.modules.simulation.MonteCarloResult;
+import org.invest.bot.invest.core.modules.simulation.MonteCarloService;
+import org.invest.bot.invest.core.modules.stress.StressReport;
+import org.invest.bot.invest.core.modules.stress.StressService;
 import org.invest.bot.invest.core.objects.InstrumentObj;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.beans.factory.annotation.Value;
@@ -21,66 +54,144 @@ import org.telegram.telegrambots.longpolling.BotSession;
 import org.telegram.telegrambots.longpolling.interfaces.LongPollingUpdateConsumer;
 import org.telegram.telegrambots.longpolling.starter.AfterBotRegistration;
 import org.telegram.telegrambots.longpolling.starter.SpringLongPollingBot;
-import org.telegram.telegrambots.longpolling.util.LongPollingSingleThreadUpdateConsumer;
 import org.telegram.telegrambots.meta.api.methods.botapimethods.BotApiMethod;
 import org.telegram.telegrambots.meta.api.methods.send.SendDocument;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.DeleteMessage;
 import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
 import org.telegram.telegrambots.meta.api.objects.InputFile;
 import org.telegram.telegrambots.meta.api.objects.Update;
 import org.telegram.telegrambots.meta.api.objects.message.Message;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
-import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 import org.telegram.telegrambots.meta.generics.TelegramClient;
 import ru.tinkoff.piapi.contract.v1.Account;
-import ru.tinkoff.piapi.contract.v1.Operation;
 import ru.tinkoff.piapi.core.models.Portfolio;
 
 import java.io.File;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Component
 @Slf4j
-public class TelegramBot implements SpringLongPollingBot, LongPollingSingleThreadUpdateConsumer {
+public class TelegramBot implements SpringLongPollingBot {
+    private static final int RECONCILIATION_DAYS = 90;
+    private static final long SEND_DRAIN_MILLIS = 5_000;
 
     private final String telegramToken;
-    private final TelegramClient telegramClient;
+    private final OutboundSendQueue sendQueue;
     private final MessageFormatter messageFormatter;
     private final KeyboardFactory keyboardFactory;
     private final BalanceService balanceService;
-    private ConcentrationProblem lastSentDeviations;
     private final AiReportService aiReportService;
-    private Long userChatId;
-    private InvestApiCore apiCore;
     private final InstrumentAnalysisService instrumentAnalysisService;
+    private final DriftMonitor driftMonitor;
+    private final MonteCarloService monteCarloService;
+    private final BacktestService backtestService;
+    private final RiskService riskService;
+    private final OptimizerService optimizerService;
+    private final StressService stressService;
+    private final ConsolidatedPortfolioService consolidatedPortfolioService;
+    private final ExposureService exposureService;
+    private final PerformanceService performanceService;
+    private final AttributionService attributionService;
+    private final FeeService feeService;
+    private final PositionChangeService positionChangeService;
+    private final BrokerReportService brokerReportService;
+    private final AlertDeduplicationService alertDeduplicationService;
+    private final SessionRegistry sessionRegistry;
+    private final BrokerClients brokerClients;
+    private final SessionBatchRunner sessionBatchRunner;
+    private final OrderedUpdateDispatcher updateDispatcher;
     public TelegramBot(@Value("${telegram.token}") String telegramToken,
                        MessageFormatter messageFormatter,
                        KeyboardFactory keyboardFactory,
                        BalanceService balanceService,
-                       InvestApiCore apiCore,
                        InstrumentAnalysisService instrumentAnalysisService,
-                       AiReportService aiReportService) {
+                       AiReportService aiReportService,
+                       DriftMonitor driftMonitor,
+                       MonteCarloService monteCarloService,
+                       BacktestService backtestService,
+                       RiskService riskService,
+                       OptimizerService optimizerService,
+                       StressService stressService,
+                       ConsolidatedPortfolioService consolidatedPortfolioService,
+                       ExposureService exposureService,
+                       PerformanceService performanceService,
+                       AttributionService attributionService,
+                       FeeService feeService,
+                       PositionChangeService positionChangeService,
+                       BrokerReportService brokerReportService,
+                       AlertDeduplicationService alertDeduplicationService,
+                       SessionRegistry sessionRegistry,
+                       BrokerClients brokerClients,
+                       SessionBatchRunner sessionBatchRunner,
+                       @Value("${telegram.updates.parallelism:4}") int updateParallelism,
+                       @Value("${telegram.updates.queue-capacity:200}") int updateQueueCapacity,
+                       @Value("${telegram.send.global-per-second:30}") double sendGlobalPerSecond,
+                       @Value("${telegram.send.per-chat-per-second:1}") double sendPerChatPerSecond,
+                       @Value("${telegram.send.per-chat-burst:3}") double sendPerChatBurst,
+                       @Value("${telegram.send.parallelism:4}") int sendParallelism,
+                       @Value("${telegram.send.max-attempts:5}") int sendMaxAttempts) {
         this.telegramToken = telegramToken;
-        this.apiCore = apiCore;
-        this.telegramClient = new OkHttpTelegramClient(this.telegramToken);
+        TelegramClient telegramClient = new OkHttpTelegramClient(this.telegramToken);
+        this.sendQueue = new OutboundSendQueue(telegramClient, sendGlobalPerSecond, sendPerChatPerSecond,
+                sendPerChatBurst, sendParallelism, sendMaxAttempts);
         this.messageFormatter = messageFormatter;
         this.keyboardFactory = keyboardFactory;
         this.balanceService = balanceService;
         this.aiReportService = aiReportService;
         this.instrumentAnalysisService = instrumentAnalysisService;
+        this.driftMonitor = driftMonitor;
+        this.monteCarloService = monteCarloService;
+        this.backtestService = backtestService;
+        this.riskService = riskService;
+        this.optimizerService = optimizerService;
+        this.stressService = stressService;
+        this.consolidatedPortfolioService = consolidatedPortfolioService;
+        this.exposureService = exposureService;
+        this.performanceService = performanceService;
+        this.attributionService = attributionService;
+        this.feeService = feeService;
+        this.positionChangeService = positionChangeService;
+        this.brokerReportService = brokerReportService;
+        this.alertDeduplicationService = alertDeduplicationService;
+        this.updateDispatcher = new OrderedUpdateDispatcher(this::consume, updateParallelism, updateQueueCapacity);
+        this.sessionRegistry = sessionRegistry;
+        this.brokerClients = brokerClients;
+        this.sessionBatchRunner = sessionBatchRunner;
+        sessionRegistry.onRestored(this::startNotifications);
     }
     @Override
     public String getBotToken() {
         return telegramToken;
     }
 
+    /**
+     * Обновления разбираются в пуле: долгая команда одного чата не задерживает остальные.
+     */
     @Override
     public LongPollingUpdateConsumer getUpdatesConsumer() {
-        return this;
+        return updateDispatcher;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        updateDispatcher.shutdown();
+        sendQueue.shutdown(SEND_DRAIN_MILLIS);
     }
 
-    @Override
     public void consume(Update update) {
         if (update.hasMessage() && update.getMessage().hasText()) {
             handleTextMessage(update.getMessage());
@@ -96,119 +207,490 @@ public class TelegramBot implements SpringLongPollingBot, LongPollingSingleThrea
     }
 
     private void processCommand(Message message) {
-        Commands command = Commands.valueOf(message.getText().substring(1));
+        Commands command = Commands.valueOf(commandOf(message.getText()).substring(1));
+        if (command == Commands.start) {
+            processStartCommand(message.getChatId(), message.getChat().getUserName());
+            return;
+        }
+        ChatSession session = resolveSession(message.getChatId());
+        if (session == null) {
+            return;
+        }
+        if (command == Commands.token) {
+            connectToken(session, message);
+            return;
+        }
+        if (!hasAccounts(session)) {
+            return;
+        }
         switch (command) {
-            case start -> processStartCommand(message.getChatId(), message.getChat().getUserName());
-            case portfolio -> portfolio();
-            case analyze -> analyzeCommand();
-            case exp ->exportForAi();
-            case instrument -> instrument();
+            case portfolio -> portfolio(session);
+            case analyze -> analyzeCommand(session);
+            case exp -> exportForAi(session);
+            case instrument -> instrument(session);
+            case simulate -> simulate(session);
+            case backtest -> backtest(session);
+            case optimize -> optimize(session);
+            case stress -> stress(session);
+            case exposure -> exposure(session);
+            case attribution -> attribution(session);
+            case fees -> fees(session);
+            case status -> status(session);
+            case accounts -> accounts(session);
+        }
+    }
+
+    /**
+     * Чат не владельца работает только со счетами своего токена: пока токен не подключен, команды не выполняются.
+     */
+    private boolean hasAccounts(ChatSession session) {
+        if (sessionRegistry.scope(session) != null) {
+            return true;
+        }
+        executeMethod(PrepareMessage.createMessage(session.getChatId(),
+                "Подключите свой токен брокера только для чтения: /token &lt;токен&gt;"));
+        return false;
+    }
+
+    /**
+     * Подключает токен брокера чата. Сообщение с токеном удаляется из чата сразу, до проверки токена.
+     * Выбор счетов сбрасывается: прежние счета принадлежат другому токену.
+     */
+    private void connectToken(ChatSession session, Message message) {
+        long chatId = session.getChatId();
+        String[] parts = message.getText().trim().split("\\s+", 2);
+        if (parts.length < 2) {
+            executeMethod(PrepareMessage.createMessage(chatId, "Использование: /token &lt;токен только для чтения&gt;"));
+            return;
+        }
+        executeMethod(DeleteMessage.builder().chatId(String.valueOf(chatId)).messageId(message.getMessageId()).build());
+        if (sessionRegistry.isOwner(chatId)) {
+            executeMethod(PrepareMessage.createMessage(chatId, "Вы владелец: счета токена из настроек уже доступны."));
+            return;
+        }
+        try {
+            List<Account> accounts = brokerClients.connect(chatId, parts[1]);
+            session.setAccountIds(Set.of());
+            executeMethod(PrepareMessage.createMessage(chatId, "Токен подключен, счетов: " + accounts.size() + "."));
+        } catch (Exception e) {
+            log.warn("Токен брокера для chatId {} не подключен: {}", chatId, e.getMessage());
+            executeMethod(PrepareMessage.createMessage(chatId, "Не удалось подключить токен: проверьте, что он действует и у него есть открытые счета."));
         }
     }
 
-    public void instrument(){
-        if (!checkChatId()) return;
-        Portfolio portfolio = apiCore.getPortfolio(apiCore.getAccounts().get(0).getId());
-        List<InstrumentObj> shares = apiCore.getInstruments(portfolio).stream()
+    /**
+     * Сессия чата, если команда допустима: пользователь прошел /start и не превысил лимит команд.
+     * О превышении лимита сообщается один раз, дальнейшие команды до паузы отбрасываются молча.
+     */
+    private ChatSession resolveSession(long chatId) {
+        ChatSession session = sessionRegistry.get(chatId);
+        if (session == null) {
+            log.warn("Команда от chatId {} без сессии. Пользователь должен сначала написать /start", chatId);
+            return null;
+        }
+        switch (session.admit()) {
+            case ALLOWED -> {
+                return session;
+            }
+            case REJECTED -> {
+                log.warn("Превышен лимит команд для chatId {}.", chatId);
+                executeMethod(PrepareMessage.createMessage(chatId, "Слишком много запросов, повторите через несколько секунд."));
+            }
+            case REJECTED_SILENTLY -> {
+            }
+        }
+        return null;
+    }
+
+    public void instrument(ChatSession session) {
+        long chatId = session.getChatId();
+        List<InstrumentObj> shares = consolidatedPortfolioService.load(sessionRegistry.scope(session)).total().instrumentObjs().stream()
                 .filter(f -> f.getType().equals("share")).toList();
         InlineKeyboardMarkup keyboard = keyboardFactory.createTickerKeyboard(shares);
-        executeMethod(PrepareMessage.createMessage(userChatId, "Выберите акцию для анализа:", keyboard));
+        executeMethod(PrepareMessage.createMessage(chatId, "Выберите акцию для анализа:", keyboard));
     }
 
-    public void portfolio() {
-        if (!checkChatId()) return;
-        for (Account account : apiCore.getAccounts()) {
-            Portfolio portfolio = apiCore.getPortfolio(account.getId());
-            List<InstrumentObj> instrumentObjs = apiCore.getInstruments(portfolio);
-            String messageText = messageFormatter.portfolio(account.getName(), instrumentObjs, portfolio, "all");
+    public void portfolio(ChatSession session) {
+        long chatId = session.getChatId();
+        for (PortfolioBook book : consolidatedPortfolioService.load(sessionRegistry.scope(session)).accounts()) {
+            Account account = book.account();
+            Portfolio portfolio = book.portfolio();
+            List<InstrumentObj> instrumentObjs = book.instrumentObjs();
+            String messageText = messageFormatter.portfolio(account.getName(), instrumentObjs, portfolio, "all")
+                    + performanceSummary(account.getId())
+                    + riskSummary(instrumentObjs, portfolio);
             InlineKeyboardMarkup keyboard = keyboardFactory.createPortfolioFilterKeyboard(account.getId());
-            executeMethod(PrepareMessage.createMessage(userChatId, messageText, keyboard));
+            executeMethod(PrepareMessage.createMessage(chatId, messageText, keyboard));
+        }
+    }
+
+    private String performanceSummary(String accountId) {
+        try {
+            return messageFormatter.formatPerformance(performanceService.summary(accountId));
+        } catch (Exception e) {
+            log.error("Не удалось рассчитать доходность счета {}: {}", accountId, e.getMessage(), e);
+            return "";
+        }
+    }
+
+    private String riskSummary(List<InstrumentObj> instrumentObjs, Portfolio portfolio) {
+        if (instrumentObjs.isEmpty()) {
+            return "";
+        }
+        try {
+            return messageFormatter.formatRiskSummary(riskService.calculate(instrumentObjs),
+                    portfolio.getTotalAmountPortfolio().getValue());
+        } catch (Exception e) {
+            log.error("Не удалось рассчитать риск-метрики: {}", e.getMessage(), e);
+            return "";
+        }
+    }
+
+    public void analyzeCommand(ChatSession session) {
+        long chatId = session.getChatId();
+        log.info("Запуск анализа по ручной команде для chatId {}", chatId);
+        performAnalysisAndNotify(session, true);
+    }
+
+    public void simulate(ChatSession session) {
+        long chatId = session.getChatId();
+        try {
+            log.info("Запуск Монте-Карло симуляции для chatId {}", chatId);
+            List<InstrumentObj> instrumentObjs = consolidatedPortfolioService.load(sessionRegistry.scope(session)).total().instrumentObjs();
+            MonteCarloResult result = monteCarloService.simulate(instrumentObjs, 10_000, 252);
+            executeMethod(PrepareMessage.createMessage(chatId, messageFormatter.formatMonteCarlo(result)));
+        } catch (Exception e) {
+            log.error("Ошибка Монте-Карло симуляции для chatId {}: {}", chatId, e.getMessage(), e);
+            executeMethod(PrepareMessage.createMessage(chatId, "Не удалось выполнить симуляцию."));
+        }
+    }
+
+    public void backtest(ChatSession session) {
+        long chatId = session.getChatId();
+        try {
+            log.info("Запуск бэктеста правил ребалансировки для chatId {}", chatId);
+            executeMethod(PrepareMessage.createMessage(chatId, "Запущен бэктест за 5 лет, это может занять несколько минут..."));
+            List<InstrumentObj> instrumentObjs = consolidatedPortfolioService.load(sessionRegistry.scope(session)).total().instrumentObjs();
+            BacktestReport report = backtestService.run(instrumentObjs, 5, BacktestService.defaultGrid());
+            executeMethod(PrepareMessage.createMessage(chatId, messageFormatter.formatBacktest(report, 10)));
+        } catch (Exception e) {
+            log.error("Ошибка бэктеста для chatId {}: {}", chatId, e.getMessage(), e);
+            executeMethod(PrepareMessage.createMessage(chatId, "Не удалось выполнить бэктест."));
+        }
+    }
+
+    public void optimize(ChatSession session) {
+        long chatId = session.getChatId();
+        try {
+            log.info("Запуск оптимизации долей для chatId {}", chatId);
+            List<InstrumentObj> instrumentObjs = consolidatedPortfolioService.load(sessionRegistry.scope(session)).total().instrumentObjs();
+            OptimizationResult result = optimizerService.optimize(instrumentObjs);
+            executeMethod(PrepareMessage.createMessage(chatId, messageFormatter.formatOptimization(result)));
+        } catch (Exception e) {
+            log.error("Ошибка оптимизации для chatId {}: {}", chatId, e.getMessage(), e);
+            executeMethod(PrepareMessage.createMessage(chatId, "Не удалось выполнить оптимизацию."));
         }
     }
 
-    public void analyzeCommand() {
-        if (!checkChatId()) return;
-        log.info("Запуск анализа по ручной команде для chatId {}", userChatId);
-        performAnalysisAndNotify(true);
+    public void stress(ChatSession session) {
+        long chatId = session.getChatId();
+        try {
+            log.info("Запуск стресс-теста для chatId {}", chatId);
+            List<InstrumentObj> instrumentObjs = consolidatedPortfolioService.load(sessionRegistry.scope(session)).total().instrumentObjs();
+            StressReport report = stressService.run(instrumentObjs);
+            executeMethod(PrepareMessage.createMessage(chatId, messageFormatter.formatStress(report)));
+        } catch (Exception e) {
+            log.error("Ошибка стресс-теста для chatId {}: {}", chatId, e.getMessage(), e);
+            executeMethod(PrepareMessage.createMessage(chatId, "Не удалось выполнить стресс-тест."));
+        }
     }
 
-    public void exportForAi() {
+    public void exposure(ChatSession session) {
+        long chatId = session.getChatId();
         try {
-            log.info("Запрос на экспорт данных для AI от chatId {}", userChatId);
-            Account account = apiCore.getAccounts().get(0);
-            Portfolio portfolio = apiCore.getPortfolio(account.getId());
-            List<InstrumentObj> instrumentObjs = apiCore.getInstruments(portfolio);
-            List<Operation> operations = apiCore.getOperationsForLastMonth(account.getId());
-            File reportFile = aiReportService.generateReportFile(account, portfolio,instrumentObjs,operations);
+            log.info("Запуск расчета экспозиций для chatId {}", chatId);
+            List<InstrumentObj> instrumentObjs = consolidatedPortfolioService.load(sessionRegistry.scope(session)).total().instrumentObjs();
+            ExposureCube cube = exposureService.build(instrumentObjs);
+            executeMethod(PrepareMessage.createMessage(chatId, messageFormatter.formatExposure(cube,
+                    PortfolioInstrumentStructure.ISSUER_CONCENTRATION_LIMIT.value, 5)));
+        } catch (Exception e) {
+            log.error("Ошибка расчета экспозиций для chatId {}: {}", chatId, e.getMessage(), e);
+            executeMethod(PrepareMessage.createMessage(chatId, "Не удалось рассчитать экспозиции."));
+        }
+    }
+
+    /**
+     * Атрибуция строится по истории стоимости счетов владельца.
+     */
+    public void attribution(ChatSession session) {
+        long chatId = session.getChatId();
+        if (!sessionRegistry.isOwner(chatId)) {
+            executeMethod(PrepareMessage.createMessage(chatId, "Атрибуция дня доступна только по счетам владельца."));
+            return;
+        }
+        try {
+            log.info("Запуск атрибуции дня для chatId {}", chatId);
+            DailyAttribution today = attributionService.today();
+            LocalDate date = today.localDate();
+            List<DailyAttribution> history = attributionService.history(date.minusDays(7), date.minusDays(1));
+            executeMethod(PrepareMessage.createMessage(chatId, messageFormatter.formatAttribution(today, history, 5)));
+        } catch (Exception e) {
+            log.error("Ошибка атрибуции для chatId {}: {}", chatId, e.getMessage(), e);
+            executeMethod(PrepareMessage.createMessage(chatId, "Не удалось рассчитать атрибуцию дня."));
+        }
+    }
+
+    public void fees(ChatSession session) {
+        long chatId = session.getChatId();
+        try {
+            log.info("Запуск отчета по комиссиям для chatId {}", chatId);
+            Set<String> scope = sessionRegistry.scope(session);
+            executeMethod(PrepareMessage.createMessage(chatId, messageFormatter.formatFees(feeService.report(5, scope), 6)
+                    + commissionReconciliation(RECONCILIATION_DAYS, scope)));
+        } catch (Exception e) {
+            log.error("Ошибка отчета по комиссиям для chatId {}: {}", chatId, e.getMessage(), e);
+            executeMethod(PrepareMessage.createMessage(chatId, "Не удалось построить отчет по комиссиям."));
+        }
+    }
+
+    /**
+     * Сверка по уже загруженным отчетам: сама загрузка идет по расписанию и здесь не запускается.
+     * Текущий день не сверяется, отчет за него еще неполный.
+     */
+    private String commissionReconciliation(int days, Set<String> accountIds) {
+        try {
+            Instant to = Instant.now().truncatedTo(ChronoUnit.DAYS);
+            return messageFormatter.formatCommissionReconciliation(
+                    brokerReportService.reconcile(to.minus(days, ChronoUnit.DAYS), to, accountIds), days);
+        } catch (Exception e) {
+            log.error("Не удалось сверить комиссии с брокерским отчетом: {}", e.getMessage(), e);
+            return "";
+        }
+    }
+
+    public void status(ChatSession session) {
+        long chatId = session.getChatId();
+        executeMethod(PrepareMessage.createMessage(chatId, messageFormatter.formatDispatcherMetrics(updateDispatcher.getMetrics())
+                + "\n\n" + messageFormatter.formatOutboundMetrics(sendQueue.getMetrics())));
+    }
+
+    public void exportForAi(ChatSession session) {
+        long chatId = session.getChatId();
+        try {
+            log.info("Запрос на экспорт данных для AI от chatId {}", chatId);
+            PortfolioBook book = consolidatedPortfolioService.load(sessionRegistry.scope(session)).total();
+            List<JournalEntry> operations = consolidatedPortfolioService.getOperationsForLastMonth(sessionRegistry.scope(session));
+            File reportFile = aiReportService.generateReportFile(book.account(), book.portfolio(), book.instrumentObjs(), operations,
+                    sessionRegistry.scope(session));
 
             InputFile inputFile = new InputFile(reportFile);
-            SendDocument sendDocument = new SendDocument(String.valueOf(userChatId), inputFile);
+            SendDocument sendDocument = new SendDocument(String.valueOf(chatId), inputFile);
             sendDocument.setCaption("Отчет по портфелю для анализа нейросетью.");
-            try {
-                telegramClient.execute(sendDocument);
-            } catch (TelegramApiException e) {
-                log.error("Telegram API execution error: {}", e.getMessage(), e);
+            // Файл нужен до завершения отправки, поэтому удаляется после нее, а не сразу
+            sendQueue.submit(sendDocument.getChatId(), SendPriority.INTERACTIVE, client -> client.execute(sendDocument))
+                    .whenComplete((ignored, error) -> {
+                        if (reportFile.delete()) {
+                            log.info("Временный файл отчета удален: {}", reportFile.getName());
+                        }
+                    });
+        } catch (Exception e) {
+            log.error("Не удалось создать или отправить AI-отчет для chatId {}: {}", chatId, e.getMessage());
+            executeMethod(PrepareMessage.createMessage(chatId, "Произошла ошибка при создании отчета."));
+        }
+    }
+
+    /**
+     * Выбор счетов сессии: остальные команды и уведомления учитывают только выбранные счета.
+     */
+    public void accounts(ChatSession session) {
+        long chatId = session.getChatId();
+        try {
+            List<Account> accounts = availableAccounts(session);
+            executeMethod(PrepareMessage.createMessage(chatId, "Счета для отчетов и уведомлений:",
+                    keyboardFactory.createAccountSelectionKeyboard(accounts, session.getAccountIds())));
+        } catch (Exception e) {
+            log.error("Ошибка загрузки счетов для chatId {}: {}", chatId, e.getMessage(), e);
+            executeMethod(PrepareMessage.createMessage(chatId, "Не удалось загрузить список счетов."));
+        }
+    }
+
+    /**
+     * Счета, из которых сессия выбирает: у владельца - счета токена из настроек, у остальных - счета своего токена.
+     */
+    private List<Account> availableAccounts(ChatSession session) {
+        if (sessionRegistry.isOwner(session.getChatId())) {
+            return consolidatedPortfolioService.getOpenAccounts();
+        }
+        Set<String> own = brokerClients.accountIdsOf(session.getChatId());
+        return own.isEmpty() ? List.of() : consolidatedPortfolioService.getOpenAccounts(own);
+    }
+
+    /**
+     * Вызывается монитором отклонений, когда набор нарушений изменился в течение торговой сессии.
+     * Монитор следит за всеми счетами владельца, поэтому сессиям владельца с выбранными счетами
+     * анализ пересчитывается по их выбору, а сессии со своим токеном уведомление не получают.
+     */
+    private void onDrift(DriftAlert alert) {
+        log.info("Монитор отклонений сообщил об изменении нарушений: {}", alert.breaches());
+        List<ChatSession> narrowed = new ArrayList<>();
+        for (ChatSession session : sessionRegistry.all()) {
+            if (!sessionRegistry.isOwner(session.getChatId())) {
+                continue;
             }
-            if (reportFile.delete()) {
-                log.info("Временный файл отчета удален: {}", reportFile.getName());
+            if (!session.getAccountIds().isEmpty()) {
+                narrowed.add(session);
+            } else if (alertDeduplicationService.isNew(session.getChatId(), alert.concentrationProblem())) {
+                sendAnalysis(session.getChatId(), alert.concentrationProblem(), alert.portfolio(), Set.of(), SendPriority.NOTIFICATION);
             }
+        }
+        if (!narrowed.isEmpty()) {
+            analyzeSessions("drift", narrowed, Duration.ZERO);
+        }
+    }
 
+    /**
+     * Ежедневный анализ портфелей всех пользователей. Задачи разносятся по окну пакета,
+     * счета, выбранные несколькими пользователями, загружаются один раз.
+     */
+    @Scheduled(cron = "${analysis.cron:0 0 13 * * MON-FRI}")
+    public void scheduledAnalysis() {
+        if (!sessionRegistry.isEmpty()) {
+            analyzeSessions("scheduled-analysis", sessionRegistry.all(), null);
+        }
+    }
+
+    /**
+     * @param window Окно разнесения задач, null - окно из настроек пакета
+     */
+    private void analyzeSessions(String name, Collection<ChatSession> sessions, Duration window) {
+        Map<String, CompletableFuture<PortfolioBook>> shared = new ConcurrentHashMap<>();
+        if (window == null) {
+            sessionBatchRunner.run(name, sessions, session -> analyze(session, true, shared, SendPriority.NOTIFICATION));
+        } else {
+            sessionBatchRunner.run(name, sessions, window, session -> analyze(session, true, shared, SendPriority.NOTIFICATION));
+        }
+    }
+
+    /**
+     * Вызывается при сделках, купонах и дивидендах, найденных сравнением снимков портфеля.
+     */
+    private void onPositionChanges(List<PositionChange> changes) {
+        for (ChatSession session : sessionRegistry.all()) {
+            List<PositionChange> selected = changes.stream()
+                    .filter(change -> sessionRegistry.isVisible(session, change.accountId()))
+                    .toList();
+            if (!selected.isEmpty()) {
+                executeMethod(PrepareMessage.createMessage(session.getChatId(),
+                        messageFormatter.formatPositionChanges(selected)), SendPriority.NOTIFICATION);
+            }
+        }
+    }
+
+    /**
+     * Анализ сводного портфеля по выбранным счетам. Если счетов несколько, к отчету прикладываются
+     * кнопки для анализа каждого счета по отдельности.
+     */
+    private void performAnalysisAndNotify(ChatSession session, boolean checkChanges) {
+        try {
+            analyze(session, checkChanges, new ConcurrentHashMap<>(), SendPriority.INTERACTIVE);
         } catch (Exception e) {
-            log.error("Не удалось создать или отправить AI-отчет для chatId {}: {}", userChatId, e.getMessage());
-            executeMethod(PrepareMessage.createMessage(userChatId, "Произошла ошибка при создании отчета."));
+            log.error("Ошибка во время анализа для chatId {}: {}", session.getChatId(), e.getMessage());
         }
     }
 
-    @Scheduled(cron = "0 0 13 * * MON-FRI")
-    public void scheduledAnalysis() {
-        if (!checkChatId()) {
-            log.warn("Плановая проверка пропущена: chatId пользователя неизвестен.");
+    /**
+     * @param shared Загрузки счетов, общие для пакета сессий
+     * @param priority Ответ на команду или фоновое уведомление
+     */
+    private void analyze(ChatSession session, boolean checkChanges, Map<String, CompletableFuture<PortfolioBook>> shared,
+                         SendPriority priority) {
+        long chatId = session.getChatId();
+        Set<String> scope = sessionRegistry.scope(session);
+        if (scope == null) {
             return;
         }
-        log.info("Запуск плановой проверки баланса для chatId {}", userChatId);
-        performAnalysisAndNotify(true);
+        ConsolidatedBook book = consolidatedPortfolioService.load(scope, shared);
+        Portfolio portfolio = book.total().portfolio();
+
+        ConcentrationProblem currentResult = balanceService.analyzePortfolio(portfolio, book.total().instrumentObjs());
+        if (checkChanges && !alertDeduplicationService.isNew(chatId, currentResult)) {
+            log.info("Отклонения для chatId {} не изменились. Отправка пропущена.", chatId);
+            return;
+        }
+        sendAnalysis(chatId, currentResult, portfolio, scope, priority);
+        if (book.accounts().size() > 1) {
+            List<Account> accounts = book.accounts().stream().map(PortfolioBook::account).toList();
+            executeMethod(PrepareMessage.createMessage(chatId, "Анализ по отдельному счету:",
+                    keyboardFactory.createAccountAnalysisKeyboard(accounts)), priority);
+        }
     }
-    private void performAnalysisAndNotify(boolean checkChanges) {
-        try {
-            Account account = apiCore.getAccounts().get(0);
-            Portfolio portfolio = apiCore.getPortfolio(account.getId());
-            List<InstrumentObj> instrumentObjs = apiCore.getInstruments(portfolio);
 
-            ConcentrationProblem currentResult = balanceService.analyzePortfolio(portfolio, instrumentObjs);
-            if (checkChanges && currentResult.equals(lastSentDeviations)) {
-                log.info("Отклонения для chatId {} не изменились. Отправка пропущена.", userChatId);
+    private void handleAccountAnalysis(ChatSession session, CallbackQuery query) {
+        long chatId = session.getChatId();
+        try {
+            String accountId = query.getData().substring("analyze:".length());
+            PortfolioBook book = loadSelectedAccount(session, accountId);
+            if (book == null) {
                 return;
             }
-            String messageText = messageFormatter.formatBalanceDeviations(currentResult);
-            executeMethod(PrepareMessage.createMessage(userChatId, messageText));
-            this.lastSentDeviations = currentResult;
-
-            executeMethod(PrepareMessage.createMessage(userChatId, messageFormatter.formatRebalancePlan(balanceService.createRebalancePlan(currentResult, portfolio))));
+            ConcentrationProblem result = balanceService.analyzePortfolio(book.portfolio(), book.instrumentObjs());
+            executeMethod(PrepareMessage.createMessage(chatId, "<b>" + book.account().getName() + "</b>\n\n"
+                    + messageFormatter.formatBalanceDeviations(result)));
+            executeMethod(PrepareMessage.createMessage(chatId,
+                    messageFormatter.formatRebalancePlan(balanceService.createRebalancePlan(result, book.portfolio(), Set.of(accountId)))));
         } catch (Exception e) {
-            log.error("Ошибка во время анализа для chatId {}: {}", userChatId, e.getMessage());
+            log.error("Error processing account analysis callback: {}", query.getData(), e);
         }
     }
 
-    private boolean checkChatId() {
-        if (this.userChatId == null) {
-            log.warn("Попытка выполнить команду до инициализации chatId. Пользователь должен сначала написать /start");
-            return false;
+    /**
+     * @param accountIds Счета портфеля для подбора налоговых лотов, пустой набор - все счета владельца
+     */
+    private void sendAnalysis(long chatId, ConcentrationProblem currentResult, Portfolio portfolio, Set<String> accountIds,
+                              SendPriority priority) {
+        String messageText = messageFormatter.formatBalanceDeviations(currentResult);
+        executeMethod(PrepareMessage.createMessage(chatId, messageText), priority);
+        alertDeduplicationService.markSent(chatId, currentResult);
+
+        executeMethod(PrepareMessage.createMessage(chatId, messageFormatter.formatRebalancePlan(balanceService.createRebalancePlan(currentResult, portfolio, accountIds))), priority);
+    }
+
+    /**
+     * Счет загружается, только если он виден в сессии: кнопка из старого сообщения не должна
+     * показывать счет, от которого пользователь отказался.
+     */
+    private PortfolioBook loadSelectedAccount(ChatSession session, String accountId) {
+        if (!sessionRegistry.isVisible(session, accountId)) {
+            log.warn("Счет {} не выбран в сессии chatId {}.", accountId, session.getChatId());
+            return null;
+        }
+        PortfolioBook book = consolidatedPortfolioService.loadAccount(accountId);
+        if (book == null) {
+            log.warn("Account not found for ID: {}", accountId);
         }
-        return true;
+        return book;
     }
 
     private void handleCallbackQuery(CallbackQuery query) {
         String data = query.getData();
         if (data == null) return;
+        ChatSession session = resolveSession(query.getMessage().getChatId());
+        if (session == null || !hasAccounts(session)) return;
         if (data.startsWith("filter:")) {
-            handlePortfolioFilter(query);
+            handlePortfolioFilter(session, query);
         }
         if (data.startsWith("instr_")){
-            handleInstrumentSelection(query);
+            handleInstrumentSelection(session, query);
+        }
+        if (data.startsWith("analyze:")) {
+            handleAccountAnalysis(session, query);
+        }
+        if (data.startsWith("account:")) {
+            handleAccountSelection(session, query);
         }
     }
 
-    private void handlePortfolioFilter(CallbackQuery callbackQuery){
+    private void handlePortfolioFilter(ChatSession session, CallbackQuery callbackQuery){
         try {
             String[] parts = callbackQuery.getData().split(":");
             if (parts.length < 3) return;
@@ -216,14 +698,11 @@ public class TelegramBot implements SpringLongPollingBot, LongPollingSingleThrea
             String filterType = parts[1];
             String accountId = parts[2];
 
-            Account account = apiCore.getAccountById(accountId);
-            if (account == null) {
-                log.warn("Account not found for ID: {}", accountId);
+            PortfolioBook book = loadSelectedAccount(session, accountId);
+            if (book == null) {
                 return;
             }
-            Portfolio portfolio = apiCore.getPortfolio(accountId);
-            List<InstrumentObj> instrumentObjs = apiCore.getInstruments(portfolio);
-            String newText = messageFormatter.portfolio(account.getName(), instrumentObjs, portfolio, filterType);
+            String newText = messageFormatter.portfolio(book.account().getName(), book.instrumentObjs(), book.portfolio(), filterType);
             InlineKeyboardMarkup keyboard = keyboardFactory.createPortfolioFilterKeyboard(accountId);
             EditMessageText editMessage = EditMessageText.builder()
                     .chatId(callbackQuery.getMessage().getChatId())
@@ -240,10 +719,10 @@ public class TelegramBot implements SpringLongPollingBot, LongPollingSingleThrea
         }
     }
 
-    private void handleInstrumentSelection(CallbackQuery query) {
+    private void handleInstrumentSelection(ChatSession session, CallbackQuery query) {
         try {
             String ticker = query.getData().substring(6);
-            String report = instrumentAnalysisService.analyzeInstrumentByTicker(ticker);
+            String report = instrumentAnalysisService.analyzeInstrumentByTicker(ticker, sessionRegistry.scope(session));
             EditMessageText editMessage = EditMessageText.builder()
                     .chatId(query.getMessage().getChatId())
                     .messageId(query.getMessage().getMessageId())
@@ -258,22 +737,89 @@ public class TelegramBot implements SpringLongPollingBot, LongPollingSingleThrea
         }
     }
 
+    /**
+     * Переключает счет в выборе сессии. «Все счета» сбрасывает выбор; снятие последнего счета тоже.
+     */
+    private void handleAccountSelection(ChatSession session, CallbackQuery query) {
+        try {
+            String accountId = query.getData().substring("account:".length());
+            List<Account> accounts = availableAccounts(session);
+            Set<String> selected = new HashSet<>(session.getAccountIds());
+            if (ConsolidatedPortfolioService.CONSOLIDATED_ACCOUNT_ID.equals(accountId)) {
+                selected.clear();
+            } else if (accounts.stream().anyMatch(account -> account.getId().equals(accountId)) && !selected.remove(accountId)) {
+                selected.add(accountId);
+            }
+            session.setAccountIds(selected);
+            log.info("Выбор счетов для chatId {}: {}", session.getChatId(), selected.isEmpty() ? "все" : selected);
+            EditMessageText editMessage = EditMessageText.builder()
+                    .chatId(query.getMessage().getChatId())
+                    .messageId(query.getMessage().getMessageId())
+                    .text("Счета для отчетов и уведомлений:")
+                    .replyMarkup(keyboardFactory.createAccountSelectionKeyboard(accounts, selected))
+                    .build();
+            executeMethod(editMessage);
+        } catch (Exception e) {
+            log.error("Error processing account selection callback: {}", query.getData(), e);
+        }
+    }
+
     private void processStartCommand(long chatId, String username) {
-        userChatId = chatId;
+        if (sessionRegistry.getOrCreate(chatId, username) == null) {
+            executeMethod(PrepareMessage.createMessage(chatId, "Доступ к боту закрыт для этого чата."));
+            return;
+        }
         executeMethod(PrepareMessage.createMessage(chatId, RuLocal.hello.formatted(username)));
+        if (!sessionRegistry.isOwner(chatId) && !brokerClients.isConnected(chatId)) {
+            executeMethod(PrepareMessage.createMessage(chatId,
+                    "Чтобы видеть свои счета, подключите токен брокера только для чтения: /token &lt;токен&gt;"));
+        }
+        startNotifications();
+    }
+
+    /**
+     * Монитор отклонений и отслеживание изменений общие для всех сессий и запускаются один раз.
+     */
+    private void startNotifications() {
+        driftMonitor.start(this::onDrift);
+        positionChangeService.start(this::onPositionChanges);
     }
 
     private boolean isCommand(String text) {
         if (text == null || !text.startsWith("/")) return false;
-        return Arrays.stream(Commands.values()).anyMatch(c -> c.getCommand().equals(text));
+        String command = commandOf(text);
+        return Arrays.stream(Commands.values()).anyMatch(c -> c.getCommand().equals(command));
+    }
+
+    /**
+     * Команда без аргументов: у /token после команды идет сам токен.
+     */
+    private static String commandOf(String text) {
+        return text.trim().split("\\s+", 2)[0];
     }
 
     private void executeMethod(BotApiMethod<?> method) {
-        try {
-            telegramClient.execute(method);
-        } catch (TelegramApiException e) {
-            log.error("Telegram API execution error: {}", e.getMessage(), e);
+        executeMethod(method, SendPriority.INTERACTIVE);
+    }
+
+    /**
+     * Ставит вызов в очередь отправки: поток обработки обновлений не ждет сети и лимитов Telegram.
+     */
+    private void executeMethod(BotApiMethod<?> method, SendPriority priority) {
+        sendQueue.submit(chatIdOf(method), priority, client -> client.execute(method));
+    }
+
+    private static String chatIdOf(BotApiMethod<?> method) {
+        if (method instanceof SendMessage message) {
+            return message.getChatId();
+        }
+        if (method instanceof EditMessageText edit && edit.getChatId() != null) {
+            return edit.getChatId();
+        }
+        if (method instanceof DeleteMessage delete) {
+            return delete.getChatId();
         }
+        return "";
     }
 
     @AfterBotRegistration
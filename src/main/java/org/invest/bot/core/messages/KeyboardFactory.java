@@ -3,9 +3,11 @@ package org.invest.bot.core.messages;
 import org.invest.bot.invest.core.objects.InstrumentObj;
 import org.springframework.stereotype.Component;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import ru.tinkoff.piapi.contract.v1.Account;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 @Component
 public class KeyboardFactory {
@@ -28,4 +30,25 @@ public class KeyboardFactory {
         }
         return PrepareMessage.inlineKeyboardMarkupBuilder(buttons, 2);
     }
-}
\ No newline at end of file
+
+    public InlineKeyboardMarkup createAccountAnalysisKeyboard(List<Account> accounts) {
+        Map<String, String> buttons = new LinkedHashMap<>();
+        for (Account account : accounts) {
+            buttons.put("analyze:" + account.getId(), account.getName());
+        }
+        return PrepareMessage.inlineKeyboardMarkupBuilder(buttons, 2);
+    }
+
+    /**
+     * Переключатели счетов сессии. Пустой набор выбранных означает «все счета».
+     */
+    public InlineKeyboardMarkup createAccountSelectionKeyboard(List<Account> accounts, Set<String> selected) {
+        Map<String, String> buttons = new LinkedHashMap<>();
+        for (Account account : accounts) {
+            String mark = selected.contains(account.getId()) ? "✅ " : "▫️ ";
+            buttons.put("account:" + account.getId(), mark + account.getName());
+        }
+        buttons.put("account:all", (selected.isEmpty() ? "✅ " : "▫️ ") + "Все счета");
+        return PrepareMessage.inlineKeyboardMarkupBuilder(buttons, 1);
+    }
+}
@@ -1,11 +1,34 @@
 package org.invest.bot.core.messages;
 
+import org.invest.bot.core.outbound.OutboundMetrics;
+import org.invest.bot.core.updates.DispatcherMetrics;
 import org.invest.bot.invest.core.modules.balanse.ActualDistribution;
 import org.invest.bot.invest.core.modules.balanse.ConcentrationProblem;
 import org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure;
 import org.invest.bot.invest.core.modules.balanse.RebalancePlan;
 import org.invest.bot.invest.core.modules.balanse.actions.BuyAction;
 import org.invest.bot.invest.core.modules.balanse.actions.SellAction;
+import org.invest.bot.invest.core.modules.attribution.AttributionLine;
+import org.invest.bot.invest.core.modules.attribution.DailyAttribution;
+import org.invest.bot.invest.core.modules.backtest.BacktestReport;
+import org.invest.bot.invest.core.modules.backtest.BacktestResult;
+import org.invest.bot.invest.core.modules.brokerreport.CommissionReconciliation;
+import org.invest.bot.invest.core.modules.changes.ChangeKind;
+import org.invest.bot.invest.core.modules.changes.PositionChange;
+import org.invest.bot.invest.core.modules.exposure.ExposureCube;
+import org.invest.bot.invest.core.modules.exposure.ExposureDimension;
+import org.invest.bot.invest.core.modules.fees.FeeReport;
+import org.invest.bot.invest.core.modules.journal.OperationCategory;
+import org.invest.bot.invest.core.modules.liquidity.FillEstimate;
+import org.invest.bot.invest.core.modules.liquidity.LiquidityReport;
+import org.invest.bot.invest.core.modules.lots.LotSelection;
+import org.invest.bot.invest.core.modules.optimizer.FrontierPoint;
+import org.invest.bot.invest.core.modules.optimizer.OptimizationResult;
+import org.invest.bot.invest.core.modules.performance.PerformanceResult;
+import org.invest.bot.invest.core.modules.risk.RiskMetrics;
+import org.invest.bot.invest.core.modules.simulation.MonteCarloResult;
+import org.invest.bot.invest.core.modules.stress.StressReport;
+import org.invest.bot.invest.core.modules.stress.StressResult;
 import org.invest.bot.invest.core.objects.InstrumentObj;
 import org.springframework.stereotype.Component;
 import ru.tinkoff.piapi.contract.v1.Dividend;
@@ -16,9 +39,12 @@ import ru.tinkoff.piapi.core.models.Position;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
+import java.time.YearMonth;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.invest.bot.core.DataConvertUtility.convertTimeStampToStringWithoutYearSymbol;
 import static org.invest.bot.core.DataConvertUtility.getPercentCount;
@@ -47,14 +73,14 @@ public class MessageFormatter {
         if (hasSells) {
             sb.append("<b>План Ребалансировки Портфеля</b>\n\n");
             // Блок Продажи
-            sb.append(formatSellBlock(plan.sellActions(), plan.totalCashFromSales()));
+            sb.append(formatSellBlock(plan.sellActions(), plan.totalCashFromSales(), plan.liquidity()));
 
             // Блок Покупки
             if (hasBuys) {
                 sb.append("\n"); // Добавляем отступ между блоками
-                sb.append(formatBuyBlock(plan.buyActions()));
+                sb.append(formatBuyBlock(plan.buyActions(), plan.liquidity()));
             } else if (!plan.buyActions().isEmpty()) { // <--- Измените это
-                sb.append(formatBuyBlock(plan.buyActions()));
+                sb.append(formatBuyBlock(plan.buyActions(), plan.liquidity()));
             } else {
                 // Новый блок: если нет конкретных покупок, даем общую рекомендацию
                 sb.append("\n<b>Шаг 2: Размещение средств</b>\n");
@@ -65,11 +91,15 @@ public class MessageFormatter {
         else if (hasBuys) {
             sb.append("<b>План пополнения баланса</b>\n\n");
             // Просто используем наш новый хелпер, изменив заголовок
-            String buyBlock = formatBuyBlock(plan.buyActions())
+            String buyBlock = formatBuyBlock(plan.buyActions(), plan.liquidity())
                     .replace("<b>Шаг 2: Покупка</b>\n", ""); // Убираем лишний заголовок
             sb.append(buyBlock);
         }
 
+        if (plan.liquidity().totalSlippageCost().signum() > 0) {
+            sb.append(String.format("\n💧 Оценка проскальзывания по стаканам: ~<b>%s ₽</b>\n",
+                    formatAmount(plan.liquidity().totalSlippageCost())));
+        }
         sb.append("\n<i>Все расчеты являются приблизительными.</i>");
         return sb.toString();
     }
@@ -132,6 +162,51 @@ public class MessageFormatter {
         return sb.toString();
     }
 
+    /**
+     * Генерирует блок риск-метрик для сообщения о портфеле.
+     * @param metrics Риск-метрики от RiskService
+     * @param totalValue Стоимость портфеля для пересчета VaR в деньги
+     */
+    /**
+     * Доходность по стандартным периодам: TWR показывает качество управления, XIRR - результат с учетом пополнений.
+     */
+    public String formatPerformance(Map<String, PerformanceResult> periods) {
+        if (periods.isEmpty()) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder("\n\n<b>Доходность (TWR / XIRR годовых):</b>\n");
+        for (Map.Entry<String, PerformanceResult> period : periods.entrySet()) {
+            PerformanceResult result = period.getValue();
+            sb.append(String.format("%s: %+.2f%% / %s\n", period.getKey(), result.twr() * 100,
+                    Double.isNaN(result.xirr()) ? "—" : String.format("%+.2f%%", result.xirr() * 100)));
+        }
+        return sb.toString().stripTrailing();
+    }
+
+    public String formatRiskSummary(RiskMetrics metrics, BigDecimal totalValue) {
+        if (metrics.observations() < 2) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n\n<b>Риск (за ").append(metrics.observations()).append(" дн.):</b>\n");
+        sb.append(String.format("Волатильность: %.1f%% годовых\n", metrics.portfolioVolatility() * 100));
+        sb.append(String.format("Бета к TMOS: %.2f\n", metrics.portfolioBeta()));
+        sb.append(String.format("VaR 95%% (1 день): ист. %s ₽ / парам. %s ₽\n",
+                formatAmount(totalValue.multiply(BigDecimal.valueOf(metrics.historicalVar()))),
+                formatAmount(totalValue.multiply(BigDecimal.valueOf(metrics.parametricVar())))));
+        int mostVolatile = -1;
+        for (int i = 0; i < metrics.tickers().size(); i++) {
+            if (metrics.weights()[i] > 0 && (mostVolatile < 0 || metrics.volatility()[i] > metrics.volatility()[mostVolatile])) {
+                mostVolatile = i;
+            }
+        }
+        if (mostVolatile >= 0) {
+            sb.append(String.format("Самая волатильная: %s (%.1f%%)", metrics.tickers().get(mostVolatile),
+                    metrics.volatility()[mostVolatile] * 100));
+        }
+        return sb.toString();
+    }
+
     /**
      * Форматирует отчет о стратегических отклонениях.
      *
@@ -158,6 +233,284 @@ public class MessageFormatter {
         return sb.toString();
     }
 
+    /**
+     * Форматирует итог Монте-Карло симуляции.
+     * Перцентили идут в порядке 5%, 25%, 50%, 75%, 95%.
+     */
+    public String formatMonteCarlo(MonteCarloResult result) {
+        double[] returns = result.returnPercentiles();
+        double[] drawdowns = result.drawdownPercentiles();
+        double[] trades = result.tradePercentiles();
+        return String.format("<b>Монте-Карло: %d путей на %d торговых дней</b>\n\n", result.paths(), result.horizonDays()) +
+                "<b>Доходность:</b>\n" +
+                String.format(" • Плохой сценарий (5%%): %s\n", formatRatio(returns[0])) +
+                String.format(" • Медиана: %s\n", formatRatio(returns[2])) +
+                String.format(" • Хороший сценарий (95%%): %s\n", formatRatio(returns[4])) +
+                "\n<b>Максимальная просадка:</b>\n" +
+                String.format(" • Медиана: %s\n", formatRatio(-drawdowns[2])) +
+                String.format(" • Худшие 5%%: %s\n", formatRatio(-drawdowns[4])) +
+                "\n<b>Ребалансировки (допуск ±2%):</b>\n" +
+                String.format(" • В среднем за период: %.1f\n", result.meanRebalances()) +
+                String.format(" • Хотя бы одна: в %.0f%% путей\n", result.probabilityOfRebalance() * 100) +
+                String.format(" • Сделок (медиана / 95%%): %.0f / %.0f\n", trades[2], trades[4]) +
+                String.format("\n<i>Бутстреп по %d дням истории, расчет занял %d мс.</i>", result.historyDays(), result.elapsedMillis());
+    }
+
+    /**
+     * Форматирует итог бэктеста: лучшие наборы правил и место текущих настроек.
+     */
+    public String formatBacktest(BacktestReport report, int top) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("<b>Бэктест правил ребалансировки</b>\n%s — %s, %d наборов\n\n",
+                report.from(), report.to(), report.ranked().size()));
+        sb.append("<pre>")
+                .append(String.format("%-3s %-5s %-5s %-5s %8s %7s %6s\n", "#", "Доп.", "Спут", "Обл.", "Доход", "Оборот", "TE"));
+        for (int i = 0; i < Math.min(top, report.ranked().size()); i++) {
+            sb.append(formatBacktestLine(i + 1, report.ranked().get(i)));
+        }
+        sb.append("</pre>");
+        if (report.current() != null) {
+            int place = report.ranked().indexOf(report.current()) + 1;
+            sb.append("\n<b>Текущие настройки:</b>\n<pre>")
+                    .append(formatBacktestLine(place, report.current()))
+                    .append("</pre>");
+        }
+        sb.append(String.format("\n<i>Ранг — сумма мест по доходности, обороту и ошибке слежения. Расчет занял %d мс.</i>",
+                report.elapsedMillis()));
+        return sb.toString();
+    }
+
+    /**
+     * Форматирует эффективную границу и предлагаемые целевые доли категорий.
+     */
+    public String formatOptimization(OptimizationResult result) {
+        FrontierPoint suggested = result.suggested();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("<b>Оптимизация долей</b>\n%d инструментов, %d точек границы\n\n",
+                result.tickers().size(), result.frontier().size()));
+        sb.append("<b>Предлагаемые цели:</b>\n");
+        for (PortfolioInstrumentStructure target : PortfolioInstrumentStructure.getInsValues()) {
+            sb.append(String.format(" • %s: %.1f%% (сейчас цель %s%%)\n", getFriendlyNameForTarget(target),
+                    result.suggestedTargets().getOrDefault(target, 0.0), target.value));
+        }
+        sb.append(String.format("\nОжидаемая доходность: %s\nВолатильность: %.2f%%\nШарп (безриск %.1f%%): %.2f\n",
+                formatRatio(suggested.expectedReturn()), suggested.volatility() * 100,
+                result.riskFreeRate() * 100, suggested.sharpe(result.riskFreeRate())));
+
+        sb.append("\n<b>Крупнейшие веса:</b>\n<pre>");
+        double[] weights = suggested.weights();
+        IntStream.range(0, weights.length).boxed()
+                .filter(i -> weights[i] >= 0.005)
+                .sorted((a, b) -> Double.compare(weights[b], weights[a]))
+                .limit(10)
+                .forEach(i -> sb.append(String.format("%-12s %5.1f%%\n", result.tickers().get(i), weights[i] * 100)));
+        sb.append("</pre>");
+
+        sb.append("\n<b>Граница (риск → доходность):</b>\n<pre>");
+        int step = Math.max(1, result.frontier().size() / 8);
+        for (int i = 0; i < result.frontier().size(); i += step) {
+            FrontierPoint point = result.frontier().get(i);
+            sb.append(String.format("%5.1f%% → %+6.1f%%\n", point.volatility() * 100, point.expectedReturn() * 100));
+        }
+        sb.append("</pre>");
+        sb.append(String.format("\n<i>Оценки по истории за 3 года, это не прогноз. Расчет занял %d мс.</i>",
+                result.elapsedMillis()));
+        return sb.toString();
+    }
+
+    /**
+     * Форматирует результаты стресс-теста: потери по каждому сценарию и главные источники потерь в худшем из них.
+     */
+    public String formatStress(StressReport report) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("<b>Стресс-тест портфеля</b>\nСтоимость: %s ₽\n\n",
+                formatAmount(BigDecimal.valueOf(report.totalValue()))));
+        for (StressResult result : report.scenarios()) {
+            sb.append(formatStressLine(result));
+        }
+        if (report.worstGrid() != null) {
+            sb.append(String.format("\n<b>Худший из %d сценариев сетки:</b>\n", report.gridSize()))
+                    .append(formatStressLine(report.worstGrid()));
+            double[] positionPnl = report.worstGrid().positionPnl();
+            sb.append("<pre>");
+            IntStream.range(0, positionPnl.length).boxed()
+                    .filter(i -> positionPnl[i] < 0)
+                    .sorted((a, b) -> Double.compare(positionPnl[a], positionPnl[b]))
+                    .limit(5)
+                    .forEach(i -> sb.append(String.format("%-12s %12s ₽\n", report.tickers().get(i),
+                            formatAmount(BigDecimal.valueOf(positionPnl[i])))));
+            sb.append("</pre>");
+        }
+        sb.append(String.format("\n<i>Линейная оценка по бете, дюрации и курсу. Расчет занял %d мс.</i>",
+                report.elapsedMillis()));
+        return sb.toString();
+    }
+
+    /**
+     * Форматирует куб экспозиций: крупнейшие значения по каждому измерению и превышения лимита на эмитента.
+     * @param top Сколько значений показывать по каждому измерению
+     */
+    public String formatExposure(ExposureCube cube, BigDecimal issuerLimit, int top) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("<b>Экспозиции портфеля</b>\nСтоимость: %s ₽\n", formatAmount(cube.getTotal())));
+        for (ExposureDimension dimension : ExposureDimension.values()) {
+            sb.append("\n<b>").append(dimension.getTitle()).append(":</b>\n<pre>");
+            cube.shares(dimension).stream().limit(top).forEach(entry ->
+                    sb.append(String.format("%-20.20s %6.2f%%\n", entry.getKey(), entry.getValue())));
+            sb.append("</pre>");
+        }
+        List<Map.Entry<String, BigDecimal>> breaches = cube.issuerBreaches(issuerLimit);
+        if (breaches.isEmpty()) {
+            sb.append(String.format("\n✅ Ни один эмитент не превышает лимит в <b>%s%%</b> (акции и облигации вместе).", issuerLimit));
+        } else {
+            for (Map.Entry<String, BigDecimal> breach : breaches) {
+                sb.append(String.format("\n‼️ <b>Риск эмитента:</b> доля '%s' (<b>%s%%</b>) превышает лимит в <b>%s%%</b>!",
+                        breach.getKey(), breach.getValue(), issuerLimit));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Атрибуция дня: итог, разложение по эффектам, категории и главные инструменты.
+     * @param history Сохраненные итоги предыдущих дней
+     * @param top Сколько инструментов с наибольшим вкладом показать
+     */
+    public String formatAttribution(DailyAttribution today, List<DailyAttribution> history, int top) {
+        StringBuilder sb = new StringBuilder();
+        double previousValue = today.previousValue();
+        sb.append(String.format("<b>Изменение портфеля за %s</b>\nИтого: <b>%s ₽</b>%s\n",
+                today.date(), formatSigned(today.total()),
+                previousValue > 0 ? String.format(" (%+.2f%%)", today.total() / previousValue * 100) : ""));
+        sb.append(String.format("Цены: %s ₽ | Курсы: %s ₽ | Доход: %s ₽\n",
+                formatSigned(today.priceEffect()), formatSigned(today.fxEffect()), formatSigned(today.income())));
+
+        sb.append("\n<b>По категориям:</b>\n<pre>");
+        for (AttributionLine line : today.categories()) {
+            sb.append(String.format("%-18.18s %12s\n", line.title(), formatSigned(line.total())));
+        }
+        sb.append("</pre>\n<b>Главные вклады:</b>\n<pre>");
+        today.instruments().stream().limit(top).forEach(line ->
+                sb.append(String.format("%-12.12s %12s\n", line.title(), formatSigned(line.total()))));
+        sb.append("</pre>");
+
+        if (!history.isEmpty()) {
+            sb.append("\n<b>Предыдущие дни:</b>\n");
+            for (DailyAttribution day : history) {
+                sb.append(String.format("%s: %s ₽ (цены %s, курсы %s, доход %s)\n", day.date(), formatSigned(day.total()),
+                        formatSigned(day.priceEffect()), formatSigned(day.fxEffect()), formatSigned(day.income())));
+            }
+        }
+        return sb.toString().stripTrailing();
+    }
+
+    /**
+     * Комиссии, налоги и доходы за всю историю и по последним месяцам.
+     * @param months Сколько последних месяцев показать
+     */
+    public String formatFees(FeeReport report, int months) {
+        StringBuilder sb = new StringBuilder("<b>Комиссии, налоги и доходы</b> (вся история)\n<pre>");
+        for (OperationCategory category : List.of(OperationCategory.COMMISSION, OperationCategory.SERVICE_FEE,
+                OperationCategory.TAX, OperationCategory.WITHHOLDING_TAX, OperationCategory.COUPON, OperationCategory.DIVIDEND)) {
+            sb.append(String.format("%-18.18s %12s\n", category.getTitle(), formatSigned(report.total(category).doubleValue())));
+        }
+        sb.append("</pre>");
+        BigDecimal income = report.income();
+        if (income.signum() > 0) {
+            sb.append(String.format("Расходы съели <b>%.1f%%</b> купонов и дивидендов.\n",
+                    report.costs().negate().doubleValue() / income.doubleValue() * 100));
+        }
+
+        sb.append("\n<b>По месяцам</b> (расходы / доход):\n<pre>");
+        List<Map.Entry<YearMonth, Map<OperationCategory, BigDecimal>>> lastMonths = new ArrayList<>(report.byMonth().entrySet());
+        for (Map.Entry<YearMonth, Map<OperationCategory, BigDecimal>> month
+                : lastMonths.subList(Math.max(lastMonths.size() - months, 0), lastMonths.size())) {
+            BigDecimal costs = BigDecimal.ZERO;
+            BigDecimal monthIncome = BigDecimal.ZERO;
+            for (Map.Entry<OperationCategory, BigDecimal> value : month.getValue().entrySet()) {
+                if (value.getKey() == OperationCategory.COUPON || value.getKey() == OperationCategory.DIVIDEND) {
+                    monthIncome = monthIncome.add(value.getValue());
+                } else {
+                    costs = costs.add(value.getValue());
+                }
+            }
+            sb.append(String.format("%s %10s %10s\n", month.getKey(), formatSigned(costs.doubleValue()),
+                    formatSigned(monthIncome.doubleValue())));
+        }
+        sb.append("</pre>");
+
+        if (!report.byInstrument().isEmpty()) {
+            sb.append("\n<b>Больше всего расходов:</b>\n<pre>");
+            for (Map.Entry<String, Map<OperationCategory, BigDecimal>> instrument : report.byInstrument()) {
+                BigDecimal costs = instrument.getValue().entrySet().stream()
+                        .filter(value -> value.getKey() != OperationCategory.COUPON && value.getKey() != OperationCategory.DIVIDEND)
+                        .map(Map.Entry::getValue)
+                        .reduce(BigDecimal.ZERO, BigDecimal::add);
+                sb.append(String.format("%-12.12s %12s\n", instrument.getKey(), formatSigned(costs.doubleValue())));
+            }
+            sb.append("</pre>");
+        }
+        return sb.toString().stripTrailing();
+    }
+
+    /**
+     * Строка сверки комиссий с брокерским отчетом. Пустая, если отчетов за период нет.
+     */
+    public String formatCommissionReconciliation(CommissionReconciliation reconciliation, int days) {
+        if (reconciliation.trades() == 0) {
+            return "";
+        }
+        String text = String.format("\n\n<b>Сверка с брокерским отчетом</b> (%d дн., %d сделок):\nКомиссии по отчету %s ₽, в операциях %s ₽",
+                days, reconciliation.trades(), formatAmount(reconciliation.reportCommission()),
+                formatAmount(reconciliation.journalCommission()));
+        BigDecimal difference = reconciliation.difference();
+        if (difference.abs().compareTo(BigDecimal.ONE) >= 0) {
+            return text + String.format("\n⚠️ Расхождение %s ₽", formatSigned(difference.doubleValue()));
+        }
+        return text + " ✅";
+    }
+
+    public String formatDispatcherMetrics(DispatcherMetrics metrics) {
+        return String.format("<b>Обработка обновлений</b>\nВ очереди: %d (максимум %d), чатов в работе: %d\n"
+                        + "Обработано: %d, с ошибкой: %d\nОжидание: p50 %d мс, p95 %d мс\n"
+                        + "Обработка: p50 %d мс, p95 %d мс, максимум %d мс",
+                metrics.queueDepth(), metrics.maxQueueDepth(), metrics.activeChats(), metrics.handled(), metrics.failed(),
+                metrics.waitP50Millis(), metrics.waitP95Millis(),
+                metrics.handleP50Millis(), metrics.handleP95Millis(), metrics.handleMaxMillis());
+    }
+
+    public String formatOutboundMetrics(OutboundMetrics metrics) {
+        return String.format("<b>Отправка сообщений</b>\nВ очереди: %d, отправляется: %d\n"
+                        + "Отправлено: %d, повторов после 429: %d, отброшено: %d",
+                metrics.queued(), metrics.inFlight(), metrics.sent(), metrics.retried(), metrics.failed());
+    }
+
+    /**
+     * Короткая сводка изменений портфеля между двумя опросами.
+     */
+    public String formatPositionChanges(List<PositionChange> changes) {
+        StringBuilder sb = new StringBuilder("<b>Изменения в портфеле</b>\n");
+        for (PositionChange change : changes) {
+            sb.append(change.kind().getIcon()).append(" ").append(change.kind().getTitle())
+                    .append(": <b>").append(change.ticker()).append("</b>");
+            if (change.kind() == ChangeKind.COUPON || change.kind() == ChangeKind.DIVIDEND) {
+                sb.append(String.format(" %+.2f %s", change.amount().doubleValue(), getCurrencySymbol(change.currency())));
+            } else if (change.kind() == ChangeKind.OPENED || change.kind() == ChangeKind.CLOSED) {
+                sb.append(" (").append(change.quantityDelta().abs().stripTrailingZeros().toPlainString()).append(" шт.)");
+            } else {
+                sb.append(" ").append(change.quantityBefore().stripTrailingZeros().toPlainString())
+                        .append(" → ").append(change.quantityAfter().stripTrailingZeros().toPlainString()).append(" шт.");
+            }
+            sb.append("\n");
+        }
+        return sb.toString().stripTrailing();
+    }
+
+    private String formatSigned(double amount) {
+        String formatted = formatAmount(BigDecimal.valueOf(Math.abs(amount)));
+        return (amount < 0 ? "-" : "+") + formatted;
+    }
+
     /**
      * Возвращает символ валюты по ее коду
      */
@@ -231,7 +584,7 @@ public class MessageFormatter {
                 .append(formatDividends(dividends, targetPosition) + "\n")
                 .append(" • Доля в портфеле: ")
                 .append(getPercentCount(portfolio.getTotalAmountPortfolio(),
-                        targetPosition.getQuantity().multiply(targetPosition.getCurrentPrice().getValue())))
+                        targetPosition.getPositionValue()))
                 .append("\n")
                 .append(" • Тип: Спутник\n");
         return report;
@@ -448,24 +801,44 @@ public class MessageFormatter {
         return String.format("%s%s%s%%", emoji, sign, percentage.abs());
     }
 
+    private String formatBacktestLine(int place, BacktestResult result) {
+        return String.format("%-3d %-5.1f %-5.1f %-5.1f %7.1f%% %6.0f%% %5.1f%%\n", place,
+                result.rules().tolerance(), result.rules().satelliteLimit(), result.rules().bondLimit(),
+                result.totalReturn() * 100, result.turnover() * 100, result.trackingError() * 100);
+    }
+
+    private String formatStressLine(StressResult result) {
+        return String.format(" • %s: <b>%s</b> (%s ₽)\n", result.scenario().name(),
+                formatRatio(result.pnlRatio()), formatAmount(BigDecimal.valueOf(result.pnl())));
+    }
+
+    /**
+     * Форматирует долю (0.053) как процент со знаком (+5.30%).
+     */
+    private String formatRatio(double ratio) {
+        return String.format("%+.2f%%", ratio * 100);
+    }
+
     private String formatMoney(ru.tinkoff.piapi.core.models.Money money) {
         if (money == null) return "N/A";
         return money.getValue().setScale(2, RoundingMode.HALF_UP) + " " + money.getCurrency().toUpperCase();
     }
 
-    private String formatSellBlock(List<SellAction> sellActions, BigDecimal totalCash) {
+    private String formatSellBlock(List<SellAction> sellActions, BigDecimal totalCash, LiquidityReport liquidity) {
         StringBuilder sb = new StringBuilder();
         sb.append(String.format("<b>Шаг 1: Продажа (высвободится ~%s ₽)</b>\n", formatAmount(totalCash)));
 
         for (SellAction action : sellActions) {
             sb.append(String.format(" • Продать <b>%s</b> (<b>%d</b> лот) на сумму ~<b>%s ₽</b>\n",
                     action.name(), action.lots(), formatAmount(action.amount())));
+            sb.append(formatFillEstimate(liquidity.sellEstimate(action.figi())));
+            sb.append(formatTaxLots(action.taxLots()));
             sb.append(String.format("   └ <i>Причина: %s</i>\n", action.reason()));
         }
         return sb.toString();
     }
 
-    private String formatBuyBlock(List<BuyAction> buyActions) {
+    private String formatBuyBlock(List<BuyAction> buyActions, LiquidityReport liquidity) {
         StringBuilder sb = new StringBuilder();
         sb.append("<b>Шаг 2: Покупка</b>\n");
         sb.append("<i>Рекомендуется направить средства на покупку:</i>\n");
@@ -473,10 +846,47 @@ public class MessageFormatter {
         for (BuyAction action : buyActions) {
             sb.append(String.format(" • Купить <b>%s</b> (<b>%d</b> лот) на сумму ~<b>%s ₽</b>\n",
                     action.name(), action.lots(), formatAmount(action.amount())));
+            sb.append(formatFillEstimate(liquidity.buyEstimate(action.figi())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Счета для продажи и налог. Счет показывается, только если их несколько или налог ненулевой.
+     */
+    private String formatTaxLots(List<LotSelection> taxLots) {
+        StringBuilder sb = new StringBuilder();
+        for (LotSelection selection : taxLots) {
+            if (taxLots.size() == 1 && selection.tax().signum() == 0 && selection.exemptGain().signum() == 0) {
+                continue;
+            }
+            sb.append(String.format("   └ <i>%s: %s шт., налог ~%s</i>", selection.accountName(),
+                    selection.quantity().stripTrailingZeros().toPlainString(), formatAmount(selection.tax())));
+            if (selection.exemptGain().signum() > 0) {
+                sb.append(String.format(" <i>(без налога по льготе 3 лет: ~%s)</i>", formatAmount(selection.exemptGain())));
+            }
+            sb.append("\n");
         }
         return sb.toString();
     }
 
+    /**
+     * Строка с оценкой исполнения по стакану. Крупная для стакана заявка помечается предупреждением.
+     */
+    private String formatFillEstimate(FillEstimate estimate) {
+        if (estimate == null) {
+            return "";
+        }
+        String line = String.format("   └ <i>Проскальзывание ~%s%% (~%s ₽), %s%% видимого стакана</i>",
+                estimate.slippage().multiply(BigDecimal.valueOf(100)).setScale(2, RoundingMode.HALF_UP),
+                formatAmount(estimate.slippageCost()),
+                estimate.depthShare().multiply(BigDecimal.valueOf(100)).setScale(0, RoundingMode.HALF_UP));
+        if (!estimate.fullyVisible()) {
+            return line + "\n   └ ⚠️ <i>Стакан не покрывает заявку, лучше разбить ее на части</i>\n";
+        }
+        return estimate.flagged() ? line + " ⚠️\n" : line + "\n";
+    }
+
     /**
      * Приватный хелпер для получения "красивых" имен классов активов.
      */
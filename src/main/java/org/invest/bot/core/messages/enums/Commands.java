@@ -5,7 +5,17 @@ public enum Commands {
     portfolio("/portfolio"),
     analyze("/analyze"),
     exp("/exp"),
-    instrument("/instrument");
+    instrument("/instrument"),
+    simulate("/simulate"),
+    backtest("/backtest"),
+    optimize("/optimize"),
+    stress("/stress"),
+    exposure("/exposure"),
+    attribution("/attribution"),
+    fees("/fees"),
+    status("/status"),
+    accounts("/accounts"),
+    token("/token");
 
     private final String command;
     Commands(String command) {
@@ -0,0 +1,15 @@
+package org.invest.bot.core.outbound;
+
+/**
+ * Метрики очереди исходящих сообщений.
+ * @param queued Ждут отправки, включая отложенные после ответа 429
+ * @param retried Повторов после ответа 429 с запуска
+ * @param failed Отброшено после ошибки или исчерпания попыток
+ */
+public record OutboundMetrics(
+        int queued,
+        int inFlight,
+        long sent,
+        long retried,
+        long failed
+) {}
@@ -0,0 +1,320 @@
+package org.invest.bot.core.outbound;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.core.sessions.TokenBucket;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.meta.generics.TelegramClient;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Асинхронная отправка сообщений в Telegram с учетом лимитов: общего (около 30 сообщений в секунду)
+ * и на чат (около одного в секунду, с небольшим всплеском). У каждого чата своя очередь,
+ * в чате одновременно отправляется не больше одного сообщения, поэтому порядок сохраняется.
+ * <p>
+ * Поток-диспетчер выбирает чат, которому лимиты уже позволяют отправку: сначала с ответом на команду,
+ * затем с уведомлением, при равенстве - с самым старым сообщением. Сам сетевой вызов идет в пуле.
+ * На ответ 429 сообщение возвращается в начало очереди чата, а чат ждет указанные Telegram секунды.
+ */
+@Slf4j
+public class OutboundSendQueue {
+    private static final long DEFAULT_RETRY_AFTER_SECONDS = 1;
+
+    private final TelegramClient client;
+    private final TokenBucket globalLimit;
+    private final double perChatPerSecond;
+    private final double perChatBurst;
+    private final int parallelism;
+    private final int maxAttempts;
+    private final ExecutorService senders;
+    private final Thread dispatcher;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<String, ChatOutbox> outboxes = new HashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private int queued;
+    private int inFlight;
+    private volatile boolean running = true;
+
+    /**
+     * @param parallelism Сколько сетевых вызовов идет одновременно
+     * @param maxAttempts Сколько раз отправлять сообщение, получающее 429
+     */
+    public OutboundSendQueue(TelegramClient client, double globalPerSecond, double perChatPerSecond,
+                             double perChatBurst, int parallelism, int maxAttempts) {
+        this.client = client;
+        this.globalLimit = new TokenBucket(globalPerSecond, globalPerSecond);
+        this.perChatPerSecond = perChatPerSecond;
+        this.perChatBurst = perChatBurst;
+        this.parallelism = parallelism;
+        this.maxAttempts = maxAttempts;
+        AtomicInteger counter = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "telegram-send-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.dispatcher = new Thread(this::dispatchLoop, "telegram-send-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Ставит вызов в очередь чата и сразу возвращается.
+     * @return Завершается после отправки; с ошибкой, если сообщение отброшено.
+     */
+    public CompletableFuture<Void> submit(String chatId, SendPriority priority, TelegramCall call) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        if (!running) {
+            result.completeExceptionally(new IllegalStateException("Очередь отправки остановлена"));
+            return result;
+        }
+        Outgoing outgoing = new Outgoing(call, priority, sequence.incrementAndGet(), result);
+        lock.lock();
+        try {
+            outboxes.computeIfAbsent(chatId, id -> new ChatOutbox(new TokenBucket(perChatBurst, perChatPerSecond)))
+                    .add(outgoing);
+            queued++;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    public OutboundMetrics getMetrics() {
+        lock.lock();
+        try {
+            return new OutboundMetrics(queued, inFlight, sent.get(), retried.get(), failed.get());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Дает отправиться уже поставленным сообщениям, но не дольше {@code timeoutMillis}.
+     */
+    public void shutdown(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        lock.lock();
+        try {
+            while ((queued > 0 || inFlight > 0) && System.currentTimeMillis() < deadline) {
+                changed.await(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            }
+            running = false;
+            if (queued > 0) {
+                log.warn("Очередь отправки остановлена, не отправлено сообщений: {}.", queued);
+            }
+            IllegalStateException stopped = new IllegalStateException("Очередь отправки остановлена");
+            for (ChatOutbox outbox : outboxes.values()) {
+                outbox.drain().forEach(outgoing -> outgoing.result.completeExceptionally(stopped));
+            }
+            queued = 0;
+            changed.signalAll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+        dispatcher.interrupt();
+        senders.shutdownNow();
+    }
+
+    private void dispatchLoop() {
+        lock.lock();
+        try {
+            while (running) {
+                long waitNanos = inFlight < parallelism ? dispatchNext() : Long.MAX_VALUE;
+                if (waitNanos == 0) {
+                    continue;
+                }
+                if (waitNanos == Long.MAX_VALUE) {
+                    changed.await();
+                } else {
+                    changed.awaitNanos(waitNanos);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Отправляет одно сообщение, если лимиты позволяют.
+     * @return 0, если сообщение ушло в пул; иначе сколько наносекунд ждать до следующей попытки.
+     */
+    private long dispatchNext() {
+        long now = System.nanoTime();
+        long waitNanos = Long.MAX_VALUE;
+        String bestChat = null;
+        ChatOutbox best = null;
+        Iterator<Map.Entry<String, ChatOutbox>> iterator = outboxes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, ChatOutbox> entry = iterator.next();
+            ChatOutbox outbox = entry.getValue();
+            if (outbox.sending) {
+                continue;
+            }
+            if (outbox.isEmpty()) {
+                // Чат забывается, только когда лимит полностью восстановился, иначе новый чат получил бы лишний всплеск
+                if (outbox.limit.isFull() && outbox.blockedUntil - now <= 0) {
+                    iterator.remove();
+                }
+                continue;
+            }
+            long chatWait = Math.max(outbox.blockedUntil - now, outbox.limit.nanosUntilAvailable());
+            if (chatWait > 0) {
+                waitNanos = Math.min(waitNanos, chatWait);
+                continue;
+            }
+            if (best == null || outbox.peek().before(best.peek())) {
+                bestChat = entry.getKey();
+                best = outbox;
+            }
+        }
+        if (best == null) {
+            return waitNanos;
+        }
+        long globalWait = globalLimit.nanosUntilAvailable();
+        if (globalWait > 0 || !globalLimit.tryAcquire()) {
+            return Math.max(globalWait, 1);
+        }
+        best.limit.tryAcquire();
+        Outgoing outgoing = best.poll();
+        best.sending = true;
+        queued--;
+        inFlight++;
+        String chatId = bestChat;
+        ChatOutbox outbox = best;
+        senders.execute(() -> send(chatId, outbox, outgoing));
+        return 0;
+    }
+
+    private void send(String chatId, ChatOutbox outbox, Outgoing outgoing) {
+        Exception error = null;
+        try {
+            outgoing.call.execute(client);
+        } catch (Exception e) {
+            error = e;
+        }
+        lock.lock();
+        try {
+            inFlight--;
+            outbox.sending = false;
+            long retryAfter = retryAfterSeconds(error);
+            if (error == null) {
+                sent.incrementAndGet();
+                outgoing.result.complete(null);
+            } else if (retryAfter > 0 && ++outgoing.attempts < maxAttempts) {
+                retried.incrementAndGet();
+                log.warn("Telegram ограничил отправку в чат {}, повтор через {} с (попытка {}).",
+                        chatId, retryAfter, outgoing.attempts + 1);
+                outbox.blockedUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(retryAfter);
+                outbox.requeue(outgoing);
+                queued++;
+            } else {
+                failed.incrementAndGet();
+                log.error("Telegram API execution error: {}", error.getMessage(), error);
+                outgoing.result.completeExceptionally(error);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Пауза из ответа 429 или 0, если ошибку повторять не нужно.
+     */
+    private static long retryAfterSeconds(Exception error) {
+        if (!(error instanceof TelegramApiRequestException requestError) || requestError.getErrorCode() == null
+                || requestError.getErrorCode() != 429) {
+            return 0;
+        }
+        Integer retryAfter = requestError.getParameters() == null ? null : requestError.getParameters().getRetryAfter();
+        return retryAfter == null || retryAfter <= 0 ? DEFAULT_RETRY_AFTER_SECONDS : retryAfter;
+    }
+
+    /**
+     * Очередь чата. Ответ на команду обгоняет уведомления того же чата, внутри приоритета порядок сохраняется.
+     */
+    private static final class ChatOutbox {
+        private final Deque<Outgoing> interactive = new ArrayDeque<>();
+        private final Deque<Outgoing> notifications = new ArrayDeque<>();
+        private final TokenBucket limit;
+        private boolean sending;
+        private long blockedUntil = System.nanoTime();
+
+        private ChatOutbox(TokenBucket limit) {
+            this.limit = limit;
+        }
+
+        private void add(Outgoing outgoing) {
+            deque(outgoing).addLast(outgoing);
+        }
+
+        private void requeue(Outgoing outgoing) {
+            deque(outgoing).addFirst(outgoing);
+        }
+
+        private Outgoing peek() {
+            return interactive.isEmpty() ? notifications.peekFirst() : interactive.peekFirst();
+        }
+
+        private Outgoing poll() {
+            return interactive.isEmpty() ? notifications.pollFirst() : interactive.pollFirst();
+        }
+
+        private boolean isEmpty() {
+            return interactive.isEmpty() && notifications.isEmpty();
+        }
+
+        private List<Outgoing> drain() {
+            List<Outgoing> drained = new ArrayList<>(interactive);
+            drained.addAll(notifications);
+            interactive.clear();
+            notifications.clear();
+            return drained;
+        }
+
+        private Deque<Outgoing> deque(Outgoing outgoing) {
+            return outgoing.priority == SendPriority.INTERACTIVE ? interactive : notifications;
+        }
+    }
+
+    private static final class Outgoing {
+        private final TelegramCall call;
+        private final SendPriority priority;
+        private final long sequence;
+        private final CompletableFuture<Void> result;
+        private int attempts;
+
+        private Outgoing(TelegramCall call, SendPriority priority, long sequence, CompletableFuture<Void> result) {
+            this.call = call;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.result = result;
+        }
+
+        private boolean before(Outgoing other) {
+            if (priority != other.priority) {
+                return priority.ordinal() < other.priority.ordinal();
+            }
+            return sequence < other.sequence;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package org.invest.bot.core.outbound;
+
+/**
+ * Приоритет исходящего сообщения. Ответы на команды пользователя обгоняют фоновые уведомления.
+ */
+public enum SendPriority {
+    INTERACTIVE,
+    NOTIFICATION
+}
@@ -0,0 +1,12 @@
+package org.invest.bot.core.outbound;
+
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.generics.TelegramClient;
+
+/**
+ * Вызов Telegram API. Нужен, чтобы в одну очередь ставились и методы, и отправка файлов.
+ */
+@FunctionalInterface
+public interface TelegramCall {
+    void execute(TelegramClient client) throws TelegramApiException;
+}
@@ -0,0 +1,16 @@
+package org.invest.bot.core.sessions;
+
+/**
+ * Итог пакетного прохода по сессиям.
+ * @param totalMillis От запуска пакета до завершения последней задачи, включая разнесение по окну
+ * @param slowestChatId Сессия с самой долгой задачей, null для пустого пакета
+ * @param slowestMillis Время самой долгой задачи без ожидания своего слота
+ */
+public record BatchReport(
+        String name,
+        int sessions,
+        int failed,
+        long totalMillis,
+        Long slowestChatId,
+        long slowestMillis
+) {}
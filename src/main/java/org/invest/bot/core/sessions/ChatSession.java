@@ -0,0 +1,64 @@
+package org.invest.bot.core.sessions;
+
+import java.util.Set;
+
+/**
+ * Сессия одного чата: выбранные счета и ограничение частоты команд.
+ * Пустой набор счетов означает «все счета, доступные сессии», см. {@link SessionRegistry#scope}.
+ */
+public class ChatSession {
+    private final long chatId;
+    private final TokenBucket commandLimit;
+    private volatile String username;
+    private volatile Set<String> accountIds;
+    private volatile boolean throttled;
+
+    ChatSession(long chatId, String username, Set<String> accountIds, TokenBucket commandLimit) {
+        this.chatId = chatId;
+        this.username = username;
+        this.accountIds = Set.copyOf(accountIds);
+        this.commandLimit = commandLimit;
+    }
+
+    public long getChatId() {
+        return chatId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    void setUsername(String username) {
+        this.username = username;
+    }
+
+    public Set<String> getAccountIds() {
+        return accountIds;
+    }
+
+    public void setAccountIds(Set<String> accountIds) {
+        this.accountIds = Set.copyOf(accountIds);
+    }
+
+    /**
+     * Пропускает команду, если лимит сессии не исчерпан.
+     * @return Решение и признак того, что о превышении лимита надо сообщить: сообщается один раз подряд.
+     */
+    public synchronized Admission admit() {
+        if (commandLimit.tryAcquire()) {
+            throttled = false;
+            return Admission.ALLOWED;
+        }
+        if (throttled) {
+            return Admission.REJECTED_SILENTLY;
+        }
+        throttled = true;
+        return Admission.REJECTED;
+    }
+
+    public enum Admission {
+        ALLOWED,
+        REJECTED,
+        REJECTED_SILENTLY
+    }
+}
@@ -0,0 +1,104 @@
+package org.invest.bot.core.sessions;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Пакетный запуск задачи по всем сессиям без всплеска запросов к API брокера.
+ * Задачи разносятся по окну: каждой сессии достается свой слот со случайным сдвигом внутри него,
+ * а число одновременно работающих задач ограничено размером пула.
+ */
+@Component
+@Slf4j
+public class SessionBatchRunner {
+    private final ScheduledExecutorService scheduler;
+    private final Duration window;
+
+    public SessionBatchRunner(@Value("${sessions.batch.parallelism:4}") int parallelism,
+                              @Value("${sessions.batch.window-seconds:120}") long windowSeconds) {
+        AtomicInteger counter = new AtomicInteger();
+        this.scheduler = Executors.newScheduledThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "session-batch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.window = Duration.ofSeconds(windowSeconds);
+    }
+
+    /**
+     * Разносит задачи по настроенному окну.
+     */
+    public CompletableFuture<BatchReport> run(String name, Collection<ChatSession> sessions, Consumer<ChatSession> job) {
+        return run(name, sessions, window, job);
+    }
+
+    /**
+     * @param window Окно разнесения; нулевое - задачи стартуют сразу, ограничен только параллелизм
+     * @return Итог пакета. Ошибка задачи не прерывает пакет, а учитывается в {@link BatchReport#failed()}.
+     */
+    public CompletableFuture<BatchReport> run(String name, Collection<ChatSession> sessions, Duration window,
+                                              Consumer<ChatSession> job) {
+        long started = System.currentTimeMillis();
+        List<ChatSession> batch = new ArrayList<>(sessions);
+        long slotMillis = batch.isEmpty() ? 0 : window.toMillis() / batch.size();
+        List<CompletableFuture<JobResult>> jobs = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            ChatSession session = batch.get(i);
+            long delay = i * slotMillis + (slotMillis > 0 ? ThreadLocalRandom.current().nextLong(slotMillis) : 0);
+            CompletableFuture<JobResult> result = new CompletableFuture<>();
+            scheduler.schedule(() -> result.complete(execute(name, session, job)), delay, TimeUnit.MILLISECONDS);
+            jobs.add(result);
+        }
+        return CompletableFuture.allOf(jobs.toArray(CompletableFuture[]::new)).thenApply(ignored -> {
+            int failed = 0;
+            JobResult slowest = null;
+            for (CompletableFuture<JobResult> future : jobs) {
+                JobResult result = future.join();
+                if (!result.success()) {
+                    failed++;
+                }
+                if (slowest == null || result.millis() > slowest.millis()) {
+                    slowest = result;
+                }
+            }
+            BatchReport report = new BatchReport(name, batch.size(), failed, System.currentTimeMillis() - started,
+                    slowest == null ? null : slowest.chatId(), slowest == null ? 0 : slowest.millis());
+            log.info("Пакет '{}': {} сессий, ошибок {}, всего {} мс, самая долгая chatId {} - {} мс.", name,
+                    report.sessions(), report.failed(), report.totalMillis(), report.slowestChatId(), report.slowestMillis());
+            return report;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private static JobResult execute(String name, ChatSession session, Consumer<ChatSession> job) {
+        long started = System.currentTimeMillis();
+        boolean success = true;
+        try {
+            job.accept(session);
+        } catch (Exception e) {
+            success = false;
+            log.error("Задача пакета '{}' для chatId {} завершилась ошибкой: {}", name, session.getChatId(), e.getMessage(), e);
+        }
+        return new JobResult(session.getChatId(), System.currentTimeMillis() - started, success);
+    }
+
+    private record JobResult(long chatId, long millis, boolean success) {}
+}
@@ -0,0 +1,232 @@
+package org.invest.bot.core.sessions;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.api.BrokerClients;
+import org.invest.bot.invest.core.modules.warmstart.WarmStartParticipant;
+import org.invest.bot.invest.core.modules.warmstart.WarmStartService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Сессии чатов по chatId. Счета токена из настроек видит только владелец: {@code sessions.owner-chat-id},
+ * чат из снимка прежней версии или, если владелец не задан, первый чат, открывший сессию.
+ * Остальные чаты работают со своими счетами и подключают свой токен командой /token.
+ * Сессию открывают владелец, чаты из {@code sessions.allowed-chat-ids} и, при {@code sessions.open=true}, любой чат.
+ * Сессия создается командой /start и переживает перезапуск: выбранные счета сохраняются в снимке быстрого старта.
+ */
+@Component
+@Slf4j
+public class SessionRegistry implements WarmStartParticipant {
+    private final Map<Long, ChatSession> sessions = new ConcurrentHashMap<>();
+    private final List<Runnable> restoreListeners = new CopyOnWriteArrayList<>();
+    private final double commandCapacity;
+    private final double commandsPerSecond;
+    private final Set<Long> allowedChatIds;
+    private final boolean open;
+    private final BrokerClients brokerClients;
+    private volatile Long ownerChatId;
+
+    public SessionRegistry(WarmStartService warmStartService,
+                           BrokerClients brokerClients,
+                           @Value("${sessions.owner-chat-id:}") Long ownerChatId,
+                           @Value("${sessions.allowed-chat-ids:}") Set<Long> allowedChatIds,
+                           @Value("${sessions.open:false}") boolean open,
+                           @Value("${sessions.rate-limit.capacity:5}") int commandCapacity,
+                           @Value("${sessions.rate-limit.refill-seconds:3}") double refillSeconds) {
+        this.commandCapacity = commandCapacity;
+        this.commandsPerSecond = 1 / refillSeconds;
+        this.allowedChatIds = Set.copyOf(allowedChatIds);
+        this.open = open;
+        this.brokerClients = brokerClients;
+        this.ownerChatId = ownerChatId;
+        // Владелец из снимка нужен до чтения сессий: его сессия восстанавливается, даже если его нет в списке
+        OwnerWarmStart legacy = new OwnerWarmStart();
+        warmStartService.register(legacy);
+        warmStartService.register(this);
+        Long owner = this.ownerChatId;
+        if (legacy.restored && owner != null && !sessions.containsKey(owner)) {
+            sessions.put(owner, newSession(owner, "", Set.of()));
+        }
+        if (owner == null && open) {
+            log.warn("Владелец не задан (sessions.owner-chat-id): счета токена из настроек не видны ни одной сессии.");
+        } else if (owner == null) {
+            log.warn("Владелец не задан (sessions.owner-chat-id): им станет первый чат, открывший сессию.");
+        }
+    }
+
+    /**
+     * Сессия чата. Повторный /start не сбрасывает выбранные счета.
+     * @return null, если чату не разрешено открывать сессию
+     */
+    public ChatSession getOrCreate(long chatId, String username) {
+        if (!isAllowed(chatId)) {
+            log.warn("Отказано в сессии chatId {} ({}): чата нет в sessions.allowed-chat-ids.", chatId, username);
+            return null;
+        }
+        ChatSession session = sessions.computeIfAbsent(chatId, id -> {
+            log.info("Создана сессия для chatId {} ({}).", id, username);
+            return newSession(id, username, Set.of());
+        });
+        session.setUsername(username);
+        return session;
+    }
+
+    public boolean isOwner(long chatId) {
+        Long owner = ownerChatId;
+        return owner != null && owner == chatId;
+    }
+
+    /**
+     * Счета, с которыми работает сессия: выбранные, иначе все счета ее токена.
+     * Пустой набор - все счета владельца, он бывает только у сессии владельца.
+     * @return null, если чат не владельца и еще не подключил свой токен
+     */
+    public Set<String> scope(ChatSession session) {
+        Set<String> selected = session.getAccountIds();
+        if (!selected.isEmpty() || isOwner(session.getChatId())) {
+            return selected;
+        }
+        Set<String> own = brokerClients.accountIdsOf(session.getChatId());
+        return own.isEmpty() ? null : own;
+    }
+
+    /**
+     * Проверяет, виден ли счет в сессии: кнопка из старого сообщения не должна показывать чужой
+     * или снятый с выбора счет.
+     */
+    public boolean isVisible(ChatSession session, String accountId) {
+        Set<String> scope = scope(session);
+        if (scope == null) {
+            return false;
+        }
+        return scope.isEmpty() ? brokerClients.forAccount(accountId) == brokerClients.owner() : scope.contains(accountId);
+    }
+
+    /**
+     * @return Сессия или null, если пользователь еще не писал /start.
+     */
+    public ChatSession get(long chatId) {
+        return sessions.get(chatId);
+    }
+
+    public Collection<ChatSession> all() {
+        return List.copyOf(sessions.values());
+    }
+
+    public boolean isEmpty() {
+        return sessions.isEmpty();
+    }
+
+    /**
+     * Вызывается в фоне после старта приложения, если из снимка восстановлена хотя бы одна сессия.
+     */
+    public void onRestored(Runnable listener) {
+        restoreListeners.add(listener);
+    }
+
+    /**
+     * Первый чат, открывший сессию, становится владельцем, если владелец не задан в настройках и снимке.
+     * В открытом режиме владелец так не назначается: им мог бы стать любой чат.
+     */
+    private synchronized boolean isAllowed(long chatId) {
+        if (ownerChatId == null && !open && (allowedChatIds.isEmpty() || allowedChatIds.contains(chatId))) {
+            ownerChatId = chatId;
+            log.warn("chatId {} назначен владельцем токена из настроек.", chatId);
+        }
+        return open || isOwner(chatId) || allowedChatIds.contains(chatId);
+    }
+
+    private ChatSession newSession(long chatId, String username, Set<String> accountIds) {
+        return new ChatSession(chatId, username, accountIds, new TokenBucket(commandCapacity, commandsPerSecond));
+    }
+
+    @Override
+    public String warmStartKey() {
+        return "sessions";
+    }
+
+    @Override
+    public void writeWarmStart(DataOutputStream out) throws IOException {
+        Collection<ChatSession> snapshot = all();
+        out.writeInt(snapshot.size());
+        for (ChatSession session : snapshot) {
+            out.writeLong(session.getChatId());
+            out.writeUTF(session.getUsername() == null ? "" : session.getUsername());
+            Set<String> accountIds = session.getAccountIds();
+            out.writeInt(accountIds.size());
+            for (String accountId : accountIds) {
+                out.writeUTF(accountId);
+            }
+        }
+    }
+
+    @Override
+    public void readWarmStart(DataInputStream in) throws IOException {
+        for (int i = in.readInt(); i > 0; i--) {
+            long chatId = in.readLong();
+            String username = in.readUTF();
+            Set<String> accountIds = new HashSet<>();
+            for (int j = in.readInt(); j > 0; j--) {
+                accountIds.add(in.readUTF());
+            }
+            // Чат, убранный из списка разрешенных, теряет сессию при перезапуске
+            if (open || isOwner(chatId) || allowedChatIds.contains(chatId)) {
+                sessions.put(chatId, newSession(chatId, username, accountIds));
+            }
+        }
+    }
+
+    /**
+     * После перезапуска уведомления возобновляются без повторного /start.
+     */
+    @Override
+    public void revalidate() {
+        if (sessions.isEmpty()) {
+            return;
+        }
+        log.info("Восстановлено сессий: {}, уведомления возобновлены.", sessions.size());
+        restoreListeners.forEach(Runnable::run);
+    }
+
+    /**
+     * Владелец в формате раздела прежней версии, где бот обслуживал один чат.
+     * Владелец из настроек важнее владельца из снимка.
+     */
+    private class OwnerWarmStart implements WarmStartParticipant {
+        private boolean restored;
+
+        @Override
+        public String warmStartKey() {
+            return "telegram-session";
+        }
+
+        @Override
+        public void writeWarmStart(DataOutputStream out) throws IOException {
+            Long owner = ownerChatId;
+            out.writeBoolean(owner != null);
+            if (owner != null) {
+                out.writeLong(owner);
+            }
+        }
+
+        @Override
+        public void readWarmStart(DataInputStream in) throws IOException {
+            if (in.readBoolean() && ownerChatId == null) {
+                ownerChatId = in.readLong();
+                restored = true;
+                log.info("Владелец chatId {} восстановлен из снимка.", ownerChatId);
+            }
+        }
+    }
+}
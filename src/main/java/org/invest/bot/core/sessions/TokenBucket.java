@@ -0,0 +1,55 @@
+package org.invest.bot.core.sessions;
+
+/**
+ * Ограничитель частоты «ведро токенов»: ведро вмещает {@code capacity} токенов
+ * и равномерно пополняется со скоростью {@code perSecond}. Короткий всплеск до емкости
+ * ведра проходит сразу, дальше - не чаще заданной скорости.
+ */
+public class TokenBucket {
+    private final double capacity;
+    private final double perNano;
+    private double tokens;
+    private long refilledAt;
+
+    public TokenBucket(double capacity, double perSecond) {
+        this.capacity = capacity;
+        this.perNano = perSecond / 1_000_000_000d;
+        this.tokens = capacity;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Забирает токен, если он есть.
+     * @return false, если лимит исчерпан
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    /**
+     * Через сколько наносекунд появится следующий токен. 0 - токен есть уже сейчас.
+     */
+    public synchronized long nanosUntilAvailable() {
+        refill();
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / perNano);
+    }
+
+    /**
+     * Ведро полное: с последнего списания прошло достаточно времени.
+     */
+    public synchronized boolean isFull() {
+        refill();
+        return tokens >= capacity;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * perNano);
+        refilledAt = now;
+    }
+}
@@ -0,0 +1,21 @@
+package org.invest.bot.core.updates;
+
+/**
+ * Метрики обработки обновлений.
+ * @param queueDepth Обновлений принято, но еще не обработано (в очередях и в работе)
+ * @param maxQueueDepth Наибольшая глубина очереди с запуска
+ * @param waitP50Millis Медиана ожидания в очереди по последним обновлениям
+ * @param handleP95Millis 95-й перцентиль времени обработки по последним обновлениям
+ */
+public record DispatcherMetrics(
+        int queueDepth,
+        int maxQueueDepth,
+        int activeChats,
+        long handled,
+        long failed,
+        long waitP50Millis,
+        long waitP95Millis,
+        long handleP50Millis,
+        long handleP95Millis,
+        long handleMaxMillis
+) {}
@@ -0,0 +1,181 @@
+package org.invest.bot.core.updates;
+
+import lombok.extern.slf4j.Slf4j;
+import org.telegram.telegrambots.longpolling.interfaces.LongPollingUpdateConsumer;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Параллельная обработка обновлений с сохранением порядка внутри чата.
+ * У каждого чата своя очередь, которую в пуле разбирает не больше одного потока: сообщения чата
+ * обрабатываются строго по порядку, а разные чаты - параллельно. Нажатия кнопок упорядочиваются
+ * по сообщению, к которому относится кнопка, и не ждут долгих команд того же чата.
+ * Число принятых, но не обработанных обновлений ограничено: при переполнении поток опроса ждет.
+ */
+@Slf4j
+public class OrderedUpdateDispatcher implements LongPollingUpdateConsumer {
+    private static final int LATENCY_WINDOW = 512;
+
+    private final Consumer<Update> handler;
+    private final ExecutorService executor;
+    private final Semaphore capacity;
+    private final Map<String, ChatQueue> queues = new HashMap<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final long[] waits = new long[LATENCY_WINDOW];
+    private final long[] durations = new long[LATENCY_WINDOW];
+    private long handleMax;
+    private int recorded;
+
+    /**
+     * @param parallelism Сколько обновлений обрабатывается одновременно
+     * @param queueCapacity Сколько обновлений может ждать обработки
+     */
+    public OrderedUpdateDispatcher(Consumer<Update> handler, int parallelism, int queueCapacity) {
+        this.handler = handler;
+        this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "update-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.capacity = new Semaphore(queueCapacity);
+    }
+
+    @Override
+    public void consume(List<Update> updates) {
+        for (Update update : updates) {
+            submit(update);
+        }
+    }
+
+    public void submit(Update update) {
+        try {
+            capacity.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        maxDepth.accumulateAndGet(depth.incrementAndGet(), Math::max);
+        Task task = new Task(update, System.nanoTime());
+        String key = orderingKey(update);
+        boolean schedule;
+        synchronized (queues) {
+            ChatQueue queue = queues.computeIfAbsent(key, k -> new ChatQueue());
+            queue.tasks.add(task);
+            schedule = !queue.running;
+            queue.running = true;
+        }
+        if (schedule) {
+            executor.execute(() -> drain(key));
+        }
+    }
+
+    public DispatcherMetrics getMetrics() {
+        long[] waitSample;
+        long[] durationSample;
+        long max;
+        synchronized (durations) {
+            int size = Math.min(recorded, LATENCY_WINDOW);
+            waitSample = Arrays.copyOf(waits, size);
+            durationSample = Arrays.copyOf(durations, size);
+            max = handleMax;
+        }
+        Arrays.sort(waitSample);
+        Arrays.sort(durationSample);
+        int activeChats;
+        synchronized (queues) {
+            activeChats = queues.size();
+        }
+        return new DispatcherMetrics(depth.get(), maxDepth.get(), activeChats, handled.get(), failed.get(),
+                percentile(waitSample, 0.5), percentile(waitSample, 0.95),
+                percentile(durationSample, 0.5), percentile(durationSample, 0.95), max);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Разбирает очередь чата, пока она не опустеет. Пустая очередь удаляется под той же блокировкой,
+     * под которой в нее добавляют, поэтому задача не может потеряться между проверкой и удалением.
+     */
+    private void drain(String key) {
+        while (true) {
+            Task task;
+            synchronized (queues) {
+                ChatQueue queue = queues.get(key);
+                task = queue.tasks.poll();
+                if (task == null) {
+                    queues.remove(key);
+                    return;
+                }
+            }
+            long started = System.nanoTime();
+            try {
+                handler.accept(task.update());
+                handled.incrementAndGet();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                log.error("Ошибка обработки обновления {}: {}", task.update().getUpdateId(), e.getMessage(), e);
+            } finally {
+                long finished = System.nanoTime();
+                record(started - task.enqueuedNanos(), finished - started);
+                depth.decrementAndGet();
+                capacity.release();
+            }
+        }
+    }
+
+    private void record(long waitNanos, long durationNanos) {
+        synchronized (durations) {
+            int slot = recorded % LATENCY_WINDOW;
+            waits[slot] = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+            durations[slot] = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+            handleMax = Math.max(handleMax, durations[slot]);
+            recorded++;
+        }
+    }
+
+    private static String orderingKey(Update update) {
+        if (update.hasCallbackQuery() && update.getCallbackQuery().getMessage() != null) {
+            return "callback:" + update.getCallbackQuery().getMessage().getChatId()
+                    + ":" + update.getCallbackQuery().getMessage().getMessageId();
+        }
+        if (update.hasMessage()) {
+            return "chat:" + update.getMessage().getChatId();
+        }
+        return "update:" + update.getUpdateId();
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+    }
+
+    private static final class ChatQueue {
+        private final Deque<Task> tasks = new ArrayDeque<>();
+        private boolean running;
+    }
+
+    private record Task(Update update, long enqueuedNanos) {}
+}
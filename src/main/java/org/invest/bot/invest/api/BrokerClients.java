@@ -0,0 +1,179 @@
+package org.invest.bot.invest.api;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.core.modules.warmstart.WarmStartParticipant;
+import org.invest.bot.invest.core.modules.warmstart.WarmStartService;
+import org.springframework.stereotype.Component;
+import ru.tinkoff.piapi.contract.v1.Account;
+import ru.tinkoff.piapi.contract.v1.AccountStatus;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Клиенты API брокера: клиент владельца из настроек и клиенты по токенам, подключенным из чатов командой /token.
+ * Запросы по счету идут через клиент того токена, которому счет принадлежит, справочники инструментов
+ * и рыночные данные общие и берутся у клиента владельца.
+ * Токены переживают перезапуск в снимке быстрого старта, поэтому файл снимка должен быть доступен только боту.
+ */
+@Component
+@Slf4j
+public class BrokerClients implements WarmStartParticipant {
+    private final InvestApiCore owner;
+    private final Map<Long, Connection> connections = new ConcurrentHashMap<>();
+    /** Клиент по идентификатору счета, заполняется по мере загрузки списков счетов */
+    private final Map<String, InvestApiCore> byAccount = new ConcurrentHashMap<>();
+
+    public BrokerClients(InvestApiCore owner, WarmStartService warmStartService) {
+        this.owner = owner;
+        warmStartService.register(this);
+    }
+
+    public InvestApiCore owner() {
+        return owner;
+    }
+
+    /**
+     * Подключает токен чата только для чтения. Токен проверяется запросом счетов,
+     * прежний токен чата отключается.
+     * @return Открытые счета токена
+     * @throws IllegalArgumentException если по токену нет открытых счетов
+     */
+    public List<Account> connect(long chatId, String token) {
+        InvestApiCore client = new InvestApiCore(token);
+        List<Account> accounts = openAccounts(client);
+        if (accounts.isEmpty()) {
+            client.shutdown();
+            throw new IllegalArgumentException("По токену нет открытых счетов");
+        }
+        Connection previous = connections.put(chatId, new Connection(token, client));
+        if (previous != null) {
+            byAccount.values().removeIf(indexed -> indexed == previous.client());
+            previous.client().shutdown();
+        }
+        index(client);
+        log.info("Для chatId {} подключен токен брокера, счетов: {}.", chatId, accounts.size());
+        return accounts;
+    }
+
+    public boolean isConnected(long chatId) {
+        return connections.containsKey(chatId);
+    }
+
+    /**
+     * Открытые счета токена чата.
+     * @return Пустой набор, если чат не подключал свой токен
+     */
+    public Set<String> accountIdsOf(long chatId) {
+        Connection connection = connections.get(chatId);
+        if (connection == null) {
+            return Set.of();
+        }
+        return index(connection.client()).stream().map(Account::getId).collect(Collectors.toUnmodifiableSet());
+    }
+
+    /**
+     * Клиент, которому принадлежит счет. Неизвестный счет ищется по всем токенам,
+     * не найденный нигде считается счетом владельца.
+     */
+    public InvestApiCore forAccount(String accountId) {
+        InvestApiCore client = byAccount.get(accountId);
+        if (client != null) {
+            return client;
+        }
+        index(owner);
+        for (Connection connection : connections.values()) {
+            index(connection.client());
+        }
+        return byAccount.getOrDefault(accountId, owner);
+    }
+
+    /**
+     * Счета из набора в порядке, в котором их отдает API каждого токена.
+     */
+    public List<Account> getAccounts(Set<String> accountIds) {
+        return accountIds.stream()
+                .map(this::forAccount)
+                .distinct()
+                .flatMap(client -> client.getAccounts().stream())
+                .filter(account -> accountIds.contains(account.getId()))
+                .toList();
+    }
+
+    /**
+     * Открытые счета всех подключенных из чатов токенов, без счетов владельца.
+     */
+    public List<Account> connectedAccounts() {
+        List<Account> accounts = new ArrayList<>();
+        for (Connection connection : connections.values()) {
+            try {
+                accounts.addAll(index(connection.client()));
+            } catch (Exception e) {
+                log.warn("Не удалось получить счета подключенного токена: {}", e.getMessage());
+            }
+        }
+        return accounts;
+    }
+
+    private List<Account> index(InvestApiCore client) {
+        List<Account> accounts = openAccounts(client);
+        for (Account account : accounts) {
+            byAccount.put(account.getId(), client);
+        }
+        return accounts;
+    }
+
+    private static List<Account> openAccounts(InvestApiCore client) {
+        return client.getAccounts().stream()
+                .filter(account -> account.getStatus() == AccountStatus.ACCOUNT_STATUS_OPEN)
+                .toList();
+    }
+
+    @Override
+    public String warmStartKey() {
+        return "broker-clients";
+    }
+
+    @Override
+    public void writeWarmStart(DataOutputStream out) throws IOException {
+        Map<Long, Connection> snapshot = Map.copyOf(connections);
+        out.writeInt(snapshot.size());
+        for (Map.Entry<Long, Connection> entry : snapshot.entrySet()) {
+            out.writeLong(entry.getKey());
+            out.writeUTF(entry.getValue().token());
+        }
+    }
+
+    /**
+     * Клиенты восстанавливаются без обращения к API: счета запрашиваются при перепроверке или первом запросе.
+     */
+    @Override
+    public void readWarmStart(DataInputStream in) throws IOException {
+        for (int i = in.readInt(); i > 0; i--) {
+            long chatId = in.readLong();
+            String token = in.readUTF();
+            connections.put(chatId, new Connection(token, new InvestApiCore(token)));
+        }
+    }
+
+    @Override
+    public void revalidate() {
+        for (Map.Entry<Long, Connection> entry : connections.entrySet()) {
+            try {
+                index(entry.getValue().client());
+            } catch (Exception e) {
+                log.warn("Токен chatId {} из снимка не прошел проверку: {}", entry.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    private record Connection(String token, InvestApiCore client) {
+    }
+}
@@ -1,33 +1,73 @@
 package org.invest.bot.invest.api;
 
+import com.google.protobuf.Timestamp;
 import lombok.extern.slf4j.Slf4j;
 import org.invest.bot.invest.core.modules.instruments.IndicatorType;
 import org.invest.bot.invest.core.modules.instruments.WhiteListOfShares;
+import org.invest.bot.invest.core.modules.warmstart.WarmStartParticipant;
 import org.invest.bot.invest.core.objects.InstrumentObj;
 import org.springframework.stereotype.Component;
 import ru.tinkoff.piapi.contract.v1.*;
+import ru.tinkoff.piapi.contract.v1.Currency;
 import ru.tinkoff.piapi.core.InvestApi;
 import ru.tinkoff.piapi.core.models.Portfolio;
 import ru.tinkoff.piapi.core.models.Position;
+import ru.tinkoff.piapi.core.stream.MarketDataSubscriptionService;
+import ru.tinkoff.piapi.core.stream.StreamProcessor;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import static org.invest.bot.core.DataConvertUtility.quotationToBigDecimal;
 import static ru.tinkoff.piapi.contract.v1.GetTechAnalysisRequest.TypeOfPrice.TYPE_OF_PRICE_CLOSE;
 
 @Component
 @Slf4j
-public class InvestApiCore {
+public class InvestApiCore implements WarmStartParticipant {
+    private static final Duration ACCOUNTS_TTL = Duration.ofHours(1);
+
     private final InvestApi api;
+    /** Справочник инструментов почти не меняется, поэтому кэшируется и переживает перезапуск */
+    private final Map<String, Instrument> instruments = new ConcurrentHashMap<>();
+    private volatile List<Account> accounts;
+    private volatile Instant accountsLoadedAt = Instant.EPOCH;
 
     public InvestApiCore(String token) {
         this.api = InvestApi.createReadonly(token);
     }
 
+    /**
+     * Закрывает соединение с API. Нужно для клиентов, подключенных из чатов: токен владельца живет до остановки.
+     */
+    public void shutdown() {
+        api.destroy(5);
+    }
+
+    /**
+     * Счета пользователя. Список кэшируется на час: счета открываются редко.
+     */
     public List<Account> getAccounts() {
-        return api.getUserService().getAccountsSync();
+        List<Account> cached = accounts;
+        if (cached != null && Instant.now().isBefore(accountsLoadedAt.plus(ACCOUNTS_TTL))) {
+            return cached;
+        }
+        return refreshAccounts();
+    }
+
+    private List<Account> refreshAccounts() {
+        List<Account> fresh = List.copyOf(api.getUserService().getAccountsSync());
+        accounts = fresh;
+        accountsLoadedAt = Instant.now();
+        return fresh;
     }
 
     public Portfolio getPortfolio(String accountId) {
@@ -79,11 +119,11 @@ public class InvestApiCore {
             try {
                 if(position.getInstrumentType().equals("share")){
                     instrumentObjs.add(new InstrumentObj(position,
-                            api.getInstrumentsService().getInstrumentByFigiSync(position.getFigi()),
+                            instrument(position.getFigi()),
                             WhiteListOfShares.getCorrectLot(position.getFigi())));
                 }else {
                     instrumentObjs.add(new InstrumentObj(position,
-                            api.getInstrumentsService().getInstrumentByFigiSync(position.getFigi()),1));
+                            instrument(position.getFigi()),1));
                 }
 
             } catch (Exception e) {
@@ -108,10 +148,38 @@ public class InvestApiCore {
                 .orElse(null);
     }
 
-    public List<Operation> getOperationsForLastMonth(String accountId) {
-        Instant now = Instant.now();
-        Instant monthAgo = now.minus(30, ChronoUnit.DAYS);
-        return api.getOperationsService().getExecutedOperationsSync(accountId, monthAgo, now);
+    /**
+     * Страница исполненных операций счета. API отдает операции от новых к старым,
+     * следующая страница запрашивается по {@code nextCursor} из ответа.
+     * @param cursor Курсор предыдущей страницы или пустая строка для первой
+     */
+    public GetOperationsByCursorResponse getOperationsByCursor(String accountId, Instant from, Instant to,
+                                                               String cursor, int limit) {
+        GetOperationsByCursorRequest request = GetOperationsByCursorRequest.newBuilder()
+                .setAccountId(accountId)
+                .setFrom(Timestamp.newBuilder().setSeconds(from.getEpochSecond()).setNanos(from.getNano()).build())
+                .setTo(Timestamp.newBuilder().setSeconds(to.getEpochSecond()).setNanos(to.getNano()).build())
+                .setCursor(cursor)
+                .setLimit(limit)
+                .setState(OperationState.OPERATION_STATE_EXECUTED)
+                .build();
+        return api.getOperationsService().getOperationByCursorSync(request);
+    }
+
+    /**
+     * Запускает формирование брокерского отчета. Отчет готовится асинхронно на стороне брокера.
+     * @return Идентификатор задачи для {@link #getBrokerReportPage}.
+     */
+    public String requestBrokerReport(String accountId, Instant from, Instant to) {
+        return api.getOperationsService().requestBrokerReport(accountId, from, to).join().getTaskId();
+    }
+
+    /**
+     * Страница готового брокерского отчета. Пока отчет формируется, API отвечает ошибкой.
+     * @param page Номер страницы, начиная с 0
+     */
+    public GetBrokerReportResponse getBrokerReportPage(String taskId, int page) {
+        return api.getOperationsService().getBrokerReport(taskId, page).join();
     }
 
     /**
@@ -122,7 +190,7 @@ public class InvestApiCore {
      */
     public Instrument getInstrumentByFigi(String figi) {
         try {
-            return api.getInstrumentsService().getInstrumentByFigiSync(figi);
+            return instrument(figi);
         } catch (Exception e) {
             log.error("Не удалось найти инструмент по FIGI: {}", figi, e);
             return null;
@@ -178,4 +246,228 @@ public class InvestApiCore {
             return new HashMap<>(); // Возвращаем пустую карту в случае ошибки
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Получает стакан заявок. Количество в заявках указано в лотах.
+     * @param depth Глубина стакана: 1, 10, 20, 30, 40 или 50
+     * @return Стакан или null при ошибке.
+     */
+    public GetOrderBookResponse getOrderBook(String figi, int depth) {
+        try {
+            return api.getMarketDataService().getOrderBookSync(figi, depth);
+        } catch (Exception e) {
+            log.error("Не удалось получить стакан по FIGI: {}", figi, e);
+            return null;
+        }
+    }
+
+    /**
+     * Получает дневные свечи за период. API отдает дневные свечи не более чем за год,
+     * поэтому длинный период запрашивается по частям.
+     * @param figi FIGI инструмента
+     * @return Список свечей, отсортированный по времени.
+     */
+    public List<HistoricCandle> getDailyCandles(String figi, Instant from, Instant to) {
+        List<HistoricCandle> candles = new ArrayList<>();
+        Instant chunkFrom = from;
+        while (chunkFrom.isBefore(to)) {
+            Instant chunkTo = chunkFrom.plus(365, ChronoUnit.DAYS);
+            if (chunkTo.isAfter(to)) {
+                chunkTo = to;
+            }
+            candles.addAll(api.getMarketDataService()
+                    .getCandlesSync(figi, chunkFrom, chunkTo, CandleInterval.CANDLE_INTERVAL_DAY));
+            chunkFrom = chunkTo;
+        }
+        return candles;
+    }
+
+    /**
+     * Получает номинал облигации. Цены облигаций в свечах и стримах указаны в процентах от номинала.
+     * @param figi FIGI облигации
+     * @return Номинал или null, если инструмент не найден.
+     */
+    public BigDecimal getBondNominal(String figi) {
+        try {
+            return quotationToBigDecimal(api.getInstrumentsService().getBondByFigiSync(figi).getNominal());
+        } catch (Exception e) {
+            log.error("Не удалось получить номинал облигации по FIGI: {}", figi, e);
+            return null;
+        }
+    }
+
+    /**
+     * Получает облигацию по FIGI: дату погашения, НКД, признак плавающего купона.
+     * @param figi FIGI облигации
+     * @return Объект Bond или null, если инструмент не найден.
+     */
+    public Bond getBond(String figi) {
+        try {
+            return api.getInstrumentsService().getBondByFigiSync(figi);
+        } catch (Exception e) {
+            log.error("Не удалось получить облигацию по FIGI: {}", figi, e);
+            return null;
+        }
+    }
+
+    /**
+     * Получает акцию по FIGI: сектор, валюту, страну риска и актив.
+     * @return Объект Share или null, если инструмент не найден.
+     */
+    public Share getShare(String figi) {
+        try {
+            return api.getInstrumentsService().getShareByFigiSync(figi);
+        } catch (Exception e) {
+            log.error("Не удалось получить акцию по FIGI: {}", figi, e);
+            return null;
+        }
+    }
+
+    /**
+     * Получает фонд по FIGI.
+     * @return Объект Etf или null, если инструмент не найден.
+     */
+    public Etf getEtf(String figi) {
+        try {
+            return api.getInstrumentsService().getEtfByFigiSync(figi);
+        } catch (Exception e) {
+            log.error("Не удалось получить фонд по FIGI: {}", figi, e);
+            return null;
+        }
+    }
+
+    /**
+     * Получает валюту по FIGI. Код самой валюты лежит в iso_currency_name.
+     * @return Объект Currency или null, если инструмент не найден.
+     */
+    public Currency getCurrency(String figi) {
+        try {
+            return api.getInstrumentsService().getCurrencyByFigiSync(figi);
+        } catch (Exception e) {
+            log.error("Не удалось получить валюту по FIGI: {}", figi, e);
+            return null;
+        }
+    }
+
+    /**
+     * Получает справочник всех валют.
+     * @return Список валют, пустой при ошибке.
+     */
+    public List<Currency> getAllCurrencies() {
+        try {
+            return api.getInstrumentsService().getAllCurrenciesSync();
+        } catch (Exception e) {
+            log.error("Не удалось получить справочник валют.", e);
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Получает актив по его UID. Бренд актива общий для акций и облигаций одного эмитента.
+     * @return Объект AssetFull или null, если актив не найден.
+     */
+    public AssetFull getAsset(String assetUid) {
+        try {
+            return api.getInstrumentsService().getAssetBySync(assetUid).getAsset();
+        } catch (Exception e) {
+            log.error("Не удалось получить актив по UID: {}", assetUid, e);
+            return null;
+        }
+    }
+
+    /**
+     * Получает график купонов облигации за период.
+     * @param figi FIGI облигации
+     * @return Список купонов, пустой при ошибке.
+     */
+    public List<Coupon> getBondCoupons(String figi, Instant from, Instant to) {
+        try {
+            return api.getInstrumentsService().getBondCouponsSync(figi, from, to);
+        } catch (Exception e) {
+            log.error("Не удалось получить купоны облигации по FIGI: {}", figi, e);
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Открывает стрим последних цен по списку FIGI.
+     * @param streamId Идентификатор стрима (повторное открытие с тем же id заменяет подписку)
+     * @param figis Список FIGI
+     * @param onPrice Обработчик, вызывается на каждую новую цену
+     * @return Подписка, через которую можно отписаться от цен.
+     */
+    public MarketDataSubscriptionService subscribeLastPrices(String streamId, List<String> figis, Consumer<LastPrice> onPrice) {
+        StreamProcessor<MarketDataResponse> processor = response -> {
+            if (response.hasLastPrice()) {
+                onPrice.accept(response.getLastPrice());
+            }
+        };
+        MarketDataSubscriptionService stream = api.getMarketDataStreamService()
+                .newStream(streamId, processor, e -> log.error("Ошибка в стриме цен {}: {}", streamId, e.getMessage(), e));
+        stream.subscribeLastPrices(figis);
+        return stream;
+    }
+
+    private Instrument instrument(String figi) {
+        Instrument cached = instruments.get(figi);
+        if (cached != null) {
+            return cached;
+        }
+        Instrument instrument = api.getInstrumentsService().getInstrumentByFigiSync(figi);
+        instruments.put(figi, instrument);
+        return instrument;
+    }
+
+    @Override
+    public String warmStartKey() {
+        return "api";
+    }
+
+    @Override
+    public void writeWarmStart(DataOutputStream out) throws IOException {
+        List<Account> cachedAccounts = accounts == null ? List.of() : accounts;
+        out.writeInt(cachedAccounts.size());
+        for (Account account : cachedAccounts) {
+            account.writeDelimitedTo(out);
+        }
+        List<Instrument> cachedInstruments = List.copyOf(instruments.values());
+        out.writeInt(cachedInstruments.size());
+        for (Instrument instrument : cachedInstruments) {
+            instrument.writeDelimitedTo(out);
+        }
+    }
+
+    /**
+     * Восстановленные счета считаются устаревшими и будут перечитаны при перепроверке,
+     * но до нее первые команды обходятся без запроса счетов.
+     */
+    @Override
+    public void readWarmStart(DataInputStream in) throws IOException {
+        List<Account> restoredAccounts = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            restoredAccounts.add(Account.parseDelimitedFrom(in));
+        }
+        Map<String, Instrument> restoredInstruments = new HashMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            Instrument instrument = Instrument.parseDelimitedFrom(in);
+            restoredInstruments.put(instrument.getFigi(), instrument);
+        }
+        if (!restoredAccounts.isEmpty()) {
+            accounts = List.copyOf(restoredAccounts);
+            accountsLoadedAt = Instant.now();
+        }
+        instruments.putAll(restoredInstruments);
+    }
+
+    @Override
+    public void revalidate() {
+        refreshAccounts();
+        for (String figi : List.copyOf(instruments.keySet())) {
+            try {
+                instruments.put(figi, api.getInstrumentsService().getInstrumentByFigiSync(figi));
+            } catch (Exception e) {
+                log.warn("Инструмент {} из снимка не перепроверен: {}", figi, e.getMessage());
+            }
+        }
+    }
+}
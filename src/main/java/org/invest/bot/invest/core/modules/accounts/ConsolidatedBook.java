@@ -0,0 +1,11 @@
+package org.invest.bot.invest.core.modules.accounts;
+
+import java.util.List;
+
+/**
+ * Сводный портфель (позиции объединены по FIGI) и портфели отдельных счетов, из которых он собран.
+ */
+public record ConsolidatedBook(
+        PortfolioBook total,
+        List<PortfolioBook> accounts
+) {}
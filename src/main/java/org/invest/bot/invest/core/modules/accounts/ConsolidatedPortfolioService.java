@@ -0,0 +1,295 @@
+package org.invest.bot.invest.core.modules.accounts;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.api.BrokerClients;
+import org.invest.bot.invest.api.InvestApiCore;
+import org.invest.bot.invest.core.modules.fx.FxRateService;
+import org.invest.bot.invest.core.modules.journal.JournalEntry;
+import org.invest.bot.invest.core.modules.journal.OperationJournalService;
+import org.invest.bot.invest.core.objects.InstrumentObj;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.Account;
+import ru.tinkoff.piapi.contract.v1.AccountStatus;
+import ru.tinkoff.piapi.contract.v1.MoneyValue;
+import ru.tinkoff.piapi.contract.v1.PortfolioPosition;
+import ru.tinkoff.piapi.contract.v1.PortfolioResponse;
+import ru.tinkoff.piapi.core.models.Money;
+import ru.tinkoff.piapi.core.models.Portfolio;
+import ru.tinkoff.piapi.core.models.Position;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import static org.invest.bot.core.DataConvertUtility.bigDecimalToMoneyValue;
+import static org.invest.bot.core.DataConvertUtility.bigDecimalToQuotation;
+
+/**
+ * Собирает портфели всех открытых счетов (брокерский, ИИС и т.д.) и объединяет позиции по FIGI.
+ * Портфель и инструменты каждого счета запрашиваются параллельно в отдельном пуле: вызовы API блокирующие.
+ * Пустой набор счетов означает все счета владельца; счета токенов, подключенных из чатов, выбираются явно
+ * и запрашиваются через клиент своего токена.
+ */
+@Service
+@Slf4j
+public class ConsolidatedPortfolioService {
+    public static final String CONSOLIDATED_ACCOUNT_ID = "all";
+    private static final String CONSOLIDATED_ACCOUNT_NAME = "Все счета";
+
+    private final InvestApiCore apiCore;
+    private final BrokerClients brokerClients;
+    private final FxRateService fxRateService;
+    private final OperationJournalService journalService;
+    private final ExecutorService executor;
+
+    public ConsolidatedPortfolioService(InvestApiCore apiCore,
+                                        BrokerClients brokerClients,
+                                        FxRateService fxRateService,
+                                        OperationJournalService journalService,
+                                        @Value("${accounts.parallelism:4}") int parallelism) {
+        this.apiCore = apiCore;
+        this.brokerClients = brokerClients;
+        this.fxRateService = fxRateService;
+        this.journalService = journalService;
+        this.executor = Executors.newFixedThreadPool(parallelism);
+    }
+
+    public List<Account> getOpenAccounts() {
+        return apiCore.getAccounts().stream()
+                .filter(account -> account.getStatus() == AccountStatus.ACCOUNT_STATUS_OPEN)
+                .toList();
+    }
+
+    /**
+     * Открытые счета из выбранных.
+     * @param accountIds Выбранные счета, пустой набор - все открытые счета владельца
+     */
+    public List<Account> getOpenAccounts(Set<String> accountIds) {
+        if (accountIds.isEmpty()) {
+            return getOpenAccounts();
+        }
+        return brokerClients.getAccounts(accountIds).stream()
+                .filter(account -> account.getStatus() == AccountStatus.ACCOUNT_STATUS_OPEN)
+                .toList();
+    }
+
+    /**
+     * Загружает все счета параллельно и строит сводный портфель.
+     */
+    public ConsolidatedBook load() {
+        return load(Set.of());
+    }
+
+    /**
+     * Сводный портфель по выбранным счетам.
+     * @param accountIds Выбранные счета, пустой набор - все открытые счета владельца
+     */
+    public ConsolidatedBook load(Set<String> accountIds) {
+        return load(accountIds, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Сводный портфель по выбранным счетам с общими для нескольких вызовов загрузками счетов.
+     * Пакетная обработка передает одну карту во все вызовы: портфель счета с текущими ценами
+     * и инструментами запрашивается один раз, сколько бы пользователей его ни выбрали.
+     * @param shared Загрузки счетов по идентификатору, дополняется недостающими
+     */
+    public ConsolidatedBook load(Set<String> accountIds, Map<String, CompletableFuture<PortfolioBook>> shared) {
+        long started = System.currentTimeMillis();
+        List<PortfolioBook> books = getOpenAccounts(accountIds).stream()
+                .map(account -> shared.computeIfAbsent(account.getId(),
+                        id -> CompletableFuture.supplyAsync(() -> loadBook(account), executor)))
+                .toList().stream()
+                .map(CompletableFuture::join)
+                .toList();
+        if (books.isEmpty()) {
+            throw new IllegalStateException("Нет открытых счетов");
+        }
+        PortfolioBook total = books.size() == 1 ? books.get(0) : merge(books);
+        log.info("Сводный портфель: {} счетов, {} позиций за {} мс.", books.size(),
+                total.instrumentObjs().size(), System.currentTimeMillis() - started);
+        return new ConsolidatedBook(total, books);
+    }
+
+    /**
+     * Портфель отдельного счета по запросу.
+     * @return Портфель счета или null, если счет не найден.
+     */
+    public PortfolioBook loadAccount(String accountId) {
+        Account account = brokerClients.forAccount(accountId).getAccountById(accountId);
+        return account == null ? null : loadBook(account);
+    }
+
+    /**
+     * Операции за месяц по всем открытым счетам. Журналы счетов предварительно догружаются параллельно.
+     */
+    public List<JournalEntry> getOperationsForLastMonth() {
+        return getOperationsForLastMonth(Set.of());
+    }
+
+    /**
+     * Операции за месяц по выбранным счетам.
+     * @param accountIds Выбранные счета, пустой набор - все открытые счета владельца
+     */
+    public List<JournalEntry> getOperationsForLastMonth(Set<String> accountIds) {
+        Instant to = Instant.now();
+        Instant from = to.minus(30, ChronoUnit.DAYS);
+        return syncJournals(accountIds).stream()
+                .flatMap(account -> journalService.query(account.getId(), null, from, to).stream())
+                .sorted(Comparator.comparingLong(JournalEntry::epochMillis))
+                .toList();
+    }
+
+    /**
+     * Синхронизирует журналы операций всех открытых счетов.
+     * @return Открытые счета.
+     */
+    public List<Account> syncJournals() {
+        return syncJournals(Set.of());
+    }
+
+    /**
+     * Синхронизирует журналы операций выбранных счетов.
+     * @param accountIds Выбранные счета, пустой набор - все открытые счета владельца
+     * @return Открытые счета из выбранных.
+     */
+    public List<Account> syncJournals(Set<String> accountIds) {
+        List<Account> accounts = getOpenAccounts(accountIds);
+        accounts.stream()
+                .map(account -> CompletableFuture.runAsync(() -> journalService.sync(account), executor))
+                .toList()
+                .forEach(CompletableFuture::join);
+        return accounts;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Инструменты счета сразу получают курс к валюте счета, чтобы доли валютных позиций считались верно.
+     */
+    private PortfolioBook loadBook(Account account) {
+        Portfolio portfolio = brokerClients.forAccount(account.getId()).getPortfolio(account.getId());
+        List<InstrumentObj> instrumentObjs = fxRateService.convert(apiCore.getInstruments(portfolio),
+                portfolio.getTotalAmountPortfolio().getCurrency());
+        fxRateService.checkConsistency(portfolio, instrumentObjs);
+        return new PortfolioBook(account, portfolio, instrumentObjs);
+    }
+
+    private PortfolioBook merge(List<PortfolioBook> books) {
+        Map<String, List<Position>> positionsByFigi = new LinkedHashMap<>();
+        Map<String, InstrumentObj> templates = new HashMap<>();
+        for (PortfolioBook book : books) {
+            for (Position position : book.portfolio().getPositions()) {
+                positionsByFigi.computeIfAbsent(position.getFigi(), figi -> new ArrayList<>()).add(position);
+            }
+            for (InstrumentObj inst : book.instrumentObjs()) {
+                templates.putIfAbsent(inst.getFigi(), inst);
+            }
+        }
+
+        PortfolioResponse.Builder response = PortfolioResponse.newBuilder()
+                .setAccountId(CONSOLIDATED_ACCOUNT_ID)
+                .setTotalAmountShares(sum(books, Portfolio::getTotalAmountShares))
+                .setTotalAmountBonds(sum(books, Portfolio::getTotalAmountBonds))
+                .setTotalAmountEtf(sum(books, Portfolio::getTotalAmountEtfs))
+                .setTotalAmountCurrencies(sum(books, Portfolio::getTotalAmountCurrencies))
+                .setTotalAmountFutures(sum(books, Portfolio::getTotalAmountFutures))
+                .setTotalAmountPortfolio(sum(books, Portfolio::getTotalAmountPortfolio))
+                .setExpectedYield(bigDecimalToQuotation(weightedExpectedYield(books)));
+        for (List<Position> positions : positionsByFigi.values()) {
+            response.addPositions(mergePositions(positions));
+        }
+        Portfolio portfolio = Portfolio.fromResponse(response.build());
+
+        List<InstrumentObj> instrumentObjs = new ArrayList<>();
+        for (Position position : portfolio.getPositions()) {
+            InstrumentObj template = templates.get(position.getFigi());
+            if (template != null) {
+                instrumentObjs.add(new InstrumentObj(position, template));
+            }
+        }
+        instrumentObjs.sort(Comparator.comparing(InstrumentObj::getType).thenComparing(InstrumentObj::getName));
+        fxRateService.checkConsistency(portfolio, instrumentObjs);
+        Account account = Account.newBuilder()
+                .setId(CONSOLIDATED_ACCOUNT_ID)
+                .setName(CONSOLIDATED_ACCOUNT_NAME)
+                .setStatus(AccountStatus.ACCOUNT_STATUS_OPEN)
+                .build();
+        return new PortfolioBook(account, portfolio, instrumentObjs);
+    }
+
+    /**
+     * Количество и доход складываются, средняя цена взвешивается по количеству, текущая цена у всех счетов одна.
+     */
+    private PortfolioPosition mergePositions(List<Position> positions) {
+        Position first = positions.get(0);
+        BigDecimal quantity = BigDecimal.ZERO;
+        BigDecimal quantityLots = BigDecimal.ZERO;
+        BigDecimal cost = BigDecimal.ZERO;
+        BigDecimal expectedYield = BigDecimal.ZERO;
+        for (Position position : positions) {
+            quantity = quantity.add(position.getQuantity());
+            quantityLots = quantityLots.add(position.getQuantityLots());
+            cost = cost.add(position.getQuantity().multiply(value(position.getAveragePositionPrice())));
+            expectedYield = expectedYield.add(position.getExpectedYield());
+        }
+        BigDecimal averagePrice = quantity.signum() == 0 ? BigDecimal.ZERO : cost.divide(quantity, 9, RoundingMode.HALF_UP);
+        return PortfolioPosition.newBuilder()
+                .setFigi(first.getFigi())
+                .setInstrumentType(first.getInstrumentType())
+                .setQuantity(bigDecimalToQuotation(quantity))
+                .setQuantityLots(bigDecimalToQuotation(quantityLots))
+                .setAveragePositionPrice(toMoneyValue(averagePrice, first.getAveragePositionPrice()))
+                .setExpectedYield(bigDecimalToQuotation(expectedYield))
+                .setCurrentPrice(toMoneyValue(value(first.getCurrentPrice()), first.getCurrentPrice()))
+                .setCurrentNkd(toMoneyValue(value(first.getCurrentNkd()), first.getCurrentNkd()))
+                .build();
+    }
+
+    private static MoneyValue sum(List<PortfolioBook> books, Function<Portfolio, Money> getter) {
+        BigDecimal total = BigDecimal.ZERO;
+        Money sample = null;
+        for (PortfolioBook book : books) {
+            Money money = getter.apply(book.portfolio());
+            total = total.add(value(money));
+            if (sample == null && money != null) {
+                sample = money;
+            }
+        }
+        return toMoneyValue(total, sample);
+    }
+
+    /**
+     * Доходность портфеля в процентах, взвешенная по стоимости счетов.
+     */
+    private static BigDecimal weightedExpectedYield(List<PortfolioBook> books) {
+        BigDecimal total = BigDecimal.ZERO;
+        BigDecimal weighted = BigDecimal.ZERO;
+        for (PortfolioBook book : books) {
+            BigDecimal value = value(book.portfolio().getTotalAmountPortfolio());
+            total = total.add(value);
+            weighted = weighted.add(value.multiply(book.portfolio().getExpectedYield()));
+        }
+        return total.signum() == 0 ? BigDecimal.ZERO : weighted.divide(total, 9, RoundingMode.HALF_UP);
+    }
+
+    private static BigDecimal value(Money money) {
+        return money == null || money.getValue() == null ? BigDecimal.ZERO : money.getValue();
+    }
+
+    private static MoneyValue toMoneyValue(BigDecimal value, Money sample) {
+        return bigDecimalToMoneyValue(value, sample == null ? "rub" : sample.getCurrency());
+    }
+}
@@ -0,0 +1,16 @@
+package org.invest.bot.invest.core.modules.accounts;
+
+import org.invest.bot.invest.core.objects.InstrumentObj;
+import ru.tinkoff.piapi.contract.v1.Account;
+import ru.tinkoff.piapi.core.models.Portfolio;
+
+import java.util.List;
+
+/**
+ * Портфель одного счета или сводный портфель по всем счетам вместе с инструментами.
+ */
+public record PortfolioBook(
+        Account account,
+        Portfolio portfolio,
+        List<InstrumentObj> instrumentObjs
+) {}
@@ -4,14 +4,24 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
 import org.invest.bot.invest.api.InvestApiCore;
 import org.invest.bot.invest.core.modules.balanse.ActualDistribution;
 import org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure;
 import org.invest.bot.invest.core.modules.balanse.BalanceService;
+import org.invest.bot.invest.core.modules.fees.FeeReport;
+import org.invest.bot.invest.core.modules.fees.FeeService;
+import org.invest.bot.invest.core.modules.journal.JournalEntry;
+import org.invest.bot.invest.core.modules.journal.OperationCategory;
+import org.invest.bot.invest.core.modules.lots.InstrumentPnl;
+import org.invest.bot.invest.core.modules.lots.LotAccountingService;
+import org.invest.bot.invest.core.modules.risk.RiskMetrics;
+import org.invest.bot.invest.core.modules.risk.RiskService;
+import org.invest.bot.invest.core.modules.timeseries.SeriesPoint;
+import org.invest.bot.invest.core.modules.timeseries.ValuationHistoryService;
 import org.invest.bot.invest.core.objects.InstrumentObj;
 import org.springframework.stereotype.Service;
 import ru.tinkoff.piapi.contract.v1.Account;
-import ru.tinkoff.piapi.contract.v1.Operation;
 import ru.tinkoff.piapi.core.models.Portfolio;
 
 import java.io.File;
@@ -19,23 +29,40 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
 
-import static org.invest.bot.core.DataConvertUtility.quotationToBigDecimal;
-
 @Service
+@Slf4j
 public class AiReportService {
+    private static final int VALUE_HISTORY_DAYS = 90;
 
     private final BalanceService balanceService;
+    private final RiskService riskService;
+    private final LotAccountingService lotAccountingService;
+    private final FeeService feeService;
+    private final ValuationHistoryService valuationHistoryService;
     private final ObjectMapper objectMapper;
 
-    public AiReportService(InvestApiCore apiCore, BalanceService balanceService) {
+    public AiReportService(InvestApiCore apiCore, BalanceService balanceService, RiskService riskService,
+                           LotAccountingService lotAccountingService, FeeService feeService,
+                           ValuationHistoryService valuationHistoryService) {
         this.balanceService = balanceService;
+        this.riskService = riskService;
+        this.lotAccountingService = lotAccountingService;
+        this.feeService = feeService;
+        this.valuationHistoryService = valuationHistoryService;
         this.objectMapper = new ObjectMapper();
     }
 
-    public File generateReportFile(Account account, Portfolio portfolio,List<InstrumentObj> instruments,List<Operation> operations) throws IOException {
+    /**
+     * @param accountIds Счета отчета для налоговых лотов и комиссий, пустой набор - все счета владельца.
+     *                   История стоимости ведется по всем счетам владельца и попадает только в такой отчет.
+     */
+    public File generateReportFile(Account account, Portfolio portfolio,List<InstrumentObj> instruments,List<JournalEntry> operations,
+                                   Set<String> accountIds) throws IOException {
         ObjectNode rootNode = (ObjectNode) loadPromptTemplate();
         ObjectNode portfolioDataNode = objectMapper.createObjectNode();
         portfolioDataNode.put("export_date", Instant.now().toString());
@@ -43,28 +70,143 @@ public class AiReportService {
         addPortfolioSummary(portfolioDataNode, portfolio);
         addStrategicAllocation(portfolioDataNode, portfolio, instruments);
         addInstrumentsDetails(portfolioDataNode, instruments);
+        addRiskMetrics(portfolioDataNode, instruments);
+        addTaxLots(portfolioDataNode, instruments, accountIds);
         addTransactionLog(portfolioDataNode, operations);
+        addFees(portfolioDataNode, accountIds);
+        if (accountIds.isEmpty()) {
+            addValueHistory(portfolioDataNode);
+        }
         rootNode.set("portfolio_data", portfolioDataNode);
         File tempFile = File.createTempFile("llm_portfolio_report_", ".json");
         objectMapper.writerWithDefaultPrettyPrinter().writeValue(tempFile, rootNode);
         return tempFile;
     }
 
-    private void addTransactionLog(ObjectNode root, List<Operation> operations) {
+    private void addTransactionLog(ObjectNode root, List<JournalEntry> operations) {
         ArrayNode logNode = root.putArray("transaction_log");
-        for (Operation op : operations) {
+        for (JournalEntry op : operations) {
             ObjectNode opNode = logNode.addObject();
-            opNode.put("date", Date.from(Instant.ofEpochSecond(op.getDate().getSeconds())).toString());
-            opNode.put("type", op.getType());
-            opNode.put("instruments type", op.getInstrumentType());
-            opNode.put("figi", op.getFigi());
-            if(!op.getOperationType().equals("OPERATION_TYPE_COUPON")){
-                opNode.put("quantity", op.getQuantity());
+            opNode.put("date", Date.from(op.date()).toString());
+            opNode.put("type", op.name());
+            opNode.put("instruments type", op.instrumentType());
+            opNode.put("figi", op.figi());
+            if(!op.type().equals("OPERATION_TYPE_COUPON")){
+                opNode.put("quantity", op.quantity());
             }else {
                 opNode.put("quantity", "Информация недоступна");
             }
-            opNode.put("payment", quotationToBigDecimal(op.getPayment()));
-            opNode.put("currency", op.getPayment().getCurrency());
+            opNode.put("payment", op.payment());
+            opNode.put("currency", op.currency());
+        }
+    }
+
+    private void addValueHistory(ObjectNode root) {
+        Instant to = Instant.now().truncatedTo(ChronoUnit.DAYS);
+        Instant from = to.minus(VALUE_HISTORY_DAYS, ChronoUnit.DAYS);
+        Duration day = Duration.ofDays(1);
+        List<SeriesPoint> total = valuationHistoryService.total(from, to, day);
+        if (total.isEmpty()) {
+            return;
+        }
+        ObjectNode history = root.putObject("value_history_daily_rub");
+        addSeries(history.putObject("total"), total);
+        ObjectNode categories = history.putObject("categories");
+        valuationHistoryService.categories(from, to, day)
+                .forEach((category, points) -> addSeries(categories.putObject(category.toLowerCase()), points));
+    }
+
+    private static void addSeries(ObjectNode node, List<SeriesPoint> points) {
+        for (SeriesPoint point : points) {
+            node.put(point.time().toString().substring(0, 10), Math.round(point.value()));
+        }
+    }
+
+    private void addFees(ObjectNode root, Set<String> accountIds) {
+        FeeReport report;
+        try {
+            report = feeService.report(10, accountIds);
+        } catch (Exception e) {
+            log.error("Комиссии не добавлены в отчет: {}", e.getMessage(), e);
+            return;
+        }
+        ObjectNode fees = root.putObject("fees_and_income_all_time_rub");
+        ObjectNode totals = fees.putObject("totals");
+        report.totals().forEach((category, amount) -> totals.put(category.name().toLowerCase(), amount));
+        ObjectNode byMonth = fees.putObject("by_month");
+        report.byMonth().forEach((month, values) -> {
+            ObjectNode monthNode = byMonth.putObject(month.toString());
+            values.forEach((category, amount) -> monthNode.put(category.name().toLowerCase(), amount));
+        });
+        ObjectNode byType = fees.putObject("by_operation_type");
+        report.byType().forEach(byType::put);
+        ArrayNode byInstrument = fees.putArray("top_instruments_by_costs");
+        for (Map.Entry<String, Map<OperationCategory, BigDecimal>> instrument : report.byInstrument()) {
+            ObjectNode node = byInstrument.addObject();
+            node.put("ticker", instrument.getKey());
+            instrument.getValue().forEach((category, amount) -> node.put(category.name().toLowerCase(), amount));
+        }
+    }
+
+    private void addTaxLots(ObjectNode root, List<InstrumentObj> instruments, Set<String> accountIds) {
+        List<InstrumentPnl> pnl;
+        try {
+            pnl = lotAccountingService.pnl(instruments, accountIds);
+        } catch (Exception e) {
+            log.error("Налоговые лоты не добавлены в отчет: {}", e.getMessage(), e);
+            return;
+        }
+        ArrayNode lots = root.putArray("tax_lots_fifo");
+        for (InstrumentPnl item : pnl) {
+            ObjectNode node = lots.addObject();
+            node.put("ticker", item.ticker());
+            node.put("quantity_in_lots", item.quantity());
+            node.put("cost_basis", item.costBasis());
+            node.put("realized_pnl_taxable", item.realized());
+            node.put("realized_pnl_exempt_3y", item.exemptRealized());
+            node.put("unrealized_pnl", item.unrealized());
+            node.put("income_coupons_dividends", item.income());
+            node.put("fees", item.fees());
+            node.put("taxes_withheld", item.taxes());
+            node.put("quantity_exempt_3y", item.exemptQuantity());
+        }
+    }
+
+    private void addRiskMetrics(ObjectNode root, List<InstrumentObj> instruments) {
+        if (instruments.isEmpty()) {
+            return;
+        }
+        RiskMetrics metrics;
+        try {
+            metrics = riskService.calculate(instruments);
+        } catch (Exception e) {
+            log.error("Риск-метрики не добавлены в отчет: {}", e.getMessage(), e);
+            return;
+        }
+        ObjectNode risk = root.putObject("risk_metrics");
+        risk.put("as_of", String.valueOf(metrics.asOf()));
+        risk.put("observations_days", metrics.observations());
+        risk.put("portfolio_volatility_annual", metrics.portfolioVolatility());
+        risk.put("portfolio_beta_vs_tmos", metrics.portfolioBeta());
+        risk.put("var_95_1d_historical", metrics.historicalVar());
+        risk.put("var_95_1d_parametric", metrics.parametricVar());
+        ArrayNode positions = risk.putArray("positions");
+        for (int i = 0; i < metrics.tickers().size(); i++) {
+            ObjectNode position = positions.addObject();
+            position.put("ticker", metrics.tickers().get(i));
+            position.put("weight", metrics.weights()[i]);
+            position.put("volatility_annual", metrics.volatility()[i]);
+            position.put("beta_vs_tmos", metrics.beta()[i]);
+        }
+        ArrayNode correlation = risk.putArray("correlation_matrix");
+        ArrayNode covariance = risk.putArray("covariance_matrix_daily");
+        for (int i = 0; i < metrics.tickers().size(); i++) {
+            ArrayNode correlationRow = correlation.addArray();
+            ArrayNode covarianceRow = covariance.addArray();
+            for (int j = 0; j < metrics.tickers().size(); j++) {
+                correlationRow.add(metrics.correlation()[i][j]);
+                covarianceRow.add(metrics.covariance()[i][j]);
+            }
         }
     }
 
@@ -0,0 +1,83 @@
+package org.invest.bot.invest.core.modules.alerts;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.core.modules.balanse.ConcentrationProblem;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Подавляет повторные уведомления об отклонениях. Для каждого чата хранится отпечаток последнего
+ * отправленного набора нарушений ({@link ConcentrationProblem#fingerprint()}) и полосы их величины
+ * ({@link ConcentrationProblem#bands()}) во встроенной базе, поэтому подавление работает между запусками
+ * анализа и между перезапусками бота.
+ * Тот же набор уведомляется повторно, только если какое-то нарушение выросло на полосу. Гистерезис:
+ * учтенная полоса снижается, только когда нарушение опустилось на две полосы ниже, поэтому доля
+ * у границы полосы не порождает уведомление при каждом пересечении.
+ */
+@Service
+@Slf4j
+public class AlertDeduplicationService {
+    private final SentAlertRepository repository;
+
+    public AlertDeduplicationService(SentAlertRepository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * @return true, если такой набор нарушений в чат еще не отправлялся или одно из нарушений выросло.
+     */
+    public boolean isNew(long chatId, ConcentrationProblem problem) {
+        Optional<SentAlert> last = repository.findById(chatId);
+        if (last.isEmpty() || !last.get().getFingerprint().equals(problem.fingerprint())) {
+            return true;
+        }
+        Map<String, Integer> sent = parse(last.get().getBands());
+        SortedMap<String, Integer> accepted = new TreeMap<>();
+        boolean receded = false;
+        for (Map.Entry<String, Integer> entry : problem.bands().entrySet()) {
+            int band = entry.getValue();
+            int sentBand = sent.getOrDefault(entry.getKey(), 0);
+            if (band > sentBand) {
+                log.info("Нарушение {} для chatId {} выросло: полоса {} -> {}.", entry.getKey(), chatId, sentBand, band);
+                return true;
+            }
+            receded |= band <= sentBand - 2;
+            accepted.put(entry.getKey(), band <= sentBand - 2 ? band : sentBand);
+        }
+        if (receded) {
+            repository.save(new SentAlert(chatId, problem.fingerprint(), format(accepted), last.get().getSentAt()));
+            log.debug("Полосы отклонений для chatId {} снижены без уведомления: {}", chatId, accepted);
+        }
+        return false;
+    }
+
+    public void markSent(long chatId, ConcentrationProblem problem) {
+        repository.save(new SentAlert(chatId, problem.fingerprint(), format(problem.bands()), Instant.now()));
+        log.debug("Отпечаток отклонений для chatId {} сохранен: {}", chatId, problem.fingerprint());
+    }
+
+    private static String format(SortedMap<String, Integer> bands) {
+        return bands.entrySet().stream()
+                .map(entry -> entry.getKey() + "=" + entry.getValue())
+                .collect(Collectors.joining(";"));
+    }
+
+    private static Map<String, Integer> parse(String bands) {
+        Map<String, Integer> result = new HashMap<>();
+        if (bands == null || bands.isEmpty()) {
+            return result;
+        }
+        for (String part : bands.split(";")) {
+            int separator = part.lastIndexOf('=');
+            result.put(part.substring(0, separator), Integer.parseInt(part.substring(separator + 1)));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,55 @@
+package org.invest.bot.invest.core.modules.alerts;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+import java.time.Instant;
+
+/**
+ * Последнее отправленное в чат уведомление об отклонениях: отпечаток набора нарушений, учтенные полосы
+ * величины нарушений и время отправки.
+ */
+@Entity
+@Table(name = "sent_alert")
+public class SentAlert {
+    @Id
+    private Long chatId;
+
+    @Column(nullable = false, length = 64)
+    private String fingerprint;
+
+    /** Полосы нарушений в виде {@code ключ=полоса;...}, null у записей прежней версии */
+    @Column(length = 4000)
+    private String bands;
+
+    @Column(nullable = false)
+    private Instant sentAt;
+
+    protected SentAlert() {
+    }
+
+    public SentAlert(Long chatId, String fingerprint, String bands, Instant sentAt) {
+        this.chatId = chatId;
+        this.fingerprint = fingerprint;
+        this.bands = bands;
+        this.sentAt = sentAt;
+    }
+
+    public Long getChatId() {
+        return chatId;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public String getBands() {
+        return bands;
+    }
+
+    public Instant getSentAt() {
+        return sentAt;
+    }
+}
@@ -0,0 +1,6 @@
+package org.invest.bot.invest.core.modules.alerts;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface SentAlertRepository extends JpaRepository<SentAlert, Long> {
+}
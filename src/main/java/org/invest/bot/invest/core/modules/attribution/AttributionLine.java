@@ -0,0 +1,14 @@
+package org.invest.bot.invest.core.modules.attribution;
+
+/**
+ * Вклад инструмента или категории в изменение стоимости портфеля за день, в рублях.
+ * @param key FIGI инструмента или имя категории {@code PortfolioInstrumentStructure}
+ * @param priceEffect Изменение цены относительно закрытия предыдущего дня, включая сделки дня
+ * @param fxEffect Изменение курса валюты инструмента
+ * @param income Купоны и дивиденды, пришедшие за день
+ */
+public record AttributionLine(String key, String title, double priceEffect, double fxEffect, double income) {
+    public double total() {
+        return priceEffect + fxEffect + income;
+    }
+}
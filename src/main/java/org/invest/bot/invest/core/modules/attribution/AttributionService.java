@@ -0,0 +1,275 @@
+package org.invest.bot.invest.core.modules.attribution;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.api.InvestApiCore;
+import org.invest.bot.invest.core.modules.accounts.ConsolidatedPortfolioService;
+import org.invest.bot.invest.core.modules.balanse.ActualDistribution;
+import org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure;
+import org.invest.bot.invest.core.modules.drift.DriftMonitor;
+import org.invest.bot.invest.core.modules.fx.FxRateService;
+import org.invest.bot.invest.core.modules.history.HistoryService;
+import org.invest.bot.invest.core.modules.journal.JournalEntry;
+import org.invest.bot.invest.core.modules.journal.OperationCategory;
+import org.invest.bot.invest.core.modules.journal.OperationJournalService;
+import org.invest.bot.invest.core.objects.InstrumentObj;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.Account;
+import ru.tinkoff.piapi.contract.v1.Instrument;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * Дневная атрибуция изменения стоимости портфеля: цена, курс и доход по инструментам и категориям.
+ * База дня строится один раз, дальше трекер обновляется ценами из стрима {@link DriftMonitor}.
+ * Итог дня дописывается в файл истории; при нескольких записях за дату действует последняя.
+ */
+@Service
+@Slf4j
+public class AttributionService {
+    private static final String OTHER = "OTHER";
+    private static final int CLOSE_LOOKBACK_DAYS = 14;
+
+    private final InvestApiCore apiCore;
+    private final ConsolidatedPortfolioService consolidatedPortfolioService;
+    private final OperationJournalService journalService;
+    private final HistoryService historyService;
+    private final FxRateService fxRateService;
+    private final Path historyFile;
+    private final Duration rebuildInterval;
+    private final ObjectMapper objectMapper;
+    private volatile AttributionTracker tracker;
+    private Instant builtAt = Instant.EPOCH;
+
+    public AttributionService(InvestApiCore apiCore,
+                              ConsolidatedPortfolioService consolidatedPortfolioService,
+                              OperationJournalService journalService,
+                              HistoryService historyService,
+                              FxRateService fxRateService,
+                              DriftMonitor driftMonitor,
+                              @Value("${attribution.file:data/attribution.jsonl}") String historyFile,
+                              @Value("${attribution.rebuild-minutes:15}") long rebuildMinutes) {
+        this.apiCore = apiCore;
+        this.consolidatedPortfolioService = consolidatedPortfolioService;
+        this.journalService = journalService;
+        this.historyService = historyService;
+        this.fxRateService = fxRateService;
+        this.historyFile = Path.of(historyFile);
+        this.rebuildInterval = Duration.ofMinutes(rebuildMinutes);
+        this.objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        driftMonitor.addPriceListener(this::onPrice);
+    }
+
+    /**
+     * Атрибуция текущего дня. База пересобирается при смене дня и раз в {@code attribution.rebuild-minutes}:
+     * так учитываются новые сделки и доходы.
+     */
+    public synchronized DailyAttribution today() {
+        LocalDate date = LocalDate.now(ZoneOffset.UTC);
+        if (tracker == null || !tracker.getDate().equals(date) || Instant.now().isAfter(builtAt.plus(rebuildInterval))) {
+            tracker = build(date);
+            builtAt = Instant.now();
+        }
+        return tracker.snapshot();
+    }
+
+    /**
+     * Сохраненная атрибуция за дни из периода [from, to].
+     */
+    public List<DailyAttribution> history(LocalDate from, LocalDate to) {
+        NavigableMap<LocalDate, DailyAttribution> days = new TreeMap<>();
+        if (!Files.exists(historyFile)) {
+            return List.of();
+        }
+        try (BufferedReader reader = Files.newBufferedReader(historyFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                DailyAttribution day = objectMapper.readValue(line, DailyAttribution.class);
+                LocalDate date = day.localDate();
+                if (!date.isBefore(from) && !date.isAfter(to)) {
+                    days.put(date, day);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось прочитать историю атрибуции", e);
+        }
+        return List.copyOf(days.values());
+    }
+
+    /**
+     * Фиксирует итог торгового дня в истории.
+     */
+    @Scheduled(cron = "${attribution.store-cron:0 55 23 * * MON-FRI}")
+    public void storeToday() {
+        try {
+            DailyAttribution day = today();
+            Path parent = historyFile.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Files.writeString(historyFile, objectMapper.writeValueAsString(day) + "\n", StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            log.info("Атрибуция за {} сохранена: {} ₽.", day.date(), Math.round(day.total()));
+        } catch (Exception e) {
+            log.error("Не удалось сохранить атрибуцию дня: {}", e.getMessage(), e);
+        }
+    }
+
+    private void onPrice(String figi, BigDecimal price) {
+        AttributionTracker current = tracker;
+        if (current != null) {
+            current.updatePrice(figi, price.doubleValue());
+        }
+    }
+
+    private AttributionTracker build(LocalDate date) {
+        long started = System.currentTimeMillis();
+        List<InstrumentObj> instrumentObjs = consolidatedPortfolioService.load().total().instrumentObjs();
+        Map<String, DayActivity> activity = todayActivity(date);
+        LocalDate lookback = date.minusDays(CLOSE_LOOKBACK_DAYS);
+        AttributionTracker result = new AttributionTracker(date);
+        for (InstrumentObj inst : instrumentObjs) {
+            double price = inst.getCurrentPrice().getValue().doubleValue();
+            double rate = inst.getFxRate().doubleValue();
+            DayActivity day = activity.remove(inst.getFigi());
+            if (day == null) {
+                day = new DayActivity();
+            }
+            double previousQuantity = inst.getQuantity().doubleValue() - day.tradedQuantity;
+            Map.Entry<LocalDate, Double> close = historyService.getCloses(inst.getFigi(), lookback).lowerEntry(date);
+            double previousClose = close != null ? close.getValue() : price;
+            String currency = inst.getCurrentPrice().getCurrency().toLowerCase();
+            Map.Entry<LocalDate, Double> fxClose = fxRateService.getHistory(currency, lookback).lowerEntry(date);
+            double previousRate = fxClose != null ? fxClose.getValue() : rate;
+            PortfolioInstrumentStructure category = ActualDistribution.categoryOf(inst);
+            result.addPosition(inst.getFigi(), inst.getTicker(), categoryKey(category), categoryTitle(category),
+                    previousQuantity, previousClose, previousRate,
+                    day.tradedQuantity, day.tradedCost, day.income * ("rub".equals(day.incomeCurrency) ? 1 : rate),
+                    price, rate);
+        }
+        // Проданные сегодня целиком бумаги и выплаты по бумагам, которых уже нет в портфеле
+        for (Map.Entry<String, DayActivity> entry : activity.entrySet()) {
+            addClosedPosition(result, entry.getKey(), entry.getValue(), date, lookback);
+        }
+        log.info("База атрибуции за {} построена по {} позициям и {} закрытым за {} мс.", date, instrumentObjs.size(),
+                activity.size(), System.currentTimeMillis() - started);
+        return result;
+    }
+
+    /**
+     * Позиция, которой к текущему моменту нет в портфеле: вчерашнее количество восстанавливается по сделкам дня.
+     * Итоговое количество нулевое, поэтому вклад цены равен выручке за вычетом стоимости на вчерашнее закрытие
+     * и от текущей цены не зависит, а курсовой разницы нет.
+     */
+    private void addClosedPosition(AttributionTracker result, String figi, DayActivity day,
+                                   LocalDate date, LocalDate lookback) {
+        Instrument instrument = apiCore.getInstrumentByFigi(figi);
+        String ticker = instrument != null ? instrument.getTicker() : day.name;
+        String type = instrument != null ? instrument.getInstrumentType() : day.instrumentType;
+        String currency = instrument != null ? instrument.getCurrency().toLowerCase() : day.incomeCurrency;
+        double previousQuantity = -day.tradedQuantity;
+        Map.Entry<LocalDate, Double> close = historyService.getCloses(figi, lookback).lowerEntry(date);
+        double tradePrice = day.tradedQuantity != 0 ? day.tradedCost / day.tradedQuantity : 0;
+        double previousClose = close != null ? close.getValue() : tradePrice;
+        double previousRate = 1;
+        if (!"rub".equals(currency)) {
+            Map.Entry<LocalDate, Double> fxClose = fxRateService.getHistory(currency, lookback).lowerEntry(date);
+            if (fxClose != null) {
+                previousRate = fxClose.getValue();
+            } else {
+                log.warn("Нет курса {} для атрибуции {}, сумма учтена без пересчета.", currency, ticker);
+            }
+        }
+        double incomeRate = "rub".equals(day.incomeCurrency) ? 1 : previousRate;
+        PortfolioInstrumentStructure category = ActualDistribution.categoryOf(ticker, type);
+        result.addPosition(figi, ticker, categoryKey(category), categoryTitle(category),
+                previousQuantity, previousClose, previousRate,
+                day.tradedQuantity, day.tradedCost, day.income * incomeRate,
+                previousClose, previousRate);
+    }
+
+    private static String categoryKey(PortfolioInstrumentStructure category) {
+        return category == null ? OTHER : category.name();
+    }
+
+    private static String categoryTitle(PortfolioInstrumentStructure category) {
+        if (category == null) {
+            return "Прочее";
+        }
+        return switch (category) {
+            case TARGET_STOCK_CORE -> "Акции (Ядро)";
+            case TARGET_STOCK_SATELLITE -> "Акции (Спутники)";
+            case TARGET_BOND -> "Облигации";
+            case TARGET_PROTECTION -> "Защита";
+            case TARGET_RESERVE -> "Резерв";
+            default -> "Категория";
+        };
+    }
+
+    /**
+     * Сделки и доходы за день по всем счетам из журнала операций.
+     */
+    private Map<String, DayActivity> todayActivity(LocalDate date) {
+        Instant from = date.atStartOfDay(ZoneOffset.UTC).toInstant();
+        Instant to = from.plus(Duration.ofDays(1));
+        Map<String, DayActivity> result = new HashMap<>();
+        for (Account account : consolidatedPortfolioService.syncJournals()) {
+            for (JournalEntry entry : journalService.query(account.getId(), null, from, to)) {
+                if (entry.figi() == null || entry.figi().isEmpty()) {
+                    continue;
+                }
+                DayActivity day = result.computeIfAbsent(entry.figi(), figi -> new DayActivity());
+                day.name = entry.name();
+                day.instrumentType = entry.instrumentType();
+                double quantity = entry.quantity();
+                // Без цены (погашение облигации) сумма сделки берется из выплаты
+                double amount = entry.price() != null && entry.price().signum() > 0
+                        ? quantity * entry.price().doubleValue() : Math.abs(entry.payment().doubleValue());
+                switch (OperationCategory.of(entry.type())) {
+                    case BUY -> {
+                        day.tradedQuantity += quantity;
+                        day.tradedCost += amount;
+                    }
+                    case SELL -> {
+                        day.tradedQuantity -= quantity;
+                        day.tradedCost -= amount;
+                    }
+                    case COUPON, DIVIDEND -> {
+                        day.income += entry.payment().doubleValue();
+                        day.incomeCurrency = entry.currency() == null ? "rub" : entry.currency().toLowerCase();
+                    }
+                    default -> {
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static final class DayActivity {
+        private double tradedQuantity;
+        private double tradedCost;
+        private double income;
+        private String incomeCurrency = "rub";
+        private String name;
+        private String instrumentType;
+    }
+}
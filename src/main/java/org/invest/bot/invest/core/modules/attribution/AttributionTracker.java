@@ -0,0 +1,119 @@
+package org.invest.bot.invest.core.modules.attribution;
+
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Внутридневная атрибуция. База (вчерашнее количество, цена закрытия, курс, сделки и доходы за день)
+ * фиксируется один раз, а новая цена одной позиции пересчитывает ее вклад и итог категории за O(1).
+ */
+class AttributionTracker {
+    private final LocalDate date;
+    private final Map<String, Position> positions = new LinkedHashMap<>();
+    private final Map<String, double[]> categoryTotals = new LinkedHashMap<>();
+    private final Map<String, String> categoryTitles = new HashMap<>();
+    private double previousValue;
+
+    AttributionTracker(LocalDate date) {
+        this.date = date;
+    }
+
+    LocalDate getDate() {
+        return date;
+    }
+
+    /**
+     * @param previousQuantity Количество на закрытие предыдущего дня
+     * @param tradedQuantity Куплено минус продано за день
+     * @param tradedCost Уплачено за покупки минус получено за продажи, в валюте инструмента
+     * @param income Купоны и дивиденды за день в рублях
+     */
+    synchronized void addPosition(String figi, String ticker, String category, String categoryTitle,
+                                  double previousQuantity, double previousClose, double previousRate,
+                                  double tradedQuantity, double tradedCost, double income,
+                                  double price, double rate) {
+        Position position = new Position(ticker, category, previousQuantity, previousClose, previousRate,
+                tradedQuantity, tradedCost, income, rate);
+        positions.put(figi, position);
+        categoryTitles.putIfAbsent(category, categoryTitle);
+        categoryTotals.computeIfAbsent(category, key -> new double[3]);
+        previousValue += previousQuantity * previousClose * previousRate;
+        apply(position, price);
+    }
+
+    /**
+     * @return true, если позиция известна трекеру.
+     */
+    synchronized boolean updatePrice(String figi, double price) {
+        Position position = positions.get(figi);
+        if (position == null) {
+            return false;
+        }
+        apply(position, price);
+        return true;
+    }
+
+    synchronized DailyAttribution snapshot() {
+        List<AttributionLine> instruments = new ArrayList<>();
+        for (Map.Entry<String, Position> entry : positions.entrySet()) {
+            Position position = entry.getValue();
+            instruments.add(new AttributionLine(entry.getKey(), position.ticker, position.effects[0],
+                    position.effects[1], position.effects[2]));
+        }
+        instruments.sort(Comparator.comparingDouble((AttributionLine line) -> Math.abs(line.total())).reversed());
+        List<AttributionLine> categories = new ArrayList<>();
+        for (Map.Entry<String, double[]> entry : categoryTotals.entrySet()) {
+            double[] totals = entry.getValue();
+            categories.add(new AttributionLine(entry.getKey(), categoryTitles.get(entry.getKey()),
+                    totals[0], totals[1], totals[2]));
+        }
+        return new DailyAttribution(date.toString(), System.currentTimeMillis(), previousValue,
+                List.copyOf(instruments), List.copyOf(categories));
+    }
+
+    private void apply(Position position, double price) {
+        double[] effects = position.effects(price);
+        double[] totals = categoryTotals.get(position.category);
+        for (int k = 0; k < effects.length; k++) {
+            totals[k] += effects[k] - position.effects[k];
+        }
+        position.effects = effects;
+    }
+
+    private static final class Position {
+        private final String ticker;
+        private final String category;
+        private final double previousQuantity;
+        private final double previousClose;
+        private final double previousRate;
+        private final double tradedQuantity;
+        private final double tradedCost;
+        private final double income;
+        private final double rate;
+        /** Текущий вклад: цена, курс, доход */
+        private double[] effects = new double[3];
+
+        private Position(String ticker, String category, double previousQuantity, double previousClose,
+                         double previousRate, double tradedQuantity, double tradedCost, double income, double rate) {
+            this.ticker = ticker;
+            this.category = category;
+            this.previousQuantity = previousQuantity;
+            this.previousClose = previousClose;
+            this.previousRate = previousRate;
+            this.tradedQuantity = tradedQuantity;
+            this.tradedCost = tradedCost;
+            this.income = income;
+            this.rate = rate;
+        }
+
+        /**
+         * Вчерашние бумаги дают изменение цены к закрытию, купленные сегодня - к цене сделки.
+         * Курсовая разница считается только по бумагам, которые держали с вечера.
+         */
+        private double[] effects(double price) {
+            double priceEffect = (previousQuantity * (price - previousClose) + tradedQuantity * price - tradedCost) * previousRate;
+            double fxEffect = previousQuantity * price * (rate - previousRate);
+            return new double[]{priceEffect, fxEffect, income};
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.invest.bot.invest.core.modules.attribution;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Разложение дневного изменения стоимости портфеля. Одна строка файла истории.
+ * @param date Дата в формате ISO
+ * @param previousValue Стоимость вчерашних позиций по ценам закрытия
+ */
+public record DailyAttribution(
+        String date,
+        long updatedAtMillis,
+        double previousValue,
+        List<AttributionLine> instruments,
+        List<AttributionLine> categories
+) {
+    public LocalDate localDate() {
+        return LocalDate.parse(date);
+    }
+
+    public double total() {
+        return categories.stream().mapToDouble(AttributionLine::total).sum();
+    }
+
+    public double priceEffect() {
+        return categories.stream().mapToDouble(AttributionLine::priceEffect).sum();
+    }
+
+    public double fxEffect() {
+        return categories.stream().mapToDouble(AttributionLine::fxEffect).sum();
+    }
+
+    public double income() {
+        return categories.stream().mapToDouble(AttributionLine::income).sum();
+    }
+}
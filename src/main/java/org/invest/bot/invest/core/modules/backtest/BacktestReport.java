@@ -0,0 +1,15 @@
+package org.invest.bot.invest.core.modules.backtest;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Итог перебора сетки параметров: результаты отсортированы по сводному рангу.
+ */
+public record BacktestReport(
+        LocalDate from,
+        LocalDate to,
+        List<BacktestResult> ranked,
+        BacktestResult current,
+        long elapsedMillis
+) {}
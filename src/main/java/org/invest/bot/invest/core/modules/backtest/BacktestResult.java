@@ -0,0 +1,22 @@
+package org.invest.bot.invest.core.modules.backtest;
+
+/**
+ * Результат прогона одного набора правил на истории.
+ * @param totalReturn Доходность за весь период (0.25 = +25%)
+ * @param turnover Годовой оборот: сумма сделок к средней стоимости портфеля за год
+ * @param trackingError Годовая ошибка слежения относительно ежедневно ребалансируемого целевого портфеля
+ * @param rank Сводный ранг по доходности, обороту и ошибке слежения (меньше - лучше)
+ */
+public record BacktestResult(
+        RebalanceRules rules,
+        double totalReturn,
+        double turnover,
+        double trackingError,
+        int rebalances,
+        int trades,
+        int rank
+) {
+    public BacktestResult withRank(int rank) {
+        return new BacktestResult(rules, totalReturn, turnover, trackingError, rebalances, trades, rank);
+    }
+}
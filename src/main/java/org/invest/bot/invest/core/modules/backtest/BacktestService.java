@@ -0,0 +1,363 @@
+package org.invest.bot.invest.core.modules.backtest;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure;
+import org.invest.bot.invest.core.modules.history.HistoryService;
+import org.invest.bot.invest.core.modules.history.PriceHistory;
+import org.invest.bot.invest.core.modules.simulation.AllocationModel;
+import org.invest.bot.invest.core.objects.InstrumentObj;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.ToDoubleFunction;
+
+import static org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure.TARGET_BOND;
+import static org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure.TARGET_STOCK_SATELLITE;
+
+/**
+ * Бэктест правил ребалансировки на исторических дневных свечах.
+ * Портфель покупается по целевым долям в первый день истории и дальше ведется в целых лотах:
+ * при нарушении допуска по категории или лимита концентрации выполняется продажа излишков и докупка дефицитов.
+ * Сетка параметров перебирается параллельно, каждый прогон работает только со своими массивами.
+ */
+@Service
+@Slf4j
+public class BacktestService {
+    private static final double[] TOLERANCES = {1.0, 1.5, 2.0, 2.5, 3.0, 4.0, 5.0};
+    private static final double[] SATELLITE_LIMITS = {4.0, 5.0, 6.0, 7.0, 8.0, 10.0};
+    private static final double[] BOND_LIMITS = {6.0, 8.0, 10.0, 12.0, 15.0};
+    private static final double BROKER_FEE = 0.0005;
+    private static final int TRADING_DAYS = 252;
+
+    private final HistoryService historyService;
+
+    public BacktestService(HistoryService historyService) {
+        this.historyService = historyService;
+    }
+
+    public static List<RebalanceRules> defaultGrid() {
+        List<RebalanceRules> grid = new ArrayList<>();
+        for (double tolerance : TOLERANCES) {
+            for (double satelliteLimit : SATELLITE_LIMITS) {
+                for (double bondLimit : BOND_LIMITS) {
+                    grid.add(new RebalanceRules(tolerance, satelliteLimit, bondLimit));
+                }
+            }
+        }
+        return grid;
+    }
+
+    public BacktestReport run(List<InstrumentObj> instrumentObjs, int years, List<RebalanceRules> grid) {
+        long started = System.currentTimeMillis();
+        List<String> figis = instrumentObjs.stream().map(InstrumentObj::getFigi).toList();
+        PriceHistory history = historyService.loadCloses(figis, years * 365);
+        if (instrumentObjs.isEmpty() || history.dayCount() < 2) {
+            throw new IllegalStateException("Недостаточно истории цен для бэктеста");
+        }
+        Setup setup = new Setup(instrumentObjs, history);
+        RebalanceRules currentRules = RebalanceRules.defaults();
+        List<RebalanceRules> settings = new ArrayList<>(grid);
+        if (!settings.contains(currentRules)) {
+            settings.add(currentRules);
+        }
+
+        List<BacktestResult> results = settings.parallelStream().map(setup::replay).toList();
+        List<BacktestResult> ranked = rank(results);
+        BacktestResult current = ranked.stream().filter(r -> r.rules().equals(currentRules)).findFirst().orElse(null);
+
+        long elapsed = System.currentTimeMillis() - started;
+        log.info("Бэктест: {} наборов правил на {} днях за {} мс.", settings.size(), history.dayCount(), elapsed);
+        LocalDate[] dates = history.getDates();
+        return new BacktestReport(dates[0], dates[dates.length - 1], ranked, current, elapsed);
+    }
+
+    /**
+     * Сводный ранг: сумма мест по доходности (больше - лучше), обороту и ошибке слежения (меньше - лучше).
+     */
+    private List<BacktestResult> rank(List<BacktestResult> results) {
+        int[] score = new int[results.size()];
+        addPlaces(results, score, r -> -r.totalReturn());
+        addPlaces(results, score, BacktestResult::turnover);
+        addPlaces(results, score, BacktestResult::trackingError);
+        List<BacktestResult> scored = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            scored.add(results.get(i).withRank(score[i]));
+        }
+        scored.sort(Comparator.comparingInt(BacktestResult::rank).thenComparing(r -> -r.totalReturn()));
+        return scored;
+    }
+
+    private void addPlaces(List<BacktestResult> results, int[] score, ToDoubleFunction<BacktestResult> metric) {
+        Integer[] order = new Integer[results.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> metric.applyAsDouble(results.get(i))));
+        for (int place = 0; place < order.length; place++) {
+            score[order[place]] += place + 1;
+        }
+    }
+
+    /**
+     * Неизменяемые входные данные, общие для всех прогонов сетки.
+     */
+    private static final class Setup {
+        private final int n;
+        private final double[][] closes;
+        private final int[] lots;
+        private final int[] categories;
+        private final boolean[] satellite;
+        private final boolean[] bond;
+        private final double[] baseWeights;
+        private final double initialCapital;
+        private final AllocationModel model;
+
+        private Setup(List<InstrumentObj> instrumentObjs, PriceHistory history) {
+            this.n = instrumentObjs.size();
+            this.closes = history.getCloses();
+            this.model = AllocationModel.of(instrumentObjs);
+            this.categories = model.getCategories();
+            this.lots = new int[n];
+            this.satellite = new boolean[n];
+            this.bond = new boolean[n];
+            double[] values = new double[n];
+            double total = 0;
+            for (int i = 0; i < n; i++) {
+                InstrumentObj inst = instrumentObjs.get(i);
+                lots[i] = Math.max(inst.getLot(), 1);
+                values[i] = inst.getPositionValue().doubleValue();
+                total += values[i];
+                satellite[i] = categoryAt(i) == TARGET_STOCK_SATELLITE;
+                bond[i] = categoryAt(i) == TARGET_BOND;
+            }
+            this.initialCapital = total;
+            this.baseWeights = baseWeights(values, total);
+        }
+
+        private PortfolioInstrumentStructure categoryAt(int i) {
+            return categories[i] < 0 ? null : AllocationModel.CATEGORIES.get(categories[i]);
+        }
+
+        /**
+         * Целевые веса без лимитов концентрации: доля категории делится между инструментами
+         * пропорционально текущим позициям, неклассифицированные позиции сохраняют свой вес.
+         */
+        private double[] baseWeights(double[] values, double total) {
+            double[] weights = new double[n];
+            double[] sums = new double[AllocationModel.CATEGORIES.size()];
+            int[] counts = new int[sums.length];
+            double classified = model.categorySums(values, sums);
+            for (int i = 0; i < n; i++) {
+                if (categories[i] >= 0) {
+                    counts[categories[i]]++;
+                }
+            }
+            double classifiedShare = total > 0 ? classified / total : 0;
+            double[] targets = model.getTargets();
+            for (int i = 0; i < n; i++) {
+                int c = categories[i];
+                if (c < 0) {
+                    weights[i] = total > 0 ? values[i] / total : 0;
+                } else {
+                    double inCategory = sums[c] > 0 ? values[i] / sums[c] : 1.0 / counts[c];
+                    weights[i] = classifiedShare * targets[c] * inCategory;
+                }
+            }
+            return weights;
+        }
+
+        /**
+         * Ограничивает веса спутников и облигаций лимитами и перераспределяет излишек
+         * внутри категории по бумагам, не упершимся в лимит. Нераспределенный остаток остается в кэше.
+         */
+        private double[] cappedWeights(RebalanceRules rules) {
+            double[] weights = baseWeights.clone();
+            for (int c = 0; c < AllocationModel.CATEGORIES.size(); c++) {
+                for (int iteration = 0; iteration < n; iteration++) {
+                    double excess = 0;
+                    double freeWeight = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (categories[i] != c) continue;
+                        double limit = limitOf(i, rules);
+                        if (weights[i] > limit) {
+                            excess += weights[i] - limit;
+                            weights[i] = limit;
+                        } else if (weights[i] < limit) {
+                            freeWeight += weights[i];
+                        }
+                    }
+                    if (excess <= 1e-12 || freeWeight <= 0) break;
+                    for (int i = 0; i < n; i++) {
+                        if (categories[i] == c && weights[i] < limitOf(i, rules)) {
+                            weights[i] += excess * weights[i] / freeWeight;
+                        }
+                    }
+                }
+            }
+            return weights;
+        }
+
+        private double limitOf(int i, RebalanceRules rules) {
+            if (satellite[i]) return rules.satelliteLimit() / 100;
+            if (bond[i]) return rules.bondLimit() / 100;
+            return Double.MAX_VALUE;
+        }
+
+        private BacktestResult replay(RebalanceRules rules) {
+            double[] targetWeights = cappedWeights(rules);
+            double[] categoryTargets = categoryWeights(targetWeights);
+            int days = closes[0].length;
+            long[] units = new long[n];
+            double[] values = new double[n];
+            double[] sums = new double[categoryTargets.length];
+            double tolerance = rules.tolerance() / 100;
+
+            Holdings portfolio = new Holdings(units, initialCapital);
+            portfolio.rebalance(targetWeights, 0);
+            double previousValue = portfolio.value(0, values);
+            double tradedValue = 0;
+            double valueSum = 0;
+            double diffSum = 0;
+            double diffSquares = 0;
+            int rebalances = 0;
+            int trades = 0;
+            for (int t = 1; t < days; t++) {
+                double value = portfolio.value(t, values);
+                double portfolioReturn = previousValue > 0 ? value / previousValue - 1 : 0;
+                double benchmarkReturn = 0;
+                for (int i = 0; i < n; i++) {
+                    if (closes[i][t - 1] > 0) {
+                        benchmarkReturn += baseWeights[i] * (closes[i][t] / closes[i][t - 1] - 1);
+                    }
+                }
+                double diff = portfolioReturn - benchmarkReturn;
+                diffSum += diff;
+                diffSquares += diff * diff;
+                valueSum += value;
+
+                if (driftsFrom(categoryTargets, values, sums, value, tolerance) || breachesLimit(values, value, rules)) {
+                    rebalances++;
+                    double before = portfolio.tradedValue;
+                    trades += portfolio.rebalance(targetWeights, t);
+                    tradedValue += portfolio.tradedValue - before;
+                    value = portfolio.value(t, values);
+                }
+                previousValue = value;
+            }
+            int steps = days - 1;
+            double years = steps / (double) TRADING_DAYS;
+            double averageValue = valueSum / steps;
+            double meanDiff = diffSum / steps;
+            double variance = Math.max(diffSquares / steps - meanDiff * meanDiff, 0);
+            return new BacktestResult(rules,
+                    initialCapital > 0 ? previousValue / initialCapital - 1 : 0,
+                    averageValue > 0 && years > 0 ? tradedValue / averageValue / years : 0,
+                    Math.sqrt(variance * TRADING_DAYS),
+                    rebalances, trades, 0);
+        }
+
+        /**
+         * Доли категорий в весах, к которым приводит ребалансировка. Это веса уже с лимитами,
+         * поэтому остаток, ушедший в кэш из-за лимитов, не считается отклонением.
+         */
+        private double[] categoryWeights(double[] weights) {
+            double[] categoryTargets = new double[AllocationModel.CATEGORIES.size()];
+            for (int i = 0; i < n; i++) {
+                if (categories[i] >= 0) {
+                    categoryTargets[categories[i]] += weights[i];
+                }
+            }
+            return categoryTargets;
+        }
+
+        /**
+         * Правило ребалансировки прогона: доля хотя бы одной категории в стоимости портфеля
+         * отклонилась от ее доли в целевых весах больше чем на допуск.
+         */
+        private boolean driftsFrom(double[] categoryTargets, double[] values, double[] sums, double total, double tolerance) {
+            if (total <= 0) return false;
+            model.categorySums(values, sums);
+            for (int c = 0; c < sums.length; c++) {
+                if (categoryTargets[c] > 0 && Math.abs(sums[c] / total - categoryTargets[c]) > tolerance) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean breachesLimit(double[] values, double total, RebalanceRules rules) {
+            if (total <= 0) return false;
+            for (int i = 0; i < n; i++) {
+                if ((satellite[i] || bond[i]) && values[i] / total > limitOf(i, rules)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Изменяемое состояние одного прогона: количество бумаг и свободные деньги.
+         */
+        private final class Holdings {
+            private final long[] units;
+            private double cash;
+            private double tradedValue;
+
+            private Holdings(long[] units, double cash) {
+                this.units = units;
+                this.cash = cash;
+            }
+
+            private double value(int day, double[] values) {
+                double total = cash;
+                for (int i = 0; i < n; i++) {
+                    values[i] = units[i] * closes[i][day];
+                    total += values[i];
+                }
+                return total;
+            }
+
+            /**
+             * Приводит позиции к целевым весам целыми лотами: сначала продажи, затем покупки на освободившиеся деньги.
+             * @return Количество сделок.
+             */
+            private int rebalance(double[] targetWeights, int day) {
+                double total = cash;
+                for (int i = 0; i < n; i++) {
+                    total += units[i] * closes[i][day];
+                }
+                long[] desired = new long[n];
+                for (int i = 0; i < n; i++) {
+                    double lotPrice = closes[i][day] * lots[i];
+                    desired[i] = lotPrice > 0 ? (long) Math.floor(targetWeights[i] * total / lotPrice) * lots[i] : units[i];
+                }
+                int trades = 0;
+                for (int i = 0; i < n; i++) {
+                    if (desired[i] < units[i]) {
+                        double amount = (units[i] - desired[i]) * closes[i][day];
+                        cash += amount * (1 - BROKER_FEE);
+                        tradedValue += amount;
+                        units[i] = desired[i];
+                        trades++;
+                    }
+                }
+                for (int i = 0; i < n; i++) {
+                    if (desired[i] > units[i]) {
+                        double lotCost = closes[i][day] * lots[i] * (1 + BROKER_FEE);
+                        long affordableLots = lotCost > 0 ? (long) Math.floor(cash / lotCost) : 0;
+                        long lotsToBuy = Math.min((desired[i] - units[i]) / lots[i], affordableLots);
+                        if (lotsToBuy > 0) {
+                            double amount = lotsToBuy * lots[i] * closes[i][day];
+                            cash -= amount * (1 + BROKER_FEE);
+                            tradedValue += amount;
+                            units[i] += lotsToBuy * lots[i];
+                            trades++;
+                        }
+                    }
+                }
+                return trades;
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.invest.bot.invest.core.modules.backtest;
+
+import static org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure.*;
+
+/**
+ * Набор параметров правил ребалансировки, все значения в процентах.
+ */
+public record RebalanceRules(
+        double tolerance,
+        double satelliteLimit,
+        double bondLimit
+) {
+    /**
+     * Текущие параметры стратегии из {@code PortfolioInstrumentStructure}.
+     */
+    public static RebalanceRules defaults() {
+        return new RebalanceRules(ALLOCATION_TOLERANCE.value.doubleValue(),
+                SATELLITE_CONCENTRATION_LIMIT.value.doubleValue(),
+                BOND_CONCENTRATION_LIMIT.value.doubleValue());
+    }
+}
@@ -45,49 +45,16 @@ public class ActualDistribution {
             BigDecimal currentPercentage = entry.getValue();
 
             BigDecimal difference = currentPercentage.subtract(target.value).abs();
-            if (difference.compareTo(ALLOCATION_TOLERANCE.value) > 0) {
-                switch (PortfolioInstrumentStructure.valueOf(target.name())){
-                    case TARGET_STOCK_SATELLITE -> {
-                        HashMap<InstrumentObj,BigDecimal> instruments = new HashMap<>();
-                        for (InstrumentObj instrumentObj : instrumentObjs.stream().filter(filter-> filter.getType().equals("share")).toList()) {
-                            BigDecimal percentCountInstrument = getPercentCount(totalValue, instrumentObj.getQuantity().multiply(instrumentObj.getCurrentPrice().getValue()));
-                            if(percentCountInstrument.compareTo(SATELLITE_CONCENTRATION_LIMIT.value) > 0){
-                                instruments.put(instrumentObj,percentCountInstrument);
-                            }
-                        }
-                        actualDistributionList.add(new ActualDistribution(target,currentPercentage,instruments));
-                    }
-                    case TARGET_BOND -> {
-                        HashMap<InstrumentObj,BigDecimal> instruments = new HashMap<>();
-                        for (InstrumentObj instrumentObj : instrumentObjs.stream().filter(filter-> filter.getType().equals("bond")).toList()) {
-                            BigDecimal percentCountInstrument = getPercentCount(totalValue, instrumentObj.getQuantity().multiply(instrumentObj.getCurrentPrice().getValue()));
-                            if(percentCountInstrument.compareTo(BOND_CONCENTRATION_LIMIT.value) > 0){
-                                instruments.put(instrumentObj,percentCountInstrument);
-                            }
-                        }
-                        actualDistributionList.add(new ActualDistribution(target,currentPercentage,instruments));
-                    }
-                    case TARGET_PROTECTION -> {
-                        HashMap<InstrumentObj,BigDecimal> instruments = new HashMap<>();
-                        for (InstrumentObj instrumentObj : instrumentObjs.stream().filter(filter-> getProtectionTickets().contains(filter.getTicker())).toList()) {
-                            BigDecimal percentCountInstrument = getPercentCount(totalValue, instrumentObj.getQuantity().multiply(instrumentObj.getCurrentPrice().getValue()));
-                            if(percentCountInstrument.compareTo(PROTECTION_CONCENTRATION_LIMIT.value) > 0){
-                                instruments.put(instrumentObj,percentCountInstrument);
-                            }
-                        }
-                        actualDistributionList.add(new ActualDistribution(target,currentPercentage,instruments));
-                    }
-                    case TARGET_RESERVE -> {
-                        HashMap<InstrumentObj,BigDecimal> instruments = new HashMap<>();
-                        for (InstrumentObj instrumentObj : instrumentObjs.stream().filter(filter-> getReserveTickets().contains(filter.getTicker())).toList()) {
-                            BigDecimal percentCountInstrument = getPercentCount(totalValue, instrumentObj.getQuantity().multiply(instrumentObj.getCurrentPrice().getValue()));
-                            if(percentCountInstrument.compareTo(RESERVE_CONCENTRATION_LIMIT.value) > 0){
-                                instruments.put(instrumentObj,percentCountInstrument);
-                            }
-                        }
-                        actualDistributionList.add(new ActualDistribution(target,currentPercentage,instruments));
+            if (difference.compareTo(ALLOCATION_TOLERANCE.value) > 0 && target != TARGET_STOCK_CORE) {
+                PortfolioInstrumentStructure limit = getLimitByTarget(target);
+                HashMap<InstrumentObj,BigDecimal> instruments = new HashMap<>();
+                for (InstrumentObj instrumentObj : instrumentObjs.stream().filter(filter -> isConcentrationCandidate(target, filter)).toList()) {
+                    BigDecimal percentCountInstrument = getPercentCount(totalValue, positionValue(instrumentObj));
+                    if(percentCountInstrument.compareTo(limit.value) > 0){
+                        instruments.put(instrumentObj,percentCountInstrument);
                     }
                 }
+                actualDistributionList.add(new ActualDistribution(target,currentPercentage,instruments));
             }
         }
         return actualDistributionList;
@@ -101,18 +68,10 @@ public class ActualDistribution {
             distribution.put(group, BigDecimal.ZERO);
         }
         for (InstrumentObj inst : instrumentObjs) {
-            BigDecimal positionValue = inst.getQuantity().multiply(inst.getCurrentPrice().getValue());
             // Определяем, к какой группе относится инструмент, и добавляем его стоимость
-            if (getCoreStockTicket().equals(inst.getTicker())) {
-                distribution.merge(PortfolioInstrumentStructure.TARGET_STOCK_CORE, positionValue, BigDecimal::add);
-            } else if (getReserveTickets().contains(inst.getTicker())) {
-                distribution.merge(PortfolioInstrumentStructure.TARGET_RESERVE, positionValue, BigDecimal::add);
-            } else if (getProtectionTickets().contains(inst.getTicker())) {
-                distribution.merge(PortfolioInstrumentStructure.TARGET_PROTECTION, positionValue, BigDecimal::add);
-            } else if ("share".equals(inst.getType())) {
-                distribution.merge(PortfolioInstrumentStructure.TARGET_STOCK_SATELLITE, positionValue, BigDecimal::add);
-            } else if ("bond".equals(inst.getType())) {
-                distribution.merge(PortfolioInstrumentStructure.TARGET_BOND, positionValue, BigDecimal::add);
+            PortfolioInstrumentStructure category = categoryOf(inst);
+            if (category != null) {
+                distribution.merge(category, positionValue(inst), BigDecimal::add);
             }
         }
         // 2. Превращаем абсолютные значения в проценты и кладем в карту
@@ -123,4 +82,51 @@ public class ActualDistribution {
         distribution.replace(TARGET_RESERVE, getPercentCount(totalValue, distribution.get(PortfolioInstrumentStructure.TARGET_RESERVE)));
         return distribution;
     }
-}
\ No newline at end of file
+
+    /**
+     * Определяет стратегическую категорию инструмента.
+     * @return категория или null, если инструмент не входит ни в одну из групп.
+     */
+    public static PortfolioInstrumentStructure categoryOf(InstrumentObj inst) {
+        return categoryOf(inst.getTicker(), inst.getType());
+    }
+
+    /**
+     * То же по тикеру и типу инструмента - для бумаг, которых уже нет в портфеле.
+     */
+    public static PortfolioInstrumentStructure categoryOf(String ticker, String type) {
+        if (getCoreStockTicket().equals(ticker)) {
+            return TARGET_STOCK_CORE;
+        } else if (getReserveTickets().contains(ticker)) {
+            return TARGET_RESERVE;
+        } else if (getProtectionTickets().contains(ticker)) {
+            return TARGET_PROTECTION;
+        } else if ("share".equals(type)) {
+            return TARGET_STOCK_SATELLITE;
+        } else if ("bond".equals(type)) {
+            return TARGET_BOND;
+        }
+        return null;
+    }
+
+    /**
+     * Проверяет, участвует ли инструмент в проверке лимита концентрации для категории.
+     * Ядро (TMOS@) лимитом на отдельный инструмент не ограничивается.
+     */
+    public static boolean isConcentrationCandidate(PortfolioInstrumentStructure target, InstrumentObj inst) {
+        return switch (target) {
+            case TARGET_STOCK_SATELLITE -> "share".equals(inst.getType());
+            case TARGET_BOND -> "bond".equals(inst.getType());
+            case TARGET_PROTECTION -> getProtectionTickets().contains(inst.getTicker());
+            case TARGET_RESERVE -> getReserveTickets().contains(inst.getTicker());
+            default -> false;
+        };
+    }
+
+    /**
+     * Стоимость позиции в базовой валюте счета: валютные инструменты пересчитываются по курсу.
+     */
+    public static BigDecimal positionValue(InstrumentObj inst) {
+        return inst.getPositionValue();
+    }
+}
@@ -0,0 +1,215 @@
+package org.invest.bot.invest.core.modules.balanse;
+
+import org.invest.bot.invest.core.objects.InstrumentObj;
+import ru.tinkoff.piapi.core.models.Money;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static org.invest.bot.core.DataConvertUtility.getPercentCount;
+import static org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure.*;
+
+/**
+ * Инкрементальный агрегатор распределения портфеля.
+ * Хранит вклад каждой позиции и суммы по категориям, поэтому изменение цены или количества
+ * одной позиции пересчитывает итоги и флаги категорий за O(1), без полного прохода по портфелю.
+ * Изменение позиции меняет общую стоимость, а с ней долю каждой позиции, поэтому флаги концентрации
+ * пересчитываются по всем кандидатам с лимитом: их заранее отобранный список обычно намного короче портфеля.
+ * Все методы синхронизированы: снимок {@link #snapshot()} всегда согласован с последним обновлением.
+ */
+public class AllocationAggregator {
+    private final Map<String, Contribution> positions = new HashMap<>();
+    private final EnumMap<PortfolioInstrumentStructure, BigDecimal> categoryTotals = new EnumMap<>(PortfolioInstrumentStructure.class);
+    private final EnumSet<PortfolioInstrumentStructure> deviatedCategories = EnumSet.noneOf(PortfolioInstrumentStructure.class);
+    private final Set<String> concentrationBreaches = new HashSet<>();
+    private final List<Contribution> concentrationCandidates = new ArrayList<>();
+    // Часть стоимости портфеля, не покрытая позициями (округления брокера и т.п.)
+    private final BigDecimal unallocatedValue;
+    private BigDecimal positionsValue = BigDecimal.ZERO;
+    private long version;
+
+    public AllocationAggregator(Money totalValue, List<InstrumentObj> instrumentObjs) {
+        for (PortfolioInstrumentStructure group : getInsValues()) {
+            categoryTotals.put(group, BigDecimal.ZERO);
+        }
+        for (InstrumentObj inst : instrumentObjs) {
+            Contribution contribution = new Contribution(inst, ActualDistribution.categoryOf(inst));
+            positions.put(inst.getFigi(), contribution);
+            positionsValue = positionsValue.add(contribution.value);
+            if (contribution.category != null) {
+                categoryTotals.merge(contribution.category, contribution.value, BigDecimal::add);
+            }
+        }
+        this.unallocatedValue = totalValue.getValue().subtract(positionsValue);
+        for (Contribution contribution : positions.values()) {
+            PortfolioInstrumentStructure category = contribution.category;
+            if (category != null && category != TARGET_STOCK_CORE && getLimitByTarget(category) != null
+                    && ActualDistribution.isConcentrationCandidate(category, contribution.instrument)) {
+                concentrationCandidates.add(contribution);
+            }
+        }
+        refreshCategoryFlags();
+        refreshConcentrationFlags();
+    }
+
+    /**
+     * Применяет новую цену одной позиции.
+     * @return true, если позиция известна агрегатору и цена изменилась.
+     */
+    public synchronized boolean updatePrice(String figi, BigDecimal price) {
+        Contribution contribution = positions.get(figi);
+        if (contribution == null || contribution.price.compareTo(price) == 0) {
+            return false;
+        }
+        apply(contribution, contribution.quantity, price);
+        return true;
+    }
+
+    /**
+     * Применяет новое количество бумаг в позиции.
+     * @return true, если позиция известна агрегатору и количество изменилось.
+     */
+    public synchronized boolean updateQuantity(String figi, BigDecimal quantity) {
+        Contribution contribution = positions.get(figi);
+        if (contribution == null || contribution.quantity.compareTo(quantity) == 0) {
+            return false;
+        }
+        apply(contribution, quantity, contribution.price);
+        return true;
+    }
+
+    /**
+     * Возвращает согласованный результат анализа на текущий момент.
+     * Совпадает с тем, что вернул бы {@link BalanceService#analyzePortfolio} для тех же цен и количеств.
+     */
+    public synchronized ConcentrationProblem snapshot() {
+        BigDecimal total = getTotalValue();
+        if (total.signum() == 0) {
+            return new ConcentrationProblem(new ArrayList<>(), new ArrayList<>());
+        }
+        List<ActualDistribution> distributions = new ArrayList<>();
+        for (PortfolioInstrumentStructure target : deviatedCategories) {
+            HashMap<InstrumentObj, BigDecimal> instruments = new HashMap<>();
+            if (target != TARGET_STOCK_CORE) {
+                BigDecimal limit = getLimitByTarget(target).value;
+                for (Contribution contribution : positions.values()) {
+                    if (!ActualDistribution.isConcentrationCandidate(target, contribution.instrument)) {
+                        continue;
+                    }
+                    BigDecimal percent = getPercentCount(total, contribution.value);
+                    if (percent.compareTo(limit) > 0) {
+                        instruments.put(contribution.instrument, percent);
+                    }
+                }
+                distributions.add(new ActualDistribution(target, getPercentCount(total, categoryTotals.get(target)), instruments));
+            }
+        }
+        return ConcentrationProblem.fromDistributions(distributions);
+    }
+
+    public synchronized BigDecimal getTotalValue() {
+        return positionsValue.add(unallocatedValue);
+    }
+
+    public synchronized BigDecimal getCategoryPercent(PortfolioInstrumentStructure category) {
+        BigDecimal total = getTotalValue();
+        return total.signum() == 0 ? BigDecimal.ZERO : getPercentCount(total, categoryTotals.get(category));
+    }
+
+    public synchronized BigDecimal getPositionPercent(String figi) {
+        Contribution contribution = positions.get(figi);
+        BigDecimal total = getTotalValue();
+        if (contribution == null || total.signum() == 0) {
+            return BigDecimal.ZERO;
+        }
+        return getPercentCount(total, contribution.value);
+    }
+
+    public synchronized PortfolioInstrumentStructure getCategory(String figi) {
+        Contribution contribution = positions.get(figi);
+        return contribution == null ? null : contribution.category;
+    }
+
+    public synchronized Set<PortfolioInstrumentStructure> getDeviatedCategories() {
+        return EnumSet.copyOf(deviatedCategories);
+    }
+
+    /**
+     * FIGI позиций, превысивших лимит концентрации при текущей общей стоимости.
+     */
+    public synchronized Set<String> getConcentrationBreaches() {
+        return new HashSet<>(concentrationBreaches);
+    }
+
+    public synchronized Set<String> getFigis() {
+        return new HashSet<>(positions.keySet());
+    }
+
+    /**
+     * Счетчик изменений: растет на каждом применённом обновлении.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    private void apply(Contribution contribution, BigDecimal quantity, BigDecimal price) {
+        // Цена приходит в валюте инструмента, доли считаются в базовой валюте
+        BigDecimal newValue = quantity.multiply(price).multiply(contribution.instrument.getFxRate());
+        BigDecimal delta = newValue.subtract(contribution.value);
+        contribution.quantity = quantity;
+        contribution.price = price;
+        contribution.value = newValue;
+        positionsValue = positionsValue.add(delta);
+        if (contribution.category != null) {
+            categoryTotals.merge(contribution.category, delta, BigDecimal::add);
+        }
+        refreshCategoryFlags();
+        refreshConcentrationFlags();
+        version++;
+    }
+
+    // Категорий фиксированное количество, поэтому пересчет флагов остается O(1)
+    private void refreshCategoryFlags() {
+        BigDecimal total = getTotalValue();
+        deviatedCategories.clear();
+        if (total.signum() == 0) {
+            return;
+        }
+        for (Map.Entry<PortfolioInstrumentStructure, BigDecimal> entry : categoryTotals.entrySet()) {
+            BigDecimal difference = getPercentCount(total, entry.getValue()).subtract(entry.getKey().value).abs();
+            if (difference.compareTo(ALLOCATION_TOLERANCE.value) > 0) {
+                deviatedCategories.add(entry.getKey());
+            }
+        }
+    }
+
+    private void refreshConcentrationFlags() {
+        BigDecimal total = getTotalValue();
+        concentrationBreaches.clear();
+        if (total.signum() == 0) {
+            return;
+        }
+        for (Contribution contribution : concentrationCandidates) {
+            BigDecimal percent = getPercentCount(total, contribution.value);
+            if (percent.compareTo(getLimitByTarget(contribution.category).value) > 0) {
+                concentrationBreaches.add(contribution.instrument.getFigi());
+            }
+        }
+    }
+
+    private static final class Contribution {
+        private final InstrumentObj instrument;
+        private final PortfolioInstrumentStructure category;
+        private BigDecimal quantity;
+        private BigDecimal price;
+        private BigDecimal value;
+
+        private Contribution(InstrumentObj instrument, PortfolioInstrumentStructure category) {
+            this.instrument = instrument;
+            this.category = category;
+            this.quantity = instrument.getQuantity();
+            this.price = instrument.getCurrentPrice().getValue();
+            this.value = ActualDistribution.positionValue(instrument);
+        }
+    }
+}
@@ -4,6 +4,10 @@ import lombok.extern.slf4j.Slf4j;
 import org.invest.bot.invest.api.InvestApiCore;
 import org.invest.bot.invest.core.modules.balanse.actions.BuyAction;
 import org.invest.bot.invest.core.modules.balanse.actions.SellAction;
+import org.invest.bot.invest.core.modules.liquidity.LiquidityReport;
+import org.invest.bot.invest.core.modules.liquidity.LiquidityService;
+import org.invest.bot.invest.core.modules.lots.LotAccountingService;
+import org.invest.bot.invest.core.modules.lots.LotSelection;
 import org.invest.bot.invest.core.objects.InstrumentObj;
 import org.springframework.stereotype.Service;
 import ru.tinkoff.piapi.contract.v1.Instrument;
@@ -23,14 +27,21 @@ import static org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStru
 @Slf4j
 public class BalanceService {
     private final InvestApiCore apiCore;
+    private final LiquidityService liquidityService;
+    private final LotAccountingService lotAccountingService;
 
-    public BalanceService(InvestApiCore apiCore) {
+    public BalanceService(InvestApiCore apiCore, LiquidityService liquidityService, LotAccountingService lotAccountingService) {
         this.apiCore = apiCore;
+        this.liquidityService = liquidityService;
+        this.lotAccountingService = lotAccountingService;
     }
 
-    public RebalancePlan createRebalancePlan(ConcentrationProblem concentrationProblem, Portfolio portfolio) {
+    /**
+     * @param accountIds Счета портфеля, среди которых подбираются налоговые лоты; пустой набор - все счета владельца
+     */
+    public RebalancePlan createRebalancePlan(ConcentrationProblem concentrationProblem, Portfolio portfolio, Set<String> accountIds) {
         log.info("createRebalancePlan:");
-        List<SellAction> sellActions = calculateSellActions(concentrationProblem, portfolio.getTotalAmountPortfolio().getValue());
+        List<SellAction> sellActions = calculateSellActions(concentrationProblem, portfolio.getTotalAmountPortfolio().getValue(), accountIds);
         log.info("sellActions:");
         for (SellAction sellAction : sellActions) {
             log.info(sellAction.toString());
@@ -42,7 +53,9 @@ public class BalanceService {
         for (BuyAction buyAction : buyActions) {
             log.info(buyAction.toString());
         }
-        return new RebalancePlan(sellActions, buyActions, totalCashFromSales);
+        LiquidityReport liquidity = liquidityService.estimate(sellActions, buyActions);
+        log.info("Оценка проскальзывания плана: ~{} ₽", liquidity.totalSlippageCost());
+        return new RebalancePlan(sellActions, buyActions, totalCashFromSales, liquidity);
     }
 
     public ConcentrationProblem analyzePortfolio(Portfolio portfolio, List<InstrumentObj> instrumentObjs) {
@@ -53,27 +66,22 @@ public class BalanceService {
         return concentrationProblems(totalValue, instrumentObjs);
     }
 
-    private ConcentrationProblem concentrationProblems(Money totalValue, List<InstrumentObj> instrumentObjs) {
-        List<ActualDistribution> concentrationInstrumentProblems = ActualDistribution.getAllDistribution(totalValue, instrumentObjs);
-        List<String> concentrationHumanProblems = new ArrayList<>();
-        for (ActualDistribution concentrationInstrumentProblem : concentrationInstrumentProblems) {
-            for (InstrumentObj instrumentObj : concentrationInstrumentProblem.getInstruments().keySet()) {
-                String problem = String.format(
-                        "‼️ <b>Риск концентрации:</b> доля '%s' (<b>%s%%</b>) превышает лимит в <b>%s%%</b>!",
-                        instrumentObj.getName(), concentrationInstrumentProblem.getInstruments().get(instrumentObj).setScale(2, RoundingMode.HALF_UP),
-                        Objects.requireNonNull(getLimitByTarget(concentrationInstrumentProblem.getInstrumentStructure())).value
-                );
-                concentrationHumanProblems.add(problem);
-            }
+    /**
+     * Создает инкрементальный агрегатор распределения для последующих обновлений цен и количеств.
+     */
+    public AllocationAggregator createAggregator(Portfolio portfolio, List<InstrumentObj> instrumentObjs) {
+        return new AllocationAggregator(portfolio.getTotalAmountPortfolio(), instrumentObjs);
+    }
 
-        }
-        return new ConcentrationProblem(concentrationHumanProblems, concentrationInstrumentProblems);
+    private ConcentrationProblem concentrationProblems(Money totalValue, List<InstrumentObj> instrumentObjs) {
+        return ConcentrationProblem.fromDistributions(ActualDistribution.getAllDistribution(totalValue, instrumentObjs));
     }
 
     /**
      * ПРИВАТНЫЙ МЕТОД №1: Отвечает ТОЛЬКО за расчет действий по ПРОДАЖЕ.
      */
-    private List<SellAction> calculateSellActions(ConcentrationProblem concentrationProblem, BigDecimal totalPortfolioValue) {
+    private List<SellAction> calculateSellActions(ConcentrationProblem concentrationProblem, BigDecimal totalPortfolioValue,
+                                                  Set<String> accountIds) {
         log.info("--- Запуск calculateSellActions ---");
         List<SellAction> actions = new ArrayList<>();
 
@@ -113,23 +121,27 @@ public class BalanceService {
                         .multiply(concentrationLimit)
                         .divide(new BigDecimal("100"), 2, RoundingMode.HALF_UP);
 
-                BigDecimal pricePerLot = pricePerShare.multiply(BigDecimal.valueOf(sharesPerLot));
+                // Цена лота в рублях: целевая стоимость задана в рублях, а цена валютной бумаги - в ее валюте
+                BigDecimal pricePerLot = pricePerShare.multiply(BigDecimal.valueOf(sharesPerLot))
+                        .multiply(instToSell.getFxRate());
                 int targetLots = targetValueInRub.divide(pricePerLot, 0, RoundingMode.FLOOR).intValue();
                 int lotsToSell = currentLotsInPortfolio - targetLots;
 
                 log.debug("      - Расчет: Целевая стоимость={} RUB, Цена лота={}, Целевое кол-во лотов={}, Лотов к продаже={}",
-                        targetValueInRub, pricePerLot.setScale(2), targetLots, lotsToSell);
+                        targetValueInRub, pricePerLot.setScale(2, RoundingMode.HALF_UP), targetLots, lotsToSell);
 
                 if (lotsToSell > 0) {
                     BigDecimal sellAmount = pricePerLot.multiply(new BigDecimal(lotsToSell));
-                    log.info("      - РЕШЕНИЕ: Продать {} лот(ов) на сумму ~{} RUB", lotsToSell, sellAmount.setScale(2));
+                    log.info("      - РЕШЕНИЕ: Продать {} лот(ов) на сумму ~{} RUB", lotsToSell, sellAmount.setScale(2, RoundingMode.HALF_UP));
                     actions.add(new SellAction(
                             instToSell.getTicker(),
                             instToSell.getFigi(),
                             instToSell.getName(),
                             lotsToSell,
                             sellAmount,
-                            "Снижение риска концентрации"
+                            "Снижение риска концентрации",
+                            selectTaxLots(instToSell.getFigi(), lotsToSell * sharesPerLot, pricePerShare, instToSell.getFxRate(),
+                                    accountIds)
                     ));
                 } else {
                     log.info("      - РЕШЕНИЕ: Продажа не требуется.");
@@ -140,6 +152,19 @@ public class BalanceService {
         return actions;
     }
 
+    /**
+     * Ошибка загрузки истории операций не должна мешать ребалансировке - план строится без лотов.
+     */
+    private List<LotSelection> selectTaxLots(String figi, int quantity, BigDecimal pricePerShare, BigDecimal fxRate,
+                                             Set<String> accountIds) {
+        try {
+            return lotAccountingService.selectLots(figi, BigDecimal.valueOf(quantity), pricePerShare, fxRate, accountIds);
+        } catch (Exception e) {
+            log.warn("      - Не удалось подобрать налоговые лоты для {}: {}", figi, e.getMessage());
+            return List.of();
+        }
+    }
+
     /**
      * ПРИВАТНЫЙ МЕТОД №2: Отвечает ТОЛЬКО за расчет действий по ПОКУПКЕ.
      */
@@ -243,7 +268,7 @@ public class BalanceService {
             log.debug("      - Расчет бюджета: Дефицит={}%, Доля дефицита={}, Бюджет на категорию={}",
                     deficit.setScale(2), categoryWeight, moneyForCategory);
             log.debug("      - Расчет лотов: Цена лота={}, Лотов к покупке (floor)={}",
-                    pricePerLot.setScale(2), lotsToBuy);
+                    pricePerLot.setScale(2, RoundingMode.HALF_UP), lotsToBuy);
 
             if (lotsToBuy > 0) {
                 BigDecimal finalBuyAmount = pricePerLot.multiply(new BigDecimal(lotsToBuy));
@@ -2,18 +2,46 @@ package org.invest.bot.invest.core.modules.balanse;
 
 import org.invest.bot.invest.core.objects.InstrumentObj;
 
-import java.util.HashMap;
-import java.util.List;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import static org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure.ALLOCATION_TOLERANCE;
+import static org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure.getLimitByTarget;
 
 public class ConcentrationProblem {
     private List<String> concentrationHumanProblems;
     private List<ActualDistribution> concentrationInstrumentProblems;
+    private String fingerprint;
+    private SortedMap<String, Integer> bands;
 
     public ConcentrationProblem(List<String> concentrationHumanProblems, List<ActualDistribution> concentrationInstrumentProblems) {
         this.concentrationHumanProblems = concentrationHumanProblems;
         this.concentrationInstrumentProblems = concentrationInstrumentProblems;
     }
 
+    /**
+     * Собирает результат анализа из списка отклонившихся категорий,
+     * формируя человекочитаемые сообщения о превышении лимитов концентрации.
+     */
+    public static ConcentrationProblem fromDistributions(List<ActualDistribution> concentrationInstrumentProblems) {
+        List<String> concentrationHumanProblems = new ArrayList<>();
+        for (ActualDistribution concentrationInstrumentProblem : concentrationInstrumentProblems) {
+            for (InstrumentObj instrumentObj : concentrationInstrumentProblem.getInstruments().keySet()) {
+                String problem = String.format(
+                        "‼️ <b>Риск концентрации:</b> доля '%s' (<b>%s%%</b>) превышает лимит в <b>%s%%</b>!",
+                        instrumentObj.getName(), concentrationInstrumentProblem.getInstruments().get(instrumentObj).setScale(2, RoundingMode.HALF_UP),
+                        Objects.requireNonNull(getLimitByTarget(concentrationInstrumentProblem.getInstrumentStructure())).value
+                );
+                concentrationHumanProblems.add(problem);
+            }
+        }
+        return new ConcentrationProblem(concentrationHumanProblems, concentrationInstrumentProblems);
+    }
+
     public List<String> getConcentrationHumanProblems() {
         return concentrationHumanProblems;
     }
@@ -21,4 +49,64 @@ public class ConcentrationProblem {
     public List<ActualDistribution> getConcentrationInstrumentProblems() {
         return concentrationInstrumentProblems;
     }
+
+    /**
+     * Отпечаток набора нарушений: категории с направлением отклонения и инструменты сверх лимита.
+     * Величина долей не входит: пока набор тот же, колебания цен не порождают новое уведомление,
+     * а доли у границы не переключают отпечаток туда и обратно. Рост нарушения виден по {@link #bands()}.
+     * Не зависит от порядка категорий и инструментов.
+     * @return SHA-256 канонической записи в hex.
+     */
+    public String fingerprint() {
+        if (fingerprint == null) {
+            fingerprint = sha256(String.join("|", bands().keySet()));
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Величина каждого нарушения в полосах шириной в допуск: выход за порог в п.п., деленный на
+     * {@code ALLOCATION_TOLERANCE} и округленный вниз. Ключи - канонические записи отпечатка.
+     */
+    public SortedMap<String, Integer> bands() {
+        if (bands == null) {
+            SortedMap<String, Integer> result = new TreeMap<>();
+            for (ActualDistribution distribution : concentrationInstrumentProblems) {
+                PortfolioInstrumentStructure category = distribution.getInstrumentStructure();
+                BigDecimal deviation = distribution.getTotalPresent().subtract(category.value);
+                String direction = deviation.signum() > 0 ? "+" : "-";
+                result.put(category.name() + direction, band(deviation.abs().subtract(ALLOCATION_TOLERANCE.value)));
+                PortfolioInstrumentStructure limit = getLimitByTarget(category);
+                distribution.getInstruments().forEach((instrument, percent) -> result.put(
+                        category.name() + "/" + instrument.getFigi(),
+                        limit == null ? 0 : band(percent.subtract(limit.value))));
+            }
+            bands = Collections.unmodifiableSortedMap(result);
+        }
+        return bands;
+    }
+
+    private static int band(BigDecimal excess) {
+        return excess.max(BigDecimal.ZERO).divide(ALLOCATION_TOLERANCE.value, 0, RoundingMode.FLOOR).intValue();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ConcentrationProblem that)) return false;
+        return fingerprint().equals(that.fingerprint());
+    }
+
+    @Override
+    public int hashCode() {
+        return fingerprint().hashCode();
+    }
+
+    private static String sha256(String value) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
@@ -17,6 +17,7 @@ public enum PortfolioInstrumentStructure {
     BOND_CONCENTRATION_LIMIT(BigDecimal.valueOf(10.0)),
     PROTECTION_CONCENTRATION_LIMIT(BigDecimal.valueOf(50.0)),
     RESERVE_CONCENTRATION_LIMIT(BigDecimal.valueOf(5.0)),
+    ISSUER_CONCENTRATION_LIMIT(BigDecimal.valueOf(12.0)),
     ALLOCATION_TOLERANCE(BigDecimal.valueOf(2.0));
 
     public BigDecimal value;
@@ -2,6 +2,7 @@ package org.invest.bot.invest.core.modules.balanse;
 
 import org.invest.bot.invest.core.modules.balanse.actions.BuyAction;
 import org.invest.bot.invest.core.modules.balanse.actions.SellAction;
+import org.invest.bot.invest.core.modules.liquidity.LiquidityReport;
 
 import java.math.BigDecimal;
 import java.util.List;
@@ -9,5 +10,6 @@ import java.util.List;
 public record RebalancePlan(
         List<SellAction> sellActions,
         List<BuyAction> buyActions,
-        BigDecimal totalCashFromSales
+        BigDecimal totalCashFromSales,
+        LiquidityReport liquidity
 ) {}
\ No newline at end of file
@@ -1,5 +1,12 @@
 package org.invest.bot.invest.core.modules.balanse.actions;
 
+import org.invest.bot.invest.core.modules.lots.LotSelection;
+
 import java.math.BigDecimal;
+import java.util.List;
 
-public record SellAction(String ticker,String figi, String name, int lots,BigDecimal amount, String reason) {}
\ No newline at end of file
+/**
+ * @param taxLots С каких счетов продавать и какой налог это даст; пусто, если истории лотов нет
+ */
+public record SellAction(String ticker,String figi, String name, int lots,BigDecimal amount, String reason,
+                         List<LotSelection> taxLots) {}
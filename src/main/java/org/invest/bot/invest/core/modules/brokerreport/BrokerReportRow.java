@@ -0,0 +1,64 @@
+package org.invest.bot.invest.core.modules.brokerreport;
+
+import ru.tinkoff.piapi.contract.v1.BrokerReport;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+import static org.invest.bot.core.DataConvertUtility.quotationToBigDecimal;
+
+/**
+ * Сделка из брокерского отчета. Одна строка JSONL-файла.
+ * @param direction Направление сделки как в отчете: «Покупка» или «Продажа»
+ * @param totalOrderAmount Сумма сделки с НКД
+ */
+public record BrokerReportRow(
+        String tradeId,
+        String orderId,
+        long epochMillis,
+        String figi,
+        String ticker,
+        String name,
+        String direction,
+        long quantity,
+        BigDecimal price,
+        BigDecimal orderAmount,
+        BigDecimal accruedInterest,
+        BigDecimal totalOrderAmount,
+        BigDecimal brokerCommission,
+        BigDecimal exchangeCommission,
+        BigDecimal clearingCommission,
+        String commissionCurrency
+) {
+    public static BrokerReportRow of(BrokerReport report) {
+        return new BrokerReportRow(
+                report.getTradeId(),
+                report.getOrderId(),
+                report.getTradeDatetime().getSeconds() * 1000 + report.getTradeDatetime().getNanos() / 1_000_000,
+                report.getFigi(),
+                report.getTicker(),
+                report.getName(),
+                report.getDirection(),
+                report.getQuantity(),
+                quotationToBigDecimal(report.getPrice()),
+                quotationToBigDecimal(report.getOrderAmount()),
+                quotationToBigDecimal(report.getAciValue()),
+                quotationToBigDecimal(report.getTotalOrderAmount()),
+                quotationToBigDecimal(report.getBrokerCommission()),
+                quotationToBigDecimal(report.getExchangeCommission()),
+                quotationToBigDecimal(report.getExchangeClearingCommission()),
+                report.getBrokerCommission().getCurrency()
+        );
+    }
+
+    public Instant date() {
+        return Instant.ofEpochMilli(epochMillis);
+    }
+
+    /**
+     * Все комиссии по сделке: брокера, биржи и клиринга.
+     */
+    public BigDecimal totalCommission() {
+        return brokerCommission.add(exchangeCommission).add(clearingCommission);
+    }
+}
@@ -0,0 +1,290 @@
+package org.invest.bot.invest.core.modules.brokerreport;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.api.BrokerClients;
+import org.invest.bot.invest.api.InvestApiCore;
+import org.invest.bot.invest.core.modules.accounts.ConsolidatedPortfolioService;
+import org.invest.bot.invest.core.modules.journal.JsonlStore;
+import org.invest.bot.invest.core.modules.journal.OperationCategory;
+import org.invest.bot.invest.core.modules.journal.OperationJournalService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.Account;
+import ru.tinkoff.piapi.contract.v1.BrokerReport;
+import ru.tinkoff.piapi.contract.v1.GetBrokerReportResponse;
+import ru.tinkoff.piapi.core.exception.ApiRuntimeException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Загрузка брокерских отчетов. Отчет формируется брокером асинхронно: сервис запускает задачу,
+ * опрашивает ее готовность с растущей паузой и постранично дописывает сделки в хранилище счета.
+ * В памяти одновременно находится только одна страница отчета.
+ * Ожидание готовности не занимает поток: следующий опрос планируется в пуле.
+ */
+@Service
+@Slf4j
+public class BrokerReportService {
+    /** Отчет запрашивается кусками не длиннее месяца */
+    private static final Duration CHUNK = Duration.ofDays(30);
+    private static final Duration SYNC_OVERLAP = Duration.ofDays(1);
+
+    private final BrokerClients brokerClients;
+    private final ConsolidatedPortfolioService consolidatedPortfolioService;
+    private final OperationJournalService journalService;
+    private final Path directory;
+    private final Duration initialDelay;
+    private final Duration maxDelay;
+    private final Duration timeout;
+    private final Duration initialPeriod;
+    private final Set<String> notReadyCodes;
+    private final ObjectMapper objectMapper;
+    private final ScheduledExecutorService executor;
+    private final Map<String, JsonlStore<BrokerReportRow>> stores = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Integer>> running = new ConcurrentHashMap<>();
+
+    public BrokerReportService(BrokerClients brokerClients,
+                               ConsolidatedPortfolioService consolidatedPortfolioService,
+                               OperationJournalService journalService,
+                               @Value("${broker-report.dir:data/broker-reports}") String directory,
+                               @Value("${broker-report.poll-initial-seconds:2}") long initialDelaySeconds,
+                               @Value("${broker-report.poll-max-seconds:60}") long maxDelaySeconds,
+                               @Value("${broker-report.timeout-minutes:10}") long timeoutMinutes,
+                               @Value("${broker-report.initial-days:365}") long initialDays,
+                               @Value("${broker-report.parallelism:2}") int parallelism,
+                               @Value("${broker-report.not-ready-codes:30059}") Set<String> notReadyCodes) {
+        this.brokerClients = brokerClients;
+        this.consolidatedPortfolioService = consolidatedPortfolioService;
+        this.journalService = journalService;
+        this.directory = Path.of(directory);
+        this.initialDelay = Duration.ofSeconds(initialDelaySeconds);
+        this.maxDelay = Duration.ofSeconds(maxDelaySeconds);
+        this.timeout = Duration.ofMinutes(timeoutMinutes);
+        this.initialPeriod = Duration.ofDays(initialDays);
+        this.notReadyCodes = notReadyCodes;
+        this.objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        this.executor = Executors.newScheduledThreadPool(parallelism);
+    }
+
+    /**
+     * Догружает отчеты всех открытых счетов владельца и подключенных из чатов токенов с последней загруженной сделки.
+     */
+    @Scheduled(cron = "${broker-report.cron:0 30 6 * * *}")
+    public void ingestAll() {
+        Instant to = Instant.now();
+        List<Account> accounts = new ArrayList<>(consolidatedPortfolioService.getOpenAccounts());
+        accounts.addAll(brokerClients.connectedAccounts());
+        for (Account account : accounts) {
+            Instant last = store(account.getId()).lastDate();
+            Instant from = last == null ? to.minus(initialPeriod) : last.minus(SYNC_OVERLAP);
+            ingest(account.getId(), from, to).exceptionally(e -> {
+                log.error("Не удалось загрузить брокерский отчет счета {}: {}", account.getId(), e.getMessage(), e);
+                return 0;
+            });
+        }
+    }
+
+    /**
+     * Загружает отчет за период. Период делится на куски, которые формируются и загружаются по очереди.
+     * Повторный вызов для счета, пока предыдущая загрузка не закончилась, возвращает ее же.
+     * @return Количество новых сделок.
+     */
+    public synchronized CompletableFuture<Integer> ingest(String accountId, Instant from, Instant to) {
+        CompletableFuture<Integer> current = running.get(accountId);
+        if (current != null) {
+            return current;
+        }
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        running.put(accountId, result);
+        long started = System.currentTimeMillis();
+        CompletableFuture<Integer> chain = CompletableFuture.completedFuture(0);
+        for (Instant chunkFrom = from; chunkFrom.isBefore(to); chunkFrom = chunkFrom.plus(CHUNK)) {
+            Instant chunkTo = chunkFrom.plus(CHUNK).isBefore(to) ? chunkFrom.plus(CHUNK) : to;
+            Instant start = chunkFrom;
+            chain = chain.thenCompose(total -> ingestChunk(accountId, start, chunkTo).thenApply(added -> total + added));
+        }
+        chain.whenComplete((added, e) -> {
+            running.remove(accountId, result);
+            if (e != null) {
+                result.completeExceptionally(e);
+                return;
+            }
+            log.info("Брокерский отчет счета {}: +{} сделок, всего {}, за {} мс.", accountId, added,
+                    store(accountId).size(), System.currentTimeMillis() - started);
+            result.complete(added);
+        });
+        return result;
+    }
+
+    /**
+     * Потоковый обход сделок счета за период [from, to) по дате.
+     * @param figi FIGI инструмента или null для всех инструментов
+     */
+    public void forEach(String accountId, String figi, Instant from, Instant to, Consumer<BrokerReportRow> consumer) {
+        store(accountId).forEach(figi, from, to, consumer);
+    }
+
+    /**
+     * Сверяет комиссии по сделкам брокерского отчета с комиссиями в журнале операций.
+     * Учитываются только рублевые комиссии и только уже загруженные отчеты.
+     */
+    public CommissionReconciliation reconcile(String accountId, Instant from, Instant to) {
+        BigDecimal[] report = {BigDecimal.ZERO};
+        int[] trades = {0};
+        store(accountId).forEach(null, from, to, row -> {
+            trades[0]++;
+            if ("rub".equalsIgnoreCase(row.commissionCurrency())) {
+                report[0] = report[0].add(row.totalCommission());
+            }
+        });
+        BigDecimal journal = journalService.query(accountId, null, from, to).stream()
+                .filter(entry -> OperationCategory.of(entry.type()) == OperationCategory.COMMISSION)
+                .filter(entry -> "rub".equalsIgnoreCase(entry.currency()))
+                .map(entry -> entry.payment().negate())
+                .reduce(BigDecimal.ZERO, BigDecimal::add);
+        return new CommissionReconciliation(from, to, trades[0], report[0], journal);
+    }
+
+    /**
+     * Сверка комиссий по всем открытым счетам за период.
+     */
+    public CommissionReconciliation reconcile(Instant from, Instant to) {
+        return reconcile(from, to, Set.of());
+    }
+
+    /**
+     * Сверка по выбранным счетам.
+     * @param accountIds Выбранные счета, пустой набор - все открытые счета
+     */
+    public CommissionReconciliation reconcile(Instant from, Instant to, Set<String> accountIds) {
+        int trades = 0;
+        BigDecimal report = BigDecimal.ZERO;
+        BigDecimal journal = BigDecimal.ZERO;
+        for (Account account : consolidatedPortfolioService.getOpenAccounts(accountIds)) {
+            CommissionReconciliation item = reconcile(account.getId(), from, to);
+            trades += item.trades();
+            report = report.add(item.reportCommission());
+            journal = journal.add(item.journalCommission());
+        }
+        return new CommissionReconciliation(from, to, trades, report, journal);
+    }
+
+    /**
+     * Дата последней загруженной сделки счета или null, если отчеты еще не загружались.
+     */
+    public Instant lastDate(String accountId) {
+        return store(accountId).lastDate();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Задача отчета видна только токену, который ее создал, поэтому все страницы запрашиваются через клиент счета.
+     */
+    private CompletableFuture<Integer> ingestChunk(String accountId, Instant from, Instant to) {
+        InvestApiCore client = brokerClients.forAccount(accountId);
+        return CompletableFuture.supplyAsync(() -> client.requestBrokerReport(accountId, from, to), executor)
+                .thenCompose(taskId -> awaitFirstPage(client, taskId, initialDelay, Instant.now().plus(timeout))
+                        .thenApplyAsync(first -> storePages(client, accountId, taskId, first), executor));
+    }
+
+    /**
+     * Опрашивает первую страницу, пока отчет не будет готов. Пауза между опросами удваивается до {@code maxDelay}.
+     * Повтор только на ответ API «отчет формируется», остальные ошибки завершают загрузку сразу.
+     */
+    private CompletableFuture<GetBrokerReportResponse> awaitFirstPage(InvestApiCore client, String taskId, Duration delay, Instant deadline) {
+        CompletableFuture<GetBrokerReportResponse> result = new CompletableFuture<>();
+        executor.schedule(() -> {
+            try {
+                result.complete(client.getBrokerReportPage(taskId, 0));
+            } catch (Exception e) {
+                if (!isNotReady(e)) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                if (Instant.now().plus(delay).isAfter(deadline)) {
+                    result.completeExceptionally(new IllegalStateException(
+                            "Брокерский отчет " + taskId + " не готов за " + timeout.toMinutes() + " мин.", e));
+                    return;
+                }
+                log.debug("Брокерский отчет {} еще формируется, повтор через {} с.", taskId, delay.toSeconds());
+                Duration next = delay.multipliedBy(2).compareTo(maxDelay) > 0 ? maxDelay : delay.multipliedBy(2);
+                awaitFirstPage(client, taskId, next, deadline).whenComplete((response, error) -> {
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    } else {
+                        result.complete(response);
+                    }
+                });
+            }
+        }, delay.toMillis(), TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    /**
+     * Ошибка API приходит обернутой в исключение {@code join()}, поэтому код ищется по цепочке причин.
+     */
+    private boolean isNotReady(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ApiRuntimeException apiError) {
+                return notReadyCodes.contains(apiError.getCode());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Записывает страницы по одной: каждая следующая запрашивается после записи предыдущей.
+     */
+    private int storePages(InvestApiCore client, String accountId, String taskId, GetBrokerReportResponse first) {
+        JsonlStore<BrokerReportRow> store = store(accountId);
+        int added = store.append(rows(first.getBrokerReportList())).size();
+        for (int page = 1; page < first.getPagesCount(); page++) {
+            added += store.append(rows(client.getBrokerReportPage(taskId, page).getBrokerReportList())).size();
+        }
+        return added;
+    }
+
+    private static List<BrokerReportRow> rows(List<BrokerReport> reports) {
+        List<BrokerReportRow> rows = new ArrayList<>(reports.size());
+        for (BrokerReport report : reports) {
+            rows.add(BrokerReportRow.of(report));
+        }
+        return rows;
+    }
+
+    /**
+     * Сделки отчетов счета: страницы дописываются по мере загрузки, повторы из пересекающихся отчетов
+     * отсекаются по id сделки.
+     */
+    private JsonlStore<BrokerReportRow> store(String accountId) {
+        return stores.computeIfAbsent(accountId, id -> {
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Не удалось создать каталог брокерских отчетов " + directory, e);
+            }
+            return new JsonlStore<>(directory.resolve("broker-report-" + id + ".jsonl"), objectMapper,
+                    BrokerReportRow.class, BrokerReportRow::tradeId, BrokerReportRow::epochMillis, BrokerReportRow::figi);
+        });
+    }
+}
@@ -0,0 +1,21 @@
+package org.invest.bot.invest.core.modules.brokerreport;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * Сверка комиссий за период: сумма по сделкам брокерского отчета против списаний в журнале операций.
+ * Суммы в рублях, положительные.
+ * @param trades Количество сделок отчета в периоде
+ */
+public record CommissionReconciliation(
+        Instant from,
+        Instant to,
+        int trades,
+        BigDecimal reportCommission,
+        BigDecimal journalCommission
+) {
+    public BigDecimal difference() {
+        return reportCommission.subtract(journalCommission);
+    }
+}
@@ -0,0 +1,29 @@
+package org.invest.bot.invest.core.modules.changes;
+
+/**
+ * Вид изменения между двумя снимками портфеля.
+ */
+public enum ChangeKind {
+    OPENED("🟢", "Новая позиция"),
+    INCREASED("➕", "Докупка"),
+    DECREASED("➖", "Частичная продажа"),
+    CLOSED("🔴", "Позиция закрыта"),
+    COUPON("💰", "Купон"),
+    DIVIDEND("💰", "Дивиденды");
+
+    private final String icon;
+    private final String title;
+
+    ChangeKind(String icon, String title) {
+        this.icon = icon;
+        this.title = title;
+    }
+
+    public String getIcon() {
+        return icon;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+}
@@ -0,0 +1,122 @@
+package org.invest.bot.invest.core.modules.changes;
+
+import org.invest.bot.invest.core.objects.InstrumentObj;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Снимок позиций портфеля: хэш каждой позиции по FIGI, количеству и средней цене и общий хэш снимка.
+ * Одинаковые снимки отсекаются сравнением общих хэшей, иначе сравнение идет за O(n) по FIGI.
+ */
+public final class PortfolioSnapshot {
+    /** Рублевый остаток меняется от каждой операции и сделкой не является */
+    private static final String CASH_TICKER = "RUB000UTSTOM";
+
+    private final Map<String, Holding> positions;
+    private final Map<String, Integer> hashes;
+    private final long digest;
+
+    private PortfolioSnapshot(Collection<Holding> holdings) {
+        Map<String, Holding> positions = new HashMap<>();
+        Map<String, Integer> hashes = new HashMap<>();
+        long digest = 0;
+        for (Holding holding : holdings) {
+            int hash = holding.hash();
+            positions.put(holding.figi(), holding);
+            hashes.put(holding.figi(), hash);
+            // Сумма не зависит от порядка позиций в ответе брокера
+            digest += hash;
+        }
+        this.positions = Map.copyOf(positions);
+        this.hashes = Map.copyOf(hashes);
+        this.digest = digest;
+    }
+
+    public static PortfolioSnapshot of(List<InstrumentObj> instrumentObjs) {
+        List<Holding> holdings = new ArrayList<>();
+        for (InstrumentObj inst : instrumentObjs) {
+            if (CASH_TICKER.equals(inst.getTicker()) || inst.getQuantity().signum() == 0) {
+                continue;
+            }
+            BigDecimal averagePrice = inst.getAverageBuyPrice() == null || inst.getAverageBuyPrice().getValue() == null
+                    ? BigDecimal.ZERO : inst.getAverageBuyPrice().getValue();
+            holdings.add(new Holding(inst.getFigi(), inst.getTicker(), inst.getName(), inst.getQuantity(), averagePrice));
+        }
+        return new PortfolioSnapshot(holdings);
+    }
+
+    public boolean sameAs(PortfolioSnapshot other) {
+        return other != null && digest == other.digest && hashes.equals(other.hashes);
+    }
+
+    /**
+     * Изменения относительно предыдущего снимка. Позиции, у которых изменилась только средняя цена
+     * (например, после амортизации облигации), сделками не считаются.
+     */
+    public List<PositionChange> diff(PortfolioSnapshot previous, String accountId) {
+        List<PositionChange> changes = new ArrayList<>();
+        for (Map.Entry<String, Holding> entry : positions.entrySet()) {
+            String figi = entry.getKey();
+            Holding current = entry.getValue();
+            Holding before = previous.positions.get(figi);
+            if (before == null) {
+                changes.add(change(accountId, ChangeKind.OPENED, current, BigDecimal.ZERO, current.quantity()));
+            } else if (!hashes.get(figi).equals(previous.hashes.get(figi))) {
+                int direction = current.quantity().compareTo(before.quantity());
+                if (direction > 0) {
+                    changes.add(change(accountId, ChangeKind.INCREASED, current, before.quantity(), current.quantity()));
+                } else if (direction < 0) {
+                    changes.add(change(accountId, ChangeKind.DECREASED, current, before.quantity(), current.quantity()));
+                }
+            }
+        }
+        for (Map.Entry<String, Holding> entry : previous.positions.entrySet()) {
+            if (!positions.containsKey(entry.getKey())) {
+                changes.add(change(accountId, ChangeKind.CLOSED, entry.getValue(), entry.getValue().quantity(), BigDecimal.ZERO));
+            }
+        }
+        changes.sort(Comparator.comparing(PositionChange::kind).thenComparing(PositionChange::ticker));
+        return changes;
+    }
+
+    /**
+     * Позиция по FIGI из снимка или null.
+     */
+    Holding get(String figi) {
+        return positions.get(figi);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(positions.size());
+        for (Holding holding : positions.values()) {
+            out.writeUTF(holding.figi());
+            out.writeUTF(holding.ticker());
+            out.writeUTF(holding.name());
+            out.writeUTF(holding.quantity().toPlainString());
+            out.writeUTF(holding.averagePrice().toPlainString());
+        }
+    }
+
+    static PortfolioSnapshot readFrom(DataInputStream in) throws IOException {
+        List<Holding> holdings = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            holdings.add(new Holding(in.readUTF(), in.readUTF(), in.readUTF(),
+                    new BigDecimal(in.readUTF()), new BigDecimal(in.readUTF())));
+        }
+        return new PortfolioSnapshot(holdings);
+    }
+
+    private static PositionChange change(String accountId, ChangeKind kind, Holding holding, BigDecimal before, BigDecimal after) {
+        return new PositionChange(accountId, kind, holding.ticker(), holding.name(), before, after, null, null);
+    }
+
+    record Holding(String figi, String ticker, String name, BigDecimal quantity, BigDecimal averagePrice) {
+        int hash() {
+            return Objects.hash(figi, quantity.stripTrailingZeros(), averagePrice.stripTrailingZeros());
+        }
+    }
+}
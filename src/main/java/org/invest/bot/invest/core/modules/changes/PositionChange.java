@@ -0,0 +1,24 @@
+package org.invest.bot.invest.core.modules.changes;
+
+import java.math.BigDecimal;
+
+/**
+ * Изменение позиции между снимками или поступивший по ней доход.
+ * @param accountId Счет, на котором произошло изменение
+ * @param quantityBefore Количество в предыдущем снимке, для дохода - ноль
+ * @param amount Сумма купона или дивиденда, для сделок - null
+ */
+public record PositionChange(
+        String accountId,
+        ChangeKind kind,
+        String ticker,
+        String name,
+        BigDecimal quantityBefore,
+        BigDecimal quantityAfter,
+        BigDecimal amount,
+        String currency
+) {
+    public BigDecimal quantityDelta() {
+        return quantityAfter.subtract(quantityBefore);
+    }
+}
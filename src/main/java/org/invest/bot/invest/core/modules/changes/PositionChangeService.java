@@ -0,0 +1,171 @@
+package org.invest.bot.invest.core.modules.changes;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.core.modules.accounts.ConsolidatedPortfolioService;
+import org.invest.bot.invest.core.modules.accounts.PortfolioBook;
+import org.invest.bot.invest.core.modules.journal.JournalEntry;
+import org.invest.bot.invest.core.modules.journal.OperationCategory;
+import org.invest.bot.invest.core.modules.journal.OperationJournalService;
+import org.invest.bot.invest.core.modules.warmstart.WarmStartParticipant;
+import org.invest.bot.invest.core.modules.warmstart.WarmStartService;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Сравнивает последовательные снимки портфеля каждого счета и сообщает о сделках, купонах и дивидендах.
+ * Снимки ведутся по счетам, чтобы получатель мог показать пользователю только выбранные им счета.
+ * Доходы берутся из новых записей журнала операций, поэтому учитываются и проведенные задним числом.
+ * Если с прошлого опроса ничего не изменилось, получатель не вызывается.
+ * Последний снимок переживает перезапуск, поэтому сделки, сделанные пока бот не работал, тоже попадут в сводку.
+ */
+@Service
+@Slf4j
+public class PositionChangeService implements WarmStartParticipant {
+    /** Снимок раздела в старом формате (один сводный снимок) не читается, а начинается заново */
+    private static final int SNAPSHOT_FORMAT = 2;
+
+    private final ConsolidatedPortfolioService consolidatedPortfolioService;
+    private final List<PendingIncome> pendingIncome = new ArrayList<>();
+    private Consumer<List<PositionChange>> listener;
+    private Map<String, PortfolioSnapshot> lastSnapshots;
+
+    public PositionChangeService(ConsolidatedPortfolioService consolidatedPortfolioService,
+                                 OperationJournalService journalService,
+                                 WarmStartService warmStartService) {
+        this.consolidatedPortfolioService = consolidatedPortfolioService;
+        journalService.addListener(this::onAppend);
+        warmStartService.register(this);
+    }
+
+    /**
+     * Включает уведомления. Повторный вызов только заменяет получателя.
+     */
+    public synchronized void start(Consumer<List<PositionChange>> listener) {
+        this.listener = listener;
+    }
+
+    @Scheduled(cron = "${changes.cron:0 */10 7-23 * * *}")
+    public void poll() {
+        Consumer<List<PositionChange>> current;
+        synchronized (this) {
+            current = listener;
+        }
+        if (current == null) {
+            return;
+        }
+        try {
+            List<PositionChange> changes = check();
+            if (!changes.isEmpty()) {
+                current.accept(changes);
+            }
+        } catch (Exception e) {
+            log.error("Не удалось сравнить снимки портфеля: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Снимает портфель и сравнивает с предыдущим снимком. Первый вызов только запоминает снимок.
+     */
+    public List<PositionChange> check() {
+        Map<String, PortfolioSnapshot> snapshots = new LinkedHashMap<>();
+        for (PortfolioBook book : consolidatedPortfolioService.load().accounts()) {
+            snapshots.put(book.account().getId(), PortfolioSnapshot.of(book.instrumentObjs()));
+        }
+        // Синхронизация журнала присылает новые купоны и дивиденды в onAppend
+        consolidatedPortfolioService.syncJournals();
+        synchronized (this) {
+            Map<String, PortfolioSnapshot> previous = lastSnapshots;
+            lastSnapshots = snapshots;
+            if (previous == null) {
+                pendingIncome.clear();
+                log.info("Снимки счетов для отслеживания изменений сохранены.");
+                return List.of();
+            }
+            List<PositionChange> changes = new ArrayList<>();
+            for (Map.Entry<String, PortfolioSnapshot> entry : snapshots.entrySet()) {
+                PortfolioSnapshot before = previous.get(entry.getKey());
+                // Новый счет запоминается без уведомлений, как первый снимок
+                if (before != null && !entry.getValue().sameAs(before)) {
+                    changes.addAll(entry.getValue().diff(before, entry.getKey()));
+                }
+            }
+            for (PendingIncome income : pendingIncome) {
+                changes.add(income(income.accountId(), income.entry(), snapshots.get(income.accountId())));
+            }
+            pendingIncome.clear();
+            if (!changes.isEmpty()) {
+                log.info("Изменения портфеля: {}", changes.size());
+            }
+            return changes;
+        }
+    }
+
+    /**
+     * До первого снимка журнал догружает историю целиком, такие операции не уведомляются.
+     */
+    private synchronized void onAppend(String accountId, List<JournalEntry> added, int journalSize) {
+        if (lastSnapshots == null) {
+            return;
+        }
+        for (JournalEntry entry : added) {
+            OperationCategory category = OperationCategory.of(entry.type());
+            if (category == OperationCategory.COUPON || category == OperationCategory.DIVIDEND) {
+                pendingIncome.add(new PendingIncome(accountId, entry));
+            }
+        }
+    }
+
+    @Override
+    public String warmStartKey() {
+        return "position-changes";
+    }
+
+    @Override
+    public synchronized void writeWarmStart(DataOutputStream out) throws IOException {
+        out.writeByte(SNAPSHOT_FORMAT);
+        out.writeBoolean(lastSnapshots != null);
+        if (lastSnapshots != null) {
+            out.writeInt(lastSnapshots.size());
+            for (Map.Entry<String, PortfolioSnapshot> entry : lastSnapshots.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void readWarmStart(DataInputStream in) throws IOException {
+        if (in.readByte() != SNAPSHOT_FORMAT) {
+            log.info("Снимок изменений портфеля в старом формате пропущен.");
+            return;
+        }
+        if (in.readBoolean()) {
+            Map<String, PortfolioSnapshot> restored = new LinkedHashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                restored.put(in.readUTF(), PortfolioSnapshot.readFrom(in));
+            }
+            lastSnapshots = restored;
+        }
+    }
+
+    private static PositionChange income(String accountId, JournalEntry entry, PortfolioSnapshot snapshot) {
+        ChangeKind kind = OperationCategory.of(entry.type()) == OperationCategory.COUPON ? ChangeKind.COUPON : ChangeKind.DIVIDEND;
+        PortfolioSnapshot.Holding holding = snapshot == null ? null : snapshot.get(entry.figi());
+        String ticker = holding == null ? entry.figi() : holding.ticker();
+        String name = holding == null ? entry.name() : holding.name();
+        BigDecimal quantity = holding == null ? BigDecimal.ZERO : holding.quantity();
+        return new PositionChange(accountId, kind, ticker, name, BigDecimal.ZERO, quantity, entry.payment(), entry.currency());
+    }
+
+    private record PendingIncome(String accountId, JournalEntry entry) {}
+}
@@ -0,0 +1,12 @@
+package org.invest.bot.invest.core.modules.drift;
+
+import org.invest.bot.invest.core.modules.balanse.ConcentrationProblem;
+import ru.tinkoff.piapi.core.models.Portfolio;
+
+import java.util.Set;
+
+public record DriftAlert(
+        ConcentrationProblem concentrationProblem,
+        Portfolio portfolio,
+        Set<String> breaches
+) {}
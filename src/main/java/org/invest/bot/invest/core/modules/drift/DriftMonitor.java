@@ -0,0 +1,328 @@
+package org.invest.bot.invest.core.modules.drift;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.api.InvestApiCore;
+import org.invest.bot.invest.core.modules.accounts.ConsolidatedPortfolioService;
+import org.invest.bot.invest.core.modules.accounts.PortfolioBook;
+import org.invest.bot.invest.core.modules.balanse.AllocationAggregator;
+import org.invest.bot.invest.core.modules.balanse.BalanceService;
+import org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure;
+import org.invest.bot.invest.core.objects.InstrumentObj;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.LastPrice;
+import ru.tinkoff.piapi.contract.v1.Quotation;
+import ru.tinkoff.piapi.core.models.Portfolio;
+import ru.tinkoff.piapi.core.stream.MarketDataSubscriptionService;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static org.invest.bot.core.DataConvertUtility.quotationToBigDecimal;
+import static org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure.*;
+
+/**
+ * Внутридневной монитор отклонений портфеля от стратегии.
+ * Держит {@link AllocationAggregator} и обновляет его по стриму последних цен, поэтому тик не требует
+ * полного пересчета портфеля. Тик меняет общую стоимость, а с ней долю каждой позиции, поэтому превышения
+ * лимитов пересчитываются по всем инструментам с лимитом, а не только по тому, по которому пришла цена.
+ * Уведомляет только при изменении набора нарушений, с гистерезисом и паузой между уведомлениями.
+ * Изменение, отложенное из-за паузы, перепроверяется по таймеру в момент ее окончания.
+ * <p>
+ * Тики приходят в потоке стрима, поэтому под блокировкой монитора не выполняется ни одного сетевого вызова:
+ * получатель уведомлений вызывается в отдельном потоке, а пересинхронизация загружает портфель
+ * до блокировки и под ней только подменяет состояние.
+ */
+@Service
+@Slf4j
+public class DriftMonitor {
+    private static final String STREAM_ID = "drift-monitor";
+
+    private final InvestApiCore apiCore;
+    private final BalanceService balanceService;
+    private final ConsolidatedPortfolioService consolidatedPortfolioService;
+    private final Duration cooldown;
+    private final BigDecimal hysteresis;
+
+    private volatile AllocationAggregator aggregator;
+    private volatile Map<String, BigDecimal> priceScales = Map.of();
+    private List<String> limitedFigis = List.of();
+    private Portfolio portfolio;
+    private MarketDataSubscriptionService stream;
+    private List<String> subscribedFigis = List.of();
+    private Consumer<DriftAlert> listener;
+    private final List<BiConsumer<String, BigDecimal>> priceListeners = new CopyOnWriteArrayList<>();
+
+    private final ScheduledExecutorService notifier = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "drift-notify");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** Упорядочивает пересинхронизации и подписку на стрим, не блокируя обработку тиков */
+    private final Object resyncLock = new Object();
+
+    private final Set<String> activeBreaches = new HashSet<>();
+    private Set<String> lastNotifiedBreaches = Set.of();
+    private Instant lastNotifiedAt = Instant.EPOCH;
+    private ScheduledFuture<?> pendingRecheck;
+
+    public DriftMonitor(InvestApiCore apiCore,
+                        BalanceService balanceService,
+                        ConsolidatedPortfolioService consolidatedPortfolioService,
+                        @Value("${drift.cooldown-minutes:30}") long cooldownMinutes,
+                        @Value("${drift.hysteresis:0.5}") BigDecimal hysteresis) {
+        this.apiCore = apiCore;
+        this.balanceService = balanceService;
+        this.consolidatedPortfolioService = consolidatedPortfolioService;
+        this.cooldown = Duration.ofMinutes(cooldownMinutes);
+        this.hysteresis = hysteresis;
+    }
+
+    /**
+     * Запускает мониторинг. Повторный вызов только заменяет получателя уведомлений.
+     */
+    public void start(Consumer<DriftAlert> listener) {
+        boolean firstStart;
+        synchronized (this) {
+            firstStart = this.listener == null;
+            this.listener = listener;
+        }
+        if (firstStart) {
+            resync();
+        }
+    }
+
+    /**
+     * Перечитывает портфель (количества, новые позиции) и переподписывается на цены.
+     * Между пересинхронизациями портфель ведется только по стриму цен.
+     */
+    @Scheduled(cron = "${drift.resync-cron:0 */15 10-18 * * MON-FRI}")
+    public void resync() {
+        synchronized (this) {
+            if (listener == null) {
+                return;
+            }
+        }
+        synchronized (resyncLock) {
+            try {
+                PortfolioBook book = consolidatedPortfolioService.load().total();
+                Portfolio freshPortfolio = book.portfolio();
+                List<InstrumentObj> instrumentObjs = book.instrumentObjs();
+                AllocationAggregator freshAggregator = balanceService.createAggregator(freshPortfolio, instrumentObjs);
+                Map<String, BigDecimal> freshScales = calculatePriceScales(instrumentObjs);
+                Runnable notification;
+                synchronized (this) {
+                    this.portfolio = freshPortfolio;
+                    this.aggregator = freshAggregator;
+                    this.priceScales = freshScales;
+                    this.limitedFigis = freshAggregator.getFigis().stream().filter(this::hasLimit).toList();
+                    activeBreaches.clear();
+                    notification = evaluate();
+                }
+                resubscribe(new ArrayList<>(freshScales.keySet()));
+                dispatch(notification);
+            } catch (Exception e) {
+                log.error("Не удалось пересинхронизировать монитор отклонений: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Подписка на цены стрима, уже приведенные к цене портфеля (облигации - в валюте, а не в процентах).
+     * Позволяет другим модулям считать внутридневные показатели без отдельной подписки.
+     */
+    public void addPriceListener(BiConsumer<String, BigDecimal> priceListener) {
+        priceListeners.add(priceListener);
+    }
+
+    @PreDestroy
+    public void stop() {
+        notifier.shutdownNow();
+        synchronized (resyncLock) {
+            if (stream != null && !subscribedFigis.isEmpty()) {
+                stream.unsubscribeLastPrices(subscribedFigis);
+            }
+        }
+    }
+
+    private void onLastPrice(LastPrice lastPrice) {
+        AllocationAggregator current = aggregator;
+        BigDecimal scale = priceScales.get(lastPrice.getFigi());
+        if (current == null || scale == null) {
+            return;
+        }
+        BigDecimal price = quotationToBigDecimal(lastPrice.getPrice()).multiply(scale);
+        for (BiConsumer<String, BigDecimal> priceListener : priceListeners) {
+            try {
+                priceListener.accept(lastPrice.getFigi(), price);
+            } catch (Exception e) {
+                log.warn("Ошибка обработчика цены {}: {}", lastPrice.getFigi(), e.getMessage());
+            }
+        }
+        if (current.updatePrice(lastPrice.getFigi(), price)) {
+            Runnable notification = null;
+            synchronized (this) {
+                if (current == aggregator) {
+                    notification = evaluate();
+                }
+            }
+            dispatch(notification);
+        }
+    }
+
+    /**
+     * Проверяет набор нарушений. Вызывается под блокировкой монитора.
+     * @return Отправка уведомления, которую нужно выполнить уже вне блокировки, или null
+     */
+    private Runnable evaluate() {
+        for (String figi : limitedFigis) {
+            refreshInstrumentBreach(figi);
+        }
+        for (PortfolioInstrumentStructure category : getInsValues()) {
+            // Ядро не попадает в отчет об отклонениях, поэтому и здесь не учитывается
+            if (category == TARGET_STOCK_CORE) {
+                continue;
+            }
+            BigDecimal deviation = aggregator.getCategoryPercent(category).subtract(category.value).abs();
+            updateBreach(category.name(), deviation, ALLOCATION_TOLERANCE.value);
+        }
+        Set<String> breaches = new TreeSet<>();
+        for (String key : activeBreaches) {
+            int separator = key.indexOf(':');
+            // Превышение по инструменту попадает в отчет, только если отклонилась вся категория
+            if (separator < 0 || activeBreaches.contains(key.substring(0, separator))) {
+                breaches.add(key);
+            }
+        }
+        if (breaches.equals(lastNotifiedBreaches)) {
+            return null;
+        }
+        Instant now = Instant.now();
+        Duration remaining = cooldown.minus(Duration.between(lastNotifiedAt, now));
+        if (remaining.isPositive()) {
+            log.debug("Набор отклонений изменился, но уведомление отложено до конца паузы: {}", breaches);
+            scheduleRecheck(remaining);
+            return null;
+        }
+        log.info("Набор отклонений изменился: {} -> {}", lastNotifiedBreaches, breaches);
+        lastNotifiedBreaches = Set.copyOf(breaches);
+        lastNotifiedAt = now;
+        DriftAlert alert = new DriftAlert(aggregator.snapshot(), portfolio, lastNotifiedBreaches);
+        Consumer<DriftAlert> current = listener;
+        return () -> current.accept(alert);
+    }
+
+    /**
+     * Без перепроверки отложенное изменение дождалось бы только следующего тика, а тиков может не быть
+     * до конца сессии. Вызывается под блокировкой монитора.
+     */
+    private void scheduleRecheck(Duration delay) {
+        if (pendingRecheck != null) {
+            return;
+        }
+        AllocationAggregator current = aggregator;
+        try {
+            pendingRecheck = notifier.schedule(() -> {
+                Runnable notification = null;
+                synchronized (this) {
+                    pendingRecheck = null;
+                    if (current == aggregator) {
+                        notification = evaluate();
+                    }
+                }
+                dispatch(notification);
+            }, delay.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.warn("Перепроверка отклонений не запланирована: монитор остановлен.");
+        }
+    }
+
+    /**
+     * Получатель строит план ребалансировки со стаканами и журналом, поэтому вызывается не в потоке стрима.
+     * Один поток сохраняет порядок уведомлений.
+     */
+    private void dispatch(Runnable notification) {
+        if (notification == null) {
+            return;
+        }
+        try {
+            notifier.execute(() -> {
+                try {
+                    notification.run();
+                } catch (Exception e) {
+                    log.error("Ошибка при отправке уведомления об отклонениях: {}", e.getMessage(), e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Уведомление об отклонениях пропущено: монитор остановлен.");
+        }
+    }
+
+    private boolean hasLimit(String figi) {
+        PortfolioInstrumentStructure category = aggregator.getCategory(figi);
+        return category != null && category != TARGET_STOCK_CORE && getLimitByTarget(category) != null;
+    }
+
+    private void refreshInstrumentBreach(String figi) {
+        PortfolioInstrumentStructure category = aggregator.getCategory(figi);
+        updateBreach(category.name() + ":" + figi, aggregator.getPositionPercent(figi), getLimitByTarget(category).value);
+    }
+
+    /**
+     * Гистерезис: нарушение возникает при выходе за порог, а снимается только
+     * после возврата внутрь порога на величину {@code hysteresis}.
+     */
+    private void updateBreach(String key, BigDecimal value, BigDecimal threshold) {
+        if (activeBreaches.contains(key)) {
+            if (value.compareTo(threshold.subtract(hysteresis)) <= 0) {
+                activeBreaches.remove(key);
+            }
+        } else if (value.compareTo(threshold) > 0) {
+            activeBreaches.add(key);
+        }
+    }
+
+    /**
+     * Стрим отдает цену облигаций в процентах от номинала, а портфель - в валюте.
+     * Коэффициент, посчитанный по последним ценам, приводит цену стрима к цене портфеля.
+     */
+    private Map<String, BigDecimal> calculatePriceScales(List<InstrumentObj> instrumentObjs) {
+        List<String> figis = instrumentObjs.stream().map(InstrumentObj::getFigi).toList();
+        Map<String, Quotation> lastPrices = apiCore.getLastPrices(figis);
+        Map<String, BigDecimal> scales = new HashMap<>();
+        for (InstrumentObj instrumentObj : instrumentObjs) {
+            BigDecimal lastPrice = quotationToBigDecimal(lastPrices.get(instrumentObj.getFigi()));
+            if (lastPrice.signum() == 0) {
+                continue;
+            }
+            scales.put(instrumentObj.getFigi(),
+                    instrumentObj.getCurrentPrice().getValue().divide(lastPrice, 10, RoundingMode.HALF_UP));
+        }
+        return scales;
+    }
+
+    private void resubscribe(List<String> figis) {
+        if (stream != null && !subscribedFigis.isEmpty()) {
+            stream.unsubscribeLastPrices(subscribedFigis);
+        }
+        subscribedFigis = figis;
+        if (figis.isEmpty()) {
+            return;
+        }
+        stream = apiCore.subscribeLastPrices(STREAM_ID, figis, this::onLastPrice);
+        log.info("Монитор отклонений подписан на цены {} инструментов.", figis.size());
+    }
+}
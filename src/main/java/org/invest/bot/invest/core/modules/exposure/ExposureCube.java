@@ -0,0 +1,143 @@
+package org.invest.bot.invest.core.modules.exposure;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static org.invest.bot.core.DataConvertUtility.getPercentCount;
+
+/**
+ * Куб стоимости позиций по измерениям {@link ExposureDimension}.
+ * Все 16 кубоидов (любой набор измерений) считаются при построении: базовый кубоид собирается
+ * по позициям, каждый следующий - сверткой родителя с одним лишним измерением.
+ * Поэтому любой срез возвращается без повторного прохода по позициям.
+ */
+public class ExposureCube {
+    private static final ExposureDimension[] DIMENSIONS = ExposureDimension.values();
+    private static final int FULL_MASK = (1 << DIMENSIONS.length) - 1;
+
+    private final BigDecimal total;
+    private final List<Map<List<String>, BigDecimal>> cuboids;
+    private final Map<String, BigDecimal> issuerCredit;
+
+    /**
+     * @param cells Стоимость в разрезе всех измерений: ключ - значения в порядке {@link ExposureDimension#values()}
+     * @param issuerCredit Стоимость акций и облигаций по эмитентам, без фондов и валюты
+     */
+    public ExposureCube(Map<List<String>, BigDecimal> cells, Map<String, BigDecimal> issuerCredit, BigDecimal total) {
+        this.total = total;
+        this.issuerCredit = Map.copyOf(issuerCredit);
+        List<Map<List<String>, BigDecimal>> built = new ArrayList<>(Collections.nCopies(FULL_MASK + 1, null));
+        built.set(FULL_MASK, Map.copyOf(cells));
+        Integer[] masks = new Integer[FULL_MASK];
+        for (int mask = 0; mask < FULL_MASK; mask++) {
+            masks[mask] = mask;
+        }
+        // Сначала кубоиды с большим числом измерений: родитель всегда готов раньше потомка
+        Arrays.sort(masks, Comparator.comparingInt(Integer::bitCount).reversed());
+        for (int mask : masks) {
+            int missing = Integer.lowestOneBit(~mask & FULL_MASK);
+            built.set(mask, rollUp(built.get(mask | missing), mask | missing, mask));
+        }
+        this.cuboids = List.copyOf(built);
+    }
+
+    public BigDecimal getTotal() {
+        return total;
+    }
+
+    /**
+     * Стоимость в разрезе выбранных измерений.
+     * @return Ключ - значения измерений в порядке {@link ExposureDimension#values()}
+     */
+    public Map<List<String>, BigDecimal> rollup(Set<ExposureDimension> groupBy) {
+        return cuboids.get(mask(groupBy));
+    }
+
+    /**
+     * Срез: фиксирует значения части измерений и группирует по остальным выбранным.
+     * Например, {@code slice(Map.of(CURRENCY, "usd"), Set.of(SECTOR))} - долларовая стоимость по секторам.
+     */
+    public Map<List<String>, BigDecimal> slice(Map<ExposureDimension, String> filter, Set<ExposureDimension> groupBy) {
+        EnumSet<ExposureDimension> dimensions = EnumSet.noneOf(ExposureDimension.class);
+        dimensions.addAll(filter.keySet());
+        dimensions.addAll(groupBy);
+        List<ExposureDimension> order = new ArrayList<>(dimensions);
+        Map<List<String>, BigDecimal> result = new LinkedHashMap<>();
+        for (Map.Entry<List<String>, BigDecimal> cell : rollup(dimensions).entrySet()) {
+            boolean matches = true;
+            List<String> key = new ArrayList<>();
+            for (int i = 0; i < order.size(); i++) {
+                ExposureDimension dimension = order.get(i);
+                String value = cell.getKey().get(i);
+                if (filter.containsKey(dimension) && !filter.get(dimension).equals(value)) {
+                    matches = false;
+                    break;
+                }
+                if (groupBy.contains(dimension)) {
+                    key.add(value);
+                }
+            }
+            if (matches) {
+                result.merge(key, cell.getValue(), BigDecimal::add);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Доли значений одного измерения в процентах от стоимости портфеля, по убыванию.
+     */
+    public List<Map.Entry<String, BigDecimal>> shares(ExposureDimension dimension) {
+        return rollup(EnumSet.of(dimension)).entrySet().stream()
+                .map(entry -> Map.entry(entry.getKey().get(0), percent(entry.getValue())))
+                .sorted(Map.Entry.<String, BigDecimal>comparingByValue().reversed())
+                .toList();
+    }
+
+    /**
+     * Эмитенты, чьи акции и облигации вместе превышают лимит.
+     * @param limit Лимит в процентах от стоимости портфеля
+     */
+    public List<Map.Entry<String, BigDecimal>> issuerBreaches(BigDecimal limit) {
+        return issuerCredit.entrySet().stream()
+                .map(entry -> Map.entry(entry.getKey(), percent(entry.getValue())))
+                .filter(entry -> entry.getValue().compareTo(limit) > 0)
+                .sorted(Map.Entry.<String, BigDecimal>comparingByValue().reversed())
+                .toList();
+    }
+
+    private BigDecimal percent(BigDecimal value) {
+        return total.signum() == 0 ? BigDecimal.ZERO : getPercentCount(total, value);
+    }
+
+    private static Map<List<String>, BigDecimal> rollUp(Map<List<String>, BigDecimal> parent, int parentMask, int mask) {
+        // Позиции измерений потомка внутри ключа родителя
+        List<Integer> positions = new ArrayList<>();
+        int position = 0;
+        for (int bit = 0; bit < DIMENSIONS.length; bit++) {
+            if ((parentMask & (1 << bit)) != 0) {
+                if ((mask & (1 << bit)) != 0) {
+                    positions.add(position);
+                }
+                position++;
+            }
+        }
+        Map<List<String>, BigDecimal> result = new HashMap<>();
+        for (Map.Entry<List<String>, BigDecimal> cell : parent.entrySet()) {
+            List<String> key = new ArrayList<>(positions.size());
+            for (int index : positions) {
+                key.add(cell.getKey().get(index));
+            }
+            result.merge(List.copyOf(key), cell.getValue(), BigDecimal::add);
+        }
+        return Map.copyOf(result);
+    }
+
+    private static int mask(Set<ExposureDimension> dimensions) {
+        int mask = 0;
+        for (ExposureDimension dimension : dimensions) {
+            mask |= 1 << dimension.ordinal();
+        }
+        return mask;
+    }
+}
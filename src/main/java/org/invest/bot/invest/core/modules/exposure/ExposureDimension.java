@@ -0,0 +1,30 @@
+package org.invest.bot.invest.core.modules.exposure;
+
+/**
+ * Измерения куба экспозиций. Порядковый номер задает бит измерения в маске кубоида.
+ */
+public enum ExposureDimension {
+    SECTOR("Сектор"),
+    ISSUER("Эмитент"),
+    CURRENCY("Валюта"),
+    COUNTRY("Страна риска");
+
+    private final String title;
+
+    ExposureDimension(String title) {
+        this.title = title;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String valueOf(InstrumentMetadata metadata) {
+        return switch (this) {
+            case SECTOR -> metadata.sector();
+            case ISSUER -> metadata.issuer();
+            case CURRENCY -> metadata.currency();
+            case COUNTRY -> metadata.country();
+        };
+    }
+}
@@ -0,0 +1,157 @@
+package org.invest.bot.invest.core.modules.exposure;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.api.InvestApiCore;
+import org.invest.bot.invest.core.modules.balanse.ActualDistribution;
+import org.invest.bot.invest.core.modules.warmstart.WarmStartParticipant;
+import org.invest.bot.invest.core.modules.warmstart.WarmStartService;
+import org.invest.bot.invest.core.objects.InstrumentObj;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.AssetFull;
+import ru.tinkoff.piapi.contract.v1.Bond;
+import ru.tinkoff.piapi.contract.v1.Currency;
+import ru.tinkoff.piapi.contract.v1.Etf;
+import ru.tinkoff.piapi.contract.v1.Instrument;
+import ru.tinkoff.piapi.contract.v1.Share;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Строит куб экспозиций портфеля по сектору, эмитенту, валюте и стране риска.
+ * Справочные данные инструментов не меняются, поэтому кэшируются по FIGI и переживают перезапуск.
+ */
+@Service
+@Slf4j
+public class ExposureService implements WarmStartParticipant {
+    private static final String UNKNOWN = "—";
+
+    private final InvestApiCore apiCore;
+    private final Map<String, InstrumentMetadata> metadataCache = new ConcurrentHashMap<>();
+
+    public ExposureService(InvestApiCore apiCore, WarmStartService warmStartService) {
+        this.apiCore = apiCore;
+        warmStartService.register(this);
+    }
+
+    public ExposureCube build(List<InstrumentObj> instrumentObjs) {
+        Map<List<String>, BigDecimal> cells = new HashMap<>();
+        Map<String, BigDecimal> issuerCredit = new HashMap<>();
+        BigDecimal total = BigDecimal.ZERO;
+        for (InstrumentObj inst : instrumentObjs) {
+            InstrumentMetadata metadata = metadataCache.computeIfAbsent(inst.getFigi(), figi -> normalize(loadMetadata(inst)));
+            BigDecimal value = ActualDistribution.positionValue(inst);
+            List<String> key = new ArrayList<>();
+            for (ExposureDimension dimension : ExposureDimension.values()) {
+                key.add(dimension.valueOf(metadata));
+            }
+            cells.merge(List.copyOf(key), value, BigDecimal::add);
+            if ("share".equals(inst.getType()) || "bond".equals(inst.getType())) {
+                issuerCredit.merge(metadata.issuer(), value, BigDecimal::add);
+            }
+            total = total.add(value);
+        }
+        return new ExposureCube(cells, issuerCredit, total);
+    }
+
+    private InstrumentMetadata loadMetadata(InstrumentObj inst) {
+        String figi = inst.getFigi();
+        switch (inst.getType()) {
+            case "share" -> {
+                Share share = apiCore.getShare(figi);
+                if (share != null) {
+                    return new InstrumentMetadata(share.getSector(), issuer(share.getAssetUid(), inst),
+                            share.getCurrency(), share.getCountryOfRiskName());
+                }
+            }
+            case "bond" -> {
+                Bond bond = apiCore.getBond(figi);
+                if (bond != null) {
+                    return new InstrumentMetadata(bond.getSector(), issuer(bond.getAssetUid(), inst),
+                            bond.getCurrency(), bond.getCountryOfRiskName());
+                }
+            }
+            case "etf" -> {
+                Etf etf = apiCore.getEtf(figi);
+                if (etf != null) {
+                    return new InstrumentMetadata(etf.getSector(), issuer(etf.getAssetUid(), inst),
+                            etf.getCurrency(), etf.getCountryOfRiskName());
+                }
+            }
+            case "currency" -> {
+                Currency currency = apiCore.getCurrency(figi);
+                if (currency != null) {
+                    // Для валюты важна она сама, а не валюта расчетов (рубли)
+                    return new InstrumentMetadata("currency", inst.getName(),
+                            currency.getIsoCurrencyName(), currency.getCountryOfRiskName());
+                }
+            }
+            default -> {
+            }
+        }
+        Instrument instrument = apiCore.getInstrumentByFigi(figi);
+        if (instrument == null) {
+            log.warn("Нет справочных данных для {}, экспозиция будет учтена как неизвестная.", inst.getTicker());
+            return new InstrumentMetadata(UNKNOWN, inst.getName(), UNKNOWN, UNKNOWN);
+        }
+        return new InstrumentMetadata(UNKNOWN, inst.getName(), instrument.getCurrency(), instrument.getCountryOfRiskName());
+    }
+
+    private static InstrumentMetadata normalize(InstrumentMetadata metadata) {
+        return new InstrumentMetadata(orUnknown(metadata.sector()), orUnknown(metadata.issuer()),
+                orUnknown(metadata.currency()).toLowerCase(), orUnknown(metadata.country()));
+    }
+
+    private static String orUnknown(String value) {
+        return value == null || value.isBlank() ? UNKNOWN : value;
+    }
+
+    /**
+     * Эмитент определяется по бренду актива. Если бренда нет, эмитентом считается сам инструмент.
+     */
+    private String issuer(String assetUid, InstrumentObj inst) {
+        if (assetUid == null || assetUid.isEmpty()) {
+            return inst.getName();
+        }
+        AssetFull asset = apiCore.getAsset(assetUid);
+        if (asset == null || !asset.hasBrand() || asset.getBrand().getName().isEmpty()) {
+            return inst.getName();
+        }
+        return asset.getBrand().getName();
+    }
+
+    @Override
+    public String warmStartKey() {
+        return "exposure";
+    }
+
+    @Override
+    public void writeWarmStart(DataOutputStream out) throws IOException {
+        Map<String, InstrumentMetadata> snapshot = Map.copyOf(metadataCache);
+        out.writeInt(snapshot.size());
+        for (Map.Entry<String, InstrumentMetadata> entry : snapshot.entrySet()) {
+            InstrumentMetadata metadata = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeUTF(metadata.sector());
+            out.writeUTF(metadata.issuer());
+            out.writeUTF(metadata.currency());
+            out.writeUTF(metadata.country());
+        }
+    }
+
+    @Override
+    public void readWarmStart(DataInputStream in) throws IOException {
+        Map<String, InstrumentMetadata> restored = new HashMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            restored.put(in.readUTF(), new InstrumentMetadata(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF()));
+        }
+        metadataCache.putAll(restored);
+    }
+}
@@ -0,0 +1,12 @@
+package org.invest.bot.invest.core.modules.exposure;
+
+/**
+ * Справочные данные инструмента для куба экспозиций.
+ * @param issuer Бренд эмитента: общий для его акций и облигаций
+ */
+public record InstrumentMetadata(
+        String sector,
+        String issuer,
+        String currency,
+        String country
+) {}
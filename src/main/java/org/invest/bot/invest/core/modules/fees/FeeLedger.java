@@ -0,0 +1,68 @@
+package org.invest.bot.invest.core.modules.fees;
+
+import org.invest.bot.invest.core.modules.journal.OperationCategory;
+
+import java.math.BigDecimal;
+import java.time.YearMonth;
+import java.util.*;
+
+/**
+ * Накопленные расходы и доходы счета в рублях по месяцам, инструментам и типам операций.
+ * Размер зависит от числа месяцев и инструментов, а не от длины истории операций.
+ */
+class FeeLedger {
+    static final Set<OperationCategory> TRACKED = EnumSet.of(OperationCategory.COMMISSION, OperationCategory.SERVICE_FEE,
+            OperationCategory.TAX, OperationCategory.WITHHOLDING_TAX, OperationCategory.COUPON, OperationCategory.DIVIDEND);
+
+    private final EnumMap<OperationCategory, BigDecimal> totals = new EnumMap<>(OperationCategory.class);
+    private final NavigableMap<YearMonth, EnumMap<OperationCategory, BigDecimal>> byMonth = new TreeMap<>();
+    private final Map<String, EnumMap<OperationCategory, BigDecimal>> byInstrument = new HashMap<>();
+    private final Map<String, BigDecimal> byType = new TreeMap<>();
+    /** Размер журнала, до которого операции уже учтены */
+    private int processed;
+
+    void add(OperationCategory category, String type, String figi, YearMonth month, BigDecimal amountRub) {
+        totals.merge(category, amountRub, BigDecimal::add);
+        byMonth.computeIfAbsent(month, key -> new EnumMap<>(OperationCategory.class)).merge(category, amountRub, BigDecimal::add);
+        if (figi != null && !figi.isEmpty()) {
+            byInstrument.computeIfAbsent(figi, key -> new EnumMap<>(OperationCategory.class)).merge(category, amountRub, BigDecimal::add);
+        }
+        byType.merge(type, amountRub, BigDecimal::add);
+    }
+
+    int getProcessed() {
+        return processed;
+    }
+
+    void setProcessed(int processed) {
+        this.processed = processed;
+    }
+
+    /**
+     * Добавляет итоги счета к сводным.
+     */
+    void mergeInto(FeeLedger target) {
+        totals.forEach((category, amount) -> target.totals.merge(category, amount, BigDecimal::add));
+        byMonth.forEach((month, values) -> values.forEach((category, amount) -> target.byMonth
+                .computeIfAbsent(month, key -> new EnumMap<>(OperationCategory.class)).merge(category, amount, BigDecimal::add)));
+        byInstrument.forEach((figi, values) -> values.forEach((category, amount) -> target.byInstrument
+                .computeIfAbsent(figi, key -> new EnumMap<>(OperationCategory.class)).merge(category, amount, BigDecimal::add)));
+        byType.forEach((type, amount) -> target.byType.merge(type, amount, BigDecimal::add));
+    }
+
+    EnumMap<OperationCategory, BigDecimal> getTotals() {
+        return totals;
+    }
+
+    NavigableMap<YearMonth, EnumMap<OperationCategory, BigDecimal>> getByMonth() {
+        return byMonth;
+    }
+
+    Map<String, EnumMap<OperationCategory, BigDecimal>> getByInstrument() {
+        return byInstrument;
+    }
+
+    Map<String, BigDecimal> getByType() {
+        return byType;
+    }
+}
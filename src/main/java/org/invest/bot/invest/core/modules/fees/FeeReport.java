@@ -0,0 +1,40 @@
+package org.invest.bot.invest.core.modules.fees;
+
+import org.invest.bot.invest.core.modules.journal.OperationCategory;
+
+import java.math.BigDecimal;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Сводка расходов и доходов по всей истории операций. Суммы в рублях со знаком брокера:
+ * списания отрицательные, начисления положительные.
+ * @param byInstrument Инструменты по убыванию суммы расходов: тикер и итоги по категориям
+ * @param byType Итоги по исходному типу операции {@code OperationType}
+ */
+public record FeeReport(
+        Map<OperationCategory, BigDecimal> totals,
+        Map<YearMonth, Map<OperationCategory, BigDecimal>> byMonth,
+        List<Map.Entry<String, Map<OperationCategory, BigDecimal>>> byInstrument,
+        Map<String, BigDecimal> byType
+) {
+    public BigDecimal total(OperationCategory category) {
+        return totals.getOrDefault(category, BigDecimal.ZERO);
+    }
+
+    /**
+     * Расходы: комиссии, обслуживание и налоги.
+     */
+    public BigDecimal costs() {
+        return total(OperationCategory.COMMISSION).add(total(OperationCategory.SERVICE_FEE))
+                .add(total(OperationCategory.TAX)).add(total(OperationCategory.WITHHOLDING_TAX));
+    }
+
+    /**
+     * Купоны и дивиденды до удержания налога.
+     */
+    public BigDecimal income() {
+        return total(OperationCategory.COUPON).add(total(OperationCategory.DIVIDEND));
+    }
+}
@@ -0,0 +1,151 @@
+package org.invest.bot.invest.core.modules.fees;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.api.InvestApiCore;
+import org.invest.bot.invest.core.modules.accounts.ConsolidatedPortfolioService;
+import org.invest.bot.invest.core.modules.fx.FxRateService;
+import org.invest.bot.invest.core.modules.journal.JournalEntry;
+import org.invest.bot.invest.core.modules.journal.OperationCategory;
+import org.invest.bot.invest.core.modules.journal.OperationJournalService;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.Account;
+import ru.tinkoff.piapi.contract.v1.Instrument;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Комиссии, налоги и доходы по всей истории операций.
+ * Итоги счета строятся одним потоковым проходом по журналу, а дальше обновляются
+ * только новыми операциями из уведомлений журнала.
+ */
+@Service
+@Slf4j
+public class FeeService {
+    private final OperationJournalService journalService;
+    private final ConsolidatedPortfolioService consolidatedPortfolioService;
+    private final FxRateService fxRateService;
+    private final InvestApiCore apiCore;
+    private final Map<String, FeeLedger> ledgers = new HashMap<>();
+    private final Map<String, NavigableMap<LocalDate, Double>> fxHistory = new ConcurrentHashMap<>();
+    private final Map<String, String> tickers = new ConcurrentHashMap<>();
+
+    public FeeService(OperationJournalService journalService,
+                      ConsolidatedPortfolioService consolidatedPortfolioService,
+                      FxRateService fxRateService,
+                      InvestApiCore apiCore) {
+        this.journalService = journalService;
+        this.consolidatedPortfolioService = consolidatedPortfolioService;
+        this.fxRateService = fxRateService;
+        this.apiCore = apiCore;
+        journalService.addListener(this::onAppend);
+    }
+
+    /**
+     * Сводка по всем открытым счетам.
+     * @param topInstruments Сколько инструментов с наибольшими расходами включить
+     */
+    public FeeReport report(int topInstruments) {
+        return report(topInstruments, Set.of());
+    }
+
+    /**
+     * Сводка по выбранным счетам.
+     * @param accountIds Выбранные счета, пустой набор - все открытые счета
+     */
+    public FeeReport report(int topInstruments, Set<String> accountIds) {
+        List<Account> accounts = consolidatedPortfolioService.syncJournals(accountIds);
+        FeeLedger total = new FeeLedger();
+        synchronized (this) {
+            for (Account account : accounts) {
+                ledger(account.getId()).mergeInto(total);
+            }
+        }
+        Map<YearMonth, Map<OperationCategory, BigDecimal>> byMonth = new LinkedHashMap<>();
+        total.getByMonth().forEach((month, values) -> byMonth.put(month, Map.copyOf(values)));
+        List<Map.Entry<String, Map<OperationCategory, BigDecimal>>> byInstrument = total.getByInstrument().entrySet().stream()
+                .sorted(Comparator.comparing(entry -> costs(entry.getValue())))
+                .limit(topInstruments)
+                .map(entry -> Map.entry(ticker(entry.getKey()), Map.copyOf(entry.getValue())))
+                .toList();
+        return new FeeReport(Map.copyOf(total.getTotals()), byMonth, byInstrument, Map.copyOf(total.getByType()));
+    }
+
+    /**
+     * Новые операции применяются, только если продолжают уже учтенную историю. При разрыве
+     * (уведомления пришли не по порядку) итоги счета будут пересобраны при следующем запросе.
+     */
+    private synchronized void onAppend(String accountId, List<JournalEntry> added, int journalSize) {
+        FeeLedger ledger = ledgers.get(accountId);
+        if (ledger == null || journalSize <= ledger.getProcessed()) {
+            return;
+        }
+        if (journalSize - added.size() != ledger.getProcessed()) {
+            ledgers.remove(accountId);
+            return;
+        }
+        added.forEach(entry -> apply(ledger, entry));
+        ledger.setProcessed(journalSize);
+    }
+
+    private FeeLedger ledger(String accountId) {
+        FeeLedger ledger = ledgers.get(accountId);
+        if (ledger == null) {
+            long started = System.currentTimeMillis();
+            FeeLedger built = new FeeLedger();
+            built.setProcessed(journalService.forEach(accountId, entry -> apply(built, entry)));
+            ledgers.put(accountId, built);
+            log.info("Итоги комиссий счета {} построены по {} операциям за {} мс.", accountId, built.getProcessed(),
+                    System.currentTimeMillis() - started);
+            ledger = built;
+        }
+        return ledger;
+    }
+
+    private void apply(FeeLedger ledger, JournalEntry entry) {
+        OperationCategory category = OperationCategory.of(entry.type());
+        if (!FeeLedger.TRACKED.contains(category)) {
+            return;
+        }
+        LocalDate date = entry.date().atZone(ZoneOffset.UTC).toLocalDate();
+        BigDecimal amount = entry.payment().multiply(BigDecimal.valueOf(rate(entry.currency(), date)));
+        ledger.add(category, entry.type(), entry.figi(), YearMonth.from(date), amount);
+    }
+
+    /**
+     * Курс на дату операции. История курсов загружается один раз на валюту.
+     */
+    private double rate(String currency, LocalDate date) {
+        if (currency == null || currency.isEmpty() || "rub".equalsIgnoreCase(currency)) {
+            return 1;
+        }
+        NavigableMap<LocalDate, Double> history = fxHistory.computeIfAbsent(currency.toLowerCase(),
+                key -> fxRateService.getHistory(key, LocalDate.of(2006, 1, 1)));
+        if (history.isEmpty()) {
+            return 1;
+        }
+        Map.Entry<LocalDate, Double> close = history.floorEntry(date);
+        return close != null ? close.getValue() : history.firstEntry().getValue();
+    }
+
+    private String ticker(String figi) {
+        return tickers.computeIfAbsent(figi, key -> {
+            Instrument instrument = apiCore.getInstrumentByFigi(key);
+            return instrument == null ? key : instrument.getTicker();
+        });
+    }
+
+    private static BigDecimal costs(Map<OperationCategory, BigDecimal> values) {
+        BigDecimal sum = BigDecimal.ZERO;
+        for (Map.Entry<OperationCategory, BigDecimal> value : values.entrySet()) {
+            if (value.getKey() != OperationCategory.COUPON && value.getKey() != OperationCategory.DIVIDEND) {
+                sum = sum.add(value.getValue());
+            }
+        }
+        return sum;
+    }
+}
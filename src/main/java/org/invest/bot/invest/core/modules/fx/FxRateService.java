@@ -0,0 +1,174 @@
+package org.invest.bot.invest.core.modules.fx;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.api.InvestApiCore;
+import org.invest.bot.invest.core.modules.history.HistoryService;
+import org.invest.bot.invest.core.objects.InstrumentObj;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.Currency;
+import ru.tinkoff.piapi.contract.v1.Quotation;
+import ru.tinkoff.piapi.core.models.Portfolio;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.*;
+
+import static org.invest.bot.core.DataConvertUtility.getPercentCount;
+import static org.invest.bot.core.DataConvertUtility.quotationToBigDecimal;
+
+/**
+ * Таблица курсов валют к рублю для пересчета позиций в базовую валюту счета.
+ * Курсы всех нужных валют обновляются одним запросом последних цен и живут {@code fx.ttl-seconds}.
+ */
+@Service
+@Slf4j
+public class FxRateService {
+    private static final String RUB = "rub";
+
+    private final InvestApiCore apiCore;
+    private final HistoryService historyService;
+    private final Duration ttl;
+    private final BigDecimal consistencyTolerance;
+    private final Map<String, BigDecimal> rates = new HashMap<>();
+    private Map<String, CurrencyQuote> quotes;
+    private Instant refreshedAt = Instant.EPOCH;
+
+    public FxRateService(InvestApiCore apiCore,
+                         HistoryService historyService,
+                         @Value("${fx.ttl-seconds:60}") long ttlSeconds,
+                         @Value("${fx.consistency-tolerance:1.0}") BigDecimal consistencyTolerance) {
+        this.apiCore = apiCore;
+        this.historyService = historyService;
+        this.ttl = Duration.ofSeconds(ttlSeconds);
+        this.consistencyTolerance = consistencyTolerance;
+    }
+
+    /**
+     * Проставляет инструментам курс валюты цены к базовой валюте счета.
+     * @param baseCurrency Валюта счета, обычно валюта {@code getTotalAmountPortfolio}
+     */
+    public List<InstrumentObj> convert(List<InstrumentObj> instrumentObjs, String baseCurrency) {
+        Set<String> currencies = new HashSet<>();
+        currencies.add(baseCurrency.toLowerCase());
+        for (InstrumentObj inst : instrumentObjs) {
+            currencies.add(inst.getCurrentPrice().getCurrency().toLowerCase());
+        }
+        Map<String, BigDecimal> table = ratesFor(currencies);
+        BigDecimal base = table.getOrDefault(baseCurrency.toLowerCase(), BigDecimal.ONE);
+        List<InstrumentObj> converted = new ArrayList<>(instrumentObjs.size());
+        for (InstrumentObj inst : instrumentObjs) {
+            BigDecimal rate = table.getOrDefault(inst.getCurrentPrice().getCurrency().toLowerCase(), BigDecimal.ONE);
+            converted.add(inst.withFxRate(rate.divide(base, MathContext.DECIMAL64)));
+        }
+        return converted;
+    }
+
+    /**
+     * Сверяет сумму позиций в базовой валюте со стоимостью портфеля от брокера.
+     * Заметное расхождение означает, что курс устарел или валюта не найдена в справочнике.
+     * @return Расхождение в процентах от стоимости портфеля.
+     */
+    public BigDecimal checkConsistency(Portfolio portfolio, List<InstrumentObj> instrumentObjs) {
+        BigDecimal reported = portfolio.getTotalAmountPortfolio().getValue();
+        if (reported.signum() == 0) {
+            return BigDecimal.ZERO;
+        }
+        BigDecimal calculated = instrumentObjs.stream()
+                .map(InstrumentObj::getPositionValue)
+                .reduce(BigDecimal.ZERO, BigDecimal::add);
+        BigDecimal discrepancy = getPercentCount(reported, calculated.subtract(reported)).abs();
+        if (discrepancy.compareTo(consistencyTolerance) > 0) {
+            log.warn("Стоимость позиций {} расходится со стоимостью портфеля {} на {}%.",
+                    calculated.setScale(2, RoundingMode.HALF_UP), reported, discrepancy);
+        }
+        return discrepancy;
+    }
+
+    /**
+     * Дневные курсы валюты к рублю по ценам закрытия.
+     * @return Пустой ряд для рубля и для валют, которых нет в справочнике.
+     */
+    public NavigableMap<LocalDate, Double> getHistory(String currency, LocalDate from) {
+        CurrencyQuote quote = RUB.equalsIgnoreCase(currency) ? null : getQuotes().get(currency.toLowerCase());
+        if (quote == null) {
+            return new TreeMap<>();
+        }
+        double nominal = quote.nominal().doubleValue();
+        NavigableMap<LocalDate, Double> history = historyService.getCloses(quote.figi(), from);
+        history.replaceAll((date, close) -> close / nominal);
+        return history;
+    }
+
+    private synchronized Map<String, BigDecimal> ratesFor(Set<String> currencies) {
+        boolean stale = Instant.now().isAfter(refreshedAt.plus(ttl));
+        Map<String, CurrencyQuote> known = getQuotes();
+        boolean missing = currencies.stream().anyMatch(currency -> !rates.containsKey(currency) && known.containsKey(currency));
+        if (stale || missing) {
+            Set<String> wanted = new HashSet<>(rates.keySet());
+            wanted.addAll(currencies);
+            refresh(wanted);
+        }
+        return Map.copyOf(rates);
+    }
+
+    private void refresh(Set<String> currencies) {
+        Map<String, CurrencyQuote> known = getQuotes();
+        Map<String, String> figiToCurrency = new HashMap<>();
+        for (String currency : currencies) {
+            CurrencyQuote quote = known.get(currency);
+            if (quote != null) {
+                figiToCurrency.put(quote.figi(), currency);
+            } else if (!RUB.equals(currency)) {
+                log.warn("Валюта {} не найдена в справочнике, позиции будут учтены по курсу 1.", currency);
+            }
+        }
+        rates.put(RUB, BigDecimal.ONE);
+        if (figiToCurrency.isEmpty()) {
+            refreshedAt = Instant.now();
+            return;
+        }
+        Map<String, Quotation> prices = apiCore.getLastPrices(new ArrayList<>(figiToCurrency.keySet()));
+        for (Map.Entry<String, Quotation> price : prices.entrySet()) {
+            String currency = figiToCurrency.get(price.getKey());
+            BigDecimal value = quotationToBigDecimal(price.getValue());
+            if (currency != null && value.signum() > 0) {
+                // Часть валют котируется за несколько единиц (например, 100 иен)
+                rates.put(currency, value.divide(known.get(currency).nominal(), MathContext.DECIMAL64));
+            }
+        }
+        refreshedAt = Instant.now();
+        log.debug("Курсы валют обновлены: {}", rates);
+    }
+
+    /**
+     * Для каждой валюты выбирается инструмент расчетов «завтра» (TOM) - у него самые ликвидные котировки.
+     */
+    private synchronized Map<String, CurrencyQuote> getQuotes() {
+        if (quotes == null) {
+            Map<String, CurrencyQuote> result = new HashMap<>();
+            for (Currency currency : apiCore.getAllCurrencies()) {
+                String iso = currency.getIsoCurrencyName().toLowerCase();
+                if (iso.isEmpty() || RUB.equals(iso)) {
+                    continue;
+                }
+                BigDecimal nominal = quotationToBigDecimal(currency.getNominal());
+                CurrencyQuote quote = new CurrencyQuote(currency.getFigi(), nominal.signum() > 0 ? nominal : BigDecimal.ONE);
+                if (!result.containsKey(iso) || currency.getTicker().contains("TOM")) {
+                    result.put(iso, quote);
+                }
+            }
+            if (result.isEmpty()) {
+                return result;
+            }
+            quotes = result;
+        }
+        return quotes;
+    }
+
+    private record CurrencyQuote(String figi, BigDecimal nominal) {}
+}
@@ -0,0 +1,134 @@
+package org.invest.bot.invest.core.modules.history;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.api.InvestApiCore;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.HistoricCandle;
+import ru.tinkoff.piapi.contract.v1.Instrument;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.invest.bot.core.DataConvertUtility.quotationToBigDecimal;
+
+/**
+ * Загружает и кэширует дневные цены закрытия инструментов.
+ * Кэш дозагружается инкрементально: при повторном запросе докачиваются только новые дни.
+ */
+@Service
+@Slf4j
+public class HistoryService {
+    private final InvestApiCore apiCore;
+    private final Map<String, CachedSeries> cache = new ConcurrentHashMap<>();
+
+    public HistoryService(InvestApiCore apiCore) {
+        this.apiCore = apiCore;
+    }
+
+    /**
+     * Строит выровненную историю цен закрытия за последние {@code days} дней.
+     * Ряды обрезаются по самой короткой истории, пропуски внутри ряда заполняются предыдущей ценой.
+     * Инструменты без свечей (рублевая позиция и т.п.) считаются ценой 1 без изменений.
+     * @param figis Список FIGI
+     * @param days Глубина истории в днях
+     */
+    public PriceHistory loadCloses(List<String> figis, int days) {
+        LocalDate from = LocalDate.now(ZoneOffset.UTC).minusDays(days);
+        List<NavigableMap<LocalDate, Double>> series = new ArrayList<>();
+        TreeSet<LocalDate> allDates = new TreeSet<>();
+        LocalDate commonStart = from;
+        for (String figi : figis) {
+            NavigableMap<LocalDate, Double> closes = getCloses(figi, from).tailMap(from, true);
+            series.add(closes);
+            if (!closes.isEmpty()) {
+                allDates.addAll(closes.keySet());
+                if (closes.firstKey().isAfter(commonStart)) {
+                    commonStart = closes.firstKey();
+                }
+            }
+        }
+        LocalDate[] dates = allDates.tailSet(commonStart, true).toArray(new LocalDate[0]);
+        if (commonStart.isAfter(from)) {
+            log.info("История цен обрезана до {} по самому короткому ряду.", commonStart);
+        }
+
+        double[][] closes = new double[figis.size()][dates.length];
+        for (int i = 0; i < figis.size(); i++) {
+            NavigableMap<LocalDate, Double> instrumentCloses = series.get(i);
+            for (int t = 0; t < dates.length; t++) {
+                if (instrumentCloses.isEmpty()) {
+                    closes[i][t] = 1;
+                    continue;
+                }
+                Map.Entry<LocalDate, Double> entry = instrumentCloses.floorEntry(dates[t]);
+                closes[i][t] = entry != null ? entry.getValue() : instrumentCloses.firstEntry().getValue();
+            }
+        }
+        return new PriceHistory(List.copyOf(figis), dates, closes);
+    }
+
+    /**
+     * Цены закрытия одного инструмента в валюте инструмента (облигации пересчитываются из процентов номинала).
+     */
+    public NavigableMap<LocalDate, Double> getCloses(String figi, LocalDate from) {
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        CachedSeries cached = cache.get(figi);
+        if (cached != null && !cached.from.isAfter(from)) {
+            synchronized (cached) {
+                if (cached.loadedOn.isBefore(today)) {
+                    LocalDate reloadFrom = cached.closes.isEmpty() ? cached.from : cached.closes.lastKey();
+                    cached.closes.putAll(fetchCloses(figi, reloadFrom, cached.priceMultiplier));
+                    cached.loadedOn = today;
+                }
+                return new TreeMap<>(cached.closes);
+            }
+        }
+        double priceMultiplier = priceMultiplier(figi);
+        CachedSeries loaded = new CachedSeries(from, today, priceMultiplier, new TreeMap<>(fetchCloses(figi, from, priceMultiplier)));
+        cache.put(figi, loaded);
+        return new TreeMap<>(loaded.closes);
+    }
+
+    private NavigableMap<LocalDate, Double> fetchCloses(String figi, LocalDate from, double priceMultiplier) {
+        NavigableMap<LocalDate, Double> closes = new TreeMap<>();
+        try {
+            Instant start = from.atStartOfDay(ZoneOffset.UTC).toInstant();
+            Instant end = Instant.now().plus(1, ChronoUnit.DAYS);
+            for (HistoricCandle candle : apiCore.getDailyCandles(figi, start, end)) {
+                LocalDate date = Instant.ofEpochSecond(candle.getTime().getSeconds()).atZone(ZoneOffset.UTC).toLocalDate();
+                closes.put(date, quotationToBigDecimal(candle.getClose()).doubleValue() * priceMultiplier);
+            }
+        } catch (Exception e) {
+            log.error("Не удалось загрузить свечи для FIGI {}: {}", figi, e.getMessage());
+        }
+        return closes;
+    }
+
+    private double priceMultiplier(String figi) {
+        Instrument instrument = apiCore.getInstrumentByFigi(figi);
+        if (instrument == null || !"bond".equals(instrument.getInstrumentType())) {
+            return 1;
+        }
+        BigDecimal nominal = apiCore.getBondNominal(figi);
+        return nominal == null ? 1 : nominal.doubleValue() / 100;
+    }
+
+    private static final class CachedSeries {
+        private final LocalDate from;
+        private LocalDate loadedOn;
+        private final double priceMultiplier;
+        private final TreeMap<LocalDate, Double> closes;
+
+        private CachedSeries(LocalDate from, LocalDate loadedOn, double priceMultiplier, TreeMap<LocalDate, Double> closes) {
+            this.from = from;
+            this.loadedOn = loadedOn;
+            this.priceMultiplier = priceMultiplier;
+            this.closes = closes;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.invest.bot.invest.core.modules.history;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Выровненные по датам дневные цены закрытия набора инструментов.
+ * Хранится в примитивных массивах: closes[инструмент][день].
+ */
+public class PriceHistory {
+    private final List<String> figis;
+    private final LocalDate[] dates;
+    private final double[][] closes;
+
+    public PriceHistory(List<String> figis, LocalDate[] dates, double[][] closes) {
+        this.figis = figis;
+        this.dates = dates;
+        this.closes = closes;
+    }
+
+    public List<String> getFigis() {
+        return figis;
+    }
+
+    public LocalDate[] getDates() {
+        return dates;
+    }
+
+    public double[][] getCloses() {
+        return closes;
+    }
+
+    public int instrumentCount() {
+        return figis.size();
+    }
+
+    public int dayCount() {
+        return dates.length;
+    }
+
+    public int indexOf(String figi) {
+        return figis.indexOf(figi);
+    }
+
+    /**
+     * Простые дневные доходности: returns[инструмент][день], длина ряда на единицу меньше числа дней.
+     */
+    public double[][] returns() {
+        int days = Math.max(dates.length - 1, 0);
+        double[][] returns = new double[figis.size()][days];
+        for (int i = 0; i < figis.size(); i++) {
+            double[] series = closes[i];
+            for (int t = 0; t < days; t++) {
+                returns[i][t] = series[t] == 0 ? 0 : series[t + 1] / series[t] - 1;
+            }
+        }
+        return returns;
+    }
+}
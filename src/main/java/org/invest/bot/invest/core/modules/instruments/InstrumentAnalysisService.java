@@ -2,6 +2,8 @@ package org.invest.bot.invest.core.modules.instruments;
 
 import org.invest.bot.core.messages.MessageFormatter;
 import org.invest.bot.invest.api.InvestApiCore;
+import org.invest.bot.invest.core.modules.accounts.ConsolidatedPortfolioService;
+import org.invest.bot.invest.core.modules.accounts.PortfolioBook;
 import org.invest.bot.invest.core.objects.InstrumentObj;
 import org.springframework.stereotype.Service;
 import ru.tinkoff.piapi.contract.v1.Dividend;
@@ -11,6 +13,7 @@ import ru.tinkoff.piapi.core.models.Position;
 
 import java.math.BigDecimal;
 import java.util.List;
+import java.util.Set;
 
 import static org.invest.bot.core.DataConvertUtility.quotationToBigDecimal;
 import static org.invest.bot.invest.core.modules.instruments.IndicatorType.*;
@@ -20,25 +23,36 @@ import static org.invest.bot.invest.core.modules.instruments.IndicatorType.*;
 public class InstrumentAnalysisService {
     private InvestApiCore apiCore;
     private final MessageFormatter messageFormatter;
+    private final ConsolidatedPortfolioService consolidatedPortfolioService;
 
-    public InstrumentAnalysisService(InvestApiCore apiCore, MessageFormatter messageFormatter) {
+    public InstrumentAnalysisService(InvestApiCore apiCore, MessageFormatter messageFormatter,
+                                     ConsolidatedPortfolioService consolidatedPortfolioService) {
         this.apiCore = apiCore;
         this.messageFormatter = messageFormatter;
+        this.consolidatedPortfolioService = consolidatedPortfolioService;
     }
 
-    public String analyzeInstrumentByTicker(String ticker) {
+    /**
+     * @param accountIds Счета, по которым показывается позиция; пустой набор - все открытые счета
+     */
+    public String analyzeInstrumentByTicker(String ticker, Set<String> accountIds) {
         BigDecimal sma200 = null;
         BigDecimal sma50 = null;
         BigDecimal weeklyRsi = null;
         BigDecimal macdLine = null;
         BigDecimal signalLine = null;
         List<Dividend> dividends = null;
-        String accountId = apiCore.getAccounts().get(0).getId();
-        Portfolio portfolio = apiCore.getPortfolio(accountId);
-        InstrumentObj instrumentObj = apiCore.getInstrument(portfolio, ticker);
+        // Позиция по выбранным счетам: количество и средняя цена уже объединены
+        PortfolioBook book = consolidatedPortfolioService.load(accountIds).total();
+        Portfolio portfolio = book.portfolio();
+        InstrumentObj instrumentObj = book.instrumentObjs().stream()
+                .filter(f -> f.getTicker().equals(ticker)).findFirst().orElse(null);
         Position portfolioPosition = null;
         if (instrumentObj != null) {
-            portfolioPosition = apiCore.getPortfolioPosition(accountId, instrumentObj.getFigi());
+            portfolioPosition = portfolio.getPositions().stream()
+                    .filter(p -> p.getFigi().equalsIgnoreCase(instrumentObj.getFigi()))
+                    .findFirst()
+                    .orElse(null);
             sma50 = quotationToBigDecimal(apiCore.getTechAnalysis(instrumentObj,
                     SMA_50_DAY).getTechnicalIndicators(0).getSignal());
             sma200 = quotationToBigDecimal(apiCore.getTechAnalysis(instrumentObj,
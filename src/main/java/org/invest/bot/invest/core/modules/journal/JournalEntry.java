@@ -0,0 +1,52 @@
+package org.invest.bot.invest.core.modules.journal;
+
+import ru.tinkoff.piapi.contract.v1.OperationItem;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+import static org.invest.bot.core.DataConvertUtility.quotationToBigDecimal;
+
+/**
+ * Исполненная операция в журнале счета. Одна строка JSONL-файла.
+ * @param type Имя {@code OperationType}, например {@code OPERATION_TYPE_BUY}
+ * @param payment Сумма операции со знаком: списания отрицательные
+ * @param accruedInterest НКД, уплаченный или полученный в сделке с облигацией
+ */
+public record JournalEntry(
+        String id,
+        String parentOperationId,
+        long epochMillis,
+        String type,
+        String name,
+        String figi,
+        String instrumentType,
+        long quantity,
+        BigDecimal price,
+        BigDecimal payment,
+        BigDecimal commission,
+        BigDecimal accruedInterest,
+        String currency
+) {
+    public static JournalEntry of(OperationItem item) {
+        return new JournalEntry(
+                item.getId(),
+                item.getParentOperationId(),
+                item.getDate().getSeconds() * 1000 + item.getDate().getNanos() / 1_000_000,
+                item.getType().name(),
+                item.getName(),
+                item.getFigi(),
+                item.getInstrumentType(),
+                item.getQuantityDone() > 0 ? item.getQuantityDone() : item.getQuantity(),
+                quotationToBigDecimal(item.getPrice()),
+                quotationToBigDecimal(item.getPayment()),
+                quotationToBigDecimal(item.getCommission()),
+                quotationToBigDecimal(item.getAccruedInt()),
+                item.getPayment().getCurrency()
+        );
+    }
+
+    public Instant date() {
+        return Instant.ofEpochMilli(epochMillis);
+    }
+}
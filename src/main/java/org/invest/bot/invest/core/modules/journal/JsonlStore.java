@@ -0,0 +1,185 @@
+package org.invest.bot.invest.core.modules.journal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Файл JSONL одного счета, в который записи только дописываются.
+ * В памяти хранится лишь индекс - смещения строк по дате и по FIGI и множество id для отсечения повторов,
+ * поэтому выборка за любой период читает с диска только нужные строки.
+ * Индекс при открытии строится потоковым чтением, файл целиком в память не загружается.
+ * @param <T> Тип записи, сериализуемый Jackson
+ */
+public class JsonlStore<T> {
+    private final Path file;
+    private final ObjectMapper objectMapper;
+    private final Class<T> type;
+    private final Function<T, String> idOf;
+    private final ToLongFunction<T> epochMillisOf;
+    private final Function<T, String> figiOf;
+    private final NavigableMap<Long, List<Pointer>> byDate = new TreeMap<>();
+    private final Map<String, NavigableMap<Long, List<Pointer>>> byFigi = new HashMap<>();
+    private final Set<String> ids = new HashSet<>();
+    private int size;
+    private long length;
+
+    /**
+     * @param idOf Id записи; записи с пустым id не отсекаются как повторы
+     * @param epochMillisOf Дата записи для индекса по дате
+     * @param figiOf FIGI записи или пустая строка, если запись не относится к инструменту
+     */
+    public JsonlStore(Path file, ObjectMapper objectMapper, Class<T> type, Function<T, String> idOf,
+                      ToLongFunction<T> epochMillisOf, Function<T, String> figiOf) {
+        this.file = file;
+        this.objectMapper = objectMapper;
+        this.type = type;
+        this.idOf = idOf;
+        this.epochMillisOf = epochMillisOf;
+        this.figiOf = figiOf;
+        if (Files.exists(file)) {
+            rebuildIndex();
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Дата последней записи - с нее начинается следующая загрузка.
+     */
+    public synchronized Instant lastDate() {
+        return byDate.isEmpty() ? null : Instant.ofEpochMilli(byDate.lastKey());
+    }
+
+    public synchronized boolean contains(String id) {
+        return ids.contains(id);
+    }
+
+    /**
+     * Дописывает записи в переданном порядке. Записи с уже известным id пропускаются.
+     * @return Записанные записи.
+     */
+    public synchronized List<T> append(List<T> records) {
+        List<T> written = new ArrayList<>();
+        try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw")) {
+            out.seek(length);
+            for (T record : records) {
+                if (!isNew(record)) {
+                    continue;
+                }
+                byte[] line = (objectMapper.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8);
+                out.write(line);
+                index(record, new Pointer(length, line.length - 1));
+                length += line.length;
+                written.add(record);
+            }
+            if (!written.isEmpty()) {
+                out.getFD().sync();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось записать " + file, e);
+        }
+        return written;
+    }
+
+    /**
+     * Записи за период [from, to) в порядке даты.
+     * @param figi FIGI инструмента или null для всех инструментов
+     */
+    public synchronized List<T> query(String figi, Instant from, Instant to) {
+        List<T> result = new ArrayList<>();
+        forEach(figi, from, to, result::add);
+        return result;
+    }
+
+    /**
+     * Потоковый обход записей за период [from, to) по дате: в памяти одновременно находится одна запись.
+     * @param figi FIGI инструмента или null для всех инструментов
+     */
+    public synchronized void forEach(String figi, Instant from, Instant to, Consumer<T> consumer) {
+        NavigableMap<Long, List<Pointer>> source = figi == null ? byDate : byFigi.get(figi);
+        if (source == null) {
+            return;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file.toFile(), "r")) {
+            for (List<Pointer> pointers : source.subMap(from.toEpochMilli(), true, to.toEpochMilli(), false).values()) {
+                for (Pointer pointer : pointers) {
+                    byte[] line = new byte[pointer.length()];
+                    in.seek(pointer.offset());
+                    in.readFully(line);
+                    consumer.accept(objectMapper.readValue(line, type));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось прочитать " + file, e);
+        }
+    }
+
+    /**
+     * Читает файл построчно и строит индекс. Недописанная последняя строка (сбой при записи) отбрасывается.
+     */
+    private void rebuildIndex() {
+        long offset = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            long position = 0;
+            while ((b = in.read()) >= 0) {
+                position++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                T record = objectMapper.readValue(line.toByteArray(), type);
+                if (isNew(record)) {
+                    index(record, new Pointer(offset, line.size()));
+                }
+                offset = position;
+                line.reset();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось прочитать " + file, e);
+        }
+        try (RandomAccessFile out = new RandomAccessFile(file.toFile(), "rw")) {
+            if (out.length() > offset) {
+                out.setLength(offset);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось открыть " + file, e);
+        }
+        length = offset;
+    }
+
+    private boolean isNew(T record) {
+        String id = idOf.apply(record);
+        return id == null || id.isEmpty() || ids.add(id);
+    }
+
+    private void index(T record, Pointer pointer) {
+        long epochMillis = epochMillisOf.applyAsLong(record);
+        byDate.computeIfAbsent(epochMillis, key -> new ArrayList<>(1)).add(pointer);
+        String figi = figiOf.apply(record);
+        if (figi != null && !figi.isEmpty()) {
+            byFigi.computeIfAbsent(figi, key -> new TreeMap<>())
+                    .computeIfAbsent(epochMillis, key -> new ArrayList<>(1)).add(pointer);
+        }
+        size++;
+    }
+
+    private record Pointer(long offset, int length) {}
+}
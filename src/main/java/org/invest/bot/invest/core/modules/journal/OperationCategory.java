@@ -0,0 +1,84 @@
+package org.invest.bot.invest.core.modules.journal;
+
+import java.util.Set;
+
+/**
+ * Укрупненная категория операции по имени {@code OperationType}.
+ */
+public enum OperationCategory {
+    BUY("Покупки"),
+    SELL("Продажи"),
+    TRANSFER_IN("Зачисление бумаг"),
+    TRANSFER_OUT("Вывод бумаг"),
+    BOND_REPAYMENT("Погашения облигаций"),
+    COUPON("Купоны"),
+    DIVIDEND("Дивиденды"),
+    COMMISSION("Комиссии брокера"),
+    SERVICE_FEE("Обслуживание"),
+    TAX("Налоги"),
+    WITHHOLDING_TAX("Налог у источника"),
+    CASH("Пополнения и выводы"),
+    OTHER("Прочее");
+
+    private static final Set<String> BUYS = Set.of("OPERATION_TYPE_BUY", "OPERATION_TYPE_BUY_CARD",
+            "OPERATION_TYPE_BUY_MARGIN", "OPERATION_TYPE_DELIVERY_BUY");
+    private static final Set<String> SELLS = Set.of("OPERATION_TYPE_SELL", "OPERATION_TYPE_SELL_CARD",
+            "OPERATION_TYPE_SELL_MARGIN", "OPERATION_TYPE_DELIVERY_SELL", "OPERATION_TYPE_BOND_REPAYMENT_FULL");
+    private static final Set<String> DIVIDENDS = Set.of("OPERATION_TYPE_DIVIDEND", "OPERATION_TYPE_DIV_EXT",
+            "OPERATION_TYPE_DIVIDEND_TRANSFER");
+    private static final Set<String> COMMISSIONS = Set.of("OPERATION_TYPE_BROKER_FEE", "OPERATION_TYPE_SUCCESS_FEE",
+            "OPERATION_TYPE_MARGIN_FEE", "OPERATION_TYPE_OUT_STAMP_DUTY", "OPERATION_TYPE_OUT_FEE");
+    private static final Set<String> SERVICE_FEES = Set.of("OPERATION_TYPE_SERVICE_FEE", "OPERATION_TYPE_TRACK_MFEE",
+            "OPERATION_TYPE_TRACK_PFEE", "OPERATION_TYPE_CASH_FEE", "OPERATION_TYPE_ADVICE_FEE", "OPERATION_TYPE_OTHER_FEE");
+    private static final Set<String> CASH_FLOWS = Set.of("OPERATION_TYPE_INPUT", "OPERATION_TYPE_OUTPUT",
+            "OPERATION_TYPE_INP_MULTI", "OPERATION_TYPE_OUT_MULTI", "OPERATION_TYPE_INPUT_SWIFT",
+            "OPERATION_TYPE_OUTPUT_SWIFT", "OPERATION_TYPE_INPUT_ACQUIRING", "OPERATION_TYPE_OUTPUT_ACQUIRING");
+
+    private static final Set<String> WITHHOLDINGS = Set.of("OPERATION_TYPE_DIVIDEND_TAX", "OPERATION_TYPE_BOND_TAX",
+            "OPERATION_TYPE_DIVIDEND_TAX_PROGRESSIVE", "OPERATION_TYPE_BOND_TAX_PROGRESSIVE");
+
+    private final String title;
+
+    OperationCategory(String title) {
+        this.title = title;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public static OperationCategory of(String type) {
+        if (type == null) {
+            return OTHER;
+        }
+        if (BUYS.contains(type)) {
+            return BUY;
+        }
+        if (SELLS.contains(type)) {
+            return SELL;
+        }
+        if (DIVIDENDS.contains(type)) {
+            return DIVIDEND;
+        }
+        if (COMMISSIONS.contains(type)) {
+            return COMMISSION;
+        }
+        if (SERVICE_FEES.contains(type)) {
+            return SERVICE_FEE;
+        }
+        if (WITHHOLDINGS.contains(type)) {
+            return WITHHOLDING_TAX;
+        }
+        if (CASH_FLOWS.contains(type)) {
+            return CASH;
+        }
+        return switch (type) {
+            case "OPERATION_TYPE_INPUT_SECURITIES" -> TRANSFER_IN;
+            case "OPERATION_TYPE_OUTPUT_SECURITIES" -> TRANSFER_OUT;
+            case "OPERATION_TYPE_BOND_REPAYMENT" -> BOND_REPAYMENT;
+            case "OPERATION_TYPE_COUPON" -> COUPON;
+            // Налог на доход от сделок, прочие налоги и их корректировки
+            default -> type.contains("TAX") ? TAX : OTHER;
+        };
+    }
+}
@@ -0,0 +1,168 @@
+package org.invest.bot.invest.core.modules.journal;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.api.BrokerClients;
+import org.invest.bot.invest.api.InvestApiCore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.Account;
+import ru.tinkoff.piapi.contract.v1.GetOperationsByCursorResponse;
+import ru.tinkoff.piapi.contract.v1.OperationItem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Локальный журнал исполненных операций по каждому счету.
+ * Первый запуск выгружает всю историю с даты открытия счета постранично через курсор,
+ * следующие - только операции новее последней записанной.
+ */
+@Service
+@Slf4j
+public class OperationJournalService {
+    private static final int PAGE_SIZE = 1000;
+    /**
+     * Брокер может провести операцию задним числом (например, комиссию за день),
+     * поэтому синхронизация перекрывает последние сутки, а повторы отсекаются по id.
+     */
+    private static final Duration SYNC_OVERLAP = Duration.ofDays(1);
+
+    private final BrokerClients brokerClients;
+    private final Path directory;
+    private final ObjectMapper objectMapper;
+    private final Map<String, JsonlStore<JournalEntry>> journals = new ConcurrentHashMap<>();
+    private final List<JournalListener> listeners = new CopyOnWriteArrayList<>();
+
+    public OperationJournalService(BrokerClients brokerClients,
+                                   @Value("${journal.dir:data/journal}") String directory) {
+        this.brokerClients = brokerClients;
+        this.directory = Path.of(directory);
+        this.objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    /**
+     * Дописывает в журнал счета операции, появившиеся после последней синхронизации.
+     * @return Количество новых операций.
+     */
+    public int sync(Account account) {
+        JsonlStore<JournalEntry> journal = journal(account.getId());
+        List<JournalEntry> added;
+        int size;
+        synchronized (journal) {
+            long started = System.currentTimeMillis();
+            Instant last = journal.lastDate();
+            Instant from = last == null ? openedDate(account) : last.minus(SYNC_OVERLAP);
+            Instant to = Instant.now();
+            List<JournalEntry> fetched = new ArrayList<>();
+            String cursor = "";
+            int pages = 0;
+            InvestApiCore client = brokerClients.forAccount(account.getId());
+            do {
+                GetOperationsByCursorResponse page = client.getOperationsByCursor(account.getId(), from, to, cursor, PAGE_SIZE);
+                for (OperationItem item : page.getItemsList()) {
+                    if (!journal.contains(item.getId())) {
+                        fetched.add(JournalEntry.of(item));
+                    }
+                }
+                cursor = page.getHasNext() ? page.getNextCursor() : "";
+                pages++;
+            } while (!cursor.isEmpty());
+            fetched.sort(Comparator.comparingLong(JournalEntry::epochMillis));
+            added = journal.append(fetched);
+            size = journal.size();
+            log.info("Журнал операций счета {}: +{} операций ({} стр.), всего {}, за {} мс.", account.getId(), added.size(),
+                    pages, size, System.currentTimeMillis() - started);
+        }
+        // Слушатели вызываются вне блокировки журнала: они сами могут читать журнал
+        if (!added.isEmpty()) {
+            notifyListeners(account.getId(), added, size);
+        }
+        return added.size();
+    }
+
+    /**
+     * Операции счета за период [from, to) по дате.
+     * @param figi FIGI инструмента или null для всех операций
+     */
+    public List<JournalEntry> query(String accountId, String figi, Instant from, Instant to) {
+        return journal(accountId).query(figi, from, to);
+    }
+
+    /**
+     * Количество операций в журнале счета. Растет при каждой синхронизации с новыми операциями.
+     */
+    public int size(String accountId) {
+        return journal(accountId).size();
+    }
+
+    /**
+     * Потоковый обход всей истории счета по дате без загрузки ее в память.
+     * @return Размер журнала на момент обхода: с этой версии можно применять уведомления {@link #addListener}.
+     */
+    public int forEach(String accountId, Consumer<JournalEntry> consumer) {
+        JsonlStore<JournalEntry> journal = journal(accountId);
+        synchronized (journal) {
+            journal.forEach(null, Instant.EPOCH, Instant.now().plus(Duration.ofDays(1)), consumer);
+            return journal.size();
+        }
+    }
+
+    /**
+     * Подписка на новые операции. Слушатель получает счет, записанные операции и размер журнала после записи,
+     * поэтому может пропустить операции, уже учтенные при полном обходе.
+     */
+    public void addListener(JournalListener listener) {
+        listeners.add(listener);
+    }
+
+    private void notifyListeners(String accountId, List<JournalEntry> added, int size) {
+        for (JournalListener listener : listeners) {
+            try {
+                listener.onAppend(accountId, added, size);
+            } catch (Exception e) {
+                log.warn("Ошибка обработчика журнала операций: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface JournalListener {
+        void onAppend(String accountId, List<JournalEntry> added, int journalSize);
+    }
+
+    /**
+     * Журнал операций счета: записи дописываются в порядке возрастания даты, повторы отсекаются по id операции.
+     */
+    private JsonlStore<JournalEntry> journal(String accountId) {
+        return journals.computeIfAbsent(accountId, id -> {
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Не удалось создать каталог журнала " + directory, e);
+            }
+            JsonlStore<JournalEntry> journal = new JsonlStore<>(directory.resolve("operations-" + id + ".jsonl"), objectMapper,
+                    JournalEntry.class, JournalEntry::id, JournalEntry::epochMillis, JournalEntry::figi);
+            log.info("Журнал операций счета {} открыт: {} операций.", id, journal.size());
+            return journal;
+        });
+    }
+
+    private static Instant openedDate(Account account) {
+        return account.hasOpenedDate() && account.getOpenedDate().getSeconds() > 0
+                ? Instant.ofEpochSecond(account.getOpenedDate().getSeconds())
+                : Instant.parse("2006-01-01T00:00:00Z");
+    }
+}
@@ -0,0 +1,23 @@
+package org.invest.bot.invest.core.modules.liquidity;
+
+import java.math.BigDecimal;
+
+/**
+ * Оценка исполнения рыночной заявки по видимому стакану.
+ * @param averagePrice Средняя цена исполнения в единицах котировки (для облигаций - в процентах от номинала)
+ * @param slippage Потери относительно середины спреда в долях, включая половину спреда
+ * @param slippageCost Потери в рублях от суммы действия
+ * @param depthShare Доля видимого объема нужной стороны стакана, которую забирает заявка
+ * @param fullyVisible Стакан покрывает заявку целиком; иначе остаток оценен по худшему уровню
+ * @param flagged Заявка забирает больше допустимой доли стакана или не помещается в него
+ */
+public record FillEstimate(
+        String figi,
+        int lots,
+        BigDecimal averagePrice,
+        BigDecimal slippage,
+        BigDecimal slippageCost,
+        BigDecimal depthShare,
+        boolean fullyVisible,
+        boolean flagged
+) {}
@@ -0,0 +1,25 @@
+package org.invest.bot.invest.core.modules.liquidity;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Оценки исполнения для действий плана ребалансировки.
+ */
+public record LiquidityReport(
+        Map<String, FillEstimate> sells,
+        Map<String, FillEstimate> buys,
+        BigDecimal totalSlippageCost
+) {
+    public static LiquidityReport empty() {
+        return new LiquidityReport(Map.of(), Map.of(), BigDecimal.ZERO);
+    }
+
+    public FillEstimate sellEstimate(String figi) {
+        return sells.get(figi);
+    }
+
+    public FillEstimate buyEstimate(String figi) {
+        return buys.get(figi);
+    }
+}
@@ -0,0 +1,166 @@
+package org.invest.bot.invest.core.modules.liquidity;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.api.InvestApiCore;
+import org.invest.bot.invest.core.modules.balanse.actions.BuyAction;
+import org.invest.bot.invest.core.modules.balanse.actions.SellAction;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.GetOrderBookResponse;
+import ru.tinkoff.piapi.contract.v1.Order;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.invest.bot.core.DataConvertUtility.quotationToBigDecimal;
+
+/**
+ * Оценивает проскальзывание действий плана ребалансировки по стакану заявок.
+ * Стаканы всех бумаг плана запрашиваются параллельно в отдельном пуле и живут {@code liquidity.orderbook-ttl-seconds}:
+ * повторный расчет плана в течение нескольких секунд не ходит в API.
+ * Проскальзывание считается от середины спреда, поэтому не зависит от единиц котировки.
+ */
+@Service
+@Slf4j
+public class LiquidityService {
+    private final InvestApiCore apiCore;
+    private final int depth;
+    private final Duration ttl;
+    private final BigDecimal maxDepthShare;
+    private final ExecutorService executor;
+    private final Map<String, CachedOrderBook> orderBooks = new ConcurrentHashMap<>();
+
+    public LiquidityService(InvestApiCore apiCore,
+                            @Value("${liquidity.depth:50}") int depth,
+                            @Value("${liquidity.orderbook-ttl-seconds:5}") long ttlSeconds,
+                            @Value("${liquidity.max-depth-share:0.2}") BigDecimal maxDepthShare,
+                            @Value("${liquidity.parallelism:4}") int parallelism) {
+        this.apiCore = apiCore;
+        this.depth = depth;
+        this.ttl = Duration.ofSeconds(ttlSeconds);
+        this.maxDepthShare = maxDepthShare;
+        this.executor = Executors.newFixedThreadPool(parallelism);
+    }
+
+    public LiquidityReport estimate(List<SellAction> sellActions, List<BuyAction> buyActions) {
+        Set<String> figis = new LinkedHashSet<>();
+        sellActions.forEach(action -> figis.add(action.figi()));
+        buyActions.forEach(action -> figis.add(action.figi()));
+        if (figis.isEmpty()) {
+            return LiquidityReport.empty();
+        }
+        Map<String, GetOrderBookResponse> books = getOrderBooks(figis);
+
+        Map<String, FillEstimate> sells = new LinkedHashMap<>();
+        Map<String, FillEstimate> buys = new LinkedHashMap<>();
+        BigDecimal totalCost = BigDecimal.ZERO;
+        for (SellAction action : sellActions) {
+            FillEstimate estimate = estimate(books.get(action.figi()), action.figi(), action.lots(), action.amount(), false);
+            if (estimate != null) {
+                sells.put(action.figi(), estimate);
+                totalCost = totalCost.add(estimate.slippageCost());
+            }
+        }
+        for (BuyAction action : buyActions) {
+            FillEstimate estimate = estimate(books.get(action.figi()), action.figi(), action.lots(), action.amount(), true);
+            if (estimate != null) {
+                buys.put(action.figi(), estimate);
+                totalCost = totalCost.add(estimate.slippageCost());
+            }
+        }
+        return new LiquidityReport(sells, buys, totalCost.setScale(2, RoundingMode.HALF_UP));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Map<String, GetOrderBookResponse> getOrderBooks(Set<String> figis) {
+        Instant now = Instant.now();
+        Map<String, GetOrderBookResponse> result = new HashMap<>();
+        Map<String, CompletableFuture<GetOrderBookResponse>> pending = new HashMap<>();
+        for (String figi : figis) {
+            CachedOrderBook cached = orderBooks.get(figi);
+            if (cached != null && now.isBefore(cached.loadedAt().plus(ttl))) {
+                result.put(figi, cached.book());
+            } else {
+                pending.put(figi, CompletableFuture.supplyAsync(() -> apiCore.getOrderBook(figi, depth), executor));
+            }
+        }
+        for (Map.Entry<String, CompletableFuture<GetOrderBookResponse>> entry : pending.entrySet()) {
+            GetOrderBookResponse book = entry.getValue().join();
+            if (book != null) {
+                orderBooks.put(entry.getKey(), new CachedOrderBook(Instant.now(), book));
+                result.put(entry.getKey(), book);
+            }
+        }
+        if (!pending.isEmpty()) {
+            log.debug("Загружено стаканов: {}, из кэша: {}.", pending.size(), figis.size() - pending.size());
+        }
+        return result;
+    }
+
+    /**
+     * Проходит по уровням встречной стороны стакана: покупка забирает аски, продажа - биды.
+     * Если видимого объема не хватает, остаток оценивается по худшему видимому уровню.
+     * @return Оценка или null, если стакан пуст.
+     */
+    private FillEstimate estimate(GetOrderBookResponse book, String figi, int lots, BigDecimal amount, boolean buy) {
+        if (book == null || lots <= 0) {
+            return null;
+        }
+        List<Order> levels = buy ? book.getAsksList() : book.getBidsList();
+        BigDecimal mid = mid(book);
+        if (levels.isEmpty() || mid == null) {
+            log.warn("Пустой стакан по {}, проскальзывание не оценено.", figi);
+            return null;
+        }
+        long remaining = lots;
+        long visible = 0;
+        BigDecimal notional = BigDecimal.ZERO;
+        BigDecimal worst = mid;
+        for (Order level : levels) {
+            BigDecimal price = quotationToBigDecimal(level.getPrice());
+            visible += level.getQuantity();
+            worst = price;
+            long taken = Math.min(remaining, level.getQuantity());
+            notional = notional.add(price.multiply(BigDecimal.valueOf(taken)));
+            remaining -= taken;
+        }
+        boolean fullyVisible = remaining == 0;
+        if (!fullyVisible) {
+            notional = notional.add(worst.multiply(BigDecimal.valueOf(remaining)));
+        }
+        BigDecimal averagePrice = notional.divide(BigDecimal.valueOf(lots), MathContext.DECIMAL64);
+        BigDecimal deviation = averagePrice.divide(mid, MathContext.DECIMAL64).subtract(BigDecimal.ONE);
+        BigDecimal slippage = (buy ? deviation : deviation.negate()).max(BigDecimal.ZERO);
+        BigDecimal depthShare = visible == 0 ? BigDecimal.ONE
+                : BigDecimal.valueOf(lots).divide(BigDecimal.valueOf(visible), 4, RoundingMode.HALF_UP);
+        boolean flagged = !fullyVisible || depthShare.compareTo(maxDepthShare) > 0;
+        return new FillEstimate(figi, lots, averagePrice.setScale(4, RoundingMode.HALF_UP),
+                slippage.setScale(6, RoundingMode.HALF_UP), amount.multiply(slippage).setScale(2, RoundingMode.HALF_UP),
+                depthShare, fullyVisible, flagged);
+    }
+
+    private static BigDecimal mid(GetOrderBookResponse book) {
+        BigDecimal bid = book.getBidsCount() > 0 ? quotationToBigDecimal(book.getBids(0).getPrice()) : null;
+        BigDecimal ask = book.getAsksCount() > 0 ? quotationToBigDecimal(book.getAsks(0).getPrice()) : null;
+        if (bid == null || ask == null) {
+            BigDecimal single = bid != null ? bid : ask;
+            return single == null || single.signum() <= 0 ? null : single;
+        }
+        return bid.add(ask).divide(BigDecimal.valueOf(2), MathContext.DECIMAL64);
+    }
+
+    private record CachedOrderBook(Instant loadedAt, GetOrderBookResponse book) {}
+}
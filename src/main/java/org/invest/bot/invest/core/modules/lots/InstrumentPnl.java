@@ -0,0 +1,23 @@
+package org.invest.bot.invest.core.modules.lots;
+
+import java.math.BigDecimal;
+
+/**
+ * Результат по инструменту, сложенный по всем счетам. Суммы в валюте инструмента.
+ * @param realized Зафиксированный доход по лотам без льготы
+ * @param exemptRealized Зафиксированный доход по лотам старше трех лет
+ * @param exemptQuantity Количество в открытых лотах, которые уже можно продать без налога
+ */
+public record InstrumentPnl(
+        String figi,
+        String ticker,
+        BigDecimal quantity,
+        BigDecimal costBasis,
+        BigDecimal realized,
+        BigDecimal exemptRealized,
+        BigDecimal unrealized,
+        BigDecimal income,
+        BigDecimal fees,
+        BigDecimal taxes,
+        BigDecimal exemptQuantity
+) {}
@@ -0,0 +1,262 @@
+package org.invest.bot.invest.core.modules.lots;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.api.BrokerClients;
+import org.invest.bot.invest.core.modules.accounts.ConsolidatedPortfolioService;
+import org.invest.bot.invest.core.modules.fx.FxRateService;
+import org.invest.bot.invest.core.modules.journal.OperationJournalService;
+import org.invest.bot.invest.core.objects.InstrumentObj;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.Account;
+import ru.tinkoff.piapi.contract.v1.HistoricCandle;
+import ru.tinkoff.piapi.core.models.Position;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.function.BiFunction;
+
+import static org.invest.bot.core.DataConvertUtility.quotationToBigDecimal;
+
+/**
+ * Налоговые лоты по счетам сессии. Лоты строятся потоковым проходом по журналу операций,
+ * поэтому память зависит от числа открытых лотов, а не от длины истории.
+ * Книга счета пересобирается, только когда в его журнале появились новые операции.
+ * Налог оценивается в рублях: расходы лотов - по курсу дня покупки, выручка - по текущему курсу,
+ * комиссии покупки и продажи уменьшают доход. Лоты с неизвестной ценой покупки в подбор не попадают.
+ */
+@Service
+@Slf4j
+public class LotAccountingService {
+    /** Допустимое отклонение скачка цены от коэффициента сплита */
+    private static final double SPLIT_PRICE_TOLERANCE = 0.15;
+
+    private final BrokerClients brokerClients;
+    private final ConsolidatedPortfolioService consolidatedPortfolioService;
+    private final OperationJournalService journalService;
+    private final FxRateService fxRateService;
+    private final BigDecimal taxRate;
+    private final BigDecimal saleCommissionRate;
+    private final Duration ttl;
+    private final Map<String, LotBook> books = new HashMap<>();
+    private final Map<String, Integer> versions = new HashMap<>();
+    /** Синхронизированные наборы счетов: выбор сессии и время его последней синхронизации */
+    private final Map<Set<String>, Scope> scopes = new HashMap<>();
+
+    public LotAccountingService(BrokerClients brokerClients,
+                                ConsolidatedPortfolioService consolidatedPortfolioService,
+                                OperationJournalService journalService,
+                                FxRateService fxRateService,
+                                @Value("${tax.rate:0.13}") BigDecimal taxRate,
+                                @Value("${lots.sale-commission-rate:0.0005}") BigDecimal saleCommissionRate,
+                                @Value("${lots.ttl-minutes:10}") long ttlMinutes) {
+        this.brokerClients = brokerClients;
+        this.consolidatedPortfolioService = consolidatedPortfolioService;
+        this.journalService = journalService;
+        this.fxRateService = fxRateService;
+        this.taxRate = taxRate;
+        this.saleCommissionRate = saleCommissionRate;
+        this.ttl = Duration.ofMinutes(ttlMinutes);
+    }
+
+    /**
+     * Результат по инструментам портфеля, сложенный по выбранным счетам.
+     * @param accountIds Выбранные счета, пустой набор - все открытые счета
+     */
+    public List<InstrumentPnl> pnl(List<InstrumentObj> instrumentObjs, Set<String> accountIds) {
+        Collection<LotBook> current = getBooks(accountIds);
+        Instant now = Instant.now();
+        List<InstrumentPnl> result = new ArrayList<>();
+        for (InstrumentObj inst : instrumentObjs) {
+            BigDecimal price = inst.getCurrentPrice().getValue();
+            BigDecimal quantity = BigDecimal.ZERO;
+            BigDecimal cost = BigDecimal.ZERO;
+            BigDecimal realized = BigDecimal.ZERO;
+            BigDecimal exemptRealized = BigDecimal.ZERO;
+            BigDecimal unrealized = BigDecimal.ZERO;
+            BigDecimal income = BigDecimal.ZERO;
+            BigDecimal fees = BigDecimal.ZERO;
+            BigDecimal taxes = BigDecimal.ZERO;
+            BigDecimal exemptQuantity = BigDecimal.ZERO;
+            for (LotBook book : current) {
+                LotLedger ledger = book.getLedger(inst.getFigi());
+                if (ledger == null) {
+                    continue;
+                }
+                quantity = quantity.add(ledger.getQuantity());
+                cost = cost.add(ledger.getCostBasis());
+                realized = realized.add(ledger.getRealized());
+                exemptRealized = exemptRealized.add(ledger.getExemptRealized());
+                unrealized = unrealized.add(ledger.getUnrealized(price));
+                income = income.add(ledger.getIncome());
+                fees = fees.add(ledger.getFees());
+                taxes = taxes.add(ledger.getTaxes());
+                exemptQuantity = exemptQuantity.add(ledger.getExemptQuantity(now));
+            }
+            result.add(new InstrumentPnl(inst.getFigi(), inst.getTicker(), quantity, scale(cost), scale(realized),
+                    scale(exemptRealized), scale(unrealized), scale(income), scale(fees), scale(taxes), exemptQuantity));
+        }
+        return result;
+    }
+
+    /**
+     * Выбирает, с каких счетов продать бумагу, чтобы налог был минимальным.
+     * Внутри счета брокер списывает лоты строго по FIFO, поэтому выбор возможен только между счетами:
+     * сначала продается там, где налог на штуку меньше (старые льготные лоты, убыточные лоты).
+     * @param quantity Количество штук к продаже
+     * @param unitPrice Текущая цена за штуку в валюте инструмента
+     * @param fxRate Текущий курс валюты инструмента к рублю
+     * @param accountIds Счета, с которых можно продавать; пустой набор - все открытые счета
+     * @return Части продажи по счетам; пустой список, если лотов по бумаге нет.
+     */
+    public List<LotSelection> selectLots(String figi, BigDecimal quantity, BigDecimal unitPrice, BigDecimal fxRate,
+                                         Set<String> accountIds) {
+        Instant now = Instant.now();
+        BigDecimal unitProceedsRub = unitPrice.multiply(fxRate).multiply(BigDecimal.ONE.subtract(saleCommissionRate));
+        Map<String, LotBook> current = new HashMap<>();
+        List<LotSelection> candidates = new ArrayList<>();
+        for (LotBook book : getBooks(accountIds)) {
+            current.put(book.getAccount().getId(), book);
+            LotLedger ledger = book.getLedger(figi);
+            if (ledger == null || ledger.getQuantity().signum() == 0) {
+                continue;
+            }
+            SaleEstimate estimate = ledger.simulateSale(now, quantity, unitProceedsRub);
+            if (estimate.quantity().signum() > 0) {
+                candidates.add(selection(book.getAccount(), estimate));
+            }
+        }
+        candidates.sort(Comparator.comparing(candidate -> candidate.tax().divide(candidate.quantity(), MathContext.DECIMAL64)));
+
+        List<LotSelection> result = new ArrayList<>();
+        BigDecimal remaining = quantity;
+        for (LotSelection candidate : candidates) {
+            if (remaining.signum() <= 0) {
+                break;
+            }
+            if (candidate.quantity().compareTo(remaining) > 0) {
+                LotBook book = current.get(candidate.accountId());
+                candidate = selection(book.getAccount(), book.getLedger(figi).simulateSale(now, remaining, unitProceedsRub));
+            }
+            result.add(candidate);
+            remaining = remaining.subtract(candidate.quantity());
+        }
+        return result;
+    }
+
+    private LotSelection selection(Account account, SaleEstimate estimate) {
+        BigDecimal tax = estimate.taxableGain().max(BigDecimal.ZERO).multiply(taxRate);
+        return new LotSelection(account.getId(), account.getName(), estimate.quantity(),
+                scale(estimate.taxableGain()), scale(estimate.exemptGain()), scale(tax));
+    }
+
+    /**
+     * Книги выбранных счетов. Журналы набора синхронизируются не чаще раза в {@code lots.ttl-minutes}.
+     * Книги счетов, не вошедших ни в один набор при последней синхронизации, удаляются.
+     * @param accountIds Выбранные счета, пустой набор - все открытые счета
+     */
+    private synchronized Collection<LotBook> getBooks(Set<String> accountIds) {
+        Scope scope = scopes.get(accountIds);
+        if (scope != null && Instant.now().isBefore(scope.refreshedAt().plus(ttl))) {
+            return scope.accountIds().stream().map(books::get).filter(Objects::nonNull).toList();
+        }
+        long started = System.currentTimeMillis();
+        List<Account> accounts = consolidatedPortfolioService.syncJournals(accountIds);
+        List<String> open = new ArrayList<>();
+        List<LotBook> result = new ArrayList<>();
+        int rebuilt = 0;
+        BiFunction<String, Instant, BigDecimal> rubRate = historicalRates();
+        for (Account account : accounts) {
+            open.add(account.getId());
+            int version = journalService.size(account.getId());
+            LotBook book = books.get(account.getId());
+            if (book == null || versions.get(account.getId()) != version) {
+                book = new LotBook(account, rubRate);
+                journalService.forEach(account.getId(), book);
+                book.reconcile(brokerQuantities(account.getId()), this::splitInCandles);
+                books.put(account.getId(), book);
+                versions.put(account.getId(), version);
+                rebuilt++;
+            }
+            result.add(book);
+        }
+        scopes.put(Set.copyOf(accountIds), new Scope(List.copyOf(open), Instant.now()));
+        Set<String> used = new HashSet<>();
+        scopes.values().forEach(known -> used.addAll(known.accountIds()));
+        books.keySet().retainAll(used);
+        versions.keySet().retainAll(used);
+        log.info("Налоговые лоты: пересобрано {} из {} счетов за {} мс.", rebuilt, accounts.size(),
+                System.currentTimeMillis() - started);
+        return result;
+    }
+
+    /**
+     * Курс к рублю на дату операции по закрытию этого или ближайшего предыдущего дня.
+     * Операции идут по возрастанию даты, поэтому ряд валюты загружается с даты ее первой операции.
+     */
+    private BiFunction<String, Instant, BigDecimal> historicalRates() {
+        Map<String, NavigableMap<LocalDate, Double>> histories = new HashMap<>();
+        return (currency, at) -> {
+            LocalDate date = at.atZone(ZoneOffset.UTC).toLocalDate();
+            NavigableMap<LocalDate, Double> history = histories.computeIfAbsent(currency,
+                    key -> fxRateService.getHistory(key, date.minusDays(14)));
+            Map.Entry<LocalDate, Double> rate = history.floorEntry(date);
+            if (rate == null) {
+                rate = history.ceilingEntry(date);
+            }
+            if (rate == null) {
+                log.warn("Нет истории курса {}, операция от {} учтена по курсу 1.", currency, date);
+                return BigDecimal.ONE;
+            }
+            return BigDecimal.valueOf(rate.getValue());
+        };
+    }
+
+    /**
+     * Сплит виден в дневных свечах: после последней операции по бумаге есть день, когда цена
+     * изменилась в отношении, обратном коэффициенту сплита.
+     */
+    private boolean splitInCandles(LotLedger ledger, BigDecimal ratio) {
+        Instant from = ledger.getLastChangeAt();
+        if (from == null) {
+            return false;
+        }
+        try {
+            List<HistoricCandle> candles = brokerClients.owner().getDailyCandles(ledger.getFigi(), from, Instant.now());
+            double expected = ratio.doubleValue();
+            for (int i = 1; i < candles.size(); i++) {
+                double previous = quotationToBigDecimal(candles.get(i - 1).getClose()).doubleValue();
+                double close = quotationToBigDecimal(candles.get(i).getClose()).doubleValue();
+                if (close > 0 && Math.abs(previous / close / expected - 1) < SPLIT_PRICE_TOLERANCE) {
+                    return true;
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Не удалось проверить сплит {} по свечам: {}", ledger.getFigi(), e.getMessage());
+        }
+        return false;
+    }
+
+    private Map<String, BigDecimal> brokerQuantities(String accountId) {
+        Map<String, BigDecimal> quantities = new HashMap<>();
+        for (Position position : brokerClients.forAccount(accountId).getPortfolio(accountId).getPositions()) {
+            if (!"currency".equals(position.getInstrumentType())) {
+                quantities.put(position.getFigi(), position.getQuantity());
+            }
+        }
+        return quantities;
+    }
+
+    private static BigDecimal scale(BigDecimal value) {
+        return value.setScale(2, RoundingMode.HALF_UP);
+    }
+
+    private record Scope(List<String> accountIds, Instant refreshedAt) {
+    }
+}
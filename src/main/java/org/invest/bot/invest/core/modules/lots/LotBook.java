@@ -0,0 +1,155 @@
+package org.invest.bot.invest.core.modules.lots;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.core.modules.journal.JournalEntry;
+import org.invest.bot.invest.core.modules.journal.OperationCategory;
+import ru.tinkoff.piapi.contract.v1.Account;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+/**
+ * Лоты всех инструментов одного счета. Заполняется потоком записей журнала операций по дате.
+ */
+@Slf4j
+public class LotBook implements Consumer<JournalEntry> {
+    private final Account account;
+    private final BiFunction<String, Instant, BigDecimal> rubRate;
+    private final Map<String, LotLedger> ledgers = new HashMap<>();
+
+    /**
+     * @param rubRate Курс валюты к рублю на момент операции
+     */
+    public LotBook(Account account, BiFunction<String, Instant, BigDecimal> rubRate) {
+        this.account = account;
+        this.rubRate = rubRate;
+    }
+
+    @Override
+    public void accept(JournalEntry entry) {
+        if (entry.figi() == null || entry.figi().isEmpty()) {
+            return;
+        }
+        LotLedger ledger = ledgers.computeIfAbsent(entry.figi(), LotLedger::new);
+        BigDecimal quantity = BigDecimal.valueOf(entry.quantity());
+        OperationCategory category = OperationCategory.of(entry.type());
+        if (category == OperationCategory.BOND_REPAYMENT || category == OperationCategory.COUPON
+                || category == OperationCategory.DIVIDEND) {
+            ledger.beforeFirstLot();
+        }
+        switch (category) {
+            case BUY -> buy(ledger, entry, quantity);
+            case TRANSFER_IN -> ledger.transferIn(entry.id(), entry.date(), quantity);
+            case SELL -> ledger.sell(entry.date(), quantity, unitPrice(entry));
+            case TRANSFER_OUT -> ledger.transferOut(entry.date(), quantity);
+            case BOND_REPAYMENT -> ledger.amortize(entry.payment().abs(), rate(entry));
+            case COUPON, DIVIDEND -> ledger.addIncome(entry.payment());
+            // Списания приходят с минусом, возвраты - с плюсом
+            case COMMISSION -> {
+                ledger.addFee(entry.payment().negate());
+                if (entry.parentOperationId() != null && !entry.parentOperationId().isEmpty()) {
+                    ledger.addLotCommission(entry.parentOperationId(), entry.payment().negate().multiply(rate(entry)));
+                }
+            }
+            case SERVICE_FEE -> ledger.addFee(entry.payment().negate());
+            case TAX, WITHHOLDING_TAX -> ledger.addTax(entry.payment().negate());
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Сверяет количество в лотах с позициями брокера. Целое отношение количеств может означать сплит
+     * или консолидацию, которые в операциях не отражаются, но может означать и пропуск в истории.
+     * Поэтому сплит применяется, только если журнал покрывает бумагу с первой покупки или сплит
+     * подтвержден данными инструмента; иначе расхождение только попадает в лог.
+     * @param brokerQuantities Количество штук по FIGI из портфеля счета
+     * @param splitConfirmed Подтверждает сплит с коэффициентом по данным инструмента
+     */
+    public void reconcile(Map<String, BigDecimal> brokerQuantities, BiPredicate<LotLedger, BigDecimal> splitConfirmed) {
+        for (Map.Entry<String, BigDecimal> position : brokerQuantities.entrySet()) {
+            LotLedger ledger = ledgers.get(position.getKey());
+            BigDecimal held = ledger == null ? BigDecimal.ZERO : ledger.getQuantity();
+            BigDecimal broker = position.getValue();
+            if (held.compareTo(broker) == 0 || held.signum() == 0 || broker.signum() <= 0) {
+                if (held.compareTo(broker) != 0) {
+                    log.warn("Счет {}: по {} в лотах {} шт., у брокера {} шт. - история операций неполная.",
+                            account.getId(), position.getKey(), held, broker);
+                }
+                continue;
+            }
+            BigDecimal ratio = broker.divide(held, MathContext.DECIMAL64);
+            if (!isWhole(ratio) && !isWhole(BigDecimal.ONE.divide(ratio, MathContext.DECIMAL64))) {
+                log.warn("Счет {}: по {} в лотах {} шт., у брокера {} шт.", account.getId(), position.getKey(), held, broker);
+            } else if (ledger.isHistoryComplete() || splitConfirmed.test(ledger, ratio)) {
+                log.info("Счет {}: по {} учтен сплит с коэффициентом {}.", account.getId(), position.getKey(), ratio);
+                ledger.split(ratio);
+            } else {
+                log.warn("Счет {}: по {} в лотах {} шт., у брокера {} шт. - история операций неполная, сплит не подтвержден.",
+                        account.getId(), position.getKey(), held, broker);
+            }
+        }
+    }
+REMOVE_START
+                log.warn("Счет {}: по {} в лотах {} шт., у брокера {} шт.", account.getId(), position.getKey(), held, broker);
+            }
+        }
+    }
+
+    public Account getAccount() {
+        return account;
+    }
+
+    public LotLedger getLedger(String figi) {
+        return ledgers.get(figi);
+    }
+
+    public Map<String, LotLedger> getLedgers() {
+        return Collections.unmodifiableMap(ledgers);
+    }
+
+    /**
+     * Рублевый расход лота - по курсу дня покупки. Комиссия берется из сделки,
+     * а если ее там нет, добавляется позже из отдельной операции комиссии.
+     */
+    private void buy(LotLedger ledger, JournalEntry entry, BigDecimal quantity) {
+        if (quantity.signum() <= 0) {
+            return;
+        }
+        BigDecimal unitPrice = unitPrice(entry);
+        BigDecimal commission = entry.commission() == null ? BigDecimal.ZERO : entry.commission().abs();
+        BigDecimal unitCostRub = unitPrice.multiply(quantity).add(commission)
+                .multiply(rate(entry))
+                .divide(quantity, MathContext.DECIMAL64);
+        ledger.buy(entry.id(), entry.date(), quantity, unitPrice, unitCostRub, commission.signum() > 0);
+    }
+
+    private BigDecimal rate(JournalEntry entry) {
+        String currency = entry.currency() == null ? "rub" : entry.currency().toLowerCase();
+        return "rub".equals(currency) ? BigDecimal.ONE : rubRate.apply(currency, entry.date());
+    }
+
+    /**
+     * Цена за штуку. У погашения облигации цены в операции нет - берется выплата на штуку.
+     */
+    private static BigDecimal unitPrice(JournalEntry entry) {
+        if (entry.price() != null && entry.price().signum() > 0) {
+            return entry.price();
+        }
+        return entry.quantity() == 0 ? BigDecimal.ZERO
+                : entry.payment().abs().divide(BigDecimal.valueOf(entry.quantity()), MathContext.DECIMAL64);
+    }
+
+    private static boolean isWhole(BigDecimal value) {
+        BigDecimal rounded = value.setScale(0, RoundingMode.HALF_UP);
+        return rounded.compareTo(BigDecimal.ONE) > 0 && value.subtract(rounded).abs().compareTo(new BigDecimal("0.000001")) < 0;
+    }
+}
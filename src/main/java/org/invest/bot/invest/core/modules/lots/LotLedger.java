@@ -0,0 +1,279 @@
+package org.invest.bot.invest.core.modules.lots;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Лоты и накопленный результат по одному инструменту одного счета. Списание лотов - FIFO,
+ * как при расчете налога брокером. Память занимают только открытые лоты, а не вся история.
+ * <p>
+ * Себестоимость, результат и нереализованный доход ведутся в валюте инструмента.
+ * Для налога у каждого лота хранится еще и рублевый расход, поэтому пробная продажа
+ * считает доход так же, как брокер: в рублях по курсам дней покупки и продажи.
+ * Лоты с неизвестной ценой покупки (перевод от другого брокера) занимают свое место в очереди FIFO,
+ * но не входят ни в себестоимость, ни в результат, ни в оценку налога.
+ */
+public class LotLedger {
+    private final String figi;
+    private final Deque<TaxLot> lots = new ArrayDeque<>();
+    private BigDecimal realized = BigDecimal.ZERO;
+    private BigDecimal exemptRealized = BigDecimal.ZERO;
+    private BigDecimal income = BigDecimal.ZERO;
+    private BigDecimal fees = BigDecimal.ZERO;
+    private BigDecimal taxes = BigDecimal.ZERO;
+    private boolean everHeld;
+    private boolean historyComplete = true;
+    private Instant lastChangeAt;
+
+    public LotLedger(String figi) {
+        this.figi = figi;
+    }
+
+    /**
+     * @param unitCostRub Расход на штуку в рублях по курсу дня покупки, с комиссией, если она известна
+     * @param commissionIncluded Комиссия уже учтена в {@code unitCostRub}
+     */
+    public void buy(String operationId, Instant at, BigDecimal quantity, BigDecimal unitCost,
+                    BigDecimal unitCostRub, boolean commissionIncluded) {
+        if (quantity.signum() > 0) {
+            lots.addLast(new TaxLot(operationId, at, quantity, unitCost, unitCostRub, commissionIncluded, true));
+            opened(at);
+        }
+    }
+
+    /**
+     * Бумаги, заведенные переводом от другого брокера: цена покупки в операциях не приходит.
+     */
+    public void transferIn(String operationId, Instant at, BigDecimal quantity) {
+        if (quantity.signum() > 0) {
+            lots.addLast(new TaxLot(operationId, at, quantity, BigDecimal.ZERO, BigDecimal.ZERO, true, false));
+            opened(at);
+        }
+    }
+
+    /**
+     * Событие по бумаге, которой по журналу еще не было: журнал начинается позже первой покупки.
+     */
+    public void beforeFirstLot() {
+        if (!everHeld) {
+            historyComplete = false;
+        }
+    }
+
+    private void opened(Instant at) {
+        everHeld = true;
+        lastChangeAt = at;
+    }
+
+    /**
+     * Комиссия покупки, пришедшая отдельной операцией, увеличивает рублевый расход своего лота.
+     * Если комиссия уже была в самой сделке или лот уже продан, ничего не меняется.
+     */
+    public void addLotCommission(String operationId, BigDecimal amountRub) {
+        replaceLots(lot -> operationId.equals(lot.operationId()) && !lot.commissionIncluded()
+                ? new TaxLot(lot.operationId(), lot.acquired(), lot.quantity(), lot.unitCost(),
+                        lot.unitCostRub().add(amountRub.divide(lot.quantity(), MathContext.DECIMAL64)), true, lot.costKnown())
+                : lot);
+    }
+
+    /**
+     * Списывает лоты FIFO и фиксирует результат. Доход по лотам старше трех лет учитывается отдельно.
+     * @return Проданное количество: не больше, чем есть в лотах.
+     */
+    public BigDecimal sell(Instant at, BigDecimal quantity, BigDecimal unitPrice) {
+        BigDecimal remaining = quantity;
+        while (remaining.signum() > 0 && !lots.isEmpty()) {
+            TaxLot lot = lots.pollFirst();
+            BigDecimal taken = lot.quantity().min(remaining);
+            // Без цены покупки результат не считается
+            if (lot.costKnown()) {
+                BigDecimal gain = unitPrice.subtract(lot.unitCost()).multiply(taken);
+                if (lot.isExempt(at)) {
+                    exemptRealized = exemptRealized.add(gain);
+                } else {
+                    realized = realized.add(gain);
+                }
+            }
+            if (taken.compareTo(lot.quantity()) < 0) {
+                lots.addFirst(lot.withQuantity(lot.quantity().subtract(taken)));
+            }
+            remaining = remaining.subtract(taken);
+        }
+        changed(at, remaining);
+        return quantity.subtract(remaining);
+    }
+
+    /**
+     * Вывод бумаг к другому брокеру: лоты списываются по себестоимости, результата нет.
+     */
+    public void transferOut(Instant at, BigDecimal quantity) {
+        BigDecimal remaining = quantity;
+        while (remaining.signum() > 0 && !lots.isEmpty()) {
+            TaxLot lot = lots.pollFirst();
+            BigDecimal taken = lot.quantity().min(remaining);
+            if (taken.compareTo(lot.quantity()) < 0) {
+                lots.addFirst(lot.withQuantity(lot.quantity().subtract(taken)));
+            }
+            remaining = remaining.subtract(taken);
+        }
+        changed(at, remaining);
+    }
+
+    /**
+     * Продано или выведено больше, чем есть в лотах: часть покупок в журнал не попала.
+     */
+    private void changed(Instant at, BigDecimal uncovered) {
+        if (uncovered.signum() > 0) {
+            historyComplete = false;
+        }
+        lastChangeAt = at;
+    }
+
+    /**
+     * Частичное погашение номинала (амортизация) уменьшает себестоимость каждой облигации.
+     * @param rate Курс валюты выплаты к рублю на дату погашения
+     */
+    public void amortize(BigDecimal amount, BigDecimal rate) {
+        BigDecimal quantity = getQuantity();
+        if (quantity.signum() == 0) {
+            return;
+        }
+        BigDecimal perUnit = amount.divide(quantity, MathContext.DECIMAL64);
+        BigDecimal perUnitRub = perUnit.multiply(rate);
+        replaceLots(lot -> lot.costKnown()
+                ? new TaxLot(lot.operationId(), lot.acquired(), lot.quantity(), lot.unitCost().subtract(perUnit),
+                        lot.unitCostRub().subtract(perUnitRub), lot.commissionIncluded(), true)
+                : lot);
+    }
+
+    /**
+     * Сплит или консолидация: количество умножается на коэффициент, общая себестоимость лота не меняется.
+     */
+    public void split(BigDecimal ratio) {
+        replaceLots(lot -> new TaxLot(lot.operationId(), lot.acquired(), lot.quantity().multiply(ratio),
+                lot.unitCost().divide(ratio, MathContext.DECIMAL64),
+                lot.unitCostRub().divide(ratio, MathContext.DECIMAL64), lot.commissionIncluded(), lot.costKnown()));
+    }
+
+    /**
+     * Заменяет каждый лот, сохраняя порядок FIFO: у очереди нет замены на месте.
+     */
+    private void replaceLots(UnaryOperator<TaxLot> replacement) {
+        for (int i = lots.size(); i > 0; i--) {
+            lots.addLast(replacement.apply(lots.pollFirst()));
+        }
+    }
+
+    public void addIncome(BigDecimal amount) {
+        income = income.add(amount);
+    }
+
+    public void addFee(BigDecimal amount) {
+        fees = fees.add(amount);
+    }
+
+    public void addTax(BigDecimal amount) {
+        taxes = taxes.add(amount);
+    }
+
+    public String getFigi() {
+        return figi;
+    }
+
+    public List<TaxLot> getLots() {
+        return List.copyOf(lots);
+    }
+
+    public BigDecimal getQuantity() {
+        return lots.stream().map(TaxLot::quantity).reduce(BigDecimal.ZERO, BigDecimal::add);
+    }
+
+    /**
+     * Журнал покрывает бумагу с первой покупки: до нее по бумаге не было событий
+     * и ни одна продажа не превысила количество в лотах.
+     */
+    public boolean isHistoryComplete() {
+        return historyComplete;
+    }
+
+    /**
+     * Дата последней операции, изменившей количество, или null, если бумаги не было.
+     */
+    public Instant getLastChangeAt() {
+        return lastChangeAt;
+    }
+
+    /**
+     * Количество в лотах с неизвестной ценой покупки.
+     */
+    public BigDecimal getUnknownCostQuantity() {
+        return lots.stream().filter(lot -> !lot.costKnown()).map(TaxLot::quantity).reduce(BigDecimal.ZERO, BigDecimal::add);
+    }
+
+    public BigDecimal getCostBasis() {
+        return lots.stream().filter(TaxLot::costKnown)
+                .map(lot -> lot.unitCost().multiply(lot.quantity())).reduce(BigDecimal.ZERO, BigDecimal::add);
+    }
+
+    /**
+     * Количество в лотах, которые уже подпадают под льготу трех лет.
+     */
+    public BigDecimal getExemptQuantity(Instant at) {
+        return lots.stream().filter(lot -> lot.isExempt(at)).map(TaxLot::quantity).reduce(BigDecimal.ZERO, BigDecimal::add);
+    }
+
+    public BigDecimal getUnrealized(BigDecimal price) {
+        return price.multiply(getQuantity().subtract(getUnknownCostQuantity())).subtract(getCostBasis());
+    }
+
+    public BigDecimal getRealized() {
+        return realized;
+    }
+
+    public BigDecimal getExemptRealized() {
+        return exemptRealized;
+    }
+
+    public BigDecimal getIncome() {
+        return income;
+    }
+
+    public BigDecimal getFees() {
+        return fees;
+    }
+
+    public BigDecimal getTaxes() {
+        return taxes;
+    }
+
+    /**
+     * Налогооблагаемый и льготный доход от продажи в рублях без изменения лотов.
+     * Брокер списывает лоты строго по FIFO, поэтому оценка останавливается на первом лоте
+     * с неизвестной ценой: налог с него и со всего, что за ним, не оценить.
+     * @param unitProceedsRub Выручка за штуку в рублях по текущему курсу за вычетом комиссии продажи
+     */
+    public SaleEstimate simulateSale(Instant at, BigDecimal quantity, BigDecimal unitProceedsRub) {
+        BigDecimal taxable = BigDecimal.ZERO;
+        BigDecimal exempt = BigDecimal.ZERO;
+        BigDecimal remaining = quantity;
+        for (TaxLot lot : lots) {
+            if (remaining.signum() <= 0 || !lot.costKnown()) {
+                break;
+            }
+            BigDecimal taken = lot.quantity().min(remaining);
+            BigDecimal gain = unitProceedsRub.subtract(lot.unitCostRub()).multiply(taken);
+            if (lot.isExempt(at)) {
+                exempt = exempt.add(gain);
+            } else {
+                taxable = taxable.add(gain);
+            }
+            remaining = remaining.subtract(taken);
+        }
+        return new SaleEstimate(quantity.subtract(remaining), taxable, exempt);
+    }
+}
@@ -0,0 +1,16 @@
+package org.invest.bot.invest.core.modules.lots;
+
+import java.math.BigDecimal;
+
+/**
+ * Часть продажи, приходящаяся на один счет. Доходы и налог - в рублях.
+ * @param tax Оценка налога с облагаемого дохода этой части
+ */
+public record LotSelection(
+        String accountId,
+        String accountName,
+        BigDecimal quantity,
+        BigDecimal taxableGain,
+        BigDecimal exemptGain,
+        BigDecimal tax
+) {}
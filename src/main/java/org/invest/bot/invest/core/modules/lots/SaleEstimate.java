@@ -0,0 +1,12 @@
+package org.invest.bot.invest.core.modules.lots;
+
+import java.math.BigDecimal;
+
+/**
+ * Результат пробной продажи по FIFO. Доходы в рублях: выручка и расходы пересчитаны по курсам
+ * дней продажи и покупки, комиссии уменьшают доход.
+ * @param quantity Количество, которое покрыто лотами
+ * @param taxableGain Доход по лотам без льготы (может быть отрицательным)
+ * @param exemptGain Доход по лотам старше трех лет
+ */
+public record SaleEstimate(BigDecimal quantity, BigDecimal taxableGain, BigDecimal exemptGain) {}
@@ -0,0 +1,29 @@
+package org.invest.bot.invest.core.modules.lots;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+/**
+ * Налоговый лот: часть позиции, купленная одной сделкой.
+ * @param operationId Операция покупки - по ней к лоту привязывается комиссия, пришедшая отдельной операцией
+ * @param unitCost Цена покупки за штуку в валюте инструмента
+ * @param unitCostRub Расход на покупку штуки в рублях по курсу дня покупки, вместе с комиссией - база для налога
+ * @param commissionIncluded Комиссия покупки уже учтена в {@code unitCostRub}
+ * @param costKnown Цена покупки известна. У бумаг, заведенных переводом от другого брокера, ее в операциях нет
+ */
+public record TaxLot(String operationId, Instant acquired, BigDecimal quantity, BigDecimal unitCost,
+                     BigDecimal unitCostRub, boolean commissionIncluded, boolean costKnown) {
+    public static final int EXEMPTION_YEARS = 3;
+
+    /**
+     * Льгота долгосрочного владения: доход по бумагам, которыми владели больше трех лет, не облагается.
+     */
+    public boolean isExempt(Instant at) {
+        return acquired.atZone(ZoneOffset.UTC).plusYears(EXEMPTION_YEARS).toInstant().isBefore(at);
+    }
+
+    public TaxLot withQuantity(BigDecimal quantity) {
+        return new TaxLot(operationId, acquired, quantity, unitCost, unitCostRub, commissionIncluded, costKnown);
+    }
+}
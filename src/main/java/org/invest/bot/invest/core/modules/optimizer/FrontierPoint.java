@@ -0,0 +1,15 @@
+package org.invest.bot.invest.core.modules.optimizer;
+
+/**
+ * Точка эффективной границы. Доходность и риск годовые, в долях.
+ */
+public record FrontierPoint(
+        double riskAversion,
+        double expectedReturn,
+        double volatility,
+        double[] weights
+) {
+    public double sharpe(double riskFreeRate) {
+        return volatility > 0 ? (expectedReturn - riskFreeRate) / volatility : 0;
+    }
+}
@@ -0,0 +1,179 @@
+package org.invest.bot.invest.core.modules.optimizer;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Решатель задачи Марковица max μ'w - λ/2·w'Σw при ограничениях стратегии:
+ * 0 ≤ w_i ≤ cap_i, Σw = 1 и минимальные суммарные доли групп (облигации, защита).
+ * Используется проекционный градиентный подъем с шагом 1/(λ·L), где L - наибольшее собственное значение Σ.
+ */
+public class MeanVarianceOptimizer {
+    private static final int GRADIENT_STEPS = 400;
+    private static final int BISECTION_STEPS = 60;
+    private static final double EPSILON = 1e-9;
+
+    private final double[] mean;
+    private final double[][] covariance;
+    private final double[] caps;
+    private final List<int[]> groups;
+    private final double[] groupMinimums;
+    private final double largestEigenvalue;
+
+    public MeanVarianceOptimizer(double[] mean, double[][] covariance, double[] caps, List<int[]> groups, double[] groupMinimums) {
+        this.mean = mean;
+        this.covariance = covariance;
+        this.caps = caps;
+        this.groups = groups;
+        this.groupMinimums = groupMinimums;
+        this.largestEigenvalue = largestEigenvalue(covariance);
+    }
+
+    public FrontierPoint solve(double riskAversion) {
+        int n = mean.length;
+        double[] weights = project(filled(n, 1.0 / n));
+        double step = 1.0 / Math.max(riskAversion * largestEigenvalue, EPSILON);
+        double[] gradient = new double[n];
+        for (int iteration = 0; iteration < GRADIENT_STEPS; iteration++) {
+            for (int i = 0; i < n; i++) {
+                double covarianceTerm = 0;
+                for (int j = 0; j < n; j++) {
+                    covarianceTerm += covariance[i][j] * weights[j];
+                }
+                gradient[i] = mean[i] - riskAversion * covarianceTerm;
+            }
+            double[] next = weights.clone();
+            for (int i = 0; i < n; i++) {
+                next[i] += step * gradient[i];
+            }
+            next = project(next);
+            double change = 0;
+            for (int i = 0; i < n; i++) {
+                change += Math.abs(next[i] - weights[i]);
+            }
+            weights = next;
+            if (change < EPSILON) {
+                break;
+            }
+        }
+        return new FrontierPoint(riskAversion, dot(mean, weights), Math.sqrt(Math.max(quadratic(weights), 0)), weights);
+    }
+
+    /**
+     * Приближенная евклидова проекция на множество ограничений. Из условий ККТ:
+     * w_i = clip(x_i - τ + ν_g, 0, cap_i), где τ - множитель для Σw = 1, ν_g ≥ 0 - множитель минимума группы g.
+     * Сумма весов монотонна по τ, поэтому τ ищется бисекцией, а ν_g для каждого τ - вложенной бисекцией.
+     * Точность множителей ограничена числом шагов {@code BISECTION_STEPS}.
+     */
+    private double[] project(double[] point) {
+        double low = Arrays.stream(point).min().orElse(0) - 1;
+        double high = Arrays.stream(point).max().orElse(0) + 1;
+        double[] weights = new double[point.length];
+        for (int iteration = 0; iteration < BISECTION_STEPS; iteration++) {
+            double shift = (low + high) / 2;
+            if (sum(weightsFor(point, shift, weights)) > 1) {
+                low = shift;
+            } else {
+                high = shift;
+            }
+        }
+        return weightsFor(point, high, weights).clone();
+    }
+
+    private double[] weightsFor(double[] point, double shift, double[] weights) {
+        for (int i = 0; i < point.length; i++) {
+            weights[i] = clip(point[i] - shift, i);
+        }
+        for (int g = 0; g < groups.size(); g++) {
+            int[] group = groups.get(g);
+            if (groupSum(point, group, shift) >= groupMinimums[g]) {
+                continue;
+            }
+            double low = 0;
+            double high = shift - Arrays.stream(group).mapToDouble(i -> point[i]).min().orElse(0) + 1;
+            for (int iteration = 0; iteration < BISECTION_STEPS; iteration++) {
+                double boost = (low + high) / 2;
+                if (groupSum(point, group, shift - boost) >= groupMinimums[g]) {
+                    high = boost;
+                } else {
+                    low = boost;
+                }
+            }
+            for (int i : group) {
+                weights[i] = clip(point[i] - shift + high, i);
+            }
+        }
+        return weights;
+    }
+
+    private double groupSum(double[] point, int[] group, double shift) {
+        double result = 0;
+        for (int i : group) {
+            result += clip(point[i] - shift, i);
+        }
+        return result;
+    }
+
+    private double clip(double value, int i) {
+        return Math.min(Math.max(value, 0), caps[i]);
+    }
+
+    private static double sum(double[] values) {
+        double result = 0;
+        for (double value : values) {
+            result += value;
+        }
+        return result;
+    }
+
+    private double quadratic(double[] weights) {
+        double result = 0;
+        for (int i = 0; i < weights.length; i++) {
+            for (int j = 0; j < weights.length; j++) {
+                result += weights[i] * covariance[i][j] * weights[j];
+            }
+        }
+        return result;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double result = 0;
+        for (int i = 0; i < a.length; i++) {
+            result += a[i] * b[i];
+        }
+        return result;
+    }
+
+    private static double[] filled(int n, double value) {
+        double[] result = new double[n];
+        Arrays.fill(result, value);
+        return result;
+    }
+
+    /**
+     * Оценка наибольшего собственного значения степенным методом - задает безопасный шаг градиента.
+     */
+    private static double largestEigenvalue(double[][] matrix) {
+        int n = matrix.length;
+        double[] vector = filled(n, 1.0 / Math.sqrt(Math.max(n, 1)));
+        double eigenvalue = 0;
+        for (int iteration = 0; iteration < 50; iteration++) {
+            double[] next = new double[n];
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    next[i] += matrix[i][j] * vector[j];
+                }
+            }
+            double norm = Math.sqrt(dot(next, next));
+            if (norm < EPSILON) {
+                return EPSILON;
+            }
+            for (int i = 0; i < n; i++) {
+                next[i] /= norm;
+            }
+            eigenvalue = norm;
+            vector = next;
+        }
+        return eigenvalue;
+    }
+}
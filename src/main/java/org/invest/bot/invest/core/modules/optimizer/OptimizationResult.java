@@ -0,0 +1,19 @@
+package org.invest.bot.invest.core.modules.optimizer;
+
+import org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Итог оптимизации: граница, рекомендованная точка (максимум Шарпа) и предлагаемые целевые доли категорий в процентах.
+ */
+public record OptimizationResult(
+        List<String> tickers,
+        List<PortfolioInstrumentStructure> categories,
+        List<FrontierPoint> frontier,
+        FrontierPoint suggested,
+        Map<PortfolioInstrumentStructure, Double> suggestedTargets,
+        double riskFreeRate,
+        long elapsedMillis
+) {}
@@ -0,0 +1,160 @@
+package org.invest.bot.invest.core.modules.optimizer;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.api.InvestApiCore;
+import org.invest.bot.invest.core.modules.balanse.ActualDistribution;
+import org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure;
+import org.invest.bot.invest.core.modules.history.HistoryService;
+import org.invest.bot.invest.core.modules.history.PriceHistory;
+import org.invest.bot.invest.core.modules.instruments.WhiteListOfShares;
+import org.invest.bot.invest.core.modules.risk.RollingCovariance;
+import org.invest.bot.invest.core.objects.InstrumentObj;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.Instrument;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+import static org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure.*;
+
+/**
+ * Строит эффективную границу по истории доходностей текущих позиций и кандидатов из белого списка
+ * и предлагает целевые доли категорий. Точки границы считаются параллельно.
+ * Ограничения стратегии «Ядро-Спутники»: лимит на один спутник и на одну облигацию,
+ * минимальные доли облигаций и защиты (цель минус допуск).
+ */
+@Service
+@Slf4j
+public class OptimizerService {
+    private static final int HISTORY_DAYS = 3 * 365;
+    private static final int TRADING_DAYS = 252;
+    private static final int FRONTIER_POINTS = 40;
+    private static final String CASH_TICKER = "RUB000UTSTOM";
+
+    private final InvestApiCore apiCore;
+    private final HistoryService historyService;
+    private final double riskFreeRate;
+
+    public OptimizerService(InvestApiCore apiCore,
+                            HistoryService historyService,
+                            @Value("${optimizer.risk-free-rate:0.16}") double riskFreeRate) {
+        this.apiCore = apiCore;
+        this.historyService = historyService;
+        this.riskFreeRate = riskFreeRate;
+    }
+
+    public OptimizationResult optimize(List<InstrumentObj> holdings) {
+        long started = System.currentTimeMillis();
+        Map<String, Candidate> candidates = collectCandidates(holdings);
+        List<Candidate> universe = new ArrayList<>(candidates.values());
+        PriceHistory history = historyService.loadCloses(universe.stream().map(Candidate::figi).toList(), HISTORY_DAYS);
+        if (history.dayCount() < 2) {
+            throw new IllegalStateException("Недостаточно истории цен для оптимизации");
+        }
+        int n = universe.size();
+        double[][] returns = history.returns();
+        RollingCovariance statistics = new RollingCovariance(n, returns[0].length);
+        for (int t = 0; t < returns[0].length; t++) {
+            double[] day = new double[n];
+            for (int i = 0; i < n; i++) {
+                day[i] = returns[i][t];
+            }
+            statistics.add(day);
+        }
+        double[] mean = statistics.getMean();
+        double[][] covariance = statistics.covarianceMatrix();
+        for (int i = 0; i < n; i++) {
+            mean[i] *= TRADING_DAYS;
+            for (int j = 0; j < n; j++) {
+                covariance[i][j] *= TRADING_DAYS;
+            }
+        }
+
+        double[] caps = new double[n];
+        for (int i = 0; i < n; i++) {
+            PortfolioInstrumentStructure limit = switch (universe.get(i).category()) {
+                case TARGET_STOCK_SATELLITE -> SATELLITE_CONCENTRATION_LIMIT;
+                case TARGET_BOND -> BOND_CONCENTRATION_LIMIT;
+                default -> null;
+            };
+            caps[i] = limit == null ? 1 : limit.value.doubleValue() / 100;
+        }
+        List<int[]> groups = new ArrayList<>();
+        List<Double> minimums = new ArrayList<>();
+        addMinimum(universe, caps, TARGET_BOND, groups, minimums);
+        addMinimum(universe, caps, TARGET_PROTECTION, groups, minimums);
+        MeanVarianceOptimizer optimizer = new MeanVarianceOptimizer(mean, covariance, caps, groups,
+                minimums.stream().mapToDouble(Double::doubleValue).toArray());
+
+        List<FrontierPoint> frontier = IntStream.range(0, FRONTIER_POINTS).parallel()
+                .mapToObj(k -> optimizer.solve(Math.pow(10, -0.5 + 3.0 * k / (FRONTIER_POINTS - 1))))
+                .sorted(Comparator.comparingDouble(FrontierPoint::volatility))
+                .toList();
+        FrontierPoint suggested = frontier.stream()
+                .max(Comparator.comparingDouble(point -> point.sharpe(riskFreeRate)))
+                .orElseThrow();
+
+        Map<PortfolioInstrumentStructure, Double> targets = new EnumMap<>(PortfolioInstrumentStructure.class);
+        for (PortfolioInstrumentStructure category : getInsValues()) {
+            targets.put(category, 0.0);
+        }
+        for (int i = 0; i < n; i++) {
+            targets.merge(universe.get(i).category(), suggested.weights()[i] * 100, Double::sum);
+        }
+        long elapsed = System.currentTimeMillis() - started;
+        log.info("Оптимизация: {} инструментов, {} точек границы за {} мс.", n, frontier.size(), elapsed);
+        return new OptimizationResult(universe.stream().map(Candidate::ticker).toList(),
+                universe.stream().map(Candidate::category).toList(),
+                frontier, suggested, targets, riskFreeRate, elapsed);
+    }
+
+    /**
+     * Минимум группы: цель категории минус допуск. Если лимиты на одну бумагу не позволяют его достичь,
+     * минимум снижается до достижимого, иначе ограничения несовместны.
+     */
+    private void addMinimum(List<Candidate> universe, double[] caps, PortfolioInstrumentStructure category,
+                            List<int[]> groups, List<Double> minimums) {
+        int[] group = IntStream.range(0, universe.size()).filter(i -> universe.get(i).category() == category).toArray();
+        if (group.length == 0) {
+            log.warn("Нет кандидатов в категории {}, минимум доли не применяется.", category);
+            return;
+        }
+        double minimum = category.value.subtract(ALLOCATION_TOLERANCE.value).doubleValue() / 100;
+        double reachable = Arrays.stream(group).mapToDouble(i -> caps[i]).sum();
+        if (reachable < minimum) {
+            log.warn("Минимум для {} снижен с {} до {}: недостаточно бумаг с учетом лимита концентрации.",
+                    category, minimum, reachable);
+            minimum = reachable;
+        }
+        groups.add(group);
+        minimums.add(minimum);
+    }
+
+    private Map<String, Candidate> collectCandidates(List<InstrumentObj> holdings) {
+        Map<String, Candidate> candidates = new LinkedHashMap<>();
+        for (InstrumentObj holding : holdings) {
+            PortfolioInstrumentStructure category = ActualDistribution.categoryOf(holding);
+            // Рублевый кэш в оптимизации не участвует: его доходность не видна по свечам.
+            // Валюта защиты (доллар) остается: ее доходность видна по свечам биржевого курса
+            if (category != null && !CASH_TICKER.equals(holding.getTicker())) {
+                candidates.put(holding.getFigi(), new Candidate(holding.getFigi(), holding.getTicker(), category));
+            }
+        }
+        for (WhiteListOfShares share : WhiteListOfShares.values()) {
+            candidates.putIfAbsent(share.getFigi(), new Candidate(share.getFigi(), share.name(), TARGET_STOCK_SATELLITE));
+        }
+        addPurchaseCandidate(candidates, getCorePurchaseTicker(), TARGET_STOCK_CORE);
+        addPurchaseCandidate(candidates, getReservePurchaseTicker(), TARGET_RESERVE);
+        addPurchaseCandidate(candidates, getProtectionPurchaseTicker(), TARGET_PROTECTION);
+        return candidates;
+    }
+
+    private void addPurchaseCandidate(Map<String, Candidate> candidates, Optional<String> ticker, PortfolioInstrumentStructure category) {
+        ticker.map(apiCore::getInstrumentByTicker)
+                .map(Instrument::getFigi)
+                .ifPresent(figi -> candidates.putIfAbsent(figi, new Candidate(figi, ticker.get(), category)));
+    }
+
+    private record Candidate(String figi, String ticker, PortfolioInstrumentStructure category) {}
+}
@@ -0,0 +1,19 @@
+package org.invest.bot.invest.core.modules.performance;
+
+import java.time.LocalDate;
+
+/**
+ * Доходность за период.
+ * @param twr Доходность, взвешенная по времени: не зависит от момента пополнений
+ * @param xirr Годовая доходность, взвешенная по деньгам; NaN, если ее нельзя вычислить
+ * @param netFlows Пополнения минус выводы за период в рублях
+ */
+public record PerformanceResult(
+        LocalDate from,
+        LocalDate to,
+        double twr,
+        double xirr,
+        double startValue,
+        double endValue,
+        double netFlows
+) {}
@@ -0,0 +1,258 @@
+package org.invest.bot.invest.core.modules.performance;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.core.modules.accounts.ConsolidatedPortfolioService;
+import org.invest.bot.invest.core.modules.fx.FxRateService;
+import org.invest.bot.invest.core.modules.history.HistoryService;
+import org.invest.bot.invest.core.modules.journal.JournalEntry;
+import org.invest.bot.invest.core.modules.journal.OperationCategory;
+import org.invest.bot.invest.core.modules.journal.OperationJournalService;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.Account;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Доходность счетов по времени (TWR) и по деньгам (XIRR).
+ * Дневная стоимость восстанавливается из журнала операций: количество бумаг и остатки валют на каждый день
+ * умножаются на цены закрытия и курсы. Ряд строится раз в день на счет, а доходность за любой
+ * период берется из готового ряда.
+ */
+@Service
+@Slf4j
+public class PerformanceService {
+    private static final String RUB = "rub";
+
+    private final OperationJournalService journalService;
+    private final ConsolidatedPortfolioService consolidatedPortfolioService;
+    private final HistoryService historyService;
+    private final FxRateService fxRateService;
+    private final Map<String, CachedSeries> cache = new ConcurrentHashMap<>();
+
+    public PerformanceService(OperationJournalService journalService,
+                              ConsolidatedPortfolioService consolidatedPortfolioService,
+                              HistoryService historyService,
+                              FxRateService fxRateService) {
+        this.journalService = journalService;
+        this.consolidatedPortfolioService = consolidatedPortfolioService;
+        this.historyService = historyService;
+        this.fxRateService = fxRateService;
+    }
+
+    /**
+     * Доходность счета за период.
+     * @param accountId Счет или {@link ConsolidatedPortfolioService#CONSOLIDATED_ACCOUNT_ID} для всех счетов
+     */
+    public PerformanceResult performance(String accountId, LocalDate from, LocalDate to) {
+        ValuationSeries series = series(accountId);
+        return series.isEmpty() ? null : series.performance(from, to);
+    }
+
+    /**
+     * Стандартные периоды для сводки: месяц, с начала года, год и вся история.
+     */
+    public Map<String, PerformanceResult> summary(String accountId) {
+        ValuationSeries series = series(accountId);
+        Map<String, PerformanceResult> result = new LinkedHashMap<>();
+        if (series.isEmpty()) {
+            return result;
+        }
+        LocalDate today = series.lastDate();
+        result.put("1М", series.performance(today.minusMonths(1), today));
+        result.put("YTD", series.performance(today.withDayOfYear(1).minusDays(1), today));
+        result.put("1Г", series.performance(today.minusYears(1), today));
+        result.put("Всё время", series.performance(series.firstDate(), today));
+        return result;
+    }
+
+    /**
+     * Ряд стоимости счета. Пересчитывается, если сменился день или в журнале появились операции.
+     */
+    public ValuationSeries series(String accountId) {
+        if (ConsolidatedPortfolioService.CONSOLIDATED_ACCOUNT_ID.equals(accountId)) {
+            List<Account> accounts = consolidatedPortfolioService.syncJournals();
+            return ValuationSeries.sum(accounts.stream().map(account -> accountSeries(account.getId())).toList());
+        }
+        consolidatedPortfolioService.syncJournals(Set.of(accountId));
+        return accountSeries(accountId);
+    }
+
+    private ValuationSeries accountSeries(String accountId) {
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        int version = journalService.size(accountId);
+        CachedSeries cached = cache.get(accountId);
+        if (cached != null && cached.builtOn().equals(today) && cached.version() == version) {
+            return cached.series();
+        }
+        long started = System.currentTimeMillis();
+        ValuationSeries series = build(accountId, today);
+        cache.put(accountId, new CachedSeries(today, version, series));
+        log.info("Ряд стоимости счета {} построен за {} мс.", accountId, System.currentTimeMillis() - started);
+        return series;
+    }
+
+    /**
+     * Два потоковых прохода по журналу: первый собирает инструменты и валюты, второй идет по дням
+     * и копит количества, остатки и внешние потоки.
+     */
+    private ValuationSeries build(String accountId, LocalDate today) {
+        Map<String, String> instrumentCurrency = new HashMap<>();
+        Set<String> currencies = new HashSet<>();
+        LocalDate[] first = new LocalDate[1];
+        journalService.forEach(accountId, entry -> {
+            if (first[0] == null) {
+                first[0] = day(entry);
+            }
+            String currency = entry.currency() == null || entry.currency().isEmpty() ? RUB : entry.currency().toLowerCase();
+            currencies.add(currency);
+            if (isHolding(entry)) {
+                instrumentCurrency.putIfAbsent(entry.figi(), currency);
+            }
+        });
+        if (first[0] == null) {
+            return new ValuationSeries(new LocalDate[0], new double[0], new double[0]);
+        }
+        LocalDate start = first[0];
+
+        Map<String, NavigableMap<LocalDate, Double>> closes = new HashMap<>();
+        for (String figi : instrumentCurrency.keySet()) {
+            closes.put(figi, historyService.getCloses(figi, start));
+        }
+        Map<String, NavigableMap<LocalDate, Double>> fx = new HashMap<>();
+        for (String currency : currencies) {
+            fx.put(currency, fxRateService.getHistory(currency, start));
+        }
+
+        DailyState state = new DailyState(start, today, instrumentCurrency, closes, fx);
+        journalService.forEach(accountId, state::apply);
+        return state.finish();
+    }
+
+    private static boolean isHolding(JournalEntry entry) {
+        if (entry.figi() == null || entry.figi().isEmpty()) {
+            return false;
+        }
+        OperationCategory category = OperationCategory.of(entry.type());
+        return category == OperationCategory.BUY || category == OperationCategory.SELL
+                || category == OperationCategory.TRANSFER_IN || category == OperationCategory.TRANSFER_OUT;
+    }
+
+    private static LocalDate day(JournalEntry entry) {
+        return entry.date().atZone(ZoneOffset.UTC).toLocalDate();
+    }
+
+    /**
+     * Состояние счета при проходе по журналу. Закрывает дни по мере того, как операции уходят в следующие даты.
+     */
+    private static final class DailyState {
+        private final LocalDate today;
+        private final Map<String, String> instrumentCurrency;
+        private final Map<String, NavigableMap<LocalDate, Double>> closes;
+        private final Map<String, NavigableMap<LocalDate, Double>> fx;
+        private final Map<String, Double> quantities = new HashMap<>();
+        private final Map<String, Double> cash = new HashMap<>();
+        /** Последняя цена сделки - на случай, если свечей по бумаге нет */
+        private final Map<String, Double> tradePrices = new HashMap<>();
+        private final List<LocalDate> dates = new ArrayList<>();
+        private final List<double[]> points = new ArrayList<>();
+        private LocalDate current;
+        private double dayFlow;
+
+        private DailyState(LocalDate start, LocalDate today, Map<String, String> instrumentCurrency,
+                           Map<String, NavigableMap<LocalDate, Double>> closes,
+                           Map<String, NavigableMap<LocalDate, Double>> fx) {
+            this.current = start;
+            this.today = today;
+            this.instrumentCurrency = instrumentCurrency;
+            this.closes = closes;
+            this.fx = fx;
+        }
+
+        private void apply(JournalEntry entry) {
+            LocalDate date = day(entry);
+            while (current.isBefore(date)) {
+                closeDay();
+            }
+            String currency = entry.currency() == null || entry.currency().isEmpty() ? RUB : entry.currency().toLowerCase();
+            double payment = entry.payment().doubleValue();
+            cash.merge(currency, payment, Double::sum);
+            if (isHolding(entry)) {
+                double quantity = entry.quantity();
+                OperationCategory category = OperationCategory.of(entry.type());
+                boolean incoming = category == OperationCategory.BUY || category == OperationCategory.TRANSFER_IN;
+                quantities.merge(entry.figi(), incoming ? quantity : -quantity, Double::sum);
+                if (entry.price() != null && entry.price().signum() > 0) {
+                    tradePrices.put(entry.figi(), entry.price().doubleValue());
+                }
+                if (category == OperationCategory.TRANSFER_IN || category == OperationCategory.TRANSFER_OUT) {
+                    // Бумаги, пришедшие от другого брокера, - такое же внешнее пополнение, как деньги
+                    double value = quantity * price(entry.figi(), date) * rate(instrumentCurrency.get(entry.figi()), date);
+                    dayFlow += incoming ? value : -value;
+                }
+            } else if (OperationCategory.of(entry.type()) == OperationCategory.CASH) {
+                dayFlow += payment * rate(currency, date);
+            }
+        }
+
+        private ValuationSeries finish() {
+            while (!current.isAfter(today)) {
+                closeDay();
+            }
+            LocalDate[] dateArray = dates.toArray(new LocalDate[0]);
+            double[] values = new double[points.size()];
+            double[] flows = new double[points.size()];
+            for (int t = 0; t < points.size(); t++) {
+                values[t] = points.get(t)[0];
+                flows[t] = points.get(t)[1];
+            }
+            return new ValuationSeries(dateArray, values, flows);
+        }
+
+        private void closeDay() {
+            double value = 0;
+            for (Map.Entry<String, Double> position : quantities.entrySet()) {
+                if (position.getValue() != 0) {
+                    value += position.getValue() * price(position.getKey(), current)
+                            * rate(instrumentCurrency.get(position.getKey()), current);
+                }
+            }
+            for (Map.Entry<String, Double> balance : cash.entrySet()) {
+                value += balance.getValue() * rate(balance.getKey(), current);
+            }
+            // Выходные и праздники без операций не добавляют точек: цены в эти дни не меняются
+            boolean tradingDay = current.getDayOfWeek().getValue() < 6;
+            if (tradingDay || dayFlow != 0 || current.equals(today)) {
+                dates.add(current);
+                points.add(new double[]{value, dayFlow});
+            }
+            dayFlow = 0;
+            current = current.plusDays(1);
+        }
+
+        private double price(String figi, LocalDate date) {
+            NavigableMap<LocalDate, Double> series = closes.get(figi);
+            Map.Entry<LocalDate, Double> close = series == null ? null : series.floorEntry(date);
+            if (close != null) {
+                return close.getValue();
+            }
+            return tradePrices.getOrDefault(figi, 0.0);
+        }
+
+        private double rate(String currency, LocalDate date) {
+            if (currency == null || RUB.equals(currency)) {
+                return 1;
+            }
+            NavigableMap<LocalDate, Double> series = fx.get(currency);
+            if (series == null || series.isEmpty()) {
+                return 1;
+            }
+            Map.Entry<LocalDate, Double> close = series.floorEntry(date);
+            return close != null ? close.getValue() : series.firstEntry().getValue();
+        }
+    }
+
+    private record CachedSeries(LocalDate builtOn, int version, ValuationSeries series) {}
+}
@@ -0,0 +1,123 @@
+package org.invest.bot.invest.core.modules.performance;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Дневная стоимость счета и внешние потоки в рублях.
+ * Накопленный рост хранится префиксным произведением, поэтому TWR за любой период считается за O(1).
+ */
+public class ValuationSeries {
+    private final LocalDate[] dates;
+    private final double[] values;
+    private final double[] flows;
+    private final double[] growth;
+
+    /**
+     * @param values Стоимость на конец дня
+     * @param flows Пополнения (+) и выводы (-) за день; считаются пришедшими в конце дня
+     */
+    public ValuationSeries(LocalDate[] dates, double[] values, double[] flows) {
+        this.dates = dates;
+        this.values = values;
+        this.flows = flows;
+        this.growth = new double[dates.length];
+        for (int t = 0; t < dates.length; t++) {
+            double previous = t == 0 ? 0 : values[t - 1];
+            double dayReturn = previous > 0 ? (values[t] - flows[t]) / previous : 1;
+            growth[t] = (t == 0 ? 1 : growth[t - 1]) * (Double.isFinite(dayReturn) && dayReturn > 0 ? dayReturn : 1);
+        }
+    }
+
+    public boolean isEmpty() {
+        return dates.length == 0;
+    }
+
+    public LocalDate firstDate() {
+        return dates[0];
+    }
+
+    public LocalDate lastDate() {
+        return dates[dates.length - 1];
+    }
+
+    public double lastValue() {
+        return values[values.length - 1];
+    }
+
+    /**
+     * Доходность за период (from, to]: стоимость на конец дня {@code from} - стартовая.
+     * Даты вне ряда прижимаются к его границам.
+     */
+    public PerformanceResult performance(LocalDate from, LocalDate to) {
+        int start = indexAtOrBefore(from);
+        int end = indexAtOrBefore(to);
+        if (start < 0) {
+            start = 0;
+        }
+        if (end <= start) {
+            return new PerformanceResult(dates[start], dates[Math.max(end, start)], 0, Double.NaN,
+                    values[start], values[Math.max(end, start)], 0);
+        }
+        double twr = growth[end] / growth[start] - 1;
+
+        List<double[]> cashFlows = new ArrayList<>();
+        cashFlows.add(new double[]{0, -values[start]});
+        double netFlows = 0;
+        for (int t = start + 1; t <= end; t++) {
+            if (flows[t] != 0) {
+                netFlows += flows[t];
+                cashFlows.add(new double[]{years(dates[start], dates[t]), -flows[t]});
+            }
+        }
+        cashFlows.add(new double[]{years(dates[start], dates[end]), values[end]});
+        double[] times = new double[cashFlows.size()];
+        double[] amounts = new double[cashFlows.size()];
+        for (int i = 0; i < cashFlows.size(); i++) {
+            times[i] = cashFlows.get(i)[0];
+            amounts[i] = cashFlows.get(i)[1];
+        }
+        return new PerformanceResult(dates[start], dates[end], twr, Xirr.solve(amounts, times),
+                values[start], values[end], netFlows);
+    }
+
+    /**
+     * Сумма рядов нескольких счетов по объединению дат. Пропущенный день счета берется по предыдущему.
+     */
+    public static ValuationSeries sum(List<ValuationSeries> parts) {
+        LocalDate[] allDates = parts.stream()
+                .flatMap(part -> Arrays.stream(part.dates))
+                .distinct()
+                .sorted()
+                .toArray(LocalDate[]::new);
+        double[] values = new double[allDates.length];
+        double[] flows = new double[allDates.length];
+        for (ValuationSeries part : parts) {
+            int cursor = -1;
+            for (int t = 0; t < allDates.length; t++) {
+                while (cursor + 1 < part.dates.length && !part.dates[cursor + 1].isAfter(allDates[t])) {
+                    cursor++;
+                    if (part.dates[cursor].equals(allDates[t])) {
+                        flows[t] += part.flows[cursor];
+                    }
+                }
+                if (cursor >= 0) {
+                    values[t] += part.values[cursor];
+                }
+            }
+        }
+        return new ValuationSeries(allDates, values, flows);
+    }
+
+    private int indexAtOrBefore(LocalDate date) {
+        int index = Arrays.binarySearch(dates, date);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private static double years(LocalDate from, LocalDate to) {
+        return ChronoUnit.DAYS.between(from, to) / 365.0;
+    }
+}
@@ -0,0 +1,71 @@
+package org.invest.bot.invest.core.modules.performance;
+
+/**
+ * Внутренняя норма доходности для нерегулярных потоков (XIRR).
+ * Метод Ньютона с защитой: корень все время зажат в отрезке со сменой знака,
+ * и если шаг Ньютона выходит за отрезок или сходится медленно, делается шаг бисекции.
+ */
+public final class Xirr {
+    private static final double MIN_RATE = -0.999999;
+    private static final double MAX_RATE = 1_000;
+    private static final double TOLERANCE = 1e-10;
+    private static final int MAX_ITERATIONS = 200;
+
+    private Xirr() {
+    }
+
+    /**
+     * @param amounts Потоки с точки зрения инвестора: вложения отрицательные, стоимость на конец - положительная
+     * @param years Время каждого потока в годах от первого
+     * @return Годовая ставка или NaN, если корня нет (например, все потоки одного знака).
+     */
+    public static double solve(double[] amounts, double[] years) {
+        double low = MIN_RATE;
+        double high = 1;
+        double fLow = npv(amounts, years, low);
+        double fHigh = npv(amounts, years, high);
+        while (fLow * fHigh > 0 && high < MAX_RATE) {
+            high = high * 2 + 1;
+            fHigh = npv(amounts, years, high);
+        }
+        if (Double.isNaN(fLow) || Double.isNaN(fHigh) || fLow * fHigh > 0) {
+            return Double.NaN;
+        }
+        double rate = 0.1 > low && 0.1 < high ? 0.1 : (low + high) / 2;
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            double value = npv(amounts, years, rate);
+            if (Math.abs(value) < TOLERANCE || high - low < TOLERANCE) {
+                return rate;
+            }
+            if (value * fLow > 0) {
+                low = rate;
+                fLow = value;
+            } else {
+                high = rate;
+            }
+            double derivative = derivative(amounts, years, rate);
+            double next = derivative == 0 ? Double.NaN : rate - value / derivative;
+            // Шаг Ньютона принимается, только если остается внутри отрезка
+            rate = next > low && next < high ? next : (low + high) / 2;
+        }
+        return rate;
+    }
+
+    private static double npv(double[] amounts, double[] years, double rate) {
+        double base = Math.log1p(rate);
+        double sum = 0;
+        for (int i = 0; i < amounts.length; i++) {
+            sum += amounts[i] * Math.exp(-years[i] * base);
+        }
+        return sum;
+    }
+
+    private static double derivative(double[] amounts, double[] years, double rate) {
+        double base = Math.log1p(rate);
+        double sum = 0;
+        for (int i = 0; i < amounts.length; i++) {
+            sum -= years[i] * amounts[i] * Math.exp(-(years[i] + 1) * base);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,23 @@
+package org.invest.bot.invest.core.modules.risk;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Риск-метрики портфеля. Волатильности годовые, VaR однодневный с уровнем 95% в долях от стоимости портфеля.
+ * Матрицы индексируются в порядке {@code tickers}.
+ */
+public record RiskMetrics(
+        List<String> tickers,
+        double[] weights,
+        double[] volatility,
+        double[] beta,
+        double[][] covariance,
+        double[][] correlation,
+        double portfolioVolatility,
+        double portfolioBeta,
+        double historicalVar,
+        double parametricVar,
+        int observations,
+        LocalDate asOf
+) {}
@@ -0,0 +1,191 @@
+package org.invest.bot.invest.core.modules.risk;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.api.InvestApiCore;
+import org.invest.bot.invest.core.modules.history.HistoryService;
+import org.invest.bot.invest.core.modules.history.PriceHistory;
+import org.invest.bot.invest.core.objects.InstrumentObj;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.Instrument;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure.getCoreStockTicket;
+
+/**
+ * Считает риск-метрики портфеля по дневным доходностям позиций: волатильность, бету к TMOS@,
+ * ковариационную и корреляционную матрицы, исторический и параметрический VaR.
+ * Ковариация ведется инкрементально по окну последних {@value #TRADING_DAYS} торговых дней:
+ * при появлении нового дня добавляется только он, а самый старый выпадает из окна.
+ * <p>
+ * Состояние хранится по набору FIGI. Набор, к которому не обращались дольше {@code risk.state-ttl-hours},
+ * уже не совпадает с текущими позициями ни одного портфеля и удаляется.
+ */
+@Service
+@Slf4j
+public class RiskService {
+    private static final int HISTORY_DAYS = 365;
+    private static final int TRADING_DAYS = 252;
+    private static final double CONFIDENCE = 0.95;
+    private static final double Z_95 = 1.6448536;
+
+    private final InvestApiCore apiCore;
+    private final HistoryService historyService;
+    private final Map<List<String>, RiskState> states = new ConcurrentHashMap<>();
+    private final Duration stateTtl;
+    private volatile String benchmarkFigi;
+
+    public RiskService(InvestApiCore apiCore, HistoryService historyService,
+                       @Value("${risk.state-ttl-hours:24}") long stateTtlHours) {
+        this.apiCore = apiCore;
+        this.historyService = historyService;
+        this.stateTtl = Duration.ofHours(stateTtlHours);
+    }
+
+    public RiskMetrics calculate(List<InstrumentObj> instrumentObjs) {
+        List<String> figis = new ArrayList<>(instrumentObjs.stream().map(InstrumentObj::getFigi).toList());
+        figis.add(getBenchmarkFigi());
+        List<String> key = List.copyOf(figis);
+        evictStale(key);
+        RiskState state = states.computeIfAbsent(key, figiKey -> new RiskState(figiKey.size()));
+        synchronized (state) {
+            state.lastUsed = Instant.now();
+            state.update(historyService.loadCloses(figis, HISTORY_DAYS));
+            return buildMetrics(instrumentObjs, state);
+        }
+    }
+
+    /**
+     * Удаляет состояния наборов, которые давно не запрашивались: позиции с тех пор изменились,
+     * а без удаления каждая покупка или продажа оставляла бы в памяти еще одну матрицу с историей.
+     */
+    private void evictStale(List<String> currentKey) {
+        Instant threshold = Instant.now().minus(stateTtl);
+        states.entrySet().removeIf(entry -> !entry.getKey().equals(currentKey)
+                && entry.getValue().lastUsed.isBefore(threshold));
+    }
+
+    private RiskMetrics buildMetrics(List<InstrumentObj> instrumentObjs, RiskState state) {
+        int n = instrumentObjs.size();
+        int benchmark = n;
+        RollingCovariance covariance = state.covariance;
+        double[][] fullCovariance = covariance.covarianceMatrix();
+
+        double[] weights = new double[n];
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            InstrumentObj inst = instrumentObjs.get(i);
+            weights[i] = inst.getPositionValue().doubleValue();
+            total += weights[i];
+        }
+        for (int i = 0; i < n; i++) {
+            weights[i] = total > 0 ? weights[i] / total : 0;
+        }
+
+        double[][] cov = new double[n][n];
+        double[][] correlation = new double[n][n];
+        double[] volatility = new double[n];
+        double[] beta = new double[n];
+        double benchmarkVariance = fullCovariance[benchmark][benchmark];
+        for (int i = 0; i < n; i++) {
+            volatility[i] = Math.sqrt(fullCovariance[i][i] * TRADING_DAYS);
+            beta[i] = benchmarkVariance > 0 ? fullCovariance[i][benchmark] / benchmarkVariance : 0;
+            for (int j = 0; j < n; j++) {
+                cov[i][j] = fullCovariance[i][j];
+                double denominator = Math.sqrt(fullCovariance[i][i] * fullCovariance[j][j]);
+                correlation[i][j] = denominator > 0 ? fullCovariance[i][j] / denominator : (i == j ? 1 : 0);
+            }
+        }
+
+        double portfolioVariance = 0;
+        double portfolioBeta = 0;
+        for (int i = 0; i < n; i++) {
+            portfolioBeta += weights[i] * beta[i];
+            for (int j = 0; j < n; j++) {
+                portfolioVariance += weights[i] * weights[j] * cov[i][j];
+            }
+        }
+        double dailyVolatility = Math.sqrt(portfolioVariance);
+
+        // Исторический VaR: текущие веса применяются к каждому дню истории
+        int observations = covariance.getCount();
+        double[] portfolioReturns = new double[observations];
+        for (int t = 0; t < observations; t++) {
+            double[] day = covariance.observation(t);
+            for (int i = 0; i < n; i++) {
+                portfolioReturns[t] += weights[i] * day[i];
+            }
+        }
+        Arrays.sort(portfolioReturns);
+        double historicalVar = observations > 0
+                ? Math.max(-portfolioReturns[(int) Math.floor((1 - CONFIDENCE) * (observations - 1))], 0)
+                : 0;
+
+        List<String> tickers = instrumentObjs.stream().map(InstrumentObj::getTicker).toList();
+        return new RiskMetrics(tickers, weights, volatility, beta, cov, correlation,
+                dailyVolatility * Math.sqrt(TRADING_DAYS), portfolioBeta,
+                historicalVar, Z_95 * dailyVolatility, observations, state.lastDate);
+    }
+
+    private String getBenchmarkFigi() {
+        if (benchmarkFigi == null) {
+            Instrument benchmark = apiCore.getInstrumentByTicker(getCoreStockTicket());
+            if (benchmark == null) {
+                throw new IllegalStateException("Не найден бенчмарк " + getCoreStockTicket());
+            }
+            benchmarkFigi = benchmark.getFigi();
+        }
+        return benchmarkFigi;
+    }
+
+    /**
+     * Накопленное состояние для конкретного набора инструментов.
+     */
+    private static final class RiskState {
+        private final RollingCovariance covariance;
+        private LocalDate lastDate;
+        private volatile Instant lastUsed = Instant.now();
+
+        private RiskState(int dimension) {
+            this.covariance = new RollingCovariance(dimension, TRADING_DAYS);
+        }
+
+        /**
+         * Добавляет в ковариацию только закрытые дни, которых еще не было.
+         */
+        private void update(PriceHistory history) {
+            LocalDate[] dates = history.getDates();
+            double[][] closes = history.getCloses();
+            LocalDate today = LocalDate.now(ZoneOffset.UTC);
+            int added = 0;
+            for (int t = 1; t < dates.length; t++) {
+                // Сегодняшняя свеча еще не закрыта и попадет в модель завтра
+                if (!dates[t].isBefore(today)) {
+                    break;
+                }
+                if (lastDate != null && !dates[t].isAfter(lastDate)) {
+                    continue;
+                }
+                double[] day = new double[closes.length];
+                for (int i = 0; i < closes.length; i++) {
+                    day[i] = closes[i][t - 1] > 0 ? closes[i][t] / closes[i][t - 1] - 1 : 0;
+                }
+                covariance.add(day);
+                lastDate = dates[t];
+                added++;
+            }
+            if (added > 0) {
+                log.debug("В риск-модель добавлено {} дней, всего {}.", added, covariance.getCount());
+            }
+        }
+    }
+}
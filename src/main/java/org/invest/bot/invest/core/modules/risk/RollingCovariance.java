@@ -0,0 +1,139 @@
+package org.invest.bot.invest.core.modules.risk;
+
+import java.util.Arrays;
+
+/**
+ * Ковариационная матрица по скользящему окну последних {@code window} наблюдений (многомерный алгоритм Уэлфорда).
+ * Новый день добавляется, а выпавший из окна вычитается из среднего и комомента за O(n²) без пересчета всей истории.
+ * Наблюдения окна хранятся в кольцевом буфере - они нужны для исторического VaR.
+ * <p>
+ * Чтобы ошибка округления от вычитаний не накапливалась, при каждом полном обороте буфера
+ * среднее и комомент пересчитываются по наблюдениям окна заново.
+ */
+public class RollingCovariance {
+    private final int dimension;
+    private final double[] mean;
+    private final double[][] comoment;
+    private final double[][] observations;
+    private int head;
+    private int count;
+
+    /**
+     * @param window Сколько последних наблюдений входит в оценку
+     */
+    public RollingCovariance(int dimension, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Окно должно содержать хотя бы одно наблюдение");
+        }
+        this.dimension = dimension;
+        this.mean = new double[dimension];
+        this.comoment = new double[dimension][dimension];
+        this.observations = new double[window][];
+    }
+
+    public void add(double[] x) {
+        if (count == observations.length) {
+            remove(observations[head]);
+            observations[head] = x.clone();
+            head = (head + 1) % observations.length;
+            if (head == 0) {
+                recompute();
+                return;
+            }
+        } else {
+            observations[(head + count) % observations.length] = x.clone();
+        }
+        append(x);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public int getWindow() {
+        return observations.length;
+    }
+
+    public double covariance(int i, int j) {
+        return count > 1 ? comoment[i][j] / (count - 1) : 0;
+    }
+
+    public double[][] covarianceMatrix() {
+        double[][] result = new double[dimension][dimension];
+        for (int i = 0; i < dimension; i++) {
+            for (int j = 0; j < dimension; j++) {
+                result[i][j] = covariance(i, j);
+            }
+        }
+        return result;
+    }
+
+    public double[] getMean() {
+        return mean.clone();
+    }
+
+    /**
+     * Наблюдение окна с номером {@code t}: 0 - самое старое, {@code getCount() - 1} - последнее добавленное.
+     */
+    public double[] observation(int t) {
+        if (t < 0 || t >= count) {
+            throw new IndexOutOfBoundsException(t);
+        }
+        return observations[(head + t) % observations.length];
+    }
+
+    private void append(double[] x) {
+        count++;
+        double[] delta = new double[dimension];
+        for (int i = 0; i < dimension; i++) {
+            delta[i] = x[i] - mean[i];
+            mean[i] += delta[i] / count;
+        }
+        for (int i = 0; i < dimension; i++) {
+            for (int j = i; j < dimension; j++) {
+                comoment[i][j] += delta[i] * (x[j] - mean[j]);
+                comoment[j][i] = comoment[i][j];
+            }
+        }
+    }
+
+    /**
+     * Обратный шаг Уэлфорда: убирает наблюдение {@code x} из среднего и комомента.
+     */
+    private void remove(double[] x) {
+        if (count == 1) {
+            reset();
+            return;
+        }
+        count--;
+        double[] previousMean = mean.clone();
+        for (int i = 0; i < dimension; i++) {
+            mean[i] -= (x[i] - mean[i]) / count;
+        }
+        for (int i = 0; i < dimension; i++) {
+            for (int j = i; j < dimension; j++) {
+                comoment[i][j] -= (x[i] - mean[i]) * (x[j] - previousMean[j]);
+                comoment[j][i] = comoment[i][j];
+            }
+        }
+    }
+
+    private void recompute() {
+        reset();
+        for (int t = 0; t < observations.length; t++) {
+            append(observations[(head + t) % observations.length]);
+        }
+    }
+
+    private void reset() {
+        count = 0;
+        Arrays.fill(mean, 0);
+        for (double[] row : comoment) {
+            Arrays.fill(row, 0);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.invest.bot.invest.core.modules.simulation;
+
+import org.invest.bot.invest.core.modules.balanse.ActualDistribution;
+import org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure;
+import org.invest.bot.invest.core.objects.InstrumentObj;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Компактное описание стратегии для симуляций: категория каждого инструмента и целевые доли категорий.
+ * Цели нормируются по категориям, которые реально представлены в портфеле, иначе
+ * отсутствующая категория вызывала бы ребалансировку каждый день.
+ * Доли считаются от стоимости классифицированных позиций.
+ */
+public class AllocationModel {
+    public static final List<PortfolioInstrumentStructure> CATEGORIES = PortfolioInstrumentStructure.getInsValues();
+
+    private final int[] categories;
+    private final double[] targets;
+
+    public AllocationModel(int[] categories, double[] targets) {
+        this.categories = categories;
+        this.targets = targets;
+    }
+
+    public static AllocationModel of(List<InstrumentObj> instrumentObjs) {
+        int[] categories = new int[instrumentObjs.size()];
+        boolean[] present = new boolean[CATEGORIES.size()];
+        for (int i = 0; i < instrumentObjs.size(); i++) {
+            PortfolioInstrumentStructure category = ActualDistribution.categoryOf(instrumentObjs.get(i));
+            categories[i] = category == null ? -1 : CATEGORIES.indexOf(category);
+            if (categories[i] >= 0) {
+                present[categories[i]] = true;
+            }
+        }
+        double[] targets = new double[CATEGORIES.size()];
+        double presentTotal = 0;
+        for (int c = 0; c < CATEGORIES.size(); c++) {
+            if (present[c]) {
+                presentTotal += CATEGORIES.get(c).value.doubleValue();
+            }
+        }
+        for (int c = 0; c < CATEGORIES.size(); c++) {
+            targets[c] = present[c] && presentTotal > 0 ? CATEGORIES.get(c).value.doubleValue() / presentTotal : 0;
+        }
+        return new AllocationModel(categories, targets);
+    }
+
+    public int[] getCategories() {
+        return categories;
+    }
+
+    public double[] getTargets() {
+        return targets;
+    }
+
+    /**
+     * Суммирует стоимости позиций по категориям.
+     * @param sums Массив для результата длиной {@code CATEGORIES.size()}
+     * @return Стоимость классифицированных позиций.
+     */
+    public double categorySums(double[] values, double[] sums) {
+        Arrays.fill(sums, 0);
+        double classified = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (categories[i] >= 0) {
+                sums[categories[i]] += values[i];
+                classified += values[i];
+            }
+        }
+        return classified;
+    }
+
+    /**
+     * Правило ребалансировки стратегии: доля хотя бы одной категории отклонилась больше чем на допуск.
+     * @param tolerance Допуск в долях (0.02 = 2%)
+     */
+    public boolean needsRebalance(double[] values, double[] sums, double tolerance) {
+        double classified = categorySums(values, sums);
+        if (classified <= 0) {
+            return false;
+        }
+        for (int c = 0; c < sums.length; c++) {
+            if (targets[c] > 0 && Math.abs(sums[c] / classified - targets[c]) > tolerance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Возвращает категории к целевым долям, сохраняя пропорции инструментов внутри категории.
+     * Ожидает, что {@code sums} уже посчитаны для текущих {@code values}.
+     * @return Количество позиций, по которым прошла сделка.
+     */
+    public int rebalance(double[] values, double[] sums) {
+        double classified = 0;
+        for (double sum : sums) {
+            classified += sum;
+        }
+        int trades = 0;
+        for (int i = 0; i < values.length; i++) {
+            int c = categories[i];
+            if (c < 0 || sums[c] <= 0) {
+                continue;
+            }
+            double newValue = values[i] * (targets[c] * classified / sums[c]);
+            if (Math.abs(newValue - values[i]) > classified * 1e-4) {
+                trades++;
+            }
+            values[i] = newValue;
+        }
+        return trades;
+    }
+}
@@ -0,0 +1,16 @@
+package org.invest.bot.invest.core.modules.simulation;
+
+/**
+ * Итог Монте-Карло симуляции. Перцентили хранятся в порядке {@link MonteCarloService#PERCENTILES}.
+ */
+public record MonteCarloResult(
+        int paths,
+        int horizonDays,
+        int historyDays,
+        double[] returnPercentiles,
+        double[] drawdownPercentiles,
+        double[] tradePercentiles,
+        double meanRebalances,
+        double probabilityOfRebalance,
+        long elapsedMillis
+) {}
@@ -0,0 +1,172 @@
+package org.invest.bot.invest.core.modules.simulation;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.core.modules.history.HistoryService;
+import org.invest.bot.invest.core.modules.history.PriceHistory;
+import org.invest.bot.invest.core.objects.InstrumentObj;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure.ALLOCATION_TOLERANCE;
+
+/**
+ * Монте-Карло симуляция дрейфа портфеля и ребалансировок.
+ * Каждый путь строится бутстрепом исторических дневных доходностей: на каждом шаге берется
+ * случайный исторический день целиком, поэтому корреляции между инструментами сохраняются.
+ * Пути считаются параллельно в ForkJoinPool, каждая подзадача получает свой генератор через {@link SplittableRandom#split()}.
+ */
+@Service
+@Slf4j
+public class MonteCarloService {
+    public static final double[] PERCENTILES = {0.05, 0.25, 0.5, 0.75, 0.95};
+    private static final int HISTORY_DAYS = 3 * 365;
+    private static final int PATHS_PER_TASK = 64;
+
+    private final HistoryService historyService;
+
+    public MonteCarloService(HistoryService historyService) {
+        this.historyService = historyService;
+    }
+
+    public MonteCarloResult simulate(List<InstrumentObj> instrumentObjs, int paths, int horizonDays) {
+        long started = System.currentTimeMillis();
+        List<String> figis = instrumentObjs.stream().map(InstrumentObj::getFigi).toList();
+        PriceHistory history = historyService.loadCloses(figis, HISTORY_DAYS);
+        double[][] returns = history.returns();
+        if (instrumentObjs.isEmpty() || history.dayCount() < 2) {
+            throw new IllegalStateException("Недостаточно истории цен для симуляции");
+        }
+        double[] initialValues = new double[instrumentObjs.size()];
+        for (int i = 0; i < instrumentObjs.size(); i++) {
+            InstrumentObj inst = instrumentObjs.get(i);
+            initialValues[i] = inst.getPositionValue().doubleValue();
+        }
+        // Транспонируем: на шаге симуляции нужен вектор доходностей всех инструментов за один день
+        double[][] dailyReturns = new double[returns[0].length][returns.length];
+        for (int i = 0; i < returns.length; i++) {
+            for (int t = 0; t < returns[i].length; t++) {
+                dailyReturns[t][i] = returns[i][t];
+            }
+        }
+
+        PathSimulation simulation = new PathSimulation(AllocationModel.of(instrumentObjs), initialValues, dailyReturns,
+                horizonDays, ALLOCATION_TOLERANCE.value.doubleValue() / 100, paths);
+        ForkJoinPool.commonPool().invoke(new PathTask(simulation, 0, paths, new SplittableRandom()));
+
+        double meanRebalances = Arrays.stream(simulation.rebalances).average().orElse(0);
+        double probabilityOfRebalance = Arrays.stream(simulation.rebalances).filter(count -> count > 0).count() / (double) paths;
+        long elapsed = System.currentTimeMillis() - started;
+        log.info("Монте-Карло: {} путей по {} дней за {} мс (история {} дней, параллелизм {}).",
+                paths, horizonDays, elapsed, history.dayCount(), ForkJoinPool.commonPool().getParallelism());
+        return new MonteCarloResult(paths, horizonDays, history.dayCount(),
+                percentiles(simulation.totalReturns), percentiles(simulation.maxDrawdowns),
+                percentiles(Arrays.stream(simulation.trades).asDoubleStream().toArray()),
+                meanRebalances, probabilityOfRebalance, elapsed);
+    }
+
+    private static double[] percentiles(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        double[] result = new double[PERCENTILES.length];
+        for (int p = 0; p < PERCENTILES.length; p++) {
+            int index = (int) Math.round(PERCENTILES[p] * (sorted.length - 1));
+            result[p] = sorted[index];
+        }
+        return result;
+    }
+
+    /**
+     * Общие входные данные и массивы результатов. Каждый путь пишет только в свою ячейку, поэтому синхронизация не нужна.
+     */
+    private static final class PathSimulation {
+        private final AllocationModel model;
+        private final double[] initialValues;
+        private final double[][] dailyReturns;
+        private final int horizonDays;
+        private final double tolerance;
+        private final double[] totalReturns;
+        private final double[] maxDrawdowns;
+        private final int[] rebalances;
+        private final int[] trades;
+
+        private PathSimulation(AllocationModel model, double[] initialValues, double[][] dailyReturns,
+                               int horizonDays, double tolerance, int paths) {
+            this.model = model;
+            this.initialValues = initialValues;
+            this.dailyReturns = dailyReturns;
+            this.horizonDays = horizonDays;
+            this.tolerance = tolerance;
+            this.totalReturns = new double[paths];
+            this.maxDrawdowns = new double[paths];
+            this.rebalances = new int[paths];
+            this.trades = new int[paths];
+        }
+
+        private void run(int path, SplittableRandom random) {
+            double[] values = initialValues.clone();
+            double[] sums = new double[AllocationModel.CATEGORIES.size()];
+            double initialTotal = sum(values);
+            double peak = initialTotal;
+            double maxDrawdown = 0;
+            int pathRebalances = 0;
+            int pathTrades = 0;
+            for (int day = 0; day < horizonDays; day++) {
+                double[] dayReturns = dailyReturns[random.nextInt(dailyReturns.length)];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] *= 1 + dayReturns[i];
+                }
+                double total = sum(values);
+                peak = Math.max(peak, total);
+                maxDrawdown = Math.max(maxDrawdown, peak > 0 ? 1 - total / peak : 0);
+                if (model.needsRebalance(values, sums, tolerance)) {
+                    pathRebalances++;
+                    pathTrades += model.rebalance(values, sums);
+                }
+            }
+            totalReturns[path] = initialTotal > 0 ? sum(values) / initialTotal - 1 : 0;
+            maxDrawdowns[path] = maxDrawdown;
+            rebalances[path] = pathRebalances;
+            trades[path] = pathTrades;
+        }
+
+        private static double sum(double[] values) {
+            double total = 0;
+            for (double value : values) {
+                total += value;
+            }
+            return total;
+        }
+    }
+
+    private static final class PathTask extends RecursiveAction {
+        private final PathSimulation simulation;
+        private final int from;
+        private final int to;
+        private final SplittableRandom random;
+
+        private PathTask(PathSimulation simulation, int from, int to, SplittableRandom random) {
+            this.simulation = simulation;
+            this.from = from;
+            this.to = to;
+            this.random = random;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PATHS_PER_TASK) {
+                for (int path = from; path < to; path++) {
+                    simulation.run(path, random);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new PathTask(simulation, from, middle, random.split()),
+                    new PathTask(simulation, middle, to, random.split()));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.invest.bot.invest.core.modules.stress;
+
+import com.google.protobuf.Timestamp;
+import ru.tinkoff.piapi.contract.v1.Bond;
+import ru.tinkoff.piapi.contract.v1.Coupon;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.invest.bot.core.DataConvertUtility.quotationToBigDecimal;
+
+/**
+ * Процентный риск облигации: доходность к погашению, модифицированная дюрация и выпуклость.
+ * Амортизация номинала не учитывается. Для флоатеров дюрация равна времени до ближайшего купона.
+ */
+public record BondRisk(double yield, double modifiedDuration, double convexity) {
+    private static final double DAYS_IN_YEAR = 365.0;
+
+    /**
+     * @param cleanPrice Чистая цена одной облигации в валюте номинала
+     */
+    public static BondRisk of(Bond bond, List<Coupon> coupons, double cleanPrice, Instant now) {
+        double nominal = quotationToBigDecimal(bond.getNominal()).doubleValue();
+        double dirtyPrice = cleanPrice + quotationToBigDecimal(bond.getAciValue()).doubleValue();
+        List<double[]> cashFlows = new ArrayList<>();
+        double lastCoupon = 0;
+        for (Coupon coupon : coupons) {
+            double time = years(now, coupon.getCouponDate());
+            double payment = quotationToBigDecimal(coupon.getPayOneBond()).doubleValue();
+            // Будущие купоны могут быть еще не объявлены - берем последний известный
+            if (payment > 0) {
+                lastCoupon = payment;
+            }
+            if (time > 0) {
+                cashFlows.add(new double[]{time, payment > 0 ? payment : lastCoupon});
+            }
+        }
+        if (bond.getFloatingCouponFlag() && !cashFlows.isEmpty()) {
+            double nextReset = cashFlows.get(0)[0];
+            return new BondRisk(0, nextReset, nextReset * (nextReset + 1));
+        }
+        double maturity = years(now, bond.getMaturityDate());
+        if (maturity <= 0 || dirtyPrice <= 0) {
+            return null;
+        }
+        cashFlows.add(new double[]{maturity, nominal});
+
+        double yield = solveYield(cashFlows, dirtyPrice);
+        double price = 0;
+        double duration = 0;
+        double convexity = 0;
+        for (double[] flow : cashFlows) {
+            double presentValue = flow[1] / Math.pow(1 + yield, flow[0]);
+            price += presentValue;
+            duration += flow[0] * presentValue;
+            convexity += flow[0] * (flow[0] + 1) * presentValue;
+        }
+        return new BondRisk(yield, duration / price / (1 + yield), convexity / price / Math.pow(1 + yield, 2));
+    }
+
+    private static double solveYield(List<double[]> cashFlows, double dirtyPrice) {
+        double low = -0.5;
+        double high = 2.0;
+        for (int iteration = 0; iteration < 100; iteration++) {
+            double middle = (low + high) / 2;
+            double price = 0;
+            for (double[] flow : cashFlows) {
+                price += flow[1] / Math.pow(1 + middle, flow[0]);
+            }
+            if (price > dirtyPrice) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return (low + high) / 2;
+    }
+
+    private static double years(Instant now, Timestamp date) {
+        return Duration.between(now, Instant.ofEpochSecond(date.getSeconds())).toDays() / DAYS_IN_YEAR;
+    }
+}
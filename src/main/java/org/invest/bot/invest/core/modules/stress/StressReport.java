@@ -0,0 +1,15 @@
+package org.invest.bot.invest.core.modules.stress;
+
+import java.util.List;
+
+/**
+ * Итог стресс-теста: именованные сценарии из конфигурации и худший сценарий сетки.
+ */
+public record StressReport(
+        List<String> tickers,
+        double totalValue,
+        List<StressResult> scenarios,
+        StressResult worstGrid,
+        int gridSize,
+        long elapsedMillis
+) {}
@@ -0,0 +1,11 @@
+package org.invest.bot.invest.core.modules.stress;
+
+/**
+ * Результат сценария: изменение стоимости портфеля в рублях и в долях, вклад каждой позиции.
+ */
+public record StressResult(
+        StressScenario scenario,
+        double pnl,
+        double pnlRatio,
+        double[] positionPnl
+) {}
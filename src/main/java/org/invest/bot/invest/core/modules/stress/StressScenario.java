@@ -0,0 +1,23 @@
+package org.invest.bot.invest.core.modules.stress;
+
+/**
+ * Сценарий шока рынка. Все движения в долях: {@code equity = -0.2} - падение индекса на 20%,
+ * {@code fx = 0.15} - ослабление рубля на 15%, {@code gold} - изменение цены золота в долларах.
+ * @param rateBp Изменение доходностей облигаций в базисных пунктах.
+ */
+public record StressScenario(
+        String name,
+        double equity,
+        double rateBp,
+        double fx,
+        double gold
+) {
+    /**
+     * Факторы сценария: индекс, Δy, Δy², валюта, золото, валюта×золото.
+     * Порядок совпадает с чувствительностями позиций в {@link StressService}.
+     */
+    public double[] factors() {
+        double rate = rateBp / 10_000;
+        return new double[]{equity, rate, rate * rate, fx, gold, fx * gold};
+    }
+}
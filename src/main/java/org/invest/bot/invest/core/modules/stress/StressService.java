@@ -0,0 +1,239 @@
+package org.invest.bot.invest.core.modules.stress;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.api.InvestApiCore;
+import org.invest.bot.invest.core.modules.balanse.ActualDistribution;
+import org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure;
+import org.invest.bot.invest.core.modules.risk.RiskMetrics;
+import org.invest.bot.invest.core.modules.risk.RiskService;
+import org.invest.bot.invest.core.objects.InstrumentObj;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.Bond;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Стресс-тест портфеля. Каждая позиция описывается вектором чувствительностей к факторам
+ * (индекс, Δy, Δy², валюта, золото, валюта×золото), каждый сценарий - вектором факторов.
+ * Доходности всех позиций во всех сценариях считаются одним матричным произведением.
+ * Акции шокируются через бету к TMOS@, облигации - через дюрацию и выпуклость, защита - через курс.
+ */
+@Service
+@Slf4j
+public class StressService {
+    private static final int FACTORS = 6;
+    private static final int MIN_BETA_OBSERVATIONS = 20;
+    private static final double DEFAULT_BOND_DURATION = 3.0;
+    private static final Set<String> GOLD_TICKERS = Set.of("GLDRUB_TOM");
+
+    private final InvestApiCore apiCore;
+    private final RiskService riskService;
+    private final List<StressScenario> scenarios;
+    private final List<StressScenario> grid;
+    private final Map<String, CachedBondRisk> bondRisks = new ConcurrentHashMap<>();
+
+    public StressService(InvestApiCore apiCore,
+                         RiskService riskService,
+                         @Value("${stress.scenarios:stress_scenarios.json}") String scenariosResource) {
+        this.apiCore = apiCore;
+        this.riskService = riskService;
+        JsonNode config = loadConfig(scenariosResource);
+        this.scenarios = new ArrayList<>();
+        for (JsonNode node : config.path("scenarios")) {
+            scenarios.add(new StressScenario(node.path("name").asText(), node.path("equity").asDouble(),
+                    node.path("rate_bp").asDouble(), node.path("fx").asDouble(), node.path("gold").asDouble()));
+        }
+        this.grid = buildGrid(config.path("grid"));
+        log.info("Загружено {} стресс-сценариев и {} сценариев сетки.", scenarios.size(), grid.size());
+    }
+
+    public StressReport run(List<InstrumentObj> instrumentObjs) {
+        long started = System.currentTimeMillis();
+        int n = instrumentObjs.size();
+        double[] values = new double[n];
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            InstrumentObj inst = instrumentObjs.get(i);
+            values[i] = inst.getPositionValue().doubleValue();
+            total += values[i];
+        }
+        double[][] exposures = exposures(instrumentObjs);
+
+        List<StressScenario> batch = new ArrayList<>(scenarios);
+        batch.addAll(grid);
+        double[][] returns = multiply(factorMatrix(batch), exposures);
+
+        List<StressResult> results = new ArrayList<>(batch.size());
+        for (int k = 0; k < batch.size(); k++) {
+            double[] positionPnl = new double[n];
+            double pnl = 0;
+            for (int i = 0; i < n; i++) {
+                // Позиция не может потерять больше своей стоимости
+                positionPnl[i] = values[i] * Math.max(returns[k][i], -1);
+                pnl += positionPnl[i];
+            }
+            results.add(new StressResult(batch.get(k), pnl, total > 0 ? pnl / total : 0, positionPnl));
+        }
+        StressResult worstGrid = results.subList(scenarios.size(), results.size()).stream()
+                .min(Comparator.comparingDouble(StressResult::pnl))
+                .orElse(null);
+        long elapsed = System.currentTimeMillis() - started;
+        log.info("Стресс-тест: {} сценариев по {} позициям за {} мс.", batch.size(), n, elapsed);
+        return new StressReport(instrumentObjs.stream().map(InstrumentObj::getTicker).toList(), total,
+                List.copyOf(results.subList(0, scenarios.size())), worstGrid, grid.size(), elapsed);
+    }
+
+    /**
+     * Чувствительности позиций: строка на фактор, столбец на позицию.
+     */
+    private double[][] exposures(List<InstrumentObj> instrumentObjs) {
+        int n = instrumentObjs.size();
+        double[][] exposures = new double[FACTORS][n];
+        double[] betas = betas(instrumentObjs);
+        for (int i = 0; i < n; i++) {
+            InstrumentObj inst = instrumentObjs.get(i);
+            PortfolioInstrumentStructure category = ActualDistribution.categoryOf(inst);
+            if (category == PortfolioInstrumentStructure.TARGET_STOCK_CORE
+                    || category == PortfolioInstrumentStructure.TARGET_STOCK_SATELLITE) {
+                exposures[0][i] = betas[i];
+            } else if (category == PortfolioInstrumentStructure.TARGET_BOND) {
+                BondRisk risk = bondRisk(inst);
+                exposures[1][i] = -(risk == null ? DEFAULT_BOND_DURATION : risk.modifiedDuration());
+                exposures[2][i] = risk == null ? 0 : risk.convexity() / 2;
+            } else if (category == PortfolioInstrumentStructure.TARGET_PROTECTION) {
+                exposures[3][i] = 1;
+                if (GOLD_TICKERS.contains(inst.getTicker())) {
+                    exposures[4][i] = 1;
+                    exposures[5][i] = 1;
+                }
+            }
+            // Валютные бумаги (например, замещающие облигации) дополнительно зависят от курса
+            if (category != PortfolioInstrumentStructure.TARGET_PROTECTION
+                    && !"rub".equalsIgnoreCase(inst.getCurrentPrice().getCurrency())) {
+                exposures[3][i] = 1;
+            }
+        }
+        return exposures;
+    }
+
+    private double[] betas(List<InstrumentObj> instrumentObjs) {
+        double[] betas = new double[instrumentObjs.size()];
+        Arrays.fill(betas, 1.0);
+        try {
+            RiskMetrics metrics = riskService.calculate(instrumentObjs);
+            if (metrics.observations() >= MIN_BETA_OBSERVATIONS) {
+                return metrics.beta();
+            }
+            log.warn("Мало истории для беты ({} дн.), для акций принята бета 1.", metrics.observations());
+        } catch (Exception e) {
+            log.warn("Не удалось рассчитать беты, для акций принята бета 1: {}", e.getMessage());
+        }
+        return betas;
+    }
+
+    /**
+     * Дюрация и выпуклость облигации. Пересчитываются раз в день: цена внутри дня влияет на них слабо.
+     */
+    private BondRisk bondRisk(InstrumentObj inst) {
+        LocalDate today = LocalDate.now();
+        CachedBondRisk cached = bondRisks.get(inst.getFigi());
+        if (cached != null && cached.date().equals(today)) {
+            return cached.risk();
+        }
+        BondRisk risk = null;
+        Bond bond = apiCore.getBond(inst.getFigi());
+        if (bond != null) {
+            Instant now = Instant.now();
+            Instant maturity = Instant.ofEpochSecond(bond.getMaturityDate().getSeconds());
+            Instant to = maturity.isAfter(now) ? maturity.plus(1, ChronoUnit.DAYS) : now.plus(3650, ChronoUnit.DAYS);
+            risk = BondRisk.of(bond, apiCore.getBondCoupons(inst.getFigi(), now.minus(366, ChronoUnit.DAYS), to),
+                    inst.getCurrentPrice().getValue().doubleValue(), now);
+        }
+        if (risk == null) {
+            log.warn("Не удалось рассчитать дюрацию {}, принята {} года.", inst.getTicker(), DEFAULT_BOND_DURATION);
+        }
+        bondRisks.put(inst.getFigi(), new CachedBondRisk(today, risk));
+        return risk;
+    }
+
+    private static double[][] factorMatrix(List<StressScenario> batch) {
+        double[][] factors = new double[batch.size()][];
+        for (int k = 0; k < batch.size(); k++) {
+            factors[k] = batch.get(k).factors();
+        }
+        return factors;
+    }
+
+    /**
+     * Произведение матриц сценарии×факторы и факторы×позиции. Внутренний цикл идет по позициям,
+     * поэтому обе строки читаются последовательно.
+     */
+    private static double[][] multiply(double[][] factors, double[][] exposures) {
+        int positions = exposures.length == 0 ? 0 : exposures[0].length;
+        double[][] result = new double[factors.length][positions];
+        for (int k = 0; k < factors.length; k++) {
+            double[] row = result[k];
+            for (int f = 0; f < FACTORS; f++) {
+                double factor = factors[k][f];
+                if (factor == 0) {
+                    continue;
+                }
+                double[] exposure = exposures[f];
+                for (int i = 0; i < positions; i++) {
+                    row[i] += factor * exposure[i];
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<StressScenario> buildGrid(JsonNode node) {
+        List<StressScenario> result = new ArrayList<>();
+        for (double equity : values(node.path("equity"))) {
+            for (double rateBp : values(node.path("rate_bp"))) {
+                for (double fx : values(node.path("fx"))) {
+                    for (double gold : values(node.path("gold"))) {
+                        String name = String.format("Акции %+.0f%%, ставка %+.0f б.п., рубль %+.0f%%, золото %+.0f%%",
+                                equity * 100, rateBp, -fx * 100, gold * 100);
+                        result.add(new StressScenario(name, equity, rateBp, fx, gold));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static double[] values(JsonNode array) {
+        if (!array.isArray() || array.isEmpty()) {
+            return new double[]{0};
+        }
+        double[] result = new double[array.size()];
+        for (int i = 0; i < array.size(); i++) {
+            result[i] = array.get(i).asDouble();
+        }
+        return result;
+    }
+
+    private JsonNode loadConfig(String resourcePath) {
+        try (InputStream inputStream = this.getClass().getClassLoader().getResourceAsStream(resourcePath)) {
+            if (inputStream == null) {
+                throw new IOException("Ресурсный файл не найден: " + resourcePath);
+            }
+            return new ObjectMapper().readTree(inputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось загрузить стресс-сценарии", e);
+        }
+    }
+
+    private record CachedBondRisk(LocalDate date, BondRisk risk) {}
+}
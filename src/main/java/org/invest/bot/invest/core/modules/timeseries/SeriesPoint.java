@@ -0,0 +1,8 @@
+package org.invest.bot.invest.core.modules.timeseries;
+
+import java.time.Instant;
+
+/**
+ * Значение ряда на момент времени, в рублях.
+ */
+public record SeriesPoint(Instant time, double value) {}
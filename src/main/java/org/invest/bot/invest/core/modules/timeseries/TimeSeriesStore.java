@@ -0,0 +1,367 @@
+package org.invest.bot.invest.core.modules.timeseries;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Встроенное хранилище рядов стоимости для SD-карты Raspberry Pi.
+ * <p>
+ * Данные лежат в сегментах по месяцу: {@code seg-<секунда начала>.bin}, записи только дописываются.
+ * Запись - это снимок: приращение времени и только изменившиеся ряды в виде приращения значения в копейках.
+ * Числа кодируются varint (отрицательные - через zigzag), поэтому неизменный вечером портфель не занимает места,
+ * а типичное изменение цены укладывается в 2-3 байта. Каждый сегмент декодируется независимо.
+ * <p>
+ * Индекс в памяти - отсортированный список начал сегментов и словарь имен рядов,
+ * поэтому запрос за период читает только перекрывающиеся сегменты.
+ */
+@Component
+@Slf4j
+public class TimeSeriesStore {
+    private static final String DICTIONARY = "series.dict";
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String SEGMENT_SUFFIX = ".bin";
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final Map<String, Integer> seriesIds = new HashMap<>();
+    private final List<String> seriesNames = new ArrayList<>();
+    private final NavigableMap<Long, Path> segments = new TreeMap<>();
+    /** Состояние активного сегмента: от него считаются приращения */
+    private final Map<Integer, Long> lastValues = new HashMap<>();
+    private long lastSecond;
+    private Path activeSegment;
+
+    public TimeSeriesStore(@Value("${timeseries.dir:data/timeseries}") String directory,
+                           @Value("${timeseries.segment-bytes:1048576}") long maxSegmentBytes) {
+        this.directory = Path.of(directory);
+        this.maxSegmentBytes = maxSegmentBytes;
+        open();
+    }
+
+    /**
+     * Дописывает снимок. Ряды, которых нет в снимке, считаются обнулившимися (позиция закрыта).
+     * @param values Значения рядов в рублях по имени ряда
+     */
+    public synchronized void append(Instant time, Map<String, Double> values) {
+        long second = time.getEpochSecond();
+        if (activeSegment != null && second < lastSecond) {
+            log.warn("Снимок {} старше последнего записанного, пропущен.", time);
+            return;
+        }
+        if (activeSegment == null || needsNewSegment(second)) {
+            startSegment(second);
+        }
+        Map<Integer, Long> changes = new TreeMap<>();
+        for (Map.Entry<String, Double> entry : values.entrySet()) {
+            int id = seriesId(entry.getKey());
+            long value = Math.round(entry.getValue() * 100);
+            if (lastValues.getOrDefault(id, 0L) != value) {
+                changes.put(id, value);
+            }
+        }
+        for (Map.Entry<Integer, Long> last : lastValues.entrySet()) {
+            if (last.getValue() != 0 && !values.containsKey(seriesNames.get(last.getKey()))) {
+                changes.put(last.getKey(), 0L);
+            }
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeVarint(payload, second - lastSecond);
+        writeVarint(payload, changes.size());
+        for (Map.Entry<Integer, Long> change : changes.entrySet()) {
+            writeVarint(payload, change.getKey());
+            writeVarint(payload, zigzag(change.getValue() - lastValues.getOrDefault(change.getKey(), 0L)));
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        writeVarint(record, payload.size());
+        record.writeBytes(payload.toByteArray());
+        try {
+            Files.write(activeSegment, record.toByteArray(), StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось записать сегмент " + activeSegment, e);
+        }
+        lastSecond = second;
+        lastValues.putAll(changes);
+    }
+
+    /**
+     * Точки ряда за период: значение на начало периода и все изменения внутри него.
+     */
+    public List<SeriesPoint> query(String series, Instant from, Instant to) {
+        Integer id;
+        List<Map.Entry<Long, Path>> overlapping;
+        synchronized (this) {
+            id = seriesIds.get(series);
+            Long first = segments.floorKey(from.getEpochSecond());
+            overlapping = List.copyOf(segments.subMap(first == null ? Long.MIN_VALUE : first, true,
+                    to.getEpochSecond(), true).entrySet());
+        }
+        List<SeriesPoint> points = new ArrayList<>();
+        if (id == null) {
+            return points;
+        }
+        long fromSecond = from.getEpochSecond();
+        long toSecond = to.getEpochSecond();
+        // Сегмент начинается с полного снимка, поэтому до первой записи ряда его значение - ноль
+        long[] initial = {0};
+        boolean[] hasInitial = {false};
+        boolean[] past = {false};
+        for (Map.Entry<Long, Path> segment : overlapping) {
+            if (segment.getKey() < fromSecond) {
+                initial[0] = 0;
+                hasInitial[0] = true;
+            }
+            decode(segment.getValue(), (time, changes) -> {
+                if (time > toSecond) {
+                    past[0] = true;
+                    return false;
+                }
+                Long value = changes.get(id);
+                if (value == null) {
+                    return true;
+                }
+                if (time < fromSecond) {
+                    initial[0] = value;
+                } else {
+                    points.add(new SeriesPoint(Instant.ofEpochSecond(time), value / 100.0));
+                }
+                return true;
+            });
+            if (past[0]) {
+                break;
+            }
+        }
+        if (hasInitial[0] && (points.isEmpty() || points.get(0).time().getEpochSecond() > fromSecond)) {
+            points.add(0, new SeriesPoint(from, initial[0] / 100.0));
+        }
+        return points;
+    }
+
+    /**
+     * Прореживание для графиков и отчетов: последнее значение ряда в каждом интервале {@code step}.
+     * Интервалы без изменений получают предыдущее значение.
+     */
+    public List<SeriesPoint> downsample(String series, Instant from, Instant to, Duration step) {
+        List<SeriesPoint> points = query(series, from, to);
+        List<SeriesPoint> result = new ArrayList<>();
+        if (points.isEmpty()) {
+            return result;
+        }
+        int index = 0;
+        double current = Double.NaN;
+        for (Instant start = from; !start.isAfter(to); start = start.plus(step)) {
+            Instant end = start.plus(step);
+            while (index < points.size() && points.get(index).time().isBefore(end)) {
+                current = points.get(index++).value();
+            }
+            if (!Double.isNaN(current)) {
+                result.add(new SeriesPoint(start, current));
+            }
+        }
+        return result;
+    }
+
+    public synchronized Set<String> getSeriesNames() {
+        return Set.copyOf(seriesNames);
+    }
+
+    private boolean needsNewSegment(long second) {
+        YearMonth active = YearMonth.from(Instant.ofEpochSecond(segments.lastKey()).atZone(ZoneOffset.UTC));
+        YearMonth current = YearMonth.from(Instant.ofEpochSecond(second).atZone(ZoneOffset.UTC));
+        try {
+            return !active.equals(current) || Files.size(activeSegment) >= maxSegmentBytes;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Новый сегмент начинается с полного снимка: приращения считаются от нуля.
+     */
+    private void startSegment(long second) {
+        activeSegment = directory.resolve(SEGMENT_PREFIX + second + SEGMENT_SUFFIX);
+        try {
+            Files.createFile(activeSegment);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось создать сегмент " + activeSegment, e);
+        }
+        segments.put(second, activeSegment);
+        lastValues.clear();
+        lastSecond = second;
+    }
+
+    private int seriesId(String name) {
+        Integer id = seriesIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        int newId = seriesNames.size();
+        try {
+            Files.writeString(directory.resolve(DICTIONARY), newId + "\t" + name + "\n", StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось записать словарь рядов", e);
+        }
+        seriesIds.put(name, newId);
+        seriesNames.add(name);
+        return newId;
+    }
+
+    /**
+     * Читает словарь и список сегментов, а активный (последний) сегмент декодирует целиком,
+     * чтобы продолжить приращения. Недописанная запись в конце отрезается.
+     */
+    private void open() {
+        try {
+            Files.createDirectories(directory);
+            Path dictionary = directory.resolve(DICTIONARY);
+            if (Files.exists(dictionary)) {
+                for (String line : Files.readAllLines(dictionary, StandardCharsets.UTF_8)) {
+                    int separator = line.indexOf('\t');
+                    if (separator > 0) {
+                        String name = line.substring(separator + 1);
+                        seriesIds.put(name, Integer.parseInt(line.substring(0, separator)));
+                        seriesNames.add(name);
+                    }
+                }
+            }
+            try (Stream<Path> files = Files.list(directory)) {
+                files.filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX))
+                        .forEach(path -> {
+                            String name = path.getFileName().toString();
+                            segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                    name.length() - SEGMENT_SUFFIX.length())), path);
+                        });
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось открыть хранилище рядов " + directory, e);
+        }
+        if (segments.isEmpty()) {
+            return;
+        }
+        activeSegment = segments.lastEntry().getValue();
+        lastSecond = segments.lastKey();
+        long validBytes = decode(activeSegment, (time, changes) -> {
+            lastSecond = time;
+            lastValues.putAll(changes);
+            return true;
+        });
+        try (RandomAccessFile file = new RandomAccessFile(activeSegment.toFile(), "rw")) {
+            if (file.length() > validBytes) {
+                log.warn("Сегмент {} обрезан до последней целой записи.", activeSegment.getFileName());
+                file.setLength(validBytes);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось открыть сегмент " + activeSegment, e);
+        }
+        log.info("Хранилище рядов: {} рядов, {} сегментов.", seriesNames.size(), segments.size());
+    }
+
+    /**
+     * Последовательно декодирует сегмент. Обработчик получает время и абсолютные значения изменившихся рядов
+     * и может остановить чтение, вернув false.
+     * @return Количество байт в целых записях.
+     */
+    private long decode(Path segment, RecordHandler handler) {
+        String name = segment.getFileName().toString();
+        long second = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        Map<Integer, Long> values = new HashMap<>();
+        long offset = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+            while (true) {
+                long length = readVarint(in);
+                if (length < 0) {
+                    break;
+                }
+                byte[] payload = new byte[(int) length];
+                in.readFully(payload);
+                ByteArrayInputStream record = new ByteArrayInputStream(payload);
+                second += readVarint(record);
+                long count = readVarint(record);
+                Map<Integer, Long> changes = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    int id = (int) readVarint(record);
+                    long value = values.getOrDefault(id, 0L) + unzigzag(readVarint(record));
+                    values.put(id, value);
+                    changes.put(id, value);
+                }
+                offset += varintSize(length) + length;
+                if (!handler.accept(second, changes)) {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // Недописанная запись после сбоя питания - все до нее валидно
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось прочитать сегмент " + segment, e);
+        }
+        return offset;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * @return Значение или -1 в конце потока перед началом числа.
+     */
+    private static long readVarint(InputStream in) throws IOException {
+        long result = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException();
+            }
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+        }
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    @FunctionalInterface
+    private interface RecordHandler {
+        boolean accept(long second, Map<Integer, Long> changes);
+    }
+}
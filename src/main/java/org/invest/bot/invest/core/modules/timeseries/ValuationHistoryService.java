@@ -0,0 +1,87 @@
+package org.invest.bot.invest.core.modules.timeseries;
+
+import lombok.extern.slf4j.Slf4j;
+import org.invest.bot.invest.core.modules.accounts.ConsolidatedBook;
+import org.invest.bot.invest.core.modules.accounts.ConsolidatedPortfolioService;
+import org.invest.bot.invest.core.modules.balanse.ActualDistribution;
+import org.invest.bot.invest.core.modules.balanse.PortfolioInstrumentStructure;
+import org.invest.bot.invest.core.objects.InstrumentObj;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Записывает стоимость сводного портфеля в {@link TimeSeriesStore} по расписанию {@code timeseries.cron}:
+ * итог, каждую стратегическую категорию и каждую позицию по FIGI.
+ */
+@Service
+@Slf4j
+public class ValuationHistoryService {
+    public static final String TOTAL = "total";
+    public static final String CATEGORY_PREFIX = "category:";
+    public static final String POSITION_PREFIX = "position:";
+    private static final String OTHER_CATEGORY = "OTHER";
+
+    private final ConsolidatedPortfolioService consolidatedPortfolioService;
+    private final TimeSeriesStore store;
+
+    public ValuationHistoryService(ConsolidatedPortfolioService consolidatedPortfolioService, TimeSeriesStore store) {
+        this.consolidatedPortfolioService = consolidatedPortfolioService;
+        this.store = store;
+    }
+
+    @Scheduled(cron = "${timeseries.cron:0 */5 7-23 * * *}")
+    public void record() {
+        try {
+            ConsolidatedBook book = consolidatedPortfolioService.load();
+            store.append(Instant.now(), snapshot(book));
+        } catch (Exception e) {
+            log.error("Не удалось записать снимок стоимости портфеля: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Стоимость портфеля целиком за период с шагом {@code step}.
+     */
+    public List<SeriesPoint> total(Instant from, Instant to, Duration step) {
+        return store.downsample(TOTAL, from, to, step);
+    }
+
+    /**
+     * Стоимость категорий за период с шагом {@code step}. Ключ - имя категории.
+     */
+    public Map<String, List<SeriesPoint>> categories(Instant from, Instant to, Duration step) {
+        Map<String, List<SeriesPoint>> result = new TreeMap<>();
+        for (String series : store.getSeriesNames()) {
+            if (series.startsWith(CATEGORY_PREFIX)) {
+                List<SeriesPoint> points = store.downsample(series, from, to, step);
+                if (!points.isEmpty()) {
+                    result.put(series.substring(CATEGORY_PREFIX.length()), points);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Стоимость позиции за период с шагом {@code step}. Нули - дни, когда позиции не было.
+     */
+    public List<SeriesPoint> position(String figi, Instant from, Instant to, Duration step) {
+        return store.downsample(POSITION_PREFIX + figi, from, to, step);
+    }
+
+    private static Map<String, Double> snapshot(ConsolidatedBook book) {
+        Map<String, Double> values = new HashMap<>();
+        values.put(TOTAL, book.total().portfolio().getTotalAmountPortfolio().getValue().doubleValue());
+        for (InstrumentObj inst : book.total().instrumentObjs()) {
+            double value = ActualDistribution.positionValue(inst).doubleValue();
+            PortfolioInstrumentStructure category = ActualDistribution.categoryOf(inst);
+            values.merge(POSITION_PREFIX + inst.getFigi(), value, Double::sum);
+            values.merge(CATEGORY_PREFIX + (category == null ? OTHER_CATEGORY : category.name()), value, Double::sum);
+        }
+        return values;
+    }
+}
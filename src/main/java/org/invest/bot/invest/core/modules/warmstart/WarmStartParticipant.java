@@ -0,0 +1,27 @@
+package org.invest.bot.invest.core.modules.warmstart;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Компонент, чье состояние в памяти переживает перезапуск через {@link WarmStartService}.
+ * Каждый участник пишет и читает свой раздел файла сам, формат раздела - его внутреннее дело.
+ */
+public interface WarmStartParticipant {
+
+    /**
+     * Имя раздела в файле. Раздел с неизвестным именем при чтении пропускается.
+     */
+    String warmStartKey();
+
+    void writeWarmStart(DataOutputStream out) throws IOException;
+
+    void readWarmStart(DataInputStream in) throws IOException;
+
+    /**
+     * Фоновая перепроверка восстановленного состояния после старта приложения.
+     */
+    default void revalidate() {
+    }
+}
@@ -0,0 +1,142 @@
+package org.invest.bot.invest.core.modules.warmstart;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Снимок состояния в памяти для быстрого старта после перезапуска: справочники инструментов, счета,
+ * последний снимок портфеля и сессия бота. Файл - сжатый двоичный список разделов «имя, длина, данные».
+ * <p>
+ * Файл читается в конструкторе, а участник получает свой раздел сразу при регистрации,
+ * то есть в собственном конструкторе - до того, как бот начнет принимать обновления.
+ * После старта приложения участники перепроверяют восстановленное в фоне.
+ * Снимок пишется по расписанию и при остановке, через временный файл.
+ */
+@Service
+@Slf4j
+public class WarmStartService {
+    private static final int MAGIC = 0x57534E50;
+    private static final int VERSION = 1;
+
+    private final Path file;
+    private final Map<String, byte[]> sections;
+    private final List<WarmStartParticipant> participants = new CopyOnWriteArrayList<>();
+
+    public WarmStartService(@Value("${warmstart.file:data/warmstart.bin}") String file) {
+        this.file = Path.of(file);
+        this.sections = load();
+    }
+
+    /**
+     * Регистрирует участника и сразу восстанавливает его состояние из снимка.
+     * Поврежденный раздел пропускается: участник стартует с пустым состоянием.
+     */
+    public void register(WarmStartParticipant participant) {
+        participants.add(participant);
+        byte[] data = sections.remove(participant.warmStartKey());
+        if (data == null) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            participant.readWarmStart(in);
+            log.info("Состояние '{}' восстановлено из снимка ({} байт).", participant.warmStartKey(), data.length);
+        } catch (Exception e) {
+            log.warn("Раздел '{}' снимка не прочитан: {}", participant.warmStartKey(), e.getMessage());
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void revalidateInBackground() {
+        Thread thread = new Thread(() -> {
+            long started = System.currentTimeMillis();
+            for (WarmStartParticipant participant : participants) {
+                try {
+                    participant.revalidate();
+                } catch (Exception e) {
+                    log.warn("Перепроверка '{}' не удалась: {}", participant.warmStartKey(), e.getMessage(), e);
+                }
+            }
+            log.info("Восстановленное состояние перепроверено за {} мс.", System.currentTimeMillis() - started);
+        }, "warmstart-revalidate");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Scheduled(fixedDelayString = "${warmstart.interval-minutes:10}",
+            initialDelayString = "${warmstart.interval-minutes:10}", timeUnit = TimeUnit.MINUTES)
+    public void scheduledSave() {
+        save();
+    }
+
+    @PreDestroy
+    public synchronized void save() {
+        long started = System.currentTimeMillis();
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(Files.newOutputStream(temp))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(participants.size());
+                for (WarmStartParticipant participant : participants) {
+                    ByteArrayOutputStream section = new ByteArrayOutputStream();
+                    try (DataOutputStream sectionOut = new DataOutputStream(section)) {
+                        participant.writeWarmStart(sectionOut);
+                    }
+                    out.writeUTF(participant.warmStartKey());
+                    out.writeInt(section.size());
+                    section.writeTo(out);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Снимок состояния записан: {} байт за {} мс.", Files.size(file), System.currentTimeMillis() - started);
+        } catch (Exception e) {
+            log.error("Не удалось записать снимок состояния: {}", e.getMessage(), e);
+        }
+    }
+
+    private Map<String, byte[]> load() {
+        Map<String, byte[]> result = new HashMap<>();
+        if (!Files.exists(file)) {
+            return result;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.warn("Снимок состояния {} другого формата, старт без него.", file);
+                return result;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                result.put(key, data);
+            }
+        } catch (IOException e) {
+            log.warn("Снимок состояния {} не прочитан, старт без него: {}", file, e.getMessage());
+            result.clear();
+        }
+        return result;
+    }
+}
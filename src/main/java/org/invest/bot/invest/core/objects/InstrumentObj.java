@@ -18,6 +18,7 @@ public class InstrumentObj {
     private final String figi;
     private final Boolean getBuyAvailableFlag;
     private final int lot;
+    private final BigDecimal fxRate;
 
     public InstrumentObj(Position position, Instrument instrument, int lot) {
         this.name = instrument.getName();
@@ -31,6 +32,48 @@ public class InstrumentObj {
         this.figi = position.getFigi();
         this.getBuyAvailableFlag = instrument.getBuyAvailableFlag();
         this.lot = lot;
+        this.fxRate = BigDecimal.ONE;
+    }
+
+    /**
+     * Копирует описание инструмента из {@code template}, а количество и цены берет из {@code position}.
+     * Используется при объединении одной бумаги с нескольких счетов.
+     */
+    public InstrumentObj(Position position, InstrumentObj template) {
+        this.name = template.getName();
+        this.instrumentUid = template.getInstrumentUid();
+        this.quantity = position.getQuantity();
+        this.currentPrice = position.getCurrentPrice();
+        this.type = template.getType();
+        this.ticker = template.getTicker();
+        this.totalProfit = position.getExpectedYield();
+        this.averageBuyPrice = position.getAveragePositionPrice();
+        this.figi = position.getFigi();
+        this.getBuyAvailableFlag = template.getGetBuyAvailableFlag();
+        this.lot = template.getLot();
+        this.fxRate = template.getFxRate();
+    }
+
+    private InstrumentObj(InstrumentObj source, BigDecimal fxRate) {
+        this.name = source.name;
+        this.instrumentUid = source.instrumentUid;
+        this.quantity = source.quantity;
+        this.currentPrice = source.currentPrice;
+        this.type = source.type;
+        this.ticker = source.ticker;
+        this.totalProfit = source.totalProfit;
+        this.averageBuyPrice = source.averageBuyPrice;
+        this.figi = source.figi;
+        this.getBuyAvailableFlag = source.getBuyAvailableFlag;
+        this.lot = source.lot;
+        this.fxRate = fxRate;
+    }
+
+    /**
+     * Копия с курсом пересчета цены в базовую валюту счета.
+     */
+    public InstrumentObj withFxRate(BigDecimal fxRate) {
+        return new InstrumentObj(this, fxRate);
     }
 
     public String getName() {
@@ -76,4 +119,18 @@ public class InstrumentObj {
     public int getLot() {
         return lot;
     }
-}
\ No newline at end of file
+
+    /**
+     * Курс валюты цены к базовой валюте счета. Для рублевых инструментов равен 1.
+     */
+    public BigDecimal getFxRate() {
+        return fxRate;
+    }
+
+    /**
+     * Стоимость позиции в базовой валюте счета.
+     */
+    public BigDecimal getPositionValue() {
+        return quantity.multiply(currentPrice.getValue()).multiply(fxRate);
+    }
+}
@@ -0,0 +1,48 @@
+package org.invest.bot.core.sessions;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+
+    @Test
+    void burstUpToCapacityThenRejects() {
+        TokenBucket bucket = new TokenBucket(3, 0.001);
+
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    void reportsWaitUntilNextToken() {
+        TokenBucket bucket = new TokenBucket(1, 1);
+        assertEquals(0, bucket.nanosUntilAvailable());
+
+        assertTrue(bucket.tryAcquire());
+
+        long wait = bucket.nanosUntilAvailable();
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(900), "wait " + wait);
+        assertTrue(wait <= TimeUnit.SECONDS.toNanos(1), "wait " + wait);
+    }
+
+    @Test
+    void refillsOverTimeButNotAboveCapacity() {
+        TokenBucket bucket = new TokenBucket(2, 1000);
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.isFull());
+
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+
+        assertTrue(bucket.isFull());
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+}
@@ -0,0 +1,109 @@
+package org.invest.bot.core.updates;
+
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.message.Message;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class OrderedUpdateDispatcherTest {
+
+    @Test
+    void keepsOrderWithinChat() throws InterruptedException {
+        int chats = 4;
+        int perChat = 50;
+        Map<Long, List<Integer>> handled = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(chats * perChat);
+        Random random = new Random(42);
+        OrderedUpdateDispatcher dispatcher = new OrderedUpdateDispatcher(update -> {
+            LockSupport.parkNanos(random.nextInt(200_000));
+            handled.computeIfAbsent(update.getMessage().getChatId(), id -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(update.getUpdateId());
+            done.countDown();
+        }, 4, 16);
+
+        List<Update> updates = new ArrayList<>();
+        for (int i = 0; i < perChat; i++) {
+            for (long chat = 0; chat < chats; chat++) {
+                updates.add(message(chat, i));
+            }
+        }
+        dispatcher.consume(updates);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        dispatcher.shutdown();
+        for (long chat = 0; chat < chats; chat++) {
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < perChat; i++) {
+                expected.add(i);
+            }
+            assertEquals(expected, handled.get(chat), "chat " + chat);
+        }
+        assertEquals(chats * perChat, dispatcher.getMetrics().handled());
+    }
+
+    @Test
+    void slowChatDoesNotBlockOthers() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch otherHandled = new CountDownLatch(1);
+        OrderedUpdateDispatcher dispatcher = new OrderedUpdateDispatcher(update -> {
+            if (update.getMessage().getChatId() == 1L) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                otherHandled.countDown();
+            }
+        }, 2, 16);
+
+        dispatcher.submit(message(1, 0));
+        dispatcher.submit(message(2, 1));
+
+        assertTrue(otherHandled.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        dispatcher.shutdown();
+    }
+
+    @Test
+    void failedUpdateDoesNotStopChatQueue() throws InterruptedException {
+        List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(3);
+        OrderedUpdateDispatcher dispatcher = new OrderedUpdateDispatcher(update -> {
+            try {
+                if (update.getUpdateId() == 1) {
+                    throw new IllegalStateException("boom");
+                }
+                handled.add(update.getUpdateId());
+            } finally {
+                done.countDown();
+            }
+        }, 2, 16);
+
+        dispatcher.consume(List.of(message(7, 0), message(7, 1), message(7, 2)));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        dispatcher.shutdown();
+        assertEquals(List.of(0, 2), handled);
+        assertEquals(1, dispatcher.getMetrics().failed());
+    }
+
+    private static Update message(long chatId, int updateId) {
+        Message message = mock(Message.class);
+        when(message.getChatId()).thenReturn(chatId);
+        Update update = mock(Update.class);
+        when(update.hasMessage()).thenReturn(true);
+        when(update.getMessage()).thenReturn(message);
+        when(update.getUpdateId()).thenReturn(updateId);
+        return update;
+    }
+}
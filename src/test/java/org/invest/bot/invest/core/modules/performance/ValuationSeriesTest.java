@@ -0,0 +1,89 @@
+package org.invest.bot.invest.core.modules.performance;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ValuationSeriesTest {
+    private static final LocalDate DAY = LocalDate.of(2024, 1, 10);
+
+    @Test
+    void timeWeightedReturnIgnoresDeposits() {
+        // +10% в первый день, пополнение на 100 во второй без изменения цен
+        ValuationSeries series = new ValuationSeries(dates(3), new double[]{100, 110, 210}, new double[]{0, 0, 100});
+
+        PerformanceResult result = series.performance(DAY, DAY.plusDays(2));
+
+        assertEquals(0.10, result.twr(), 1e-12);
+        assertEquals(100, result.netFlows(), 1e-12);
+        assertEquals(100, result.startValue(), 1e-12);
+        assertEquals(210, result.endValue(), 1e-12);
+    }
+
+    @Test
+    void twrOverSubPeriodUsesPrefixProducts() {
+        ValuationSeries series = new ValuationSeries(dates(4), new double[]{100, 110, 121, 60.5}, new double[4]);
+
+        assertEquals(0.10, series.performance(DAY.plusDays(1), DAY.plusDays(2)).twr(), 1e-12);
+        assertEquals(-0.395, series.performance(DAY, DAY.plusDays(3)).twr(), 1e-12);
+    }
+
+    @Test
+    void xirrWithoutFlowsEqualsAnnualReturn() {
+        LocalDate[] dates = {DAY, DAY.plusDays(365)};
+        ValuationSeries series = new ValuationSeries(dates, new double[]{100, 110}, new double[2]);
+
+        assertEquals(0.10, series.performance(DAY, DAY.plusDays(365)).xirr(), 1e-9);
+    }
+
+    @Test
+    void datesOutsideSeriesAreClamped() {
+        ValuationSeries series = new ValuationSeries(dates(3), new double[]{100, 105, 110}, new double[3]);
+
+        PerformanceResult result = series.performance(DAY.minusDays(30), DAY.plusDays(30));
+
+        assertEquals(DAY, result.from());
+        assertEquals(DAY.plusDays(2), result.to());
+        assertEquals(0.10, result.twr(), 1e-12);
+    }
+
+    @Test
+    void emptyPeriodHasNoReturn() {
+        ValuationSeries series = new ValuationSeries(dates(3), new double[]{100, 105, 110}, new double[3]);
+
+        PerformanceResult result = series.performance(DAY.plusDays(1), DAY.plusDays(1));
+
+        assertEquals(0, result.twr());
+        assertTrue(Double.isNaN(result.xirr()));
+    }
+
+    @Test
+    void sumCarriesMissingDaysForward() {
+        ValuationSeries first = new ValuationSeries(new LocalDate[]{DAY, DAY.plusDays(2)},
+                new double[]{100, 120}, new double[]{0, 10});
+        ValuationSeries second = new ValuationSeries(new LocalDate[]{DAY.plusDays(1), DAY.plusDays(2)},
+                new double[]{50, 55}, new double[]{50, 0});
+
+        ValuationSeries total = ValuationSeries.sum(List.of(first, second));
+
+        assertEquals(DAY, total.firstDate());
+        assertEquals(DAY.plusDays(2), total.lastDate());
+        assertEquals(175, total.lastValue(), 1e-12);
+        // День 1: первый счет берется по предыдущему дню, второй открыт пополнением на 50
+        PerformanceResult firstDay = total.performance(DAY, DAY.plusDays(1));
+        assertEquals(150, firstDay.endValue(), 1e-12);
+        assertEquals(50, firstDay.netFlows(), 1e-12);
+        assertEquals(0, firstDay.twr(), 1e-12);
+    }
+
+    private static LocalDate[] dates(int count) {
+        LocalDate[] dates = new LocalDate[count];
+        for (int i = 0; i < count; i++) {
+            dates[i] = DAY.plusDays(i);
+        }
+        return dates;
+    }
+}
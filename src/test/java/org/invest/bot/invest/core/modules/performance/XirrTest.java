@@ -0,0 +1,58 @@
+package org.invest.bot.invest.core.modules.performance;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XirrTest {
+
+    @Test
+    void simpleAnnualReturn() {
+        assertEquals(0.10, Xirr.solve(new double[]{-100, 110}, new double[]{0, 1}), 1e-9);
+    }
+
+    @Test
+    void expandsBracketForLargeReturns() {
+        // Корень 9.0 лежит за начальной границей отрезка (1.0), отрезок должен расшириться
+        assertEquals(9.0, Xirr.solve(new double[]{-100, 1000}, new double[]{0, 1}), 1e-7);
+    }
+
+    @Test
+    void findsReturnCloseToTotalLoss() {
+        assertEquals(-0.99, Xirr.solve(new double[]{-100, 1}, new double[]{0, 1}), 1e-7);
+    }
+
+    @Test
+    void shortPeriodIsAnnualized() {
+        // +1% за 0.1 года
+        double expected = Math.pow(1.01, 10) - 1;
+        assertEquals(expected, Xirr.solve(new double[]{-100, 101}, new double[]{0, 0.1}), 1e-7);
+    }
+
+    @Test
+    void irregularFlowsZeroTheNetPresentValue() {
+        double[] amounts = {-1000, -500, 200, 1500};
+        double[] years = {0, 0.25, 0.7, 1.5};
+
+        double rate = Xirr.solve(amounts, years);
+
+        assertTrue(Double.isFinite(rate));
+        double npv = 0;
+        for (int i = 0; i < amounts.length; i++) {
+            npv += amounts[i] / Math.pow(1 + rate, years[i]);
+        }
+        assertEquals(0, npv, 1e-6);
+    }
+
+    @Test
+    void noRootWhenAllFlowsHaveOneSign() {
+        assertTrue(Double.isNaN(Xirr.solve(new double[]{100, 110}, new double[]{0, 1})));
+        assertTrue(Double.isNaN(Xirr.solve(new double[]{-100, -10}, new double[]{0, 1})));
+    }
+
+    @Test
+    void noRootBeyondMaximumRate() {
+        // Рост в миллион раз за год - за пределами допустимой ставки
+        assertTrue(Double.isNaN(Xirr.solve(new double[]{-1, 1_000_000}, new double[]{0, 1})));
+    }
+}
@@ -0,0 +1,196 @@
+package org.invest.bot.invest.core.modules.timeseries;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimeSeriesStoreTest {
+    private static final Instant START = Instant.parse("2024-01-10T10:00:00Z");
+    private static final long SEGMENT_BYTES = 1 << 20;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void roundTripsLargeAndNegativeDeltasAcrossReopen() {
+        double[] values = {0.01, -12_345_678.90, 10_000_000_000.00, -0.01, 0.5};
+        TimeSeriesStore store = store(SEGMENT_BYTES);
+        for (int i = 0; i < values.length; i++) {
+            store.append(at(i * 60L), Map.of("total", values[i]));
+        }
+
+        List<SeriesPoint> points = store(SEGMENT_BYTES).query("total", START, at(3600));
+
+        assertEquals(values.length, points.size());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(at(i * 60L), points.get(i).time());
+            assertEquals(values[i], points.get(i).value(), 1e-9);
+        }
+    }
+
+    @Test
+    void unchangedSnapshotWritesNothing() throws IOException {
+        TimeSeriesStore store = store(SEGMENT_BYTES);
+        store.append(at(0), Map.of("total", 100.0));
+        long size = totalSegmentBytes();
+
+        store.append(at(60), Map.of("total", 100.0));
+
+        assertEquals(size, totalSegmentBytes());
+        assertEquals(1, store.query("total", START, at(120)).size());
+    }
+
+    @Test
+    void missingSeriesDropsToZero() {
+        TimeSeriesStore store = store(SEGMENT_BYTES);
+        store.append(at(0), Map.of("SBER", 1000.0, "GAZP", 500.0));
+        store.append(at(60), Map.of("SBER", 1000.0));
+
+        List<SeriesPoint> points = store.query("GAZP", START, at(120));
+
+        assertEquals(List.of(new SeriesPoint(at(0), 500.0), new SeriesPoint(at(60), 0.0)), points);
+    }
+
+    @Test
+    void rollsOverFullSegmentAndRestartsFromFullSnapshot() throws IOException {
+        TimeSeriesStore store = store(16);
+        for (int i = 0; i < 20; i++) {
+            store.append(at(i * 60L), Map.of("total", 1000.0 + i, "cash", 5.0));
+        }
+
+        assertTrue(segmentCount() > 1);
+        List<SeriesPoint> total = store(16).query("total", START, at(20 * 60));
+        assertEquals(20, total.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(1000.0 + i, total.get(i).value(), 1e-9);
+        }
+        // Неизменный ряд повторяется в начале каждого сегмента, но значение остается тем же
+        assertTrue(store.query("cash", START, at(20 * 60)).stream().allMatch(point -> point.value() == 5.0));
+    }
+
+    @Test
+    void rollsOverOnMonthChange() throws IOException {
+        TimeSeriesStore store = store(SEGMENT_BYTES);
+        Instant january = Instant.parse("2024-01-31T23:59:00Z");
+        Instant february = Instant.parse("2024-02-01T00:01:00Z");
+        store.append(january, Map.of("total", 1.0));
+        store.append(february, Map.of("total", 2.0));
+
+        assertEquals(2, segmentCount());
+        assertEquals(List.of(new SeriesPoint(january, 1.0), new SeriesPoint(february, 2.0)),
+                store.query("total", january, february));
+    }
+
+    @Test
+    void truncatesTornTailOnOpen() throws IOException {
+        TimeSeriesStore store = store(SEGMENT_BYTES);
+        for (int i = 0; i < 3; i++) {
+            store.append(at(i * 60L), Map.of("total", 100.0 * (i + 1)));
+        }
+        Path segment = lastSegment();
+        long validSize = Files.size(segment);
+        // Длина записи 10 байт, а дописаны только два - сбой питания посреди записи
+        Files.write(segment, new byte[]{10, 1, 1}, StandardOpenOption.APPEND);
+
+        TimeSeriesStore reopened = store(SEGMENT_BYTES);
+
+        assertEquals(validSize, Files.size(segment));
+        assertEquals(3, reopened.query("total", START, at(600)).size());
+        reopened.append(at(180), Map.of("total", 400.0));
+        List<SeriesPoint> points = store(SEGMENT_BYTES).query("total", START, at(600));
+        assertEquals(4, points.size());
+        assertEquals(400.0, points.get(3).value(), 1e-9);
+    }
+
+    @Test
+    void rejectsSnapshotOlderThanLastWritten() {
+        TimeSeriesStore store = store(SEGMENT_BYTES);
+        store.append(at(60), Map.of("total", 1.0));
+        store.append(at(0), Map.of("total", 2.0));
+
+        assertEquals(List.of(new SeriesPoint(at(60), 1.0)), store.query("total", START, at(120)));
+    }
+
+    @Test
+    void queryEdges() {
+        TimeSeriesStore store = store(SEGMENT_BYTES);
+        store.append(at(100), Map.of("total", 1.0));
+        store.append(at(200), Map.of("total", 2.0));
+        store.append(at(300), Map.of("total", 3.0));
+
+        // Границы включаются
+        assertEquals(List.of(new SeriesPoint(at(100), 1.0), new SeriesPoint(at(200), 2.0)),
+                store.query("total", at(100), at(200)));
+        // Начало между точками получает значение на этот момент
+        assertEquals(List.of(new SeriesPoint(at(150), 1.0), new SeriesPoint(at(200), 2.0)),
+                store.query("total", at(150), at(250)));
+        // После последней точки - только значение на начало периода
+        assertEquals(List.of(new SeriesPoint(at(400), 3.0)), store.query("total", at(400), at(500)));
+        // До первого сегмента данных нет
+        assertTrue(store.query("total", at(0), at(50)).isEmpty());
+        assertTrue(store.query("unknown", at(0), at(500)).isEmpty());
+    }
+
+    @Test
+    void downsampleTakesLastValueAndCarriesItForward() {
+        TimeSeriesStore store = store(SEGMENT_BYTES);
+        store.append(at(100), Map.of("total", 1.0));
+        store.append(at(130), Map.of("total", 1.5));
+        store.append(at(200), Map.of("total", 2.0));
+
+        List<SeriesPoint> points = store.downsample("total", at(0), at(400), Duration.ofSeconds(100));
+
+        // Интервал [0, 100) без данных пропускается, [300, 400] повторяют последнее значение
+        assertEquals(List.of(
+                new SeriesPoint(at(100), 1.5),
+                new SeriesPoint(at(200), 2.0),
+                new SeriesPoint(at(300), 2.0),
+                new SeriesPoint(at(400), 2.0)), points);
+        assertTrue(store.downsample("unknown", at(0), at(400), Duration.ofSeconds(100)).isEmpty());
+    }
+
+    private TimeSeriesStore store(long segmentBytes) {
+        return new TimeSeriesStore(directory.toString(), segmentBytes);
+    }
+
+    private static Instant at(long seconds) {
+        return START.plusSeconds(seconds);
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().startsWith("seg-")).count();
+        }
+    }
+
+    private long totalSegmentBytes() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().startsWith("seg-"))
+                    .mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+
+    private Path lastSegment() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().startsWith("seg-"))
+                    .max((a, b) -> Long.compare(secondOf(a), secondOf(b)))
+                    .orElseThrow();
+        }
+    }
+
+    private static long secondOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring("seg-".length(), name.length() - ".bin".length()));
+    }
+}